@@ -19,6 +19,7 @@ package builtInChips;
 
 import java.awt.*;
 import Hack.Gates.*;
+import Hack.CPUEmulator.*;
 import Hack.Utilities.*;
 import SimulatorsGUI.*;
 import Hack.Assembler.*;
@@ -39,7 +40,7 @@ import Hack.Assembler.*;
 public class ALU extends BuiltInGateWithGUI {
 
     // The gui;
-    private ALUComponent gui;
+    private ALUGUI gui;
 
     // An assembler transltor
     protected HackAssemblerTranslator assemblerTranslator;
@@ -49,16 +50,17 @@ public class ALU extends BuiltInGateWithGUI {
      */
     public ALU() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new ALUComponent();
-            gui.setLocation(80,468);
-            gui.reset();
+            ALUComponent component = new ALUComponent();
+            component.setLocation(80,468);
+            component.reset();
+            gui = component;
         }
 
         assemblerTranslator = HackAssemblerTranslator.getInstance();
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     public void reCompute() {
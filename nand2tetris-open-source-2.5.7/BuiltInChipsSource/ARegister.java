@@ -29,8 +29,8 @@ public class ARegister extends RegisterWithGUI {
      */
     public ARegister() {
         if (gui != null) {
-            gui.setName("A:");
-            gui.setLocation(4,442);
+            getRegisterComponent().setName("A:");
+            getRegisterComponent().setLocation(4,442);
         }
     }
 }
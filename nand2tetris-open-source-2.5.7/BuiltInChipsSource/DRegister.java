@@ -29,8 +29,8 @@ public class DRegister extends RegisterWithGUI {
      */
     public DRegister() {
         if (gui != null) {
-            gui.setName("D:");
-            gui.setLocation(180,442);
+            getRegisterComponent().setName("D:");
+            getRegisterComponent().setLocation(180,442);
         }
     }
 }
@@ -19,35 +19,38 @@ package builtInChips;
 
 import java.awt.*;
 import java.awt.event.*;
+import javax.swing.JComponent;
 import Hack.Gates.*;
+import Hack.CPUEmulator.*;
 import Hack.Utilities.*;
 import SimulatorsGUI.*;
 
 /**
 /* A Keyboard, implemented as a 16 bit register that stores the currently pressed key code.
  */
-public class Keyboard extends BuiltInGateWithGUI implements KeyListener {
+public class Keyboard extends BuiltInGateWithGUI {
 
     // The currently pressed key.
     private short key;
 
     // The gui.
-    private KeyboardComponent gui;
+    private KeyboardGUI gui;
 
     /**
      * Constructs a new Keyboard.
      */
     public Keyboard() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new KeyboardComponent();
-            gui.setLocation(4,264);
-            gui.getKeyEventHandler().addKeyListener(this);
-            gui.reset();
+            KeyboardComponent component = new KeyboardComponent();
+            component.setLocation(4,264);
+            new KeyHandler(component.getKeyEventHandler());
+            component.reset();
+            gui = component;
         }
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     /**
@@ -93,4 +96,26 @@ public class Keyboard extends BuiltInGateWithGUI implements KeyListener {
     public void setValueAt(int index, short value) throws GateException {
         throw new GateException("Keyboard is read only");
     }
+
+    // Forwards the key events of the gui to the chip. Only created when the
+    // gui is enabled, and registers itself, so that verifying Keyboard doesn't
+    // load the AWT event classes in headless runs.
+    class KeyHandler implements KeyListener {
+
+        public KeyHandler(JComponent source) {
+            source.addKeyListener(this);
+        }
+
+        public void keyPressed(KeyEvent e) {
+            Keyboard.this.keyPressed(e);
+        }
+
+        public void keyReleased(KeyEvent e) {
+            Keyboard.this.keyReleased(e);
+        }
+
+        public void keyTyped(KeyEvent e) {
+            Keyboard.this.keyTyped(e);
+        }
+    }
 }
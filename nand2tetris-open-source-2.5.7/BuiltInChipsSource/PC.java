@@ -35,19 +35,20 @@ public class PC extends BuiltInGateWithGUI implements ComputerPartEventListener
     private short value;
 
     // The gui
-    private RegisterComponent gui;
+    private RegisterGUI gui;
 
     /**
      * Constructs a new PC.
      */
     public PC() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new RegisterComponent();
-            gui.setName("PC:");
-            gui.reset();
-            gui.setLocation(355,442);
-            gui.addListener(this);
-            gui.addErrorListener(this);
+            RegisterComponent component = new RegisterComponent();
+            component.setName("PC:");
+            component.reset();
+            component.setLocation(355,442);
+            component.addListener(this);
+            component.addErrorListener(this);
+            gui = component;
         }
     }
 
@@ -72,7 +73,7 @@ public class PC extends BuiltInGateWithGUI implements ComputerPartEventListener
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     public void valueChanged(ComputerPartEvent event) {
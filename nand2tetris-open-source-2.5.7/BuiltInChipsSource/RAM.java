@@ -31,13 +31,14 @@ import java.awt.*;
  * to change them.
  * Used as a base class for all RAM chips.
  */
-public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEventListener {
+public abstract class RAM extends BuiltInGateWithGUI
+ implements ComputerPartEventListener, BuiltInMemory {
 
     // The memory array.
     protected short[] values;
 
     // The gui of the memory.
-    protected PointedMemoryComponent memoryGUI;
+    protected PointedMemoryGUI memoryGUI;
 
     /**
      * Constructs a new RAM of the given size.
@@ -46,12 +47,13 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
         values = new short[size];
 
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            memoryGUI = new PointedMemoryComponent();
-            memoryGUI.setContents(values);
-            memoryGUI.setVisibleRows(8);
-            memoryGUI.setLocation(166,10);
-            memoryGUI.addListener(this);
-            memoryGUI.addErrorListener(this);
+            PointedMemoryComponent component = new PointedMemoryComponent();
+            component.setContents(values);
+            component.setVisibleRows(8);
+            component.setLocation(166,10);
+            component.addListener(this);
+            component.addErrorListener(this);
+            memoryGUI = component;
         }
     }
 
@@ -78,7 +80,15 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
     }
 
     public Component getGUIComponent() {
-        return memoryGUI;
+        return (Component)memoryGUI;
+    }
+
+    /**
+     * Returns the gui as a memory component, for laying it out.
+     * Should only be called when the gui exists.
+     */
+    protected PointedMemoryComponent getMemoryComponent() {
+        return (PointedMemoryComponent)memoryGUI;
     }
 
     /**
@@ -118,4 +128,20 @@ public abstract class RAM extends BuiltInGateWithGUI implements ComputerPartEven
         checkIndex(index);
         updateValue(index, value);
     }
+
+    public short[] getContents() {
+        return values;
+    }
+
+    public void setContents(short[] newValues) {
+        int length = Math.min(newValues.length, values.length);
+        System.arraycopy(newValues, 0, values, 0, length);
+        for (int i = length; i < values.length; i++)
+            values[i] = 0;
+
+        if (memoryGUI != null)
+            memoryGUI.setContents(values);
+        reCompute();
+        evalParent();
+    }
 }
@@ -31,10 +31,10 @@ import Hack.Assembler.*;
 /* stored at the memory location specified by the 15-bit address.
  */
 public class ROM32K extends BuiltInGateWithGUI
- implements ComputerPartEventListener, ProgramEventListener {
+ implements ComputerPartEventListener, ProgramEventListener, BuiltInMemory {
 
     // The gui
-    private ROMComponent gui;
+    private ROMGUI gui;
 
     // The memory array
     private short[] values;
@@ -46,15 +46,16 @@ public class ROM32K extends BuiltInGateWithGUI
         values = new short[Definitions.ROM_SIZE];
 
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new ROMComponent();
-            gui.setContents(values);
-            gui.setVisibleRows(7);
-            gui.setLocation(326,295);
-            gui.setName("ROM:");
-            gui.reset();
-            gui.addListener(this);
-            gui.addProgramListener(this);
-            gui.addErrorListener(this);
+            ROMComponent component = new ROMComponent();
+            component.setContents(values);
+            component.setVisibleRows(7);
+            component.setLocation(326,295);
+            component.setName("ROM:");
+            component.reset();
+            component.addListener(this);
+            component.addProgramListener(this);
+            component.addErrorListener(this);
+            gui = component;
         }
     }
 
@@ -66,7 +67,7 @@ public class ROM32K extends BuiltInGateWithGUI
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     /**
@@ -84,13 +85,9 @@ public class ROM32K extends BuiltInGateWithGUI
                 gui.setNumericFormat(ROM.ASM_FORMAT);
         }
 
-        values = program;
-        if (gui != null) {
+        if (gui != null)
             gui.setProgram(fileName);
-            gui.setContents(values);
-        }
-        reCompute();
-        evalParent();
+        setContents(program);
     }
 
     /**
@@ -157,6 +154,22 @@ public class ROM32K extends BuiltInGateWithGUI
         updateValue(index, value);
     }
 
+    public short[] getContents() {
+        return values;
+    }
+
+    public void setContents(short[] newValues) {
+        int length = Math.min(newValues.length, values.length);
+        System.arraycopy(newValues, 0, values, 0, length);
+        for (int i = length; i < values.length; i++)
+            values[i] = 0;
+
+        if (gui != null)
+            gui.setContents(values);
+        reCompute();
+        evalParent();
+    }
+
     /**
      * Executes the given command, given in args[] style.
      * Subclasses may override this method to implement commands.
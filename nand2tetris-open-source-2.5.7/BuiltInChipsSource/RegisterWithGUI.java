@@ -33,19 +33,20 @@ public class RegisterWithGUI extends BuiltInGateWithGUI implements ComputerPartE
     protected short value;
 
     // The gui
-    protected RegisterComponent gui;
+    protected RegisterGUI gui;
 
     /**
      * Constructs a new RegisterWithGUI.
      */
     public RegisterWithGUI() {
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new RegisterComponent();
-            gui.setName("Reg:");
-            gui.setLocation(180, 10);
-            gui.reset();
-            gui.addListener(this);
-            gui.addErrorListener(this);
+            RegisterComponent component = new RegisterComponent();
+            component.setName("Reg:");
+            component.setLocation(180, 10);
+            component.reset();
+            component.addListener(this);
+            component.addErrorListener(this);
+            gui = component;
         }
     }
 
@@ -64,7 +65,15 @@ public class RegisterWithGUI extends BuiltInGateWithGUI implements ComputerPartE
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
+    }
+
+    /**
+     * Returns the gui as a register component, for laying it out.
+     * Should only be called when the gui exists.
+     */
+    protected RegisterComponent getRegisterComponent() {
+        return (RegisterComponent)gui;
     }
 
     public void valueChanged(ComputerPartEvent event) {
@@ -20,15 +20,16 @@ package builtInChips;
 import java.awt.*;
 import Hack.Gates.*;
 import Hack.Utilities.*;
+import Hack.CPUEmulator.*;
 import SimulatorsGUI.*;
 
 /**
 /* A 512X256 screen, implemented with 8K registers, each register represents 16 pixels.
  */
-public class Screen extends BuiltInGateWithGUI {
+public class Screen extends BuiltInGateWithGUI implements BuiltInMemory {
 
     // The gui
-    private ScreenComponent gui;
+    private ScreenGUI gui;
 
     // The memory array
     private short[] values;
@@ -39,8 +40,9 @@ public class Screen extends BuiltInGateWithGUI {
     public Screen() {
         values = new short[Definitions.SCREEN_SIZE_IN_WORDS];
         if (GatesManager.getInstance().isChipsGUIEnabled()) {
-            gui = new ScreenComponent();
-            gui.setLocation(4,2);
+            ScreenComponent component = new ScreenComponent();
+            component.setLocation(4,2);
+            gui = component;
         }
     }
 
@@ -65,7 +67,7 @@ public class Screen extends BuiltInGateWithGUI {
     }
 
     public Component getGUIComponent() {
-        return gui;
+        return (Component)gui;
     }
 
     // updates the given value
@@ -92,4 +94,20 @@ public class Screen extends BuiltInGateWithGUI {
         checkIndex(index);
         updateValue(index, value);
     }
+
+    public short[] getContents() {
+        return values;
+    }
+
+    public void setContents(short[] newValues) {
+        int length = Math.min(newValues.length, values.length);
+        System.arraycopy(newValues, 0, values, 0, length);
+        for (int i = length; i < values.length; i++)
+            values[i] = 0;
+
+        if (gui != null)
+            gui.setContents(values);
+        reCompute();
+        evalParent();
+    }
 }
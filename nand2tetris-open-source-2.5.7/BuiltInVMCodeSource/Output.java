@@ -31,15 +31,21 @@ public class Output extends JackOSClass {
 	private static final int N_ROWS = SCREEN_HEIGHT/11;
 	private static final int START_ADDRESS = SCREEN_WIDTH>>4;
 
-    static int wordInLine, address;
-    static boolean firstInWord;
-	static int map[][];
+	// The cursor of a program's output
+	static class Cursor {
+		int wordInLine, address;
+		boolean firstInWord;
 
-	public static void init() {
-        firstInWord = true;
-        address = START_ADDRESS;
-        wordInLine = 0;
-		map = new int[127][11];
+		Cursor() {
+			firstInWord = true;
+			address = START_ADDRESS;
+			wordInLine = 0;
+		}
+	}
+
+	static final int map[][] = new int[127][11];
+
+	static {
         create(0, 63, 63, 63, 63, 63, 63, 63, 63, 63, 0, 0);
         create(32, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
         create(33, 12, 30, 30, 30, 12, 12, 0, 12, 12, 0, 0);
@@ -138,6 +144,20 @@ public class Output extends JackOSClass {
         create(126, 38, 45, 25, 0, 0, 0, 0, 0, 0, 0, 0);
     }
 
+	public static void init() {
+		setState(Output.class, new Cursor());
+	}
+
+	// Returns the cursor of the calling program
+	private static Cursor cursor() {
+		Cursor cursor = (Cursor)getState(Output.class);
+		if (cursor == null) {
+			cursor = new Cursor();
+			setState(Output.class, cursor);
+		}
+		return cursor;
+	}
+
     private static void create(int c, int line0, int line1, int line2,
 							   int line3, int line4, int line5,
 							   int line6, int line7, int line8,
@@ -155,18 +175,19 @@ public class Output extends JackOSClass {
         map[c][10] = line10;
     }
 
-    private static void drawChar(int c) throws TerminateVMProgramThrowable {
+    private static void drawChar(Cursor cursor, int c)
+			throws TerminateVMProgramThrowable {
 		if (c < 32 || c >= 127) c = 0;
 		int mask;
 		int shift;
-		if (firstInWord) {
+		if (cursor.firstInWord) {
 			mask = 0xFF00;
 			shift = 0;
 		} else {
 			mask = 0x00FF;
 			shift = 8;
 		}
-        for (int i=0, j=address; i<11; ++i, j+=(SCREEN_WIDTH>>4)) {
+        for (int i=0, j=cursor.address; i<11; ++i, j+=(SCREEN_WIDTH>>4)) {
 			writeMemory(SCREEN_START_ADDRESS+j,
 						(readMemory(SCREEN_START_ADDRESS+j)&mask) |
 						(map[c][i]<<shift));
@@ -178,10 +199,11 @@ public class Output extends JackOSClass {
         if (row < 0 || row >= N_ROWS || col < 0 || col >= N_COLS) {
 			callFunction("Sys.error", OUTPUT_MOVECURSOR_ILLEGAL_POSITION);
         }
-        wordInLine = col / 2;
-        address = START_ADDRESS + (row * (11*(SCREEN_WIDTH>>4))) + wordInLine;
-        firstInWord = ((col&1) == 0);
-        drawChar(' ');
+        Cursor cursor = cursor();
+        cursor.wordInLine = col / 2;
+        cursor.address = START_ADDRESS + (row * (11*(SCREEN_WIDTH>>4))) + cursor.wordInLine;
+        cursor.firstInWord = ((col&1) == 0);
+        drawChar(cursor, ' ');
     }
 
     public static void printChar(short c) throws TerminateVMProgramThrowable {
@@ -190,17 +212,18 @@ public class Output extends JackOSClass {
         } else if (c == BACKSPACE_KEY) {
 			backSpace();
 		} else {
-			drawChar(c);
-			if (!firstInWord) {
-				++wordInLine;
-				++address;
-				if (wordInLine == (SCREEN_WIDTH>>4)) {
+			Cursor cursor = cursor();
+			drawChar(cursor, c);
+			if (!cursor.firstInWord) {
+				++cursor.wordInLine;
+				++cursor.address;
+				if (cursor.wordInLine == (SCREEN_WIDTH>>4)) {
 					println();
 				} else {
-					firstInWord = !firstInWord;
+					cursor.firstInWord = !cursor.firstInWord;
 				}
 			} else {
-				firstInWord = !firstInWord;
+				cursor.firstInWord = !cursor.firstInWord;
 			}
 		}
     }
@@ -221,31 +244,33 @@ public class Output extends JackOSClass {
     }
 
     public static void println() throws TerminateVMProgramThrowable {
-        address = (address + 11*(SCREEN_WIDTH>>4)) - wordInLine;
-        wordInLine = 0;
-        firstInWord = true;
-        if (address == START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4)) {
-            address = START_ADDRESS;
+        Cursor cursor = cursor();
+        cursor.address = (cursor.address + 11*(SCREEN_WIDTH>>4)) - cursor.wordInLine;
+        cursor.wordInLine = 0;
+        cursor.firstInWord = true;
+        if (cursor.address == START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4)) {
+            cursor.address = START_ADDRESS;
         }
     }
 
     public static void backSpace() throws TerminateVMProgramThrowable {
-        if (firstInWord) {
-            if (wordInLine > 0) {
-                --wordInLine;
-				--address;
+        Cursor cursor = cursor();
+        if (cursor.firstInWord) {
+            if (cursor.wordInLine > 0) {
+                --cursor.wordInLine;
+				--cursor.address;
 			} else {
-				wordInLine = (SCREEN_WIDTH>>4)-1;
-				if (address == START_ADDRESS) {
-					address = START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4);
+				cursor.wordInLine = (SCREEN_WIDTH>>4)-1;
+				if (cursor.address == START_ADDRESS) {
+					cursor.address = START_ADDRESS+N_ROWS*11*(SCREEN_WIDTH>>4);
 				}
-				address -= 10*(SCREEN_WIDTH>>4) + 1;
+				cursor.address -= 10*(SCREEN_WIDTH>>4) + 1;
 			}
-			firstInWord = false;
+			cursor.firstInWord = false;
         } else {
-            firstInWord = true;
+            cursor.firstInWord = true;
         }
-        drawChar(' ');
+        drawChar(cursor, ' ');
     }
 
 }
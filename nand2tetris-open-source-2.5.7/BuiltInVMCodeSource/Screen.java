@@ -25,19 +25,22 @@ import Hack.VMEmulator.TerminateVMProgramThrowable;
  */
 
 public class Screen extends JackOSClass {
-	private static boolean black;
-
 	public static void init() {
-		black = true;
+		setState(Screen.class, Boolean.TRUE);
     }
 
+	// Returns true if the calling program draws in black
+	private static boolean isBlack() {
+		return (getState(Screen.class) == Boolean.TRUE);
+	}
+
     public static void clearScreen() throws TerminateVMProgramThrowable {
 		for (int i=SCREEN_START_ADDRESS; i<=SCREEN_END_ADDRESS; ++i) {
 			writeMemory(i, 0);
 		}
     }
 
-    private static void updateLocation(int address, int mask)
+    private static void updateLocation(int address, int mask, boolean black)
 			throws TerminateVMProgramThrowable {
 		address += SCREEN_START_ADDRESS;
 		int value = readMemory(address);
@@ -50,7 +53,7 @@ public class Screen extends JackOSClass {
     }
 
     public static void setColor(short color) {
-		black = (color!=0);
+		setState(Screen.class, (color!=0) ? Boolean.TRUE : Boolean.FALSE);
     }
 
     public static void drawPixel(short x, short y)
@@ -58,15 +61,17 @@ public class Screen extends JackOSClass {
 		if (x < 0 || x >= SCREEN_WIDTH || y < 0 || y >= SCREEN_HEIGHT) {
 			callFunction("Sys.error", SCREEN_DRAWPIXEL_ILLEGAL_COORDS);
 		}
-		updateLocation((y*SCREEN_WIDTH+x)>>4, 1<<(x&15));
+		boolean black = isBlack();
+		updateLocation((y*SCREEN_WIDTH+x)>>4, 1<<(x&15), black);
     }
 
-    private static void drawConditional(int x, int y, boolean exchange)
+    private static void drawConditional(int x, int y, boolean exchange,
+										boolean black)
 	   		throws TerminateVMProgramThrowable {
         if (exchange) {
-			updateLocation((x*SCREEN_WIDTH+y)>>4, 1<<(y&15));
+			updateLocation((x*SCREEN_WIDTH+y)>>4, 1<<(y&15), black);
         } else {
-			updateLocation((y*SCREEN_WIDTH+x)>>4, 1<<(x&15));
+			updateLocation((y*SCREEN_WIDTH+x)>>4, 1<<(x&15), black);
         }
     }
 
@@ -76,6 +81,7 @@ public class Screen extends JackOSClass {
 			x2 < 0 || x2 >= SCREEN_WIDTH || y2 < 0 || y2 >= SCREEN_HEIGHT) {
 			callFunction("Sys.error", SCREEN_DRAWLINE_ILLEGAL_COORDS);
         }
+		boolean black = isBlack();
         int dx = x2 - x1;
 		if (dx < 0) dx = -dx;
         int dy = y2 - y1;
@@ -106,7 +112,7 @@ public class Screen extends JackOSClass {
             endX = x2;
             deltaY = (y1 > y2)?-1:1;
         }
-		drawConditional(x, y, loopOverY);
+		drawConditional(x, y, loopOverY, black);
 		// var = 2*x*dy - 2*(|y|-0.5)*dx
 		// ==> 	var >=0 iff 2*x*dy >= 2*(|y|-0.5)*dx
 		// iff dy/dx >= x/(|y|-0.5)
@@ -121,7 +127,7 @@ public class Screen extends JackOSClass {
 				y += deltaY;
 			}
 			++x;
-			drawConditional(x, y, loopOverY);
+			drawConditional(x, y, loopOverY, black);
         }
     }
 
@@ -131,6 +137,7 @@ public class Screen extends JackOSClass {
 			y1 < 0 || y2 >= SCREEN_HEIGHT) {
 			callFunction("Sys.error", SCREEN_DRAWRECTANGLE_ILLEGAL_COORDS);
         }
+		boolean black = isBlack();
         int x1Word = x1 >> 4;
         int x2Word = x2 >> 4;
 		int firstWordMask = 0xFFFF<<(x1&15);
@@ -140,22 +147,22 @@ public class Screen extends JackOSClass {
 		if (wordsDiff == 0) {
 			int mask = lastWordMask&firstWordMask;
 			for (;y1<=y2;++y1,address+=(SCREEN_WIDTH>>4)) {
-				updateLocation(address, lastWordMask&firstWordMask);
+				updateLocation(address, lastWordMask&firstWordMask, black);
 			}
 		} else {
 			for (;y1<=y2;++y1,address += (SCREEN_WIDTH>>4)-wordsDiff) {
 				int lastAddressInLine = address + wordsDiff;
-				updateLocation(address, firstWordMask);
+				updateLocation(address, firstWordMask, black);
 				for (++address; address < lastAddressInLine; ++address) {
-					updateLocation(address, 0xFFFF);
+					updateLocation(address, 0xFFFF, black);
 				}
-				updateLocation(address, lastWordMask);
+				updateLocation(address, lastWordMask, black);
 			}
 		}
     }
 
     private static void drawTwoHorizontal(int y1, int y2,
-										  int minX, int maxX)
+										  int minX, int maxX, boolean black)
 			throws TerminateVMProgramThrowable {
 		int minXWord = minX >> 4;
 		int maxXWord = maxX >> 4;
@@ -165,19 +172,19 @@ public class Screen extends JackOSClass {
 		int address1 = (y1 * (SCREEN_WIDTH>>4)) + minXWord;
 		int address2 = (y2 * (SCREEN_WIDTH>>4)) + minXWord;
 		if (wordsDiff == 0) {
-			updateLocation(address1, lastWordMask & firstWordMask);
-			updateLocation(address2, lastWordMask & firstWordMask);
+			updateLocation(address1, lastWordMask & firstWordMask, black);
+			updateLocation(address2, lastWordMask & firstWordMask, black);
 		} else {
 			int lastAddressInLine1 = address1 + wordsDiff;
-			updateLocation(address1, firstWordMask);
-			updateLocation(address2, firstWordMask);
+			updateLocation(address1, firstWordMask, black);
+			updateLocation(address2, firstWordMask, black);
 			for (++address1, ++address2;address1 < lastAddressInLine1;
 				 ++address1, ++address2) {
-				updateLocation(address1, 0xFFFF);
-				updateLocation(address2, 0xFFFF);
+				updateLocation(address1, 0xFFFF, black);
+				updateLocation(address2, 0xFFFF, black);
 			}
-			updateLocation(address1, lastWordMask);
-			updateLocation(address2, lastWordMask);
+			updateLocation(address1, lastWordMask, black);
+			updateLocation(address2, lastWordMask, black);
 		}
     }
 
@@ -190,11 +197,12 @@ public class Screen extends JackOSClass {
             y-radius < 0 || y+radius >= SCREEN_HEIGHT) {
 			callFunction("Sys.error", SCREEN_DRAWCIRCLE_ILLEGAL_RADIUS);
         }
+		boolean black = isBlack();
 		int delta1 = 0;
         int delta2 = radius;
         int var = 1 - radius;
-        drawTwoHorizontal(y-delta2, y+delta2, x-delta1, x+delta1);
-        drawTwoHorizontal(y-delta1, y+delta1, x-delta2, x+delta2);
+        drawTwoHorizontal(y-delta2, y+delta2, x-delta1, x+delta1, black);
+        drawTwoHorizontal(y-delta1, y+delta1, x-delta2, x+delta2, black);
         while (delta2 > delta1) {
             if (var < 0) {
                 var += 2*delta1+3;
@@ -203,8 +211,8 @@ public class Screen extends JackOSClass {
 				--delta2;
             }
 			++delta1;
-			drawTwoHorizontal(y-delta2, y+delta2, x-delta1, x+delta1);
-			drawTwoHorizontal(y-delta1, y+delta1, x-delta2, x+delta2);
+			drawTwoHorizontal(y-delta2, y+delta2, x-delta1, x+delta1, black);
+			drawTwoHorizontal(y-delta1, y+delta1, x-delta2, x+delta2, black);
         }
     }
 }
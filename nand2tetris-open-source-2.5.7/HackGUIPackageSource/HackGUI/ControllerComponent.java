@@ -99,6 +99,7 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     protected JMenuBar menuBar;
     protected JMenu fileMenu, viewMenu, runMenu, helpMenu;
     protected JMenuItem singleStepMenuItem, ffwdMenuItem, stopMenuItem, rewindMenuItem, exitMenuItem;
+    protected JMenuItem stepBackMenuItem, runBackMenuItem;
     protected JMenuItem usageMenuItem, aboutMenuItem;
     protected JMenu animationSubMenu, numericFormatSubMenu, additionalDisplaySubMenu;
     protected JMenuItem breakpointsMenuItem, scriptMenuItem, programMenuItem;
@@ -331,6 +332,8 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     public void enableRewind() {
         rewindButton.setEnabled(true);
         rewindMenuItem.setEnabled(true);
+        stepBackMenuItem.setEnabled(true);
+        runBackMenuItem.setEnabled(true);
     }
 
     /**
@@ -339,6 +342,8 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
     public void disableRewind() {
         rewindButton.setEnabled(false);
         rewindMenuItem.setEnabled(false);
+        stepBackMenuItem.setEnabled(false);
+        runBackMenuItem.setEnabled(false);
     }
 
     /**
@@ -730,6 +735,23 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         });
         runMenu.add(rewindMenuItem);
 
+        stepBackMenuItem = new JMenuItem("Step Back", KeyEvent.VK_K);
+        stepBackMenuItem.setAccelerator(KeyStroke.getKeyStroke("shift F11"));
+        stepBackMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                stepBackMenuItem_actionPerformed(e);
+            }
+        });
+        runMenu.add(stepBackMenuItem);
+
+        runBackMenuItem = new JMenuItem("Run Back", KeyEvent.VK_A);
+        runBackMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                runBackMenuItem_actionPerformed(e);
+            }
+        });
+        runMenu.add(runBackMenuItem);
+
         runMenu.addSeparator();
 
         breakpointsMenuItem = new JMenuItem("Breakpoints", KeyEvent.VK_B);
@@ -1196,6 +1218,20 @@ public class ControllerComponent extends JFrame implements ControllerGUI,
         notifyControllerListeners(ControllerEvent.REWIND, null);
     }
 
+    /**
+     * Called when the step back menu item was selected.
+     */
+    public void stepBackMenuItem_actionPerformed(ActionEvent e) {
+        notifyControllerListeners(ControllerEvent.REVERSE_STEP, null);
+    }
+
+    /**
+     * Called when the run back menu item was selected.
+     */
+    public void runBackMenuItem_actionPerformed(ActionEvent e) {
+        notifyControllerListeners(ControllerEvent.REVERSE_CONTINUE, null);
+    }
+
     /**
      * Called when the breakpoints menu item was selected.
      */
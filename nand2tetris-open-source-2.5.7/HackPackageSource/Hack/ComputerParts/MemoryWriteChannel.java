@@ -0,0 +1,128 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.ComputerParts;
+
+/**
+ * A channel of memory writes from one thread, which executes a program, to
+ * another, which displays them (such as the GUI's thread).
+ * The writes are kept in a ring of a fixed capacity and the executing thread
+ * publishes them without locking. When the ring is full, further writes are
+ * dropped and the channel is marked as overflowed, after which the displaying
+ * thread should compare the whole memory with the displayed values.
+ */
+public class MemoryWriteChannel {
+
+    // The ring of writes, each an address in the high 16 bits and a value in the
+    // low 16 bits, and the mask of an index in it
+    private int[] writes;
+    private int mask;
+
+    // The number of writes published so far (written only by the executing
+    // thread) and the number of writes taken so far (written only by the
+    // displaying thread)
+    private volatile long published;
+    private volatile long taken;
+
+    // True if writes were dropped since the last drain
+    private volatile boolean overflowed;
+
+    // The latest value of each address in the current drain, and the drain in
+    // which each address was last seen
+    private short[] latestValues;
+    private int[] drains;
+    private int drain;
+
+    /**
+     * Constructs a new channel for a memory of the given size, which holds up
+     * to the given number of writes (a power of 2) between drains.
+     */
+    public MemoryWriteChannel(int memorySize, int capacity) {
+        writes = new int[capacity];
+        mask = capacity - 1;
+        latestValues = new short[memorySize];
+        drains = new int[memorySize];
+    }
+
+    /**
+     * Returns the number of writes the channel holds between drains.
+     */
+    public int getCapacity() {
+        return writes.length;
+    }
+
+    /**
+     * Publishes the write of the given value to the given address.
+     * Called only by the executing thread.
+     */
+    public void write(int address, short value) {
+        long index = published;
+        if (index - taken >= writes.length) {
+            overflowed = true;
+            return;
+        }
+
+        writes[(int)index & mask] = (address << 16) | (value & 0xffff);
+        published = index + 1;
+    }
+
+    /**
+     * Takes the writes published since the last drain and puts their addresses
+     * and values in the given arrays (of the channel's capacity), each address
+     * once with its latest value, in the order of their first writes.
+     * Returns the number of addresses, or -1 if writes were dropped, in which
+     * case the arrays hold nothing and the whole memory should be displayed.
+     * Called only by the displaying thread.
+     */
+    public int drain(int[] addresses, short[] values) {
+        long first = taken;
+        long last = published;
+
+        if (overflowed) {
+            overflowed = false;
+            taken = last;
+            return -1;
+        }
+
+        drain++;
+        int count = 0;
+        for (long i = first; i < last; i++) {
+            int write = writes[(int)i & mask];
+            int address = write >>> 16;
+            if (drains[address] != drain) {
+                drains[address] = drain;
+                addresses[count++] = address;
+            }
+            latestValues[address] = (short)write;
+        }
+        taken = last;
+
+        for (int i = 0; i < count; i++)
+            values[i] = latestValues[addresses[i]];
+
+        return count;
+    }
+
+    /**
+     * Drops all the writes in the channel. May be called only while no writes
+     * are published.
+     */
+    public void clear() {
+        taken = published;
+        overflowed = false;
+    }
+}
@@ -0,0 +1,63 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+/**
+ * An interface for simulators that can execute several script rows together as one batch.
+ * A batch row is a list of batch commands followed by a batch eval command. The rows are
+ * evaluated together, and then selected one after the other, so the controller can output
+ * the variables of each row as if the rows were executed one by one.
+ */
+public interface BatchSimulator {
+
+    /**
+     * Returns the maximal amount of rows in a batch, or 0 if batches can't be
+     * executed in the current state of the simulator.
+     */
+    public int getBatchSize();
+
+    /**
+     * Returns true if the given simulator command (given in args[] style) may
+     * appear in a batch row.
+     */
+    public boolean isBatchCommand(String[] command);
+
+    /**
+     * Returns true if the given simulator command (given in args[] style) ends a
+     * batch row by evaluating it.
+     */
+    public boolean isBatchEvalCommand(String[] command);
+
+    /**
+     * Evaluates the given rows together. Each row is an array of batch commands (given in
+     * args[] style), which are applied on top of the previous row, followed by an eval.
+     */
+    public void evalBatch(String[][][] rows) throws CommandException, VariableException;
+
+    /**
+     * Sets the simulator's variables to their values after the given row of the
+     * last evaluated batch.
+     */
+    public void selectBatchRow(int row);
+
+    /**
+     * Ends the last evaluated batch. The simulator's state is left as if the rows
+     * were executed one by one, up to the last selected row.
+     */
+    public void endBatch();
+}
@@ -31,6 +31,12 @@ public class Breakpoint {
     // The status of the breakpoint
     private boolean reached;
 
+    // The simulator in which the variable was resolved, the variable's handle
+    // in it (-1 if it's read by name) and the desired value as a number.
+    private HackSimulator simulator;
+    private int handle;
+    private short numValue;
+
     /**
      * Constructs a new Breakpoint with the given variable name and desired value.
      */
@@ -54,6 +60,51 @@ public class Breakpoint {
         return value;
     }
 
+    /**
+     * Returns the handle of the variable in the given simulator, or -1 if the
+     * variable has no handle or the desired value is not a number that the
+     * variable may have. The handle is resolved once for each simulator.
+     */
+    public int getHandle(HackSimulator simulator) {
+        if (this.simulator != simulator) {
+            this.simulator = simulator;
+            handle = simulator.getVariableHandle(varName);
+
+            // values are compared as strings, so "007" never equals 7
+            if (handle != -1) {
+                try {
+                    numValue = (short)Integer.parseInt(value);
+                    if (!String.valueOf(numValue).equals(value))
+                        handle = -1;
+                } catch (NumberFormatException nfe) {
+                    handle = -1;
+                }
+            }
+        }
+
+        return handle;
+    }
+
+    /**
+     * Returns the breakpoint value as a number. Valid only if getHandle() didn't
+     * return -1.
+     */
+    public short getNumericValue() {
+        return numValue;
+    }
+
+    /**
+     * Returns true if the variable currently has the desired value in the given
+     * simulator. Throws VariableException if the variable name is not legal.
+     */
+    public boolean isValueReached(HackSimulator simulator) throws VariableException {
+        int handle = getHandle(simulator);
+        if (handle != -1)
+            return (simulator.getValue(handle) == numValue);
+        else
+            return simulator.getValue(varName).equals(value);
+    }
+
     /**
      * sets the breakpoint "off" - puts it into "not reached" state.
      */
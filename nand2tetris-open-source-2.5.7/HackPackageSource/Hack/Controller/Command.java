@@ -96,6 +96,16 @@ public class Command {
      */
     public static final byte CLEAR_ECHO_COMMAND = 14;
 
+    /**
+     * A reverse-step script command
+     */
+    public static final byte REVERSE_STEP_COMMAND = 15;
+
+    /**
+     * A reverse-continue script command
+     */
+    public static final byte REVERSE_CONTINUE_COMMAND = 16;
+
     // terminators
 
     /**
@@ -176,6 +176,18 @@ public class ControllerEvent extends EventObject {
      */
     public static final byte LOAD_PROGRAM = 27;
 
+    /**
+     * Action code for requesting to go back one step.
+     * supplied data = null
+     */
+    public static final byte REVERSE_STEP = 28;
+
+    /**
+     * Action code for requesting to go back to the last breakpoint.
+     * supplied data = null
+     */
+    public static final byte REVERSE_CONTINUE = 29;
+
     // the action code
     private byte action;
 
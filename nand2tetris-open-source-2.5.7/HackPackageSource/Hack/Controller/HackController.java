@@ -32,7 +32,7 @@ import Hack.Events.*;
  * Constructed with a GUI that enables the execution control of the script.
  */
 public class HackController
- implements ControllerEventListener, ActionListener, ProgramEventListener {
+ implements ControllerEventListener, ProgramEventListener {
 
     /**
      * The number of speed units.
@@ -118,8 +118,9 @@ public class HackController
     // Initial speed unit
     private static final int INITIAL_SPEED_UNIT = 3;
 
-    // A helper string with spaces
-    private static final String SPACES = "                                        ";
+    // The maximal number of steps in a slice of a bulk run of steps, after which
+    // a stop of the fast forward takes effect
+    private static final long STEPS_SLICE = 1000000;
 
     // The contorller's GUI
     protected ControllerGUI gui;
@@ -158,6 +159,10 @@ public class HackController
     // Number of repeats left
     private int repeatCounter;
 
+    // The index of the repeat body command at which a bulk run of steps that stopped
+    // early may be resumed, or -1 if there's none.
+    private int stepsResumeIndex = -1;
+
     // The condition of the current while loop.
     private ScriptCondition whileCondititon;
 
@@ -188,8 +193,14 @@ public class HackController
     // The set numeric format task object
     private SetNumericFormatTask setNumericFormatTask;
 
-    // True if the system is in fast forward.
-    private boolean fastForwardRunning;
+    // True if the system is in fast forward. Cleared by the gui's thread to stop
+    // the running one.
+    private volatile boolean fastForwardRunning;
+
+    // True if the fast forward runs with no display changes, though the display
+    // changes animation mode is selected, and only the live views of the simulator
+    // are kept up to date.
+    private boolean liveRunning;
 
     // True if the system is in Single Step.
     private boolean singleStepRunning;
@@ -215,34 +226,111 @@ public class HackController
     // The default script file object
     private File defaultScriptFile;
 
+    // When true (and there is no gui), messages are kept instead of being printed, and
+    // errors stop the script instead of terminating the program.
+    private boolean quiet;
+
+    // The last message that was displayed, and whether it was an error message.
+    private String lastMessage;
+    private boolean lastMessageError;
+
     /**
      * Constructs a new HackController with the given script file name.
      * The script will be executed and the final result will be printed.
      */
     public HackController(HackSimulator simulator, String scriptFileName) {
+        this(simulator);
+        quiet = false;
+
         File file = new File(scriptFileName);
         if (!file.exists())
             displayMessage(scriptFileName + " doesn't exist", true);
 
+        try {
+            loadNewScript(file, false);
+            saveWorkingDir(file);
+        } catch (ScriptException se) {
+            displayMessage(se.getMessage(), true);
+        } catch (ControllerException ce) {
+            displayMessage(ce.getMessage(), true);
+        }
+
+        fastForwardRunning = true;
+
+        while (fastForwardRunning)
+            singleStep();
+    }
+
+    /**
+     * Constructs a new quiet HackController with no gui for the given hack simulator.
+     * Scripts are executed with runScript(), which doesn't print messages and doesn't
+     * terminate the program on errors.
+     */
+    public HackController(HackSimulator simulator) {
         this.simulator = simulator;
         animationMode = NO_DISPLAY_CHANGES;
         simulator.setAnimationMode(animationMode);
         simulator.addListener(this);
         breakpoints = new Vector();
+        quiet = true;
+    }
+
+    /**
+     * Executes the given script until it ends, an error occurs, the comparison fails or
+     * the current thread is interrupted. Returns true if the script ended successfully.
+     * The final message is returned by getLastMessage().
+     */
+    public boolean runScript(File file) {
+        lastMessage = null;
+        lastMessageError = false;
+        scriptEnded = false;
+        comparisonFailed = false;
+
+        if (!file.exists()) {
+            displayMessage(file.getPath() + " doesn't exist", true);
+            return false;
+        }
 
         try {
             loadNewScript(file, false);
-            saveWorkingDir(file);
+            simulator.setWorkingDir(file);
         } catch (ScriptException se) {
             displayMessage(se.getMessage(), true);
+            return false;
         } catch (ControllerException ce) {
             displayMessage(ce.getMessage(), true);
+            return false;
         }
 
         fastForwardRunning = true;
 
-        while (fastForwardRunning)
-            singleStep();
+        while (fastForwardRunning && !lastMessageError) {
+            if (Thread.currentThread().isInterrupted()) {
+                displayMessage("Script interrupted", true);
+                fastForwardRunning = false;
+            }
+            else
+                singleStep();
+        }
+
+        // close the files of a script that didn't end
+        if (!scriptEnded) {
+            if (output != null)
+                output.close();
+            try {
+                if (comparisonFile != null)
+                    comparisonFile.close();
+            } catch (IOException ioe) {}
+        }
+
+        return (scriptEnded && !lastMessageError);
+    }
+
+    /**
+     * Returns the last message that was displayed by a quiet controller.
+     */
+    public String getLastMessage() {
+        return lastMessage;
     }
 
     /**
@@ -274,7 +362,7 @@ public class HackController
         simulator.setAnimationMode(animationMode);
         simulator.setAnimationSpeed(INITIAL_SPEED_UNIT);
         simulator.setNumericFormat(simulator.getInitialNumericFormat());
-        timer = new Timer(delays[currentSpeedUnit - 1], this);
+        timer = new TimerListener().createTimer(delays[currentSpeedUnit - 1]);
 
         // adds the simulator component to the controller component
         gui.setSimulator(simulator.getGUI());
@@ -320,6 +408,7 @@ public class HackController
 
             lastEcho = "";
             currentCommandIndex = 0;
+            stepsResumeIndex = -1;
             gui.setCurrentScriptLine(script.getLineNumberAt(0));
 
         } catch (ControllerException e) {
@@ -339,6 +428,12 @@ public class HackController
         }
         singleStepRunning = false;
 
+        if (liveRunning) {
+            liveRunning = false;
+            ((LiveSimulator)simulator).setLiveDisplay(false);
+            setAnimationMode(DISPLAY_CHANGES);
+        }
+
         if (gui != null) {
             gui.enableSingleStep();
             gui.enableFastForward();
@@ -367,6 +462,16 @@ public class HackController
         fastForwardRunning = true;
         simulator.prepareFastForward();
 
+        // at the highest speed, a simulator with live views runs as fast as with
+        // no display changes
+        if (animationMode == DISPLAY_CHANGES && currentSpeedUnit == NUMBER_OF_SPEED_UNITS &&
+            simulator instanceof LiveSimulator) {
+            liveRunning = true;
+            ((LiveSimulator)simulator).setLiveDisplay(true);
+            simulator.setAnimationMode(NO_DISPLAY_CHANGES);
+            animationMode = NO_DISPLAY_CHANGES;
+        }
+
         if (animationMode != NO_DISPLAY_CHANGES)
             timer.start();
         else {
@@ -387,9 +492,19 @@ public class HackController
             byte terminatorType;
             singleStepRunning = true;
 
-            do {
-                terminatorType = miniStep();
-            } while (terminatorType == Command.MINI_STEP_TERMINATOR && singleStepRunning);
+            // While running fast with no display changes, try to execute the following rows
+            // of the script as one batch.
+            if (fastForwardRunning && animationMode == NO_DISPLAY_CHANGES &&
+                breakpoints.isEmpty() && simulator instanceof BatchSimulator && batchStep())
+                terminatorType = Command.SINGLE_STEP_TERMINATOR;
+            else {
+                // a quiet run also stops between mini steps when its thread is interrupted,
+                // since a while loop of mini steps may never end.
+                do {
+                    terminatorType = miniStep();
+                } while (terminatorType == Command.MINI_STEP_TERMINATOR && singleStepRunning &&
+                         !(quiet && Thread.currentThread().isInterrupted()));
+            }
 
             singleStepRunning = false;
 
@@ -401,21 +516,23 @@ public class HackController
             // Check Breakpoints
             for (int i = 0; i < breakpoints.size(); i++) {
                 Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
-                String currentValue = simulator.getValue(breakpoint.getVarName());
-                if (currentValue.equals(breakpoint.getValue())) {
+                if (breakpoint.isValueReached(simulator)) {
                     // if value is equal and the breakpoint wasn't reached before, turn it on
                     if (!breakpoint.isReached()) {
                         breakpoint.on();
-                        gui.setBreakpoints(breakpoints);
                         displayMessage("Breakpoint reached", false);
-                        gui.showBreakpoints();
+                        if (gui != null) {
+                            gui.setBreakpoints(breakpoints);
+                            gui.showBreakpoints();
+                        }
                         stopMode();
                     }
                 }
                 // if the value is not equal and the breakpoint was reached before, turn it off
                 else if (breakpoint.isReached()) {
                     breakpoint.off();
-                    gui.setBreakpoints(breakpoints);
+                    if (gui != null)
+                        gui.setBreakpoints(breakpoints);
                 }
             }
         } catch (ControllerException ce) {
@@ -451,7 +568,12 @@ public class HackController
 
             switch (command.getCode()) {
             case Command.SIMULATOR_COMMAND:
-                simulator.doCommand((String[])command.getArg());
+                // resumes a bulk run of steps that stopped early for a breakpoint check
+                if (currentCommandIndex == stepsResumeIndex && canRunSteps() &&
+                    repeatStep(currentCommandIndex - loopCommandIndex))
+                    command = script.getCommandAt(currentCommandIndex);
+                else
+                    simulator.doCommand((String[])command.getArg());
                 break;
             case Command.OUTPUT_FILE_COMMAND:
                 doOutputFileCommand(command);
@@ -477,10 +599,23 @@ public class HackController
             case Command.CLEAR_BREAKPOINTS_COMMAND:
                 doClearBreakpointsCommand(command);
                 break;
+            case Command.REVERSE_STEP_COMMAND:
+                reverseStep(((Integer)command.getArg()).intValue());
+                break;
+            case Command.REVERSE_CONTINUE_COMMAND:
+                reverseContinue();
+                break;
             case Command.REPEAT_COMMAND:
                 repeatCounter = ((Integer)command.getArg()).intValue();
                 loopCommandIndex = currentCommandIndex + 1;
-                redo = true;
+
+                // While running fast with no display changes, a repeat of step commands
+                // is executed by the simulator as one bulk run, which ends as if its last
+                // step was just executed.
+                if (repeatCounter > 0 && canRunSteps() && repeatStep(0))
+                    command = script.getCommandAt(currentCommandIndex);
+                else
+                    redo = true;
                 break;
             case Command.WHILE_COMMAND:
                 whileCondititon = (ScriptCondition)command.getArg();
@@ -551,6 +686,178 @@ public class HackController
         return command.getTerminator();
     }
 
+    // Returns true if the simulator may run steps in bulk: the script runs fast with no
+    // display changes, and each breakpoint is on a watchable variable whose reached
+    // state is up to date, so that the simulator can stop the run when it changes.
+    private boolean canRunSteps() throws VariableException {
+        if (!fastForwardRunning || animationMode != NO_DISPLAY_CHANGES ||
+            !(simulator instanceof StepSimulator))
+            return false;
+
+        for (int i = 0; i < breakpoints.size(); i++) {
+            Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
+            int handle = breakpoint.getHandle(simulator);
+            if (handle == -1 || !simulator.isWatchable(handle) ||
+                breakpoint.isValueReached(simulator) != breakpoint.isReached())
+                return false;
+        }
+
+        return true;
+    }
+
+    // Executes the body of the repeat command that starts at loopCommandIndex as one
+    // bulk run of the simulator, from the body command at the given offset and for all
+    // the repeats left. Leaves the script at the last executed command, with the
+    // repeats left updated. The run is made of slices of at most STEPS_SLICE steps.
+    // It stops early between slices if the fast forward was stopped, or (if
+    // breakpoints are set) after a step that changed one of their variables, to be
+    // resumed by the next mini step.
+    // Returns false (and executes nothing) if the body holds commands other than
+    // step commands, or a '!' terminator, or (if breakpoints are set) a ',' terminator
+    // which doesn't allow breakpoint checks.
+    private boolean repeatStep(int first)
+     throws ProgramException, CommandException, VariableException {
+        StepSimulator stepSimulator = (StepSimulator)simulator;
+        Vector body = new Vector();
+        int index = loopCommandIndex;
+        Command command = script.getCommandAt(index);
+
+        while (command.getCode() != Command.END_REPEAT_COMMAND) {
+            if (command.getCode() != Command.SIMULATOR_COMMAND ||
+                command.getTerminator() == Command.STOP_TERMINATOR ||
+                (!breakpoints.isEmpty() &&
+                 command.getTerminator() != Command.SINGLE_STEP_TERMINATOR) ||
+                !stepSimulator.isStepCommand((String[])command.getArg()))
+                return false;
+
+            body.addElement(command.getArg());
+            command = script.getCommandAt(++index);
+        }
+
+        String[][] commands = new String[body.size()][];
+        body.toArray(commands);
+        long count = (commands.length - first) + (long)(repeatCounter - 1) * commands.length;
+
+        int[] handles = null;
+        short[] values = null;
+        if (!breakpoints.isEmpty()) {
+            handles = new int[breakpoints.size()];
+            values = new short[breakpoints.size()];
+            for (int i = 0; i < handles.length; i++) {
+                Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
+                handles[i] = breakpoint.getHandle(simulator);
+                values[i] = breakpoint.getNumericValue();
+            }
+        }
+
+        // a quiet run also stops between slices when its thread is interrupted
+        long executed = 0;
+        simulator.setWatches(handles, values);
+        try {
+            boolean sliceDone = true;
+            while (executed < count && sliceDone && fastForwardRunning &&
+                   !(quiet && Thread.currentThread().isInterrupted())) {
+                long slice = Math.min(count - executed, STEPS_SLICE);
+                int sliceFirst = (int)((first + executed) % commands.length);
+                long sliceExecuted = stepSimulator.doSteps(commands, sliceFirst, slice);
+                executed += sliceExecuted;
+                sliceDone = (sliceExecuted == slice);
+            }
+        } finally {
+            simulator.setWatches(null, null);
+        }
+
+        if (executed == 0)
+            return false;
+
+        // the position of the last executed step, and the number of times the run
+        // went back to the start of the body
+        long last = first + executed - 1;
+        currentCommandIndex = loopCommandIndex + (int)(last % commands.length);
+        repeatCounter -= (int)(last / commands.length);
+
+        if (executed < count)
+            stepsResumeIndex = loopCommandIndex + (int)((last + 1) % commands.length);
+        else
+            stepsResumeIndex = -1;
+
+        return true;
+    }
+
+    // Executes the following rows of the script as one batch of the simulator.
+    // A row is a list of batch commands, followed by a batch eval command and an output
+    // command, all separated by ',' except the last which is followed by ';'.
+    // Returns false (and executes nothing) if less than two such rows follow.
+    private boolean batchStep()
+     throws ControllerException, CommandException, VariableException {
+        BatchSimulator batchSimulator = (BatchSimulator)simulator;
+        int batchSize = batchSimulator.getBatchSize();
+        Vector rows = new Vector();
+        Vector outputIndice = new Vector();
+        int index = currentCommandIndex;
+        boolean rowFound = true;
+
+        while (rowFound && rows.size() < batchSize) {
+            Vector row = new Vector();
+            Command command = script.getCommandAt(index);
+            while (isBatchCommand(command, false)) {
+                row.addElement(command.getArg());
+                command = script.getCommandAt(++index);
+            }
+
+            // the script always ends with an end-script command, so the output command
+            // and the command after it exist if the previous checks passed.
+            rowFound = isBatchCommand(command, true) &&
+                       script.getCommandAt(index + 1).getCode() == Command.OUTPUT_COMMAND &&
+                       script.getCommandAt(index + 1).getTerminator() ==
+                           Command.SINGLE_STEP_TERMINATOR &&
+                       script.getCommandAt(index + 2).getCode() != Command.END_REPEAT_COMMAND &&
+                       script.getCommandAt(index + 2).getCode() != Command.END_WHILE_COMMAND;
+
+            if (rowFound) {
+                String[][] commands = new String[row.size()][];
+                row.toArray(commands);
+                rows.addElement(commands);
+                outputIndice.addElement(new Integer(index + 1));
+                index += 2;
+            }
+        }
+
+        if (rows.size() < 2)
+            return false;
+
+        String[][][] batch = new String[rows.size()][][];
+        rows.toArray(batch);
+        batchSimulator.evalBatch(batch);
+
+        try {
+            for (int i = 0; i < batch.length && fastForwardRunning; i++) {
+                batchSimulator.selectBatchRow(i);
+                currentCommandIndex = ((Integer)outputIndice.elementAt(i)).intValue();
+                doOutputCommand(script.getCommandAt(currentCommandIndex));
+                currentCommandIndex++;
+            }
+        } finally {
+            batchSimulator.endBatch();
+        }
+
+        return true;
+    }
+
+    // Returns true if the given command is a simulator command that may appear in a
+    // batch row, followed by a ',' terminator. If isEval is true, checks for a batch eval
+    // command, otherwise for a batch command.
+    private boolean isBatchCommand(Command command, boolean isEval) {
+        if (command.getCode() != Command.SIMULATOR_COMMAND ||
+            command.getTerminator() != Command.MINI_STEP_TERMINATOR)
+            return false;
+
+        String[] args = (String[])command.getArg();
+        BatchSimulator batchSimulator = (BatchSimulator)simulator;
+        return (isEval ? batchSimulator.isBatchEvalCommand(args)
+                       : batchSimulator.isBatchCommand(args));
+    }
+
     // Executes the controller's output-file command.
     private void doOutputFileCommand(Command command) throws ControllerException {
         currentOutputName = currentScriptFile.getParent() + "/" + (String)command.getArg();
@@ -573,20 +880,7 @@ public class HackController
             throw new ControllerException("No output file specified");
 
         varList = (VariableFormat[])command.getArg();
-        StringBuffer line = new StringBuffer("|");
-
-        for (int i = 0; i < varList.length; i++) {
-            int space = varList[i].padL + varList[i].padR + varList[i].len;
-            String varName = varList[i].varName.length() > space ?
-                             varList[i].varName.substring(0, space) : varList[i].varName;
-            int leftSpace = (int)((space - varName.length()) / 2);
-            int rightSpace = space - leftSpace - varName.length();
-
-            line.append(SPACES.substring(0, leftSpace) + varName +
-                        SPACES.substring(0, rightSpace) + '|');
-        }
-
-        outputAndCompare(line.toString());
+        outputAndCompare(VariableFormat.formatHeader(varList));
     }
 
     // Executes the controller's output command.
@@ -594,38 +888,11 @@ public class HackController
         if (output == null)
             throw new ControllerException("No output file specified");
 
-        StringBuffer line = new StringBuffer("|");
+        String[] values = new String[varList.length];
+        for (int i = 0; i < varList.length; i++)
+            values[i] = simulator.getValue(varList[i].varName);
 
-        for (int i = 0; i < varList.length; i++) {
-            // find value string (convert to require format if necessary)
-            String value = simulator.getValue(varList[i].varName);
-            if (varList[i].format != VariableFormat.STRING_FORMAT) {
-                int numValue;
-                try {
-                    numValue = Integer.parseInt(value);
-                } catch (NumberFormatException nfe) {
-                    throw new VariableException("Variable is not numeric", varList[i].varName);
-                }
-                if (varList[i].format == VariableFormat.HEX_FORMAT)
-                    value = Conversions.decimalToHex(numValue, 4);
-                else if (varList[i].format == VariableFormat.BINARY_FORMAT)
-                    value = Conversions.decimalToBinary(numValue, 16);
-            }
-
-            if (value.length() > varList[i].len)
-                value = value.substring(value.length() - varList[i].len);
-
-            int leftSpace = varList[i].padL +
-                            (varList[i].format == VariableFormat.STRING_FORMAT ?
-                             0 : (varList[i].len - value.length()));
-            int rightSpace = varList[i].padR +
-                            (varList[i].format == VariableFormat.STRING_FORMAT ?
-                             (varList[i].len - value.length()) : 0);
-            line.append(SPACES.substring(0, leftSpace) + value +
-                        SPACES.substring(0, rightSpace) + '|');
-        }
-
-        outputAndCompare(line.toString());
+        outputAndCompare(VariableFormat.formatLine(varList, values));
     }
 
     // Executes the controller's echo command.
@@ -649,14 +916,92 @@ public class HackController
         if (!breakpointExists(breakpoints, breakpoint)) {
             breakpoints.addElement(breakpoint);
 
-            gui.setBreakpoints(breakpoints);
+            if (gui != null)
+                gui.setBreakpoints(breakpoints);
         }
     }
 
     // Executes the controller's clear-breakpoints command.
     private void doClearBreakpointsCommand(Command command) throws ControllerException {
         breakpoints.removeAllElements();
-        gui.setBreakpoints(breakpoints);
+        if (gui != null)
+            gui.setBreakpoints(breakpoints);
+    }
+
+    // Goes back the given number of steps in the simulator's history.
+    private void reverseStep(long count) throws ControllerException, VariableException {
+        if (getReverseSimulator().stepBack(count) < count)
+            displayMessage("Reached the beginning of the history", false);
+        resetBreakpoints();
+    }
+
+    // Goes back in the simulator's history to the last step at which a breakpoint
+    // was reached.
+    private void reverseContinue() throws ControllerException, VariableException {
+        ReverseSimulator reverseSimulator = getReverseSimulator();
+        int[] handles = new int[breakpoints.size()];
+        short[] values = new short[breakpoints.size()];
+        for (int i = 0; i < handles.length; i++) {
+            Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
+            handles[i] = breakpoint.getHandle(simulator);
+            values[i] = breakpoint.getNumericValue();
+            if (handles[i] == -1)
+                throw new ControllerException("The breakpoint on " + breakpoint.getVarName() +
+                                              " can't be checked backwards");
+        }
+
+        if (reverseSimulator.runBack(handles, values))
+            displayMessage("Breakpoint reached", false);
+        else
+            displayMessage("Reached the beginning of the history", false);
+        resetBreakpoints();
+    }
+
+    // Returns the simulator as a ReverseSimulator.
+    // Throws ControllerException if it keeps no history.
+    private ReverseSimulator getReverseSimulator() throws ControllerException {
+        if (!(simulator instanceof ReverseSimulator) ||
+            !((ReverseSimulator)simulator).hasHistory())
+            throw new ControllerException("The simulator keeps no history to go back in");
+        return (ReverseSimulator)simulator;
+    }
+
+    // Sets the reached state of each breakpoint by the current value of its variable,
+    // so that a breakpoint that is reached after going back doesn't stop the next step.
+    private void resetBreakpoints() throws VariableException {
+        for (int i = 0; i < breakpoints.size(); i++) {
+            Breakpoint breakpoint = (Breakpoint)breakpoints.elementAt(i);
+            if (breakpoint.isValueReached(simulator))
+                breakpoint.on();
+            else
+                breakpoint.off();
+        }
+
+        if (gui != null)
+            gui.setBreakpoints(breakpoints);
+    }
+
+    // Goes back one step, or to the last breakpoint, on a request from the gui.
+    private void reverse(boolean singleStep) throws ControllerException {
+        int oldAnimationMode = animationMode;
+        setAnimationMode(DISPLAY_CHANGES);
+        try {
+            if (singleStep)
+                reverseStep(1);
+            else
+                reverseContinue();
+        } catch (VariableException ve) {
+            throw new ControllerException(ve.getMessage());
+        } finally {
+            refreshSimulator();
+            setAnimationMode(oldAnimationMode);
+        }
+
+        if (programHalted) {
+            programHalted = false;
+            gui.enableSingleStep();
+            gui.enableFastForward();
+        }
     }
 
     // Compares an output line with a template line from a compare file.
@@ -720,6 +1065,7 @@ public class HackController
         script = new Script(file.getPath());
         breakpoints.removeAllElements();
         currentCommandIndex = 0;
+        stepsResumeIndex = -1;
         output = null;
         currentOutputName = "";
         comparisonFile = null;
@@ -852,6 +1198,12 @@ public class HackController
     private void displayMessage(String message, boolean error) {
         if (gui != null)
             gui.displayMessage(message, error);
+        else if (quiet) {
+            // keep the first error message
+            if (error || !lastMessageError)
+                lastMessage = message;
+            lastMessageError = lastMessageError || error;
+        }
         else {
             if (error) {
                 System.err.println(message);
@@ -922,13 +1274,6 @@ public class HackController
         saveWorkingDir(file);
     }
 
-    public void actionPerformed(ActionEvent e) {
-        if (!singleStepLocked) {
-            Thread t = new Thread(singleStepTask);
-            t.start();
-        }
-    }
-
     public void programChanged(ProgramEvent event) {
         switch (event.getType()) {
             case ProgramEvent.SAVE:
@@ -1018,6 +1363,11 @@ public class HackController
                 case ControllerEvent.LOAD_PROGRAM:
                     simulator.loadProgram();
                     break;
+                case ControllerEvent.REVERSE_STEP:
+                case ControllerEvent.REVERSE_CONTINUE:
+                    if (!fastForwardRunning && !singleStepLocked)
+                        reverse(event.getAction() == ControllerEvent.REVERSE_STEP);
+                    break;
                 case ControllerEvent.HALT_PROGRAM:
                     displayMessage("End of program", false);
                     programHalted = true;
@@ -1149,4 +1499,22 @@ public class HackController
             setNumericFormat(numericFormat);
         }
     }
+
+    // Performs a single step on each tick of the animation timer.
+    // Kept out of HackController itself, and the timer is created here so
+    // that verifying HackController doesn't load the java.awt.event classes
+    // in headless runs.
+    class TimerListener implements ActionListener {
+
+        public Timer createTimer(int delay) {
+            return new Timer(delay, this);
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            if (!singleStepLocked) {
+                Thread t = new Thread(singleStepTask);
+                t.start();
+            }
+        }
+    }
 }
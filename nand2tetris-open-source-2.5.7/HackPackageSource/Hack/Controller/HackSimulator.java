@@ -55,6 +55,39 @@ public abstract class HackSimulator implements ProgramEventListener, ComputerPar
      */
     public abstract String getValue(String varName) throws VariableException;
 
+    /**
+     * Returns a handle of the given variable, which can be given to getValue(int)
+     * to read the variable's numeric value without going through its name, or -1
+     * if the variable has no handle (and should be read with getValue(String)).
+     */
+    public int getVariableHandle(String varName) {
+        return -1;
+    }
+
+    /**
+     * Returns the numeric value of the variable with the given handle.
+     * Should be overridden by simulators that return handles from getVariableHandle().
+     */
+    public short getValue(int handle) {
+        return 0;
+    }
+
+    /**
+     * Returns true if the variable with the given handle can be watched, i.e. the
+     * simulator reports all the changes to it that are made by steps (see setWatches()).
+     */
+    public boolean isWatchable(int handle) {
+        return false;
+    }
+
+    /**
+     * Sets the watched variables: a bulk run of steps (see StepSimulator) stops after
+     * a step that changed whether the variable handles[i] equals values[i].
+     * Null handles clear the watches.
+     */
+    public void setWatches(int[] handles, short[] values) {
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
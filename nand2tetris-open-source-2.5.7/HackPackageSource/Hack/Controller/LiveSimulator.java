@@ -0,0 +1,34 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+/**
+ * An interface for simulators that can keep some of their views (such as a memory
+ * and a screen) up to date while they run with no display changes, by updating
+ * them from the gui's thread. The controller uses it to run a fast forward in the
+ * display changes animation mode at the highest speed as fast as with no display
+ * changes, while those views stay live.
+ */
+public interface LiveSimulator {
+
+    /**
+     * Sets whether the live views are kept up to date while no changes are
+     * displayed.
+     */
+    public void setLiveDisplay(boolean liveDisplay);
+}
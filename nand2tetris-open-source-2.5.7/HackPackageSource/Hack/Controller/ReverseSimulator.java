@@ -0,0 +1,46 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+/**
+ * An interface for simulators that keep a history of their recent steps, and can
+ * go back to an earlier step. The controller uses it for the reverse-step and
+ * reverse-continue script commands and for the matching gui actions. Going back
+ * discards the later steps, which are executed again when the simulation goes on.
+ */
+public interface ReverseSimulator {
+
+    /**
+     * Returns true if the simulator currently keeps a history.
+     */
+    public boolean hasHistory();
+
+    /**
+     * Goes back the given number of steps. Returns the number of steps that were
+     * undone, which is smaller than the given number if the history starts later.
+     */
+    public long stepBack(long count);
+
+    /**
+     * Goes back to the last step, before the current one, after which a variable
+     * with one of the given handles (see HackSimulator.getVariableHandle()) became
+     * equal to the corresponding given value, or to the start of the history if
+     * there's none. Returns true if such a step was found.
+     */
+    public boolean runBack(int[] handles, short[] values);
+}
@@ -216,6 +216,12 @@ public class Script {
         case ScriptTokenizer.KW_WHILE:
             command = createWhileCommand();
             break;
+        case ScriptTokenizer.KW_REVERSE_STEP:
+            command = createReverseStepCommand();
+            break;
+        case ScriptTokenizer.KW_REVERSE_CONTINUE:
+            command = createReverseContinueCommand();
+            break;
         }
 
         return command;
@@ -412,6 +418,33 @@ public class Script {
         return new Command(Command.WHILE_COMMAND, condition);
     }
 
+    // creates and returns a controller reverse-step command.
+    // Holds the number of steps (Integer) as an argument.
+    private Command createReverseStepCommand()
+     throws ScriptException, ControllerException {
+        input.advance();
+        int stepsNum = 1;
+
+        if (input.getTokenType() == ScriptTokenizer.TYPE_INT_CONST) {
+            stepsNum = input.getIntValue();
+            if (stepsNum < 1)
+                scriptError("Illegal reverse-step quantity");
+            input.advance();
+        }
+
+        checkTerminator();
+        return new Command(Command.REVERSE_STEP_COMMAND, new Integer(stepsNum));
+    }
+
+    // creates and returns a controller reverse-continue command.
+    // Holds no argument.
+    private Command createReverseContinueCommand()
+     throws ControllerException, ScriptException {
+        input.advance();
+        checkTerminator();
+        return new Command(Command.REVERSE_CONTINUE_COMMAND);
+    }
+
     // Reads string arguments from the given input and returns them as a string array.
     // If the given maxArgs count is exceeded, an exception is thrown.
     private String[] readArgs(int maxArgs)
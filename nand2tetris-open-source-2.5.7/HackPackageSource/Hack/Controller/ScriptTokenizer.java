@@ -101,6 +101,16 @@ public class ScriptTokenizer {
      */
     public static final int KW_CLEAR_ECHO	         = 10;
 
+    /**
+     * reverse-step script keyword
+     */
+    public static final int KW_REVERSE_STEP             = 11;
+
+    /**
+     * reverse-continue script keyword
+     */
+    public static final int KW_REVERSE_CONTINUE         = 12;
+
     // The parser
     private StreamTokenizer parser;
 
@@ -278,6 +288,8 @@ public class ScriptTokenizer {
         keywords.put("clear-breakpoints",new Integer(KW_CLEAR_BREAKPOINTS));
         keywords.put("repeat",new Integer(KW_REPEAT));
         keywords.put("while",new Integer(KW_WHILE));
+        keywords.put("reverse-step",new Integer(KW_REVERSE_STEP));
+        keywords.put("reverse-continue",new Integer(KW_REVERSE_CONTINUE));
     }
 
     // Initializes the symbols hashtable
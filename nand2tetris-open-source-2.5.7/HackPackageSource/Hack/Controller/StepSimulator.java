@@ -0,0 +1,45 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Controller;
+
+/**
+ * An interface for simulators that can execute a repeated list of step commands
+ * (such as a clock cycle) as one bulk run. The controller uses it for repeat loops
+ * whose body holds only step commands. A bulk run stops early after a step that
+ * changed a watched variable (see HackSimulator.setWatches()), so that breakpoints
+ * can be checked at that step.
+ */
+public interface StepSimulator {
+
+    /**
+     * Returns true if the given simulator command (given in args[] style) only
+     * advances the simulation, and may be executed as part of a bulk run.
+     */
+    public boolean isStepCommand(String[] command);
+
+    /**
+     * Executes the given number of steps: the given step commands (given in args[]
+     * style) one after the other, starting from the command at index first and
+     * wrapping around. Stops early after a step that changed a watched variable,
+     * and may also stop early after any number of steps (at least one), to be
+     * resumed by the controller. Returns the number of executed steps. The state of the simulator is left as
+     * if the commands were executed one by one, up to the first error.
+     */
+    public long doSteps(String[][] commands, int first, long count)
+     throws ProgramException, CommandException, VariableException;
+}
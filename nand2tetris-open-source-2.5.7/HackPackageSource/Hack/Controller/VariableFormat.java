@@ -17,6 +17,8 @@
 
 package Hack.Controller;
 
+import Hack.Utilities.*;
+
 /**
  * A simulator variable with a printing format
  */
@@ -44,6 +46,9 @@ public class VariableFormat {
      */
     public static final char STRING_FORMAT = 'S';
 
+    // A helper string with spaces
+    private static final String SPACES = "                                        ";
+
     /**
      * The variable's name.
      */
@@ -74,4 +79,62 @@ public class VariableFormat {
         this.padR = padR;
         this.len = len;
     }
+
+    /**
+     * Returns the header line of an output table with the given variables.
+     */
+    public static String formatHeader(VariableFormat[] vars) {
+        StringBuffer line = new StringBuffer("|");
+
+        for (int i = 0; i < vars.length; i++) {
+            int space = vars[i].padL + vars[i].padR + vars[i].len;
+            String varName = vars[i].varName.length() > space ?
+                             vars[i].varName.substring(0, space) : vars[i].varName;
+            int leftSpace = (space - varName.length()) / 2;
+            int rightSpace = space - leftSpace - varName.length();
+
+            line.append(SPACES.substring(0, leftSpace) + varName +
+                        SPACES.substring(0, rightSpace) + '|');
+        }
+
+        return line.toString();
+    }
+
+    /**
+     * Returns the line of an output table with the given values of the
+     * given variables. The values are given as decimal strings.
+     */
+    public static String formatLine(VariableFormat[] vars, String[] values)
+     throws VariableException {
+        StringBuffer line = new StringBuffer("|");
+
+        for (int i = 0; i < vars.length; i++) {
+            // convert to require format if necessary
+            String value = values[i];
+            if (vars[i].format != STRING_FORMAT) {
+                int numValue;
+                try {
+                    numValue = Integer.parseInt(value);
+                } catch (NumberFormatException nfe) {
+                    throw new VariableException("Variable is not numeric", vars[i].varName);
+                }
+                if (vars[i].format == HEX_FORMAT)
+                    value = Conversions.decimalToHex(numValue, 4);
+                else if (vars[i].format == BINARY_FORMAT)
+                    value = Conversions.decimalToBinary(numValue, 16);
+            }
+
+            if (value.length() > vars[i].len)
+                value = value.substring(value.length() - vars[i].len);
+
+            int leftSpace = vars[i].padL +
+                            (vars[i].format == STRING_FORMAT ? 0 : (vars[i].len - value.length()));
+            int rightSpace = vars[i].padR +
+                            (vars[i].format == STRING_FORMAT ? (vars[i].len - value.length()) : 0);
+            line.append(SPACES.substring(0, leftSpace) + value +
+                        SPACES.substring(0, rightSpace) + '|');
+        }
+
+        return line.toString();
+    }
 }
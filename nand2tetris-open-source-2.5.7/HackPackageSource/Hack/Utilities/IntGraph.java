@@ -0,0 +1,134 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Utilities;
+
+import java.util.BitSet;
+
+/**
+ * A directed graph whose nodes are the numbers 0 to n-1, and supports the following
+ * operations:
+ * - Creates a topological sort of the graph (and checks if there is a circle in it).
+ * - Finds, for every node, the given source nodes from which it can be reached.
+ */
+public class IntGraph {
+
+    // The amount of nodes
+    private int nodesCount;
+
+    // The targets of the edges from each node, and their amount
+    private int[][] edges;
+    private int[] edgesCount;
+
+    // The amount of edges to each node
+    private int[] inDegree;
+
+    // true if the graph has a circle
+    private boolean hasCircle;
+
+    /**
+     * Constructs a new IntGraph with the given amount of nodes and no edges.
+     */
+    public IntGraph(int nodesCount) {
+        this.nodesCount = nodesCount;
+        edges = new int[nodesCount][];
+        edgesCount = new int[nodesCount];
+        inDegree = new int[nodesCount];
+    }
+
+    /**
+     * Adds an edge between the given source and target nodes.
+     */
+    public void addEdge(int source, int target) {
+        if (edges[source] == null)
+            edges[source] = new int[2];
+        else if (edgesCount[source] == edges[source].length) {
+            int[] newEdges = new int[edgesCount[source] * 2];
+            System.arraycopy(edges[source], 0, newEdges, 0, edgesCount[source]);
+            edges[source] = newEdges;
+        }
+
+        edges[source][edgesCount[source]++] = target;
+        inDegree[target]++;
+    }
+
+    /**
+     * Returns all the nodes of this graph sorted in a topological order.
+     * Nodes that don't depend on each other are kept in their numbers order where possible.
+     * If a circle is detected, sets the hasCircle property and returns only the nodes
+     * which are not on a circle or after one.
+     */
+    public int[] topologicalSort() {
+        int[] remaining = new int[nodesCount];
+        System.arraycopy(inDegree, 0, remaining, 0, nodesCount);
+
+        // the result array is also the queue of nodes that have no remaining edges to them
+        int[] result = new int[nodesCount];
+        int head = 0, tail = 0;
+        for (int i = 0; i < nodesCount; i++)
+            if (remaining[i] == 0)
+                result[tail++] = i;
+
+        while (head < tail) {
+            int node = result[head++];
+            for (int i = 0; i < edgesCount[node]; i++) {
+                int target = edges[node][i];
+                if (--remaining[target] == 0)
+                    result[tail++] = target;
+            }
+        }
+
+        hasCircle = (tail < nodesCount);
+        if (hasCircle) {
+            int[] sorted = new int[tail];
+            System.arraycopy(result, 0, sorted, 0, tail);
+            result = sorted;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns true if a circle was detected by the last topological sort.
+     */
+    public boolean hasCircle() {
+        return hasCircle;
+    }
+
+    /**
+     * Returns, for every node, the set of indice i such that the node is sources[i] or
+     * can be reached from it. The given order should be a topological order of all the
+     * nodes, so every set is computed in a single pass over the edges.
+     */
+    public BitSet[] getReachingSources(int[] sources, int[] order) {
+        BitSet[] result = new BitSet[nodesCount];
+        for (int i = 0; i < nodesCount; i++)
+            result[i] = new BitSet();
+
+        for (int i = 0; i < sources.length; i++)
+            result[sources[i]].set(i);
+
+        for (int i = 0; i < order.length; i++) {
+            int node = order[i];
+            if (!result[node].isEmpty())
+                for (int j = 0; j < edgesCount[node]; j++)
+                    result[edges[node][j]].or(result[node]);
+        }
+
+        return result;
+    }
+}
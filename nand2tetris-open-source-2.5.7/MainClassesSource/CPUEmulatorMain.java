@@ -20,6 +20,7 @@ import Hack.CPUEmulator.*;
 import HackGUI.*;
 import SimulatorsGUI.*;
 import javax.swing.*;
+import java.io.*;
 
 /**
  * The CPU Emulator.
@@ -30,8 +31,39 @@ public class CPUEmulatorMain
    * The command line CPU Emulator program.
    */
   public static void main(String[] args) {
-        if (args.length > 1)
-            System.err.println("Usage: java CPUEmulatorMain [script name]");
+        boolean compiled = false;
+        String traceName = null;
+        int historySize = 0;
+        while (args.length > 0 && args[0].startsWith("-")) {
+            int used = 1;
+            if (args[0].equals("-compiled"))
+                compiled = true;
+            else if (args[0].equals("-trace") && args.length > 1) {
+                traceName = args[1];
+                used = 2;
+            }
+            else if (args[0].equals("-history") && args.length > 1) {
+                try {
+                    historySize = Integer.parseInt(args[1]);
+                } catch (NumberFormatException nfe) {
+                    historySize = -1;
+                }
+                if (historySize < 0)
+                    break;
+                used = 2;
+            }
+            else
+                break;
+
+            String[] newArgs = new String[args.length - used];
+            System.arraycopy(args, used, newArgs, 0, newArgs.length);
+            args = newArgs;
+        }
+
+        if (args.length > 1 || (args.length == 0 && traceName != null) ||
+            (args.length == 1 && args[0].startsWith("-")))
+            System.err.println("Usage: java CPUEmulatorMain [-compiled] [-trace file] " +
+                               "[-history megabytes] [script name]");
         else if (args.length == 0) {
             try {
                 UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
@@ -43,9 +75,34 @@ public class CPUEmulatorMain
             ControllerGUI controllerGUI = new ControllerComponent();
             CPUEmulatorApplication application =
                 new CPUEmulatorApplication(controllerGUI, simulatorGUI, "bin/scripts/defaultCPU.txt",
-                                           "bin/help/cpuUsage.html", "bin/help/cpuAbout.html");
+                                           "bin/help/cpuUsage.html", "bin/help/cpuAbout.html",
+                                           historySize);
+        }
+        else {
+            CPUEmulator emulator = new CPUEmulator();
+            emulator.setCompiledExecution(compiled);
+            emulator.setHistorySize(historySize);
+
+            TraceRecorder trace = null;
+            if (traceName != null) {
+                try {
+                    trace = new TraceRecorder(traceName);
+                } catch (IOException ioe) {
+                    System.err.println("Can't create " + traceName + ": " + ioe.getMessage());
+                    System.exit(-1);
+                }
+                emulator.setTraceRecorder(trace);
+            }
+
+            new HackController(emulator, args[0]);
+
+            if (trace != null) {
+                try {
+                    trace.close();
+                } catch (IOException ioe) {
+                    System.err.println("Can't close " + traceName + ": " + ioe.getMessage());
+                }
+            }
         }
-        else
-            new HackController(new CPUEmulator(), args[0]);
     }
 }
@@ -0,0 +1,187 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import Hack.Controller.*;
+import Hack.ComputerParts.*;
+import Hack.CPUEmulator.*;
+
+/**
+ * Checks that the CPU Emulator's fast path, with and without compiled blocks,
+ * runs programs exactly as the reference path (one executeInstruction() per
+ * instruction) does: runs each given program on three cpus, one of each, in
+ * batches of instructions, and compares the cycles, registers and RAM of both
+ * fast cpus with those of the reference cpu after each batch.
+ * Exits with 1 if any program differs.
+ */
+public class CompiledExecutionCheckMain
+{
+  /**
+   * The command line compiled execution check program.
+   */
+  public static void main(String[] args) {
+        String usage = "Usage: java CompiledExecutionCheckMain [-cycles n] [-batch n] " +
+                       "<hack file> ...";
+        long cycles = 10000000;
+        int batch = 1000;
+        int firstProgram = -1;
+
+        try {
+            for (int i = 0; i < args.length && firstProgram == -1; i++) {
+                if (args[i].equals("-cycles"))
+                    cycles = Long.parseLong(args[++i]);
+                else if (args[i].equals("-batch"))
+                    batch = Integer.parseInt(args[++i]);
+                else if (!args[i].startsWith("-"))
+                    firstProgram = i;
+                else
+                    cycles = 0;
+            }
+        } catch (RuntimeException re) {
+            cycles = 0;
+        }
+
+        if (firstProgram == -1 || cycles < 1 || batch < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        boolean same = true;
+        for (int i = firstProgram; i < args.length; i++) {
+            try {
+                same &= check(args[i], cycles, batch);
+            } catch (ProgramException pe) {
+                System.err.println(args[i] + ": " + pe.getMessage());
+                System.exit(-1);
+            }
+        }
+
+        System.exit(same ? 0 : 1);
+    }
+
+    // Runs the given program for the given number of cycles on a reference cpu
+    // and on an interpreting and a compiling fast cpu, and prints whether they
+    // stayed the same.
+    private static boolean check(String programName, long cycles, int batch)
+     throws ProgramException {
+        CPU reference = createCPU(programName, false, false);
+        CPU interpreted = createCPU(programName, true, false);
+        CPU compiled = createCPU(programName, true, true);
+
+        String error = "";
+        long done = 0;
+        while (done < cycles && error.length() == 0) {
+            long count = Math.min(batch, cycles - done);
+            String referenceError = run(reference, count);
+            String interpretedError = run(interpreted, count);
+            String compiledError = run(compiled, count);
+            done += count;
+
+            String difference = compare(reference, referenceError, interpreted,
+                                        interpretedError);
+            if (difference != null)
+                difference = "interpreted: " + difference;
+            else {
+                difference = compare(reference, referenceError, compiled, compiledError);
+                if (difference != null)
+                    difference = "compiled: " + difference;
+            }
+
+            if (difference != null) {
+                System.out.println(programName + ": differs after " + done +
+                                   " cycles, " + difference);
+                return false;
+            }
+
+            error = referenceError;
+        }
+
+        System.out.println(programName + ": same for " + reference.getTime() + " cycles" +
+                           (error.length() > 0 ? " (stopped: " + error + ")" : ""));
+        return true;
+    }
+
+    // Runs the given number of instructions on the given cpu and returns the
+    // error message that stopped it, or an empty string if there's none.
+    private static String run(CPU cpu, long count) {
+        try {
+            cpu.executeInstructions(count);
+        } catch (ProgramException pe) {
+            return pe.getMessage();
+        }
+        return "";
+    }
+
+    // Returns the first difference between the states of the reference cpu and
+    // the checked cpu, with the error messages that stopped their last runs
+    // (reference value first), or null if they're the same.
+    private static String compare(CPU reference, String referenceError,
+                                  CPU checked, String checkedError) {
+        if (reference.getTime() != checked.getTime())
+            return "time " + reference.getTime() + " / " + checked.getTime();
+        if (reference.getA().get() != checked.getA().get())
+            return "A " + reference.getA().get() + " / " + checked.getA().get();
+        if (reference.getD().get() != checked.getD().get())
+            return "D " + reference.getD().get() + " / " + checked.getD().get();
+        if (reference.getPC().get() != checked.getPC().get())
+            return "PC " + reference.getPC().get() + " / " + checked.getPC().get();
+
+        short[] referenceRAM = reference.getRAM().getContents();
+        short[] checkedRAM = checked.getRAM().getContents();
+        for (int address = 0; address < referenceRAM.length; address++)
+            if (referenceRAM[address] != checkedRAM[address])
+                return "RAM[" + address + "] " + referenceRAM[address] + " / " +
+                       checkedRAM[address];
+
+        if (!referenceError.equals(checkedError))
+            return "error \"" + referenceError + "\" / \"" + checkedError + "\"";
+
+        return null;
+    }
+
+    // Creates a cpu on the reference path or on the fast path, with or without
+    // compiled execution, and loads the given program into it.
+    private static CPU createCPU(String programName, boolean fastExecution,
+                                 boolean compiledExecution) throws ProgramException {
+        RAM ram = new RAM(null, null, null);
+        ram.reset();
+
+        ROM rom = new ROM(null);
+        rom.reset();
+
+        PointerAddressRegisterAdapter A = new PointerAddressRegisterAdapter(null, ram);
+        A.reset();
+
+        Register D = new Register(null);
+        D.reset();
+
+        PointerAddressRegisterAdapter PC = new PointerAddressRegisterAdapter(null, rom);
+        PC.reset();
+
+        ALU alu = new ALU(null);
+        alu.reset();
+
+        Bus bus = new Bus(null);
+        bus.reset();
+
+        CPU cpu = new CPU(ram, rom, A, D, PC, alu, bus);
+        cpu.setFastExecution(fastExecution);
+        cpu.setCompiledExecution(compiledExecution);
+        rom.loadProgram(programName);
+        cpu.initProgram();
+        return cpu;
+    }
+}
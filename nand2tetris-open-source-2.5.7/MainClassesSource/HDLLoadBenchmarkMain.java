@@ -0,0 +1,129 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import java.util.*;
+import Hack.Gates.*;
+
+/**
+ * Measures the time it takes to load (parse) every chip in the given directories,
+ * including all of its parts. Should run from the directory which contains the
+ * builtInChips directory, like the hardware simulator.
+ */
+public class HDLLoadBenchmarkMain
+{
+  /**
+   * The command line load benchmark program.
+   */
+  public static void main(String[] args) {
+        String usage = "Usage: java HDLLoadBenchmarkMain [-rounds n] <hdl dir> ...";
+        int rounds = 20;
+        Vector dirs = new Vector();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-rounds"))
+                    rounds = Integer.parseInt(args[++i]);
+                else
+                    dirs.addElement(new File(args[i]));
+            }
+        } catch (RuntimeException re) {
+            dirs.removeAllElements();
+        }
+
+        if (dirs.isEmpty() || rounds < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        GatesManager manager = GatesManager.getInstance();
+        manager.setBuiltInDir(new File("builtInChips"));
+        HDLCache.setEnabled(false);
+
+        long totalTime = 0;
+        int totalCount = 0;
+
+        for (int d = 0; d < dirs.size(); d++) {
+            File dir = (File)dirs.elementAt(d);
+            Vector files = new Vector();
+            addHDLFiles(dir, files);
+
+            // the first round finds the chips that load (and warms up)
+            Vector chips = new Vector();
+            for (int i = 0; i < files.size(); i++) {
+                File file = (File)files.elementAt(i);
+                try {
+                    load(manager, file);
+                    chips.addElement(file);
+                } catch (HDLException he) {
+                    System.out.println("Skipped " + file + ": " + he.getMessage());
+                }
+            }
+
+            long[] times = new long[chips.size()];
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < times.length; i++)
+                    try {
+                        long startTime = System.nanoTime();
+                        load(manager, (File)chips.elementAt(i));
+                        times[i] += System.nanoTime() - startTime;
+                    } catch (HDLException he) {
+                    }
+
+            long dirTime = 0;
+            int slowest = -1;
+            for (int i = 0; i < times.length; i++) {
+                dirTime += times[i];
+                if (slowest < 0 || times[i] > times[slowest])
+                    slowest = i;
+            }
+
+            System.out.println(dir + ": " + times.length + " chips, " +
+                               (dirTime / rounds / 1000) + "us per round" +
+                               (slowest < 0 ? "" : ", slowest " +
+                                ((File)chips.elementAt(slowest)).getName() + " " +
+                                (times[slowest] / rounds / 1000) + "us"));
+            totalTime += dirTime;
+            totalCount += times.length;
+        }
+
+        System.out.println("Total: " + totalCount + " chips, " + (totalTime / rounds / 1000) +
+                           "us per round (" + rounds + " rounds)");
+    }
+
+    // Loads the given HDL file with all its parts, without using cached gates.
+    private static void load(GatesManager manager, File file) throws HDLException {
+        manager.setWorkingDir(file.getAbsoluteFile().getParentFile());
+        GateClass.clearGateCache();
+        GateClass.getGateClass(file.getAbsolutePath(), true);
+    }
+
+    // Adds the HDL files in the given directory tree to the given vector, sorted by name.
+    private static void addHDLFiles(File dir, Vector files) {
+        File[] dirFiles = dir.listFiles();
+        if (dirFiles == null)
+            return;
+
+        Arrays.sort(dirFiles);
+        for (int i = 0; i < dirFiles.length; i++) {
+            if (dirFiles[i].isDirectory())
+                addHDLFiles(dirFiles[i], files);
+            else if (dirFiles[i].getName().endsWith(".hdl"))
+                files.addElement(dirFiles[i]);
+        }
+    }
+}
@@ -30,8 +30,15 @@ public class HardwareSimulatorMain
    * The command line Hardware Simulator program.
    */
   public static void main(String[] args) {
+        boolean compiled = (args.length > 0 && args[0].equals("-compiled"));
+        if (compiled) {
+            String[] newArgs = new String[args.length - 1];
+            System.arraycopy(args, 1, newArgs, 0, newArgs.length);
+            args = newArgs;
+        }
+
         if (args.length > 1)
-            System.err.println("Usage: java HardwareSimulatorMain [script name]");
+            System.err.println("Usage: java HardwareSimulatorMain [-compiled] [script name]");
         else if (args.length == 0) {
             try {
                 UIManager.setLookAndFeel("com.sun.java.swing.plaf.windows.WindowsLookAndFeel");
@@ -46,7 +53,13 @@ public class HardwareSimulatorMain
                                                  "bin/scripts/defaultHW.txt",
                                                  "bin/help/hwUsage.html", "bin/help/hwAbout.html");
         }
-        else
-            new HackController(new HardwareSimulator(), args[0]);
+        else {
+            // Runs without a gui, so any use of AWT should fail rather than
+            // look for a display.
+            System.setProperty("java.awt.headless", "true");
+            HardwareSimulator simulator = new HardwareSimulator();
+            simulator.setCompiledEval(compiled);
+            new HackController(simulator, args[0]);
+        }
     }
 }
@@ -0,0 +1,102 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.HardwareSimulator.*;
+
+/**
+ * Runs all the hardware simulator test scripts in a directory tree in parallel,
+ * and prints a summary of the results.
+ */
+public class HardwareSimulatorRegressionMain
+{
+  /**
+   * The command line regression runner program.
+   */
+  public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        String usage = "Usage: java HardwareSimulatorRegressionMain [-compiled] [-threads n] " +
+                       "[-timeout seconds] <scripts dir>";
+        boolean compiled = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int timeout = 60;
+        File dir = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-compiled"))
+                    compiled = true;
+                else if (args[i].equals("-threads"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-timeout"))
+                    timeout = Integer.parseInt(args[++i]);
+                else if (dir == null)
+                    dir = new File(args[i]);
+                else
+                    throw new IllegalArgumentException();
+            }
+        } catch (RuntimeException re) {
+            dir = null;
+        }
+
+        if (dir == null || threads < 1 || !dir.isDirectory()) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        File[] scripts = RegressionRunner.findScripts(dir);
+        RegressionRunner runner = new RegressionRunner(threads, compiled, timeout * 1000L);
+        long startTime = System.currentTimeMillis();
+        ScriptResult[] results = null;
+
+        try {
+            results = runner.run(scripts);
+        } catch (InterruptedException ie) {
+            System.err.println("Interrupted");
+            System.exit(-1);
+        }
+
+        long wallTime = System.currentTimeMillis() - startTime;
+        int passed = 0;
+        long scriptsTime = 0;
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isPassed())
+                passed++;
+            scriptsTime += results[i].getTime();
+
+            System.out.println((results[i].isPassed() ? "PASS " : "FAIL ") +
+                               pad(results[i].getTime() + "ms", 9) + results[i].getScript() +
+                               (results[i].isPassed() ? "" : ": " + results[i].getMessage()));
+        }
+
+        System.out.println(passed + " passed, " + (results.length - passed) + " failed, " +
+                           wallTime + "ms wall time (" + scriptsTime + "ms in scripts, " +
+                           threads + " threads)");
+
+        if (passed < results.length)
+            System.exit(1);
+    }
+
+    // Returns the given string, padded with spaces to the given length
+    private static String pad(String s, int length) {
+        StringBuffer result = new StringBuffer(s);
+        while (result.length() < length)
+            result.append(' ');
+        return result.toString();
+    }
+}
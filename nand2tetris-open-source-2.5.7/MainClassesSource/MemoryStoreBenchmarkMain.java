@@ -0,0 +1,180 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import Hack.Controller.*;
+import Hack.ComputerParts.*;
+import Hack.CPUEmulator.*;
+import Hack.Utilities.*;
+
+/**
+ * Measures the speed of stores to the RAM of the CPU Emulator, which has a screen
+ * and a keyboard mapped to it as devices: stores through RAM.setValueAt() to
+ * plain and to screen addresses, and runs of store loops (and of an optional
+ * program) by the cpu. The screen device has a gui that does nothing, so only
+ * the RAM and the device dispatch are measured.
+ */
+public class MemoryStoreBenchmarkMain
+{
+    // The number of stores and of executed instructions in a round
+    private static final int ROUND_STORES = 10000000;
+    private static final int ROUND_INSTRUCTIONS = 40000000;
+
+  /**
+   * The command line store benchmark program.
+   */
+  public static void main(String[] args) {
+        String usage = "Usage: java MemoryStoreBenchmarkMain [-rounds n] [hack file]";
+        int rounds = 5;
+        String programName = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-rounds"))
+                    rounds = Integer.parseInt(args[++i]);
+                else if (programName == null && !args[i].startsWith("-"))
+                    programName = args[i];
+                else
+                    rounds = 0;
+            }
+        } catch (RuntimeException re) {
+            rounds = 0;
+        }
+
+        if (rounds < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        CPU cpu = createCPU();
+        RAM ram = cpu.getRAM();
+
+        // the first round warms up
+        long plainTime = 0;
+        long screenTime = 0;
+        for (int r = 0; r <= rounds; r++) {
+            long time = timeStores(ram, 0, Definitions.SCREEN_START_ADDRESS);
+            if (r > 0)
+                plainTime += time;
+            time = timeStores(ram, Definitions.SCREEN_START_ADDRESS,
+                              Definitions.SCREEN_SIZE_IN_WORDS);
+            if (r > 0)
+                screenTime += time;
+        }
+
+        System.out.println("RAM.setValueAt, plain address: " +
+                           nanosPerUnit(plainTime, (long)rounds * ROUND_STORES) + "ns per store");
+        System.out.println("RAM.setValueAt, screen address: " +
+                           nanosPerUnit(screenTime, (long)rounds * ROUND_STORES) + "ns per store");
+
+        try {
+            cpu.getROM().setContents(storeLoop(100), 0);
+            printRunSpeed("cpu store loop, plain address", cpu, rounds);
+            cpu.getROM().setContents(storeLoop(Definitions.SCREEN_START_ADDRESS), 0);
+            printRunSpeed("cpu store loop, screen address", cpu, rounds);
+
+            if (programName != null) {
+                cpu.getROM().loadProgram(programName);
+                printRunSpeed(programName, cpu, rounds);
+            }
+        } catch (ProgramException pe) {
+            System.err.println(pe.getMessage());
+            System.exit(-1);
+        }
+
+        System.exit(0);
+    }
+
+    // Creates a cpu on the fast path, with a screen and a keyboard mapped to its RAM.
+    private static CPU createCPU() {
+        RAM ram = new RAM(null, null, new NullScreenGUI());
+        ram.reset();
+        new Keyboard(ram, null);
+
+        ROM rom = new ROM(null);
+        rom.reset();
+
+        PointerAddressRegisterAdapter A = new PointerAddressRegisterAdapter(null, ram);
+        A.reset();
+
+        Register D = new Register(null);
+        D.reset();
+
+        PointerAddressRegisterAdapter PC = new PointerAddressRegisterAdapter(null, rom);
+        PC.reset();
+
+        ALU alu = new ALU(null);
+        alu.reset();
+
+        Bus bus = new Bus(null);
+        bus.reset();
+
+        CPU cpu = new CPU(ram, rom, A, D, PC, alu, bus);
+        cpu.setFastExecution(true);
+        return cpu;
+    }
+
+    // Stores a round of values through the given RAM, in the given number of
+    // addresses (a power of 2) from the given start address, and returns the time
+    // it took in nanoseconds.
+    private static long timeStores(RAM ram, int startAddress, int length) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ROUND_STORES; i++)
+            ram.setValueAt(startAddress + (i & (length - 1)), (short)i, true);
+        return System.nanoTime() - startTime;
+    }
+
+    // Returns a loop that increments the RAM at the given address:
+    // @address, M=M+1, @0, 0;JMP
+    private static short[] storeLoop(int address) {
+        return new short[]{(short)address, (short)0xfdc8, 0, (short)0xea87};
+    }
+
+    // Runs the program in the ROM of the given cpu from its start, and prints its speed.
+    private static void printRunSpeed(String name, CPU cpu, int rounds)
+     throws ProgramException {
+        cpu.initProgram();
+        cpu.executeInstructions(ROUND_INSTRUCTIONS);
+
+        long time = 0;
+        for (int r = 0; r < rounds; r++) {
+            cpu.initProgram();
+            long startTime = System.nanoTime();
+            cpu.executeInstructions(ROUND_INSTRUCTIONS);
+            time += System.nanoTime() - startTime;
+        }
+
+        long instructions = (long)rounds * ROUND_INSTRUCTIONS;
+        System.out.println(name + ": " + (instructions * 1000 / Math.max(time, 1)) +
+                           "M instructions per second");
+    }
+
+    // Returns the given time in nanoseconds per unit, with one decimal digit.
+    private static String nanosPerUnit(long time, long units) {
+        long tenths = time * 10 / units;
+        return (tenths / 10) + "." + (tenths % 10);
+    }
+
+    // A screen gui that displays nothing.
+    static class NullScreenGUI implements ScreenGUI {
+        public void reset() {}
+        public void setValueAt(int index, short value) {}
+        public void setContents(short[] values) {}
+        public void refresh() {}
+        public void startAnimation() {}
+        public void stopAnimation() {}
+    }
+}
@@ -0,0 +1,117 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.Gates.*;
+
+/**
+ * Measures the speed of value propagation through the nodes of chips: sets all
+ * the input pins of each given chip to pseudo-random values (within the width
+ * of each pin) and evaluates it, many times over. Prints the time of a whole
+ * input set (all pins set, then one eval()), in the best round of each chip.
+ * Should run from the directory which contains the builtInChips directory, like
+ * the hardware simulator.
+ */
+public class NodePropagationBenchmarkMain
+{
+  /**
+   * The command line node propagation benchmark program.
+   */
+  public static void main(String[] args) {
+        String usage = "Usage: java NodePropagationBenchmarkMain [-rounds n] " +
+                       "[-iterations n] <hdl file> ...";
+        int rounds = 8;
+        int iterations = 200000;
+        int firstChip = -1;
+
+        try {
+            for (int i = 0; i < args.length && firstChip == -1; i++) {
+                if (args[i].equals("-rounds"))
+                    rounds = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-iterations"))
+                    iterations = Integer.parseInt(args[++i]);
+                else if (!args[i].startsWith("-"))
+                    firstChip = i;
+                else
+                    rounds = 0;
+            }
+        } catch (RuntimeException re) {
+            rounds = 0;
+        }
+
+        if (firstChip == -1 || rounds < 1 || iterations < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        GatesManager manager = GatesManager.getInstance();
+        manager.setBuiltInDir(new File("builtInChips"));
+        manager.enableChipsGUI(false);
+
+        for (int i = firstChip; i < args.length; i++) {
+            File file = new File(args[i]).getAbsoluteFile();
+            Gate gate;
+            try {
+                manager.setWorkingDir(file.getParentFile());
+                gate = GateClass.getGateClass(file.getPath(), true).newInstance();
+            } catch (HDLException he) {
+                System.out.println("Skipped " + file + ": " + he.getMessage());
+                continue;
+            } catch (InstantiationException ie) {
+                System.out.println("Skipped " + file + ": " + ie.getMessage());
+                continue;
+            }
+
+            // the first round warms up
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r <= rounds; r++) {
+                long time = timeRound(gate, iterations);
+                if (r > 0)
+                    best = Math.min(best, time);
+            }
+
+            System.out.println(file.getName() + ": " + gate.getInputNodes().length +
+                               " input pins, " + (best / iterations) + "ns per input set " +
+                               "(best of " + rounds + " rounds of " + iterations + ")");
+        }
+
+        System.exit(0);
+    }
+
+    // Sets the input pins of the given gate and evaluates it the given number of
+    // times, and returns the time it took in nanoseconds. The values come from the
+    // same pseudo-random sequence in each round.
+    private static long timeRound(Gate gate, int iterations) {
+        Node[] inputs = gate.getInputNodes();
+        short[] masks = new short[inputs.length];
+        for (int j = 0; j < inputs.length; j++) {
+            int width = gate.getGateClass().getPinInfo(GateClass.INPUT_PIN_TYPE, j).width;
+            masks[j] = (short)(width >= 16 ? -1 : (1 << width) - 1);
+        }
+
+        int seed = 12345;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < inputs.length; j++) {
+                seed = seed * 1103515245 + 12345;
+                inputs[j].set((short)((seed >> 8) & masks[j]));
+            }
+            gate.eval();
+        }
+        return System.nanoTime() - startTime;
+    }
+}
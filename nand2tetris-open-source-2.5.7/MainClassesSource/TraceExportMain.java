@@ -0,0 +1,62 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import Hack.Controller.*;
+import Hack.CPUEmulator.*;
+
+/**
+ * Exports a slice of a trace file that was recorded by the CPU Emulator
+ * (with its -trace option) in the output table format of the scripts.
+ * The values are printed in decimal format.
+ */
+public class TraceExportMain
+{
+  /**
+   * The command line trace export program.
+   */
+  public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Usage: java TraceExportMain <trace file> <first cycle> " +
+                               "<last cycle> <variable> ...");
+            System.exit(-1);
+        }
+
+        VariableFormat[] vars = new VariableFormat[args.length - 3];
+        for (int i = 0; i < vars.length; i++)
+            vars[i] = new VariableFormat(args[i + 3], VariableFormat.DECIMAL_FORMAT, 1, 1, 6);
+
+        try {
+            TraceReader reader = new TraceReader(args[0]);
+            long first = Long.parseLong(args[1]);
+            long last = Long.parseLong(args[2]);
+            reader.export(first, last, vars, new PrintWriter(System.out));
+        } catch (NumberFormatException nfe) {
+            System.err.println("Illegal cycle number: " + nfe.getMessage());
+            System.exit(-1);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(-1);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        } catch (VariableException ve) {
+            System.err.println(ve.getMessage());
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import java.util.*;
+import Hack.ComputerParts.*;
+import Hack.Controller.*;
+import Hack.CPUEmulator.Keyboard;
+import Hack.CPUEmulator.RAM;
+import Hack.Utilities.*;
+import Hack.VMEmulator.*;
+
+/**
+ * Measures the fast path of the VM Emulator on the given programs, with and
+ * without the fusion of their instructions into superinstructions: the number
+ * of dispatches (instructions and superinstructions run as one step each) and
+ * the time it takes to execute a round of instructions from boot. A program
+ * should have all of its functions in VM code, since the built-in functions
+ * can't be run with no gui.
+ */
+public class VMDispatchBenchmarkMain
+{
+  /**
+   * The command line dispatch benchmark program.
+   */
+  public static void main(String[] args) {
+        String usage = "Usage: java VMDispatchBenchmarkMain [-rounds n] [-instructions n] " +
+                       "<vm file or dir> ...";
+        int rounds = 5;
+        long instructions = 10000000;
+        Vector programs = new Vector();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-rounds"))
+                    rounds = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-instructions"))
+                    instructions = Long.parseLong(args[++i]);
+                else
+                    programs.addElement(args[i]);
+            }
+        } catch (RuntimeException re) {
+            programs.removeAllElements();
+        }
+
+        if (programs.isEmpty() || rounds < 1 || instructions < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        for (int p = 0; p < programs.size(); p++) {
+            String programName = (String)programs.elementAt(p);
+            try {
+                // the first round of each warms up
+                long[] plain = new long[2];
+                long[] fused = new long[2];
+                for (int r = 0; r <= rounds; r++) {
+                    long[] result = run(programName, false, instructions);
+                    if (r > 0)
+                        add(plain, result);
+                    result = run(programName, true, instructions);
+                    if (r > 0)
+                        add(fused, result);
+                }
+
+                System.out.println(programName + ": " + instructions + " instructions, " +
+                                   (plain[0] / rounds) + " dispatches in " +
+                                   (plain[1] / rounds / 1000000) + "ms, fused " +
+                                   (fused[0] / rounds) + " dispatches in " +
+                                   (fused[1] / rounds / 1000000) + "ms");
+            } catch (ProgramException pe) {
+                System.out.println("Skipped " + programName + ": " + pe.getMessage());
+            }
+        }
+
+        System.exit(0);
+    }
+
+    // Executes the given number of instructions of the given program from boot,
+    // with or without fusion. Returns the number of dispatches and the time it
+    // took in nanoseconds.
+    private static long[] run(String programName, boolean fusion, long instructions)
+     throws ProgramException {
+        CPU cpu = createCPU();
+        cpu.getProgram().setInstructionFusion(fusion);
+        cpu.getProgram().loadProgram(programName);
+        cpu.boot();
+
+        long startTime = System.nanoTime();
+        cpu.executeInstructions(instructions);
+        return new long[]{cpu.getDispatchCount(), System.nanoTime() - startTime};
+    }
+
+    // Adds the given results to the given totals.
+    private static void add(long[] totals, long[] results) {
+        for (int i = 0; i < totals.length; i++)
+            totals[i] += results[i];
+    }
+
+    // Creates a cpu on the fast path with no gui, as the VM Emulator does.
+    private static CPU createCPU() {
+        VMProgram program = new VMProgram(null);
+        MemorySegment[][] segments = new MemorySegment[Definitions.RAM_SIZE][];
+
+        RAM ram = new RAM(null, segments, null);
+        ram.reset();
+
+        AbsolutePointedMemorySegment stackSegment =
+            new AbsolutePointedMemorySegment(ram, null);
+        TrimmedAbsoluteMemorySegment workingStackSegment =
+            new TrimmedAbsoluteMemorySegment(ram, null);
+        MemorySegment staticSegment = new MemorySegment(ram, null);
+        MemorySegment localSegment = new MemorySegment(ram, null);
+        MemorySegment argSegment = new MemorySegment(ram, null);
+        MemorySegment thisSegment = new MemorySegment(ram, null);
+        MemorySegment thatSegment = new MemorySegment(ram, null);
+        MemorySegment tempSegment = new MemorySegment(ram, null);
+
+        stackSegment.reset();
+        stackSegment.setEnabledRange(Definitions.STACK_START_ADDRESS,
+                                     Definitions.STACK_END_ADDRESS, true);
+        workingStackSegment.reset();
+        workingStackSegment.setEnabledRange(Definitions.STACK_START_ADDRESS,
+                                            Definitions.STACK_END_ADDRESS, true);
+        staticSegment.reset();
+        localSegment.reset();
+        argSegment.reset();
+        thisSegment.reset();
+        thatSegment.reset();
+        tempSegment.reset();
+        tempSegment.setStartAddress(Definitions.TEMP_START_ADDRESS);
+        tempSegment.setEnabledRange(5, 12, true);
+
+        segments[Definitions.SP_ADDRESS] = new MemorySegment[]{stackSegment, workingStackSegment};
+        segments[Definitions.LOCAL_POINTER_ADDRESS] = new MemorySegment[]{localSegment};
+        segments[Definitions.ARG_POINTER_ADDRESS] = new MemorySegment[]{argSegment};
+        segments[Definitions.THIS_POINTER_ADDRESS] = new MemorySegment[]{thisSegment};
+        segments[Definitions.THAT_POINTER_ADDRESS] = new MemorySegment[]{thatSegment};
+
+        new Keyboard(ram, null).reset();
+
+        CallStack callStack = new CallStack(null);
+        callStack.reset();
+        Calculator calculator = new Calculator(null);
+        calculator.reset();
+        Bus bus = new Bus(null);
+        bus.reset();
+
+        CPU cpu = new CPU(program, ram, callStack, calculator, bus, stackSegment,
+                          workingStackSegment, staticSegment, localSegment,
+                          argSegment, thisSegment, thatSegment, tempSegment,
+                          new File("builtInVMCode"));
+        cpu.setFastExecution(true);
+        cpu.boot();
+        return cpu;
+    }
+}
@@ -0,0 +1,259 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import Hack.ComputerParts.*;
+import Hack.Controller.*;
+import Hack.CPUEmulator.Keyboard;
+import Hack.CPUEmulator.RAM;
+import Hack.Events.*;
+import Hack.Utilities.*;
+import Hack.VMEmulator.*;
+
+/**
+ * Runs many VM emulators at the same time on a small pool of threads, each
+ * emulator in slices of instructions, and checks that each one ends with the
+ * same RAM as a single emulator that ran the program alone. The program
+ * should use built-in functions, so that each emulator runs them (as
+ * coroutines when they call VM code), and it's done when its Main.main
+ * returns to the built-in Sys.init. Prints the time it took and the peak
+ * number of live threads, and exits with 1 if any emulator differs.
+ */
+public class VMEmulatorStressMain
+{
+  /**
+   * The command line stress program.
+   */
+  public static void main(String[] args) {
+        String usage = "Usage: java VMEmulatorStressMain [-emulators n] [-threads n] " +
+                       "[-slice n] <vm dir>";
+        int emulators = 1000;
+        int threads = 4;
+        int slice = 5000;
+        String programName = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-emulators"))
+                    emulators = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-threads"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-slice"))
+                    slice = Integer.parseInt(args[++i]);
+                else if (programName == null && !args[i].startsWith("-"))
+                    programName = args[i];
+                else
+                    emulators = 0;
+            }
+        } catch (RuntimeException re) {
+            emulators = 0;
+        }
+
+        if (programName == null || emulators < 1 || threads < 1 || slice < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        try {
+            // the reference run
+            CPU reference = createCPU(programName);
+            long instructions = 0;
+            boolean started = false;
+            boolean done = false;
+            while (!done) {
+                reference.executeInstruction();
+                instructions++;
+                started |= isInMain(reference);
+                done = started && !isInMain(reference);
+            }
+            short[] expected = reference.getRAM().getContents();
+            System.out.println(programName + ": " + instructions + " instructions");
+
+            CPU[] cpus = new CPU[emulators];
+            for (int i = 0; i < emulators; i++)
+                cpus[i] = createCPU(programName);
+
+            Runner runner = new Runner(cpus, expected, slice);
+            long startTime = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++)
+                pool.execute(runner);
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.HOURS);
+            long time = System.nanoTime() - startTime;
+
+            System.out.println(emulators + " emulators on " + threads + " threads: " +
+                               runner.same.get() + " same, " + runner.different.get() +
+                               " different, " + runner.failed.get() + " failed, " +
+                               (time / 1000000) + "ms, peak threads " +
+                               runner.peakThreads.get());
+            System.exit(runner.same.get() == emulators ? 0 : 1);
+        } catch (ProgramException pe) {
+            System.err.println(pe.getMessage());
+            System.exit(-1);
+        } catch (InterruptedException ie) {
+            System.exit(-1);
+        }
+    }
+
+    // Returns true if the given cpu runs Main.main (or a function it called),
+    // rather than the built-in Sys.init.
+    private static boolean isInMain(CPU cpu) {
+        return (cpu.getCallStack().getSize() > 1);
+    }
+
+    // Takes the emulators from a queue and runs a slice of each, until all
+    // are done.
+    static class Runner implements Runnable {
+        private CPU[] cpus;
+        private boolean[] started;
+        private short[] expected;
+        private int slice;
+        private ConcurrentLinkedQueue queue;
+
+        AtomicInteger same = new AtomicInteger();
+        AtomicInteger different = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger peakThreads = new AtomicInteger();
+
+        Runner(CPU[] cpus, short[] expected, int slice) {
+            this.cpus = cpus;
+            this.expected = expected;
+            this.slice = slice;
+            started = new boolean[cpus.length];
+            queue = new ConcurrentLinkedQueue();
+            for (int i = 0; i < cpus.length; i++)
+                queue.add(new Integer(i));
+        }
+
+        public void run() {
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            Integer next;
+            while ((next = (Integer)queue.poll()) != null) {
+                int i = next.intValue();
+                CPU cpu = cpus[i];
+                boolean done = false;
+                try {
+                    for (int s = 0; s < slice && !done; s++) {
+                        cpu.executeInstruction();
+                        started[i] |= isInMain(cpu);
+                        done = started[i] && !isInMain(cpu);
+                    }
+                } catch (ProgramException pe) {
+                    failed.incrementAndGet();
+                    System.out.println("Emulator " + i + ": " + pe.getMessage());
+                    continue;
+                }
+
+                int threadCount = threadBean.getThreadCount();
+                if (threadCount > peakThreads.get())
+                    peakThreads.set(threadCount);
+
+                if (!done)
+                    queue.add(next);
+                else if (Arrays.equals(cpu.getRAM().getContents(), expected))
+                    same.incrementAndGet();
+                else
+                    different.incrementAndGet();
+            }
+        }
+    }
+
+    // Creates a cpu with no gui, as the VM Emulator does, which may run
+    // built-in functions, and loads the given program into it.
+    private static CPU createCPU(String programName) throws ProgramException {
+        VMProgram program = new VMProgram(new BuiltInProgramGUI());
+        MemorySegment[][] segments = new MemorySegment[Definitions.RAM_SIZE][];
+
+        RAM ram = new RAM(null, segments, null);
+        ram.reset();
+
+        AbsolutePointedMemorySegment stackSegment =
+            new AbsolutePointedMemorySegment(ram, null);
+        TrimmedAbsoluteMemorySegment workingStackSegment =
+            new TrimmedAbsoluteMemorySegment(ram, null);
+        MemorySegment staticSegment = new MemorySegment(ram, null);
+        MemorySegment localSegment = new MemorySegment(ram, null);
+        MemorySegment argSegment = new MemorySegment(ram, null);
+        MemorySegment thisSegment = new MemorySegment(ram, null);
+        MemorySegment thatSegment = new MemorySegment(ram, null);
+        MemorySegment tempSegment = new MemorySegment(ram, null);
+
+        stackSegment.reset();
+        stackSegment.setEnabledRange(Definitions.STACK_START_ADDRESS,
+                                     Definitions.STACK_END_ADDRESS, true);
+        workingStackSegment.reset();
+        workingStackSegment.setEnabledRange(Definitions.STACK_START_ADDRESS,
+                                            Definitions.STACK_END_ADDRESS, true);
+        staticSegment.reset();
+        localSegment.reset();
+        argSegment.reset();
+        thisSegment.reset();
+        thatSegment.reset();
+        tempSegment.reset();
+        tempSegment.setStartAddress(Definitions.TEMP_START_ADDRESS);
+        tempSegment.setEnabledRange(5, 12, true);
+
+        segments[Definitions.SP_ADDRESS] = new MemorySegment[]{stackSegment, workingStackSegment};
+        segments[Definitions.LOCAL_POINTER_ADDRESS] = new MemorySegment[]{localSegment};
+        segments[Definitions.ARG_POINTER_ADDRESS] = new MemorySegment[]{argSegment};
+        segments[Definitions.THIS_POINTER_ADDRESS] = new MemorySegment[]{thisSegment};
+        segments[Definitions.THAT_POINTER_ADDRESS] = new MemorySegment[]{thatSegment};
+
+        new Keyboard(ram, null).reset();
+
+        CallStack callStack = new CallStack(null);
+        callStack.reset();
+        Calculator calculator = new Calculator(null);
+        calculator.reset();
+        Bus bus = new Bus(null);
+        bus.reset();
+
+        CPU cpu = new CPU(program, ram, callStack, calculator, bus, stackSegment,
+                          workingStackSegment, staticSegment, localSegment,
+                          argSegment, thisSegment, thatSegment, tempSegment,
+                          new File("builtInVMCode"));
+        cpu.setFastExecution(true);
+        program.setDisplayChanges(false);
+        program.loadProgram(programName);
+        cpu.boot();
+        return cpu;
+    }
+
+    // A program gui that displays nothing and allows the built-in functions.
+    static class BuiltInProgramGUI implements VMProgramGUI {
+        public void reset() {}
+        public void addErrorListener(ErrorEventListener listener) {}
+        public void removeErrorListener(ErrorEventListener listener) {}
+        public void notifyErrorListeners(String errorMessage) {}
+        public void addProgramListener(ProgramEventListener listener) {}
+        public void removeProgramListener(ProgramEventListener listener) {}
+        public void notifyProgramListeners(byte eventType, String programFileName) {}
+        public void setContents(VMEmulatorInstruction[] instructions, int instructionsLength) {}
+        public void setCurrentInstruction(int instructionIndex) {}
+        public void showMessage(String message) {}
+        public void hideMessage() {}
+        public boolean confirmBuiltInAccess() {
+            return true;
+        }
+        public void notify(String message) {}
+    }
+}
@@ -19,12 +19,16 @@ package SimulatorsGUI;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.*;
 import javax.swing.*;
 import Hack.CPUEmulator.*;
 import Hack.Utilities.*;
 
 /**
  * A Screen GUI component.
+ * The screen is kept in an image with one bit per pixel, which is updated on
+ * every change of a screen word. Only the rows that changed since the last
+ * repaint are repainted.
  */
 public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener {
 
@@ -32,14 +36,33 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
     private static final int ANIMATION_CLOCK_INTERVALS = 50;
     private static final int STATIC_CLOCK_INTERVALS = 500;
 
+    // The image's byte of each byte of a screen word: the leftmost pixel is the
+    // word's lowest bit and the image byte's highest bit
+    private static final byte[] reversedBytes = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int reversed = 0;
+            for (int j = 0; j < 8; j++)
+                if ((i & (1 << j)) != 0)
+                    reversed |= 0x80 >> j;
+            reversedBytes[i] = (byte)reversed;
+        }
+    }
+
     // The screen memory array
     private short[] data;
 
-    // redraw flag
-    private boolean redraw = true;
+    // The screen image (a set bit is a pixel in the foreground color) and its
+    // bytes, two for each screen word
+    private BufferedImage image;
+    private byte[] pixels;
 
-    // screen location at a given index
-    private int[] x, y;
+    // The rows that changed since the last repaint
+    private boolean[] dirtyRows;
+
+    // The location of the image in the component
+    private int left, top;
 
     // The screen redrawing timer
     protected Timer timer;
@@ -59,22 +82,21 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
                                        Definitions.SCREEN_HEIGHT + borderHeight));
         setSize(Definitions.SCREEN_WIDTH + borderWidth,
                 Definitions.SCREEN_HEIGHT + borderHeight);
-
-        data = new short[Definitions.SCREEN_SIZE];
-        x = new int[Definitions.SCREEN_SIZE];
-        y = new int[Definitions.SCREEN_SIZE];
-        x[0] = borderInsets.left;
-        y[0] = borderInsets.top;
-
-        // updates pixels indice
-        for (int i = 1; i < Definitions.SCREEN_SIZE; i++) {
-            x[i] = x[i - 1] + Definitions.BITS_PER_WORD;
-            y[i] = y[i - 1];
-            if (x[i] == Definitions.SCREEN_WIDTH + borderInsets.left) {
-                x[i] = borderInsets.left;
-                y[i]++;
-            }
-        }
+        left = borderInsets.left;
+        top = borderInsets.top;
+
+        data = new short[Definitions.SCREEN_SIZE_IN_WORDS];
+        dirtyRows = new boolean[Definitions.SCREEN_HEIGHT];
+        Color background = getBackground();
+        Color foreground = getForeground();
+        byte[] reds = {(byte)background.getRed(), (byte)foreground.getRed()};
+        byte[] greens = {(byte)background.getGreen(), (byte)foreground.getGreen()};
+        byte[] blues = {(byte)background.getBlue(), (byte)foreground.getBlue()};
+        image = new BufferedImage(Definitions.SCREEN_WIDTH, Definitions.SCREEN_HEIGHT,
+                                  BufferedImage.TYPE_BYTE_BINARY,
+                                  new IndexColorModel(1, 2, reds, greens, blues));
+        pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        markAllDirty();
 
         timer = new Timer(STATIC_CLOCK_INTERVALS, this);
         timer.start();
@@ -85,8 +107,10 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * (Assumes legal index)
      */
     public void setValueAt(int index, short value) {
-        data[index] = value;
-        redraw = true;
+        if (data[index] != value) {
+            setWord(index, value);
+            dirtyRows[index * Definitions.BITS_PER_WORD / Definitions.SCREEN_WIDTH] = true;
+        }
     }
 
     /**
@@ -94,8 +118,9 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * (Assumes that the length of the values array equals the screen memory size.
      */
     public void setContents(short[] values) {
-        data = values;
-        redraw = true;
+        for (int i = 0; i < data.length; i++)
+            setWord(i, i < values.length ? values[i] : 0);
+        markAllDirty();
     }
 
     /**
@@ -103,19 +128,15 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      */
     public void reset(){
         for (int i = 0; i < data.length; i++)
-            data[i] = 0;
-
-        redraw = true;
+            setWord(i, (short)0);
+        markAllDirty();
     }
 
     /**
      * Refreshes this component.
      */
     public void refresh() {
-        if (redraw) {
-            repaint();
-            redraw = false;
-        }
+        repaintDirtyRows();
     }
 
     /**
@@ -136,34 +157,58 @@ public class ScreenComponent extends JPanel implements ScreenGUI, ActionListener
      * Called at constant intervals
      */
     public void actionPerformed(ActionEvent e) {
-        if (redraw) {
-            repaint();
-            redraw = false;
-        }
+        repaintDirtyRows();
     }
 
     /**
      * Called when the screen needs to be painted.
      */
     public void paintComponent(Graphics g) {
-
         super.paintComponent(g);
 
-        for (int i = 0; i < Definitions.SCREEN_SIZE; i++) {
-            if (data[i] != 0) {
-                if (data[i] == 0xffff) // draw a full line
-                    g.drawLine(x[i], y[i], x[i] + 15, y[i]);
-                else {
-                    short value = data[i];
-                    for (int j = 0; j < 16; j++) {
-                        if ((value & 0x1) == 1)
-                            // since there's no drawPixel, uses drawLine to draw one pixel
-                            g.drawLine(x[i] + j, y[i], x[i] + j, y[i]);
-
-                        value = (short)(value >> 1);
-                    }
-                }
+        // draws only the rows of the image that are in the clip
+        int firstRow = 0;
+        int lastRow = Definitions.SCREEN_HEIGHT;
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            firstRow = Math.max(clip.y - top, 0);
+            lastRow = Math.min(clip.y + clip.height - top, Definitions.SCREEN_HEIGHT);
+        }
+
+        if (firstRow < lastRow)
+            g.drawImage(image, left, top + firstRow, left + Definitions.SCREEN_WIDTH, top + lastRow,
+                        0, firstRow, Definitions.SCREEN_WIDTH, lastRow, null);
+    }
+
+    // Sets the word at the given index and its pixels in the image.
+    private void setWord(int index, short value) {
+        data[index] = value;
+        pixels[index * 2] = reversedBytes[value & 0xff];
+        pixels[index * 2 + 1] = reversedBytes[(value >> 8) & 0xff];
+    }
+
+    // Marks all the rows to be repainted.
+    private void markAllDirty() {
+        for (int i = 0; i < dirtyRows.length; i++)
+            dirtyRows[i] = true;
+    }
+
+    // Repaints the span of rows that changed since the last repaint.
+    // A row is cleared before it is painted, so a row that changes meanwhile
+    // is repainted again on the next call.
+    private void repaintDirtyRows() {
+        int firstRow = -1;
+        int lastRow = -1;
+        for (int i = 0; i < dirtyRows.length; i++) {
+            if (dirtyRows[i]) {
+                dirtyRows[i] = false;
+                if (firstRow == -1)
+                    firstRow = i;
+                lastRow = i;
             }
         }
+
+        if (firstRow != -1)
+            repaint(left, top + firstRow, Definitions.SCREEN_WIDTH, lastRow - firstRow + 1);
     }
 }
@@ -0,0 +1,487 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.util.*;
+import Hack.Utilities.*;
+
+/**
+ * Compiles basic blocks of Hack machine code into JVM classes.
+ * A block starts at a given ROM address and runs up to and including the
+ * first jump instruction, stopping earlier before a NOP, an illegal
+ * instruction or the last ROM address. The generated code keeps A, D and
+ * the alu output in local variables, works on the RAM array directly and
+ * hands the execution back to the interpreter (see CompiledBlock) whenever
+ * an instruction can't be completed within the block.
+ *
+ * The class files are written by hand with version 49, which needs no stack
+ * map frames. Each block gets its own class loader, so that it can be
+ * garbage collected once it is invalidated.
+ */
+class BlockCompiler {
+
+    /**
+     * The maximal number of instructions in a block.
+     */
+    static final int MAX_BLOCK_LENGTH = 256;
+
+    // The name of the CompiledBlock class, in internal form
+    private static final String SUPER_CLASS = "Hack/CPUEmulator/CompiledBlock";
+
+    // The constant pool indices of the generated classes
+    private static final int CP_THIS_CLASS = 2;
+    private static final int CP_SUPER_CLASS = 4;
+    private static final int CP_INIT_NAME = 5;
+    private static final int CP_INIT_DESCRIPTOR = 6;
+    private static final int CP_SUPER_INIT = 8;
+    private static final int CP_EXECUTE_NAME = 9;
+    private static final int CP_EXECUTE_DESCRIPTOR = 10;
+    private static final int CP_CODE = 11;
+    private static final int CP_COUNT = 12;
+
+    // Local variables of the execute method
+    private static final int RAM = 1, REGISTERS = 2, RAM_SIZE = 3, DIRECT_SIZE = 4, A = 5,
+                             D = 6, OUT = 7, RESULT = 8, X = 9, Y = 10, LAST = 11,
+                             MAX_LOCALS = 12;
+    private static final int MAX_STACK = 6;
+
+    // Opcodes
+    private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, ILOAD = 0x15,
+                             ALOAD = 0x19, ALOAD_0 = 0x2a, SALOAD = 0x35, ISTORE = 0x36,
+                             SASTORE = 0x56, IADD = 0x60, IAND = 0x7e, IXOR = 0x82, I2S = 0x93,
+                             IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d,
+                             IFLE = 0x9e, IF_ICMPGE = 0xa2, GOTO = 0xa7, IRETURN = 0xac,
+                             RETURN = 0xb1, INVOKESPECIAL = 0xb7;
+
+    // The opcodes that skip a jump, by the jump bits (1-6) of the instruction
+    private static final int[] SKIP_JUMP = {0, IFLE, IFNE, IFLT, IFGE, IFEQ, IFGT};
+
+    // The number of blocks compiled so far, for naming their classes
+    private static int blockCount;
+
+    // The code of the execute method being compiled
+    private ByteArrayOutputStream code;
+
+    // The positions of the labels in the code, by label number (-1 if not placed)
+    private int[] labels;
+
+    // The branches that should be patched with label offsets: pairs of the
+    // branch instruction's position and the label number
+    private Vector branches;
+
+    /**
+     * Compiles the block that starts at the given address of the given program
+     * and returns it, or returns null if the instruction at the address can't
+     * start a block.
+     */
+    static CompiledBlock compile(DecodedProgram decoded, short[] program, int start) {
+        int length = 0;
+        int address = start;
+        while (length < MAX_BLOCK_LENGTH && address < Definitions.ROM_SIZE - 1) {
+            int word = decoded.words[address];
+            if (word == DecodedProgram.UNDECODED)
+                word = decoded.decode(address, program[address]);
+            int type = word & DecodedProgram.TYPE_MASK;
+            if (type != DecodedProgram.ADDRESS && type != DecodedProgram.COMPUTE)
+                break;
+            length++;
+            address++;
+            if (type == DecodedProgram.COMPUTE && isJump(word))
+                break;
+        }
+
+        if (length == 0)
+            return null;
+
+        String name;
+        synchronized (BlockCompiler.class) {
+            name = "HackBlock" + start + "_" + (blockCount++);
+        }
+
+        BlockCompiler compiler = new BlockCompiler();
+        byte[] classFile = compiler.writeClass(name, decoded, start, length);
+
+        CompiledBlock block;
+        try {
+            BlockLoader loader = new BlockLoader(BlockCompiler.class.getClassLoader());
+            block = (CompiledBlock)loader.define(name, classFile).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException("Can't load compiled block: " + e);
+        }
+        block.start = start;
+        block.length = length;
+        return block;
+    }
+
+    // Returns true if the compute instruction of the given decoded word jumps
+    // on some alu output.
+    private static boolean isJump(int word) {
+        return (word & (DecodedProgram.JUMP_NEGATIVE | DecodedProgram.JUMP_ZERO |
+                        DecodedProgram.JUMP_POSITIVE)) != 0;
+    }
+
+    // Returns the class file of a block with the given name, which compiles
+    // the given number of instructions starting at the given address.
+    private byte[] writeClass(String name, DecodedProgram decoded, int start, int length) {
+        byte[] executeCode = writeExecute(decoded, start, length);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0); // minor version
+            out.writeShort(49); // major version
+
+            out.writeShort(CP_COUNT);
+            writeUtf8(out, name.replace('.', '/')); // 1
+            writeClassEntry(out, 1); // 2: CP_THIS_CLASS
+            writeUtf8(out, SUPER_CLASS); // 3
+            writeClassEntry(out, 3); // 4: CP_SUPER_CLASS
+            writeUtf8(out, "<init>"); // 5
+            writeUtf8(out, "()V"); // 6
+            out.writeByte(12); // 7: NameAndType
+            out.writeShort(CP_INIT_NAME);
+            out.writeShort(CP_INIT_DESCRIPTOR);
+            out.writeByte(10); // 8: Methodref
+            out.writeShort(CP_SUPER_CLASS);
+            out.writeShort(7);
+            writeUtf8(out, "execute"); // 9
+            writeUtf8(out, "([S[SII)I"); // 10
+            writeUtf8(out, "Code"); // 11
+
+            out.writeShort(0x0031); // public final super
+            out.writeShort(CP_THIS_CLASS);
+            out.writeShort(CP_SUPER_CLASS);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(2); // methods
+            byte[] initCode = {(byte)ALOAD_0, (byte)INVOKESPECIAL, 0, (byte)CP_SUPER_INIT,
+                               (byte)RETURN};
+            writeMethod(out, CP_INIT_NAME, CP_INIT_DESCRIPTOR, 1, 1, initCode);
+            writeMethod(out, CP_EXECUTE_NAME, CP_EXECUTE_DESCRIPTOR, MAX_STACK, MAX_LOCALS,
+                        executeCode);
+
+            out.writeShort(0); // attributes
+            out.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe.getMessage());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    // Writes a CONSTANT_Utf8 entry with the given string.
+    private static void writeUtf8(DataOutputStream out, String s) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(s);
+    }
+
+    // Writes a CONSTANT_Class entry with the given name index.
+    private static void writeClassEntry(DataOutputStream out, int nameIndex)
+     throws IOException {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+    }
+
+    // Writes a public method with the given code.
+    private static void writeMethod(DataOutputStream out, int nameIndex, int descriptorIndex,
+                                    int maxStack, int maxLocals, byte[] code)
+     throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+        out.writeShort(1); // attributes
+        out.writeShort(CP_CODE);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    // Returns the code of the execute method for the given instructions.
+    private byte[] writeExecute(DecodedProgram decoded, int start, int length) {
+        code = new ByteArrayOutputStream();
+        branches = new Vector();
+
+        // Labels: the three exits, then a deoptimization stub and an illegal
+        // jump stub for each instruction.
+        int endLabel = 0, deoptimizeLabel = 1, illegalJumpLabel = 2;
+        labels = new int[3 + 2 * length];
+        Arrays.fill(labels, -1);
+
+        // a = registers[A], d = registers[D], the rest are 0 (last is -1)
+        emit(ALOAD, REGISTERS);
+        emitConstant(CompiledBlock.A);
+        emit(SALOAD);
+        emit(ISTORE, A);
+        emit(ALOAD, REGISTERS);
+        emitConstant(CompiledBlock.D);
+        emit(SALOAD);
+        emit(ISTORE, D);
+        emit(ICONST_0);
+        emit(ISTORE, OUT);
+        emit(ICONST_0);
+        emit(ISTORE, RESULT);
+        emit(ICONST_0);
+        emit(ISTORE, X);
+        emit(ICONST_0);
+        emit(ISTORE, Y);
+        emit(ICONST_M1);
+        emit(ISTORE, LAST);
+
+        boolean[] usesStub = new boolean[2 * length];
+        boolean ended = false;
+        for (int i = 0; i < length; i++) {
+            int pc = start + i;
+            int word = decoded.words[pc];
+            int deoptimizeStub = 3 + 2 * i;
+            int illegalJumpStub = deoptimizeStub + 1;
+
+            if ((word & DecodedProgram.TYPE_MASK) == DecodedProgram.ADDRESS) {
+                emitShort(SIPUSH, (short)(word >> DecodedProgram.VALUE_SHIFT));
+                emit(ISTORE, A);
+                continue;
+            }
+
+            int alu = word >> DecodedProgram.ALU_SHIFT;
+            boolean indirect = (word & DecodedProgram.INDIRECT) != 0;
+
+            // checks that M may be read
+            if (indirect) {
+                emitRangeCheck(RAM_SIZE, deoptimizeStub);
+                usesStub[2 * i] = true;
+            }
+
+            // the inputs of the alu: D and A or M
+            emit(ILOAD, D);
+            emit(ISTORE, X);
+            if (indirect) {
+                emit(ALOAD, RAM);
+                emit(ILOAD, A);
+                emit(SALOAD);
+            }
+            else
+                emit(ILOAD, A);
+            emit(ISTORE, Y);
+            emitShort(SIPUSH, (short)pc);
+            emit(ISTORE, LAST);
+
+            // x: zeroed and negated
+            if ((alu & 0x20) != 0)
+                emit(ICONST_0);
+            else
+                emit(ILOAD, X);
+            if ((alu & 0x10) != 0) {
+                emit(ICONST_M1);
+                emit(IXOR);
+            }
+
+            // y: zeroed and negated
+            if ((alu & 0x08) != 0)
+                emit(ICONST_0);
+            else
+                emit(ILOAD, Y);
+            if ((alu & 0x04) != 0) {
+                emit(ICONST_M1);
+                emit(IXOR);
+            }
+
+            emit((alu & 0x02) != 0 ? IADD : IAND);
+            if ((alu & 0x01) != 0) {
+                emit(ICONST_M1);
+                emit(IXOR);
+            }
+            emit(I2S);
+            emit(ISTORE, OUT);
+
+            if ((word & DecodedProgram.DEST_M) != 0) {
+                emitRangeCheck(DIRECT_SIZE, deoptimizeStub);
+                usesStub[2 * i] = true;
+                emit(ALOAD, RAM);
+                emit(ILOAD, A);
+                emit(ILOAD, OUT);
+                emit(SASTORE);
+            }
+            if ((word & DecodedProgram.DEST_A) != 0) {
+                emit(ILOAD, OUT);
+                emit(ISTORE, A);
+            }
+            if ((word & DecodedProgram.DEST_D) != 0) {
+                emit(ILOAD, OUT);
+                emit(ISTORE, D);
+            }
+
+            if (isJump(word)) {
+                int jump = (word >> 3) & 0x7;
+                int notTakenLabel = -1;
+                if (jump != 7) {
+                    emit(ILOAD, OUT);
+                    notTakenLabel = newLabel();
+                    emitBranch(SKIP_JUMP[jump], notTakenLabel);
+                }
+                emit(ILOAD, A);
+                emitBranch(IFLT, illegalJumpStub);
+                usesStub[2 * i + 1] = true;
+                emit(ILOAD, A);
+                emit(ISTORE, RESULT);
+                emitBranch(GOTO, endLabel);
+                if (notTakenLabel != -1) {
+                    placeLabel(notTakenLabel);
+                    emitShort(SIPUSH, (short)(pc + 1));
+                    emit(ISTORE, RESULT);
+                    emitBranch(GOTO, endLabel);
+                }
+                ended = true;
+            }
+        }
+
+        if (!ended) {
+            emitShort(SIPUSH, (short)(start + length));
+            emit(ISTORE, RESULT);
+            emitBranch(GOTO, endLabel);
+        }
+
+        // the stubs
+        for (int i = 0; i < length; i++) {
+            for (int j = 0; j < 2; j++) {
+                if (usesStub[2 * i + j]) {
+                    placeLabel(3 + 2 * i + j);
+                    emitShort(SIPUSH, (short)(start + i));
+                    emit(ISTORE, RESULT);
+                    emitBranch(GOTO, j == 0 ? deoptimizeLabel : illegalJumpLabel);
+                }
+            }
+        }
+
+        // the exits: store A, D and the exit kind, and return the result
+        emitExit(endLabel, CompiledBlock.END);
+        emitExit(deoptimizeLabel, CompiledBlock.DEOPTIMIZE);
+        emitExit(illegalJumpLabel, CompiledBlock.ILLEGAL_JUMP);
+
+        byte[] bytes = code.toByteArray();
+        for (int i = 0; i < branches.size(); i += 2) {
+            int position = ((Integer)branches.elementAt(i)).intValue();
+            int offset = labels[((Integer)branches.elementAt(i + 1)).intValue()] - position;
+            bytes[position + 1] = (byte)(offset >> 8);
+            bytes[position + 2] = (byte)offset;
+        }
+        return bytes;
+    }
+
+    // Emits a check that A is a legal address, which branches to the given
+    // label if it isn't. The address is legal if it's non-negative and below
+    // the size in the given local variable (the ramSize or directSize parameter).
+    private void emitRangeCheck(int sizeVariable, int label) {
+        emit(ILOAD, A);
+        emitBranch(IFLT, label);
+        emit(ILOAD, A);
+        emit(ILOAD, sizeVariable);
+        emitBranch(IF_ICMPGE, label);
+    }
+
+    // Emits an exit of the execute method, at the given label.
+    private void emitExit(int label, short kind) {
+        placeLabel(label);
+        emitStoreRegister(CompiledBlock.A, A);
+        emitStoreRegister(CompiledBlock.D, D);
+        emit(ALOAD, REGISTERS);
+        emitConstant(CompiledBlock.EXIT);
+        emitConstant(kind);
+        emit(SASTORE);
+        emitStoreRegister(CompiledBlock.ALU_INPUT0, X);
+        emitStoreRegister(CompiledBlock.ALU_INPUT1, Y);
+        emitStoreRegister(CompiledBlock.ALU_OUTPUT, OUT);
+        emitStoreRegister(CompiledBlock.LAST_COMPUTE, LAST);
+        emit(ILOAD, RESULT);
+        emit(IRETURN);
+    }
+
+    // Emits registers[index] = local.
+    private void emitStoreRegister(int index, int local) {
+        emit(ALOAD, REGISTERS);
+        emitConstant(index);
+        emit(ILOAD, local);
+        emit(SASTORE);
+    }
+
+    // Returns a new label number.
+    private int newLabel() {
+        int[] newLabels = new int[labels.length + 1];
+        System.arraycopy(labels, 0, newLabels, 0, labels.length);
+        newLabels[labels.length] = -1;
+        labels = newLabels;
+        return labels.length - 1;
+    }
+
+    // Places the given label at the current position.
+    private void placeLabel(int label) {
+        labels[label] = code.size();
+    }
+
+    // Emits a branch instruction to the given label.
+    private void emitBranch(int opcode, int label) {
+        branches.addElement(new Integer(code.size()));
+        branches.addElement(new Integer(label));
+        code.write(opcode);
+        code.write(0);
+        code.write(0);
+    }
+
+    // Emits an instruction with no operands.
+    private void emit(int opcode) {
+        code.write(opcode);
+    }
+
+    // Emits an instruction with a local variable operand.
+    private void emit(int opcode, int local) {
+        code.write(opcode);
+        code.write(local);
+    }
+
+    // Emits an instruction that pushes the given small constant.
+    private void emitConstant(int value) {
+        if (value >= -1 && value <= 5)
+            emit(ICONST_0 + value);
+        else
+            emit(BIPUSH, value);
+    }
+
+    // Emits an instruction with a 16-bit operand.
+    private void emitShort(int opcode, short value) {
+        code.write(opcode);
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    // A class loader for a single compiled block.
+    static class BlockLoader extends ClassLoader {
+
+        BlockLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
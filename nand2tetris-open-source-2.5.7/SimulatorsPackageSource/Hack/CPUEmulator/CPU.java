@@ -17,6 +17,7 @@
 
 package Hack.CPUEmulator;
 
+import java.util.*;
 import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Utilities.*;
@@ -54,6 +55,35 @@ public class CPU
     // An assembler transltor
     protected HackAssemblerTranslator assemblerTranslator;
 
+    // If true, instructions are executed directly on the register values and
+    // the memory arrays, without going through the bus and the alu.
+    protected boolean fastExecution;
+
+    // The last compute instruction that was executed on the fast path and
+    // its alu values, for updating the alu when leaving the fast path.
+    // lastInstruction is 0 if the alu is up to date.
+    private short lastInstruction, lastInput0, lastInput1, lastOutput;
+
+    // If true, hot blocks of the program are compiled into JVM classes and
+    // executed by the fast path.
+    private boolean compiledExecution;
+
+    // The registers array passed to compiled blocks.
+    private short[] blockRegisters = new short[CompiledBlock.REGISTERS_SIZE];
+
+    // The watched RAM addresses and values (see setWatches()), and the
+    // watched addresses as a map of the RAM. watchedCells is null if there
+    // are no watches.
+    private int[] watchAddresses;
+    private short[] watchValues;
+    private boolean[] watchedCells;
+
+    // The trace and the history of the execution (null if there's none), and
+    // the first of them, which notifies the other
+    private TraceRecorder trace;
+    private ExecutionHistory history;
+    private ExecutionRecorder recorder;
+
     /**
      * Constructs a new cpu with the given ROM, RAM, A, D, PC & ALU.
      */
@@ -128,6 +158,52 @@ public class CPU
         return time;
     }
 
+    /**
+     * Sets whether instructions are executed on the fast path, which skips the
+     * bus, the alu and all gui updates of the registers and memories (except
+     * for the screen). The registers are brought up to date after every call
+     * to executeInstruction() or executeInstructions(), so the fast path may
+     * be used whenever no changes are displayed.
+     */
+    public void setFastExecution(boolean fastExecution) {
+        this.fastExecution = fastExecution;
+        if (!fastExecution && lastInstruction != 0) {
+            alu.setCommand(getExp(lastInstruction),
+                           (lastInstruction & 0x0800) != 0, (lastInstruction & 0x0400) != 0,
+                           (lastInstruction & 0x0200) != 0, (lastInstruction & 0x0100) != 0,
+                           (lastInstruction & 0x0080) != 0, (lastInstruction & 0x0040) != 0);
+            alu.setValueAt(0, lastInput0, true);
+            alu.setValueAt(1, lastInput1, true);
+            alu.setValueAt(2, lastOutput, true);
+            lastInstruction = 0;
+        }
+    }
+
+    /**
+     * Returns true if instructions are executed on the fast path.
+     */
+    public boolean isFastExecution() {
+        return fastExecution;
+    }
+
+    /**
+     * Sets whether the fast path compiles the frequently executed blocks of
+     * the program into JVM classes and runs them instead of interpreting
+     * them. Compiled blocks are dropped when the ROM changes, and give the
+     * control back to the interpreter on errors, on writes outside the
+     * directly accessible memory and when a batch of instructions ends.
+     */
+    public void setCompiledExecution(boolean compiledExecution) {
+        this.compiledExecution = compiledExecution;
+    }
+
+    /**
+     * Returns true if the fast path runs compiled blocks.
+     */
+    public boolean isCompiledExecution() {
+        return compiledExecution;
+    }
+
     /**
      * Restarts the program from the beginning.
      */
@@ -145,6 +221,174 @@ public class CPU
         rom.hideSelect();
         rom.hideHighlight();
         time = 0;
+        lastInstruction = 0;
+        if (history != null)
+            history.clear();
+    }
+
+    /**
+     * Sets the watched RAM cells: executeInstructions() stops after an
+     * instruction that changes whether the cell at addresses[i] equals
+     * values[i]. Null addresses clear the watches.
+     */
+    public void setWatches(int[] addresses, short[] values) {
+        if (addresses == null || addresses.length == 0) {
+            watchAddresses = null;
+            watchValues = null;
+            watchedCells = null;
+        }
+        else {
+            watchAddresses = addresses;
+            watchValues = values;
+            watchedCells = new boolean[M.getSize()];
+            for (int i = 0; i < addresses.length; i++)
+                watchedCells[addresses[i]] = true;
+        }
+    }
+
+    /**
+     * Sets the recorder into which the execution is recorded (null for none).
+     * Compiled blocks are not used while recording.
+     */
+    public void setTraceRecorder(TraceRecorder trace) {
+        this.trace = trace;
+        setRecorders();
+    }
+
+    /**
+     * Sets the history of the execution, from which earlier states are restored
+     * (null for none). Compiled blocks are not used while keeping a history.
+     */
+    public void setHistory(ExecutionHistory history) {
+        this.history = history;
+        setRecorders();
+    }
+
+    /**
+     * Returns the history of the execution, or null if there's none.
+     */
+    public ExecutionHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Goes back the given number of instructions in the history, or to the
+     * first cycle of the history if it has less. Returns the number of
+     * instructions that were undone.
+     */
+    public long stepBack(long count) {
+        long cycle = history.getCycle();
+        long target = Math.max(cycle - count, history.getFirstCycle());
+        if (target < cycle)
+            restore(history.replay(target));
+        return cycle - target;
+    }
+
+    /**
+     * Goes back to the last cycle in the history, before the current one, at
+     * which a variable with one of the given CPUEmulator handles became equal
+     * to the corresponding given value, or to the first cycle of the history
+     * if there's none. Returns true if such a cycle was found.
+     */
+    public boolean runBack(int[] handles, short[] values) {
+        long cycle = history.getCycle();
+        long target = -1;
+
+        // replay the snapshots from the last one, until one has such a cycle
+        for (int i = history.getSnapshotCount() - 1; i >= 0 && target == -1; i--) {
+            long end = (i + 1 < history.getSnapshotCount() ? history.getSnapshotCycle(i + 1) : cycle);
+            Replayer replayer = history.replaySnapshot(i);
+            boolean[] equal = new boolean[handles.length];
+            for (int j = 0; j < handles.length; j++)
+                equal[j] = (replayer.getValue(handles[j]) == values[j]);
+
+            while (replayer.cycle < end && replayer.cycle < cycle - 1) {
+                replayer.step();
+                for (int j = 0; j < handles.length; j++) {
+                    boolean nowEqual = (replayer.getValue(handles[j]) == values[j]);
+                    if (nowEqual && !equal[j])
+                        target = replayer.cycle;
+                    equal[j] = nowEqual;
+                }
+            }
+        }
+
+        boolean found = (target != -1);
+        if (!found)
+            target = history.getFirstCycle();
+        if (target < cycle)
+            restore(history.replay(target));
+        return found;
+    }
+
+    // Starts the recorders, the trace first.
+    private void setRecorders() {
+        if (trace != null) {
+            trace.setNext(history);
+            recorder = trace;
+        }
+        else
+            recorder = history;
+
+        M.setRecorder(recorder);
+        rom.setRecorder(recorder);
+        if (recorder != null)
+            recorder.start(M, rom, PC.get(), A.get(), D.get(), time);
+    }
+
+    // Restores the state of the given replayer, whose cycle becomes the last
+    // one in the history.
+    private void restore(Replayer state) {
+        history.truncate(state);
+        M.setContents(state.ram, 0);
+        if (!Arrays.equals(state.rom, rom.getContents()))
+            rom.setContents(state.rom, 0);
+        A.setValueAt(0, state.a, true);
+        D.setValueAt(0, state.d, true);
+        PC.setValueAt(0, (short)state.pc, true);
+        time = state.time;
+        lastInstruction = 0;
+    }
+
+    /**
+     * Executes the given number of instructions, stopping at the first
+     * ProgramException or after an instruction that changed a watched
+     * cell (see setWatches()). Returns the number of executed instructions.
+     */
+    public long executeInstructions(long count) throws ProgramException {
+        if (fastExecution && recorder == null)
+            return runFast(count);
+
+        // the recorder starts a new chunk between runs
+        if (fastExecution) {
+            long executed = 0;
+            while (executed < count) {
+                long slice = Math.min(count - executed, recorder.getCyclesToKeyframe(time));
+                long sliceExecuted = runFast(slice);
+                executed += sliceExecuted;
+                if (sliceExecuted < slice)
+                    break;
+            }
+            return executed;
+        }
+
+        if (watchedCells == null) {
+            for (long i = 0; i < count; i++)
+                executeInstruction();
+            return count;
+        }
+
+        boolean[] equal = new boolean[watchAddresses.length];
+        for (int i = 0; i < equal.length; i++)
+            equal[i] = (M.getValueAt(watchAddresses[i]) == watchValues[i]);
+
+        for (long i = 0; i < count; i++) {
+            executeInstruction();
+            for (int j = 0; j < equal.length; j++)
+                if ((M.getValueAt(watchAddresses[j]) == watchValues[j]) != equal[j])
+                    return i + 1;
+        }
+        return count;
     }
 
     /**
@@ -154,6 +398,29 @@ public class CPU
 	 * address or jump when A is an illegal address).
      */
     public void executeInstruction() throws ProgramException {
+        if (fastExecution) {
+            runFast(1);
+            return;
+        }
+
+        if (recorder == null) {
+            executeSlowInstruction();
+            return;
+        }
+
+        recorder.sync(PC.get(), A.get(), D.get(), time);
+        try {
+            executeSlowInstruction();
+        } catch (ProgramException pe) {
+            // the partial effects of a failed instruction aren't replayed
+            recorder.contentsChanged();
+            throw pe;
+        }
+        recorder.flush(PC.get(), A.get(), D.get(), time);
+    }
+
+    // Executes the current instruction through the computer parts.
+    private void executeSlowInstruction() throws ProgramException {
         short instruction = rom.getValueAt(PC.get());
         boolean pcChanged = false;
 
@@ -192,10 +459,7 @@ public class CPU
         boolean f = (instruction & 0x0080) > 0;
         boolean no = (instruction & 0x0040) > 0;
 
-        try {
-            alu.setCommand(assemblerTranslator.getExpByCode((short)(instruction & 0xffc0)),
-                           zd, nd, zm, nm, f, no);
-        } catch (AssemblerException ae) {}
+        alu.setCommand(getExp(instruction), zd, nd, zm, nm, f, no);
 
         bus.send(D, 0, alu, 0); // sends D to input0 of the alu
 
@@ -210,6 +474,10 @@ public class CPU
             A.setUpdatePointer(true);
             bus.send(M, address, alu, 1);
             A.setUpdatePointer(false);
+
+            if (recorder != null && address == Definitions.KEYBOARD_ADDRESS &&
+                alu.getValueAt(1) != recorder.keyboard)
+                recorder.readKeyboard(PC.get(), A.get(), D.get(), time, alu.getValueAt(1));
         }
         else
             bus.send(A, 0, alu, 1);
@@ -234,7 +502,11 @@ public class CPU
 										   address +
 										   " is an illegal memory address.");
             A.setUpdatePointer(true);
+            if (recorder != null)
+                recorder.startCpuWrite(address);
 			bus.send(alu, 2, M, address);
+            if (recorder != null)
+                recorder.endCpuWrite(alu.getValueAt(2));
             A.setUpdatePointer(false);
         }
         if (destA)
@@ -270,4 +542,220 @@ public class CPU
 
         return changed;
     }
+
+    // Returns the mnemonic of the exp part of the given compute instruction,
+    // or null if it has none.
+    private String getExp(short instruction) {
+        try {
+            return assemblerTranslator.getExpByCode((short)(instruction & 0xffc0));
+        } catch (AssemblerException ae) {
+            return null;
+        }
+    }
+
+    // Returns true if storing the given value at the given watched address
+    // changes whether the cell equals one of its watched values.
+    private boolean isWatchChange(int address, short oldValue, short newValue) {
+        for (int i = 0; i < watchAddresses.length; i++)
+            if (watchAddresses[i] == address &&
+                (oldValue == watchValues[i]) != (newValue == watchValues[i]))
+                return true;
+
+        return false;
+    }
+
+    // Executes the given number of instructions with A, D and PC kept in
+    // local variables and the RAM accessed as an array. The instructions are
+    // taken from the ROM's decoded program, and decoded on first use.
+    // With compiled execution, each jump target (and the first instruction)
+    // is a block entry, at which a compiled block is run if it exists and
+    // fits in the remaining count.
+    // Compiled blocks don't check watches, so while there are watches they
+    // leave every write to M to the interpreter. The same goes while the RAM
+    // has a write channel, into which the interpreter publishes its direct
+    // writes.
+    // The results are the same as those of executeInstruction() on the slow
+    // path, including the state left behind when a ProgramException is thrown.
+    // Returns the number of executed instructions.
+    private long runFast(long count) throws ProgramException {
+        short[] program = rom.getContents();
+        DecodedProgram decoded = rom.getDecodedProgram();
+        int[] words = decoded.words;
+        short[] ram = M.getContents();
+        int ramSize = M.getSize();
+        int directSize = M.getDirectAccessSize();
+        short[] registers = blockRegisters;
+        boolean[] watched = watchedCells;
+        MemoryWriteChannel channel = M.getWriteChannel();
+        int blockDirectSize = (watched != null || channel != null ? 0 : directSize);
+        boolean watchChanged = false;
+        ExecutionRecorder recorder = this.recorder;
+        long i = 0;
+
+        short a = A.get();
+        short d = D.get();
+        int pc = PC.get();
+        int computeAddress = -1;
+        short computeInput0 = 0;
+        short computeInput1 = 0;
+        short computeOutput = 0;
+        boolean compiled = (compiledExecution && recorder == null);
+        boolean atEntry = compiled;
+
+        // while recording, the program's writes to the keyboard go through
+        // the RAM, so the recorder knows the keyboard value
+        if (recorder != null) {
+            directSize = Math.min(directSize, Definitions.KEYBOARD_ADDRESS);
+            recorder.sync(pc, a, d, time);
+        }
+
+        try {
+            while (i < count) {
+                if (atEntry) {
+                    atEntry = false;
+                    CompiledBlock block = decoded.enterBlock(pc, program);
+                    if (block != null && count - i >= block.length) {
+                        registers[CompiledBlock.A] = a;
+                        registers[CompiledBlock.D] = d;
+                        int next = block.execute(ram, registers, ramSize, blockDirectSize);
+                        a = registers[CompiledBlock.A];
+                        d = registers[CompiledBlock.D];
+                        if (registers[CompiledBlock.LAST_COMPUTE] != -1) {
+                            computeAddress = registers[CompiledBlock.LAST_COMPUTE];
+                            computeInput0 = registers[CompiledBlock.ALU_INPUT0];
+                            computeInput1 = registers[CompiledBlock.ALU_INPUT1];
+                            computeOutput = registers[CompiledBlock.ALU_OUTPUT];
+                        }
+
+                        short exit = registers[CompiledBlock.EXIT];
+                        int executed = (exit == CompiledBlock.END ? block.length
+                                                                  : next - block.start);
+                        i += executed;
+                        time += executed;
+                        pc = next;
+
+                        if (exit == CompiledBlock.ILLEGAL_JUMP)
+                            throw new ProgramException("At line " + pc +
+                                                       ": Jump requested but A=" + a +
+                                                       " is an illegal program address.");
+
+                        // after a deoptimization, the instruction at pc is
+                        // interpreted and the next one is an entry again
+                        atEntry = true;
+                        if (exit == CompiledBlock.END)
+                            continue;
+                    }
+                }
+
+                int word = words[pc];
+                if (word == DecodedProgram.UNDECODED)
+                    word = decoded.decode(pc, program[pc]);
+
+                switch (word & DecodedProgram.TYPE_MASK) {
+                    case DecodedProgram.ADDRESS:
+                        a = (short)(word >> DecodedProgram.VALUE_SHIFT);
+                        pc++;
+                        break;
+
+                    case DecodedProgram.COMPUTE:
+                        short input1;
+                        if ((word & DecodedProgram.INDIRECT) != 0) {
+                            if (a < 0 || a >= ramSize)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Expression involves M but A=" +
+                                                           a +
+                                                           " is an illegal memory address.");
+                            input1 = ram[a];
+                            if (a == Definitions.KEYBOARD_ADDRESS && recorder != null &&
+                                input1 != recorder.keyboard)
+                                recorder.readKeyboard(pc, a, d, time, input1);
+                        }
+                        else
+                            input1 = a;
+
+                        short out = DecodedProgram.computeALU(word, d, input1);
+                        computeAddress = pc;
+                        computeInput0 = d;
+                        computeInput1 = input1;
+                        computeOutput = out;
+
+                        if ((word & DecodedProgram.DEST_M) != 0) {
+                            if (a < 0 || a >= ramSize)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Destination is M but A=" +
+                                                           a +
+                                                           " is an illegal memory address.");
+                            if (watched != null && watched[a])
+                                watchChanged = isWatchChange(a, ram[a], out);
+                            if (a < directSize) {
+                                ram[a] = out;
+                                if (channel != null)
+                                    channel.write(a, out);
+                            }
+                            else if (recorder == null)
+                                M.setValueAt(a, out, true);
+                            else {
+                                recorder.startCpuWrite(a);
+                                M.setValueAt(a, out, true);
+                                recorder.endCpuWrite(out);
+                            }
+                        }
+                        if ((word & DecodedProgram.DEST_A) != 0)
+                            a = out;
+                        if ((word & DecodedProgram.DEST_D) != 0)
+                            d = out;
+
+                        if (DecodedProgram.isJump(word, out)) {
+                            if (a < 0 || a >= Definitions.ROM_SIZE)
+                                throw new ProgramException("At line " + pc +
+                                                           ": Jump requested but A=" + a +
+                                                           " is an illegal program address.");
+                            pc = a;
+                            atEntry = compiled;
+                        }
+                        else
+                            pc++;
+                        break;
+
+                    case DecodedProgram.NOP:
+                        pc++;
+                        break;
+
+                    default:
+                        throw new ProgramException("At line " + pc +
+                                                   ": Illegal instruction");
+                }
+
+                if (pc >= Definitions.ROM_SIZE) {
+                    pc--;
+                    throw new ProgramException("At line " + pc +
+                                               ": Can't continue past last line");
+                }
+
+                time++;
+                i++;
+                if (watchChanged)
+                    break;
+            }
+        } catch (ProgramException pe) {
+            // the partial effects of a failed instruction aren't replayed
+            if (recorder != null)
+                recorder.contentsChanged();
+            throw pe;
+        } finally {
+            A.setValueAt(0, a, true);
+            D.setValueAt(0, d, true);
+            PC.setValueAt(0, (short)pc, true);
+            if (recorder != null)
+                recorder.flush(pc, a, d, time);
+            if (computeAddress != -1) {
+                lastInstruction = program[computeAddress];
+                lastInput0 = computeInput0;
+                lastInput1 = computeInput1;
+                lastOutput = computeOutput;
+            }
+        }
+
+        return i;
+    }
 }
@@ -17,6 +17,8 @@
 
 package Hack.CPUEmulator;
 
+import java.awt.event.*;
+import javax.swing.Timer;
 import Hack.Controller.*;
 import Hack.ComputerParts.*;
 import Hack.Events.*;
@@ -36,8 +38,10 @@ import Hack.Utilities.*;
  * Recognizes the following commands:
  * load <HACK file name> - loads the given file into the ROM
  * TickTock - advances the clock by one time unit (executes one instruction)
+ * history <megabytes> - keeps a history of the given size, for stepping back (0 for none)
  */
-public class CPUEmulator extends HackSimulator implements ComputerPartErrorEventListener {
+public class CPUEmulator extends HackSimulator
+ implements ComputerPartErrorEventListener, StepSimulator, ReverseSimulator, LiveSimulator {
 
 
     // Variables
@@ -48,10 +52,24 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     private static final String VAR_ROM = "ROM";
     private static final String VAR_TIME = "time";
 
+    // Variable handles: the registers, and the RAM and ROM bases to which the
+    // address is added
+    static final int HANDLE_A = 0;
+    static final int HANDLE_D = 1;
+    static final int HANDLE_PC = 2;
+    static final int HANDLE_RAM = 0x10000;
+    static final int HANDLE_ROM = 0x20000;
+
     // Commands
     private static final String COMMAND_TICKTOCK = "ticktock";
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
+    private static final String COMMAND_HISTORY = "history";
+
+    // The number of RAM writes that are kept between displays in a live run,
+    // and the interval in miliseconds between the displays
+    private static final int LIVE_WRITES_CAPACITY = 1 << 16;
+    private static final int LIVE_DISPLAY_INTERVAL = 50;
 
     // The simulating cpu
     private CPU cpu;
@@ -68,6 +86,10 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
     // The current animation mode
     private int animationMode;
 
+    // The channel of the RAM writes in a live run, and the timer that displays them
+    private MemoryWriteChannel liveWrites;
+    private Timer liveDisplayTimer;
+
     /**
      * Constructs a new CPU Emulator with no GUI component.
      */
@@ -97,6 +119,7 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         bus.reset();
 
         cpu = new CPU(ram, rom, A, D, PC, alu, bus);
+        cpu.setFastExecution(true);
 
         init();
     }
@@ -139,6 +162,9 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
 
         cpu = new CPU(ram, rom, A, D, PC, alu, bus);
 
+        liveWrites = new MemoryWriteChannel(Definitions.RAM_SIZE, LIVE_WRITES_CAPACITY);
+        liveDisplayTimer = new Timer(LIVE_DISPLAY_INTERVAL, new LiveDisplayListener());
+
         init();
     }
 
@@ -176,6 +202,74 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             throw new VariableException("Unknown variable", varName);
     }
 
+    public int getVariableHandle(String varName) {
+        try {
+            if (varName.equals(VAR_A))
+                return HANDLE_A;
+            else if (varName.equals(VAR_D))
+                return HANDLE_D;
+            else if (varName.equals(VAR_PC))
+                return HANDLE_PC;
+            else if (varName.startsWith(VAR_RAM + "["))
+                return HANDLE_RAM + getRamIndex(varName);
+            else if (varName.startsWith(VAR_ROM + "["))
+                return HANDLE_ROM + getRomIndex(varName);
+        } catch (VariableException ve) {
+        } catch (NumberFormatException nfe) {
+        }
+
+        // time doesn't fit in a short, and illegal names are reported by getValue()
+        return -1;
+    }
+
+    public short getValue(int handle) {
+        switch (handle) {
+            case HANDLE_A:
+                return cpu.getA().get();
+            case HANDLE_D:
+                return cpu.getD().get();
+            case HANDLE_PC:
+                return cpu.getPC().get();
+            default:
+                if (handle >= HANDLE_ROM)
+                    return cpu.getROM().getValueAt(handle - HANDLE_ROM);
+                else
+                    return cpu.getRAM().getValueAt(handle - HANDLE_RAM);
+        }
+    }
+
+    /**
+     * RAM and ROM cells are watchable: the program never writes to the ROM, and
+     * the cpu reports the RAM writes. The keyboard's cell isn't, since it's
+     * written by the keyboard from the gui's thread and not by the cpu.
+     */
+    public boolean isWatchable(int handle) {
+        return (handle >= HANDLE_RAM &&
+                handle != HANDLE_RAM + Definitions.KEYBOARD_ADDRESS);
+    }
+
+    public void setWatches(int[] handles, short[] values) {
+        int count = 0;
+        if (handles != null)
+            for (int i = 0; i < handles.length; i++)
+                if (handles[i] >= HANDLE_RAM && handles[i] < HANDLE_ROM)
+                    count++;
+
+        if (count == 0)
+            cpu.setWatches(null, null);
+        else {
+            int[] addresses = new int[count];
+            short[] watchValues = new short[count];
+            count = 0;
+            for (int i = 0; i < handles.length; i++)
+                if (handles[i] >= HANDLE_RAM && handles[i] < HANDLE_ROM) {
+                    addresses[count] = handles[i] - HANDLE_RAM;
+                    watchValues[count++] = values[i];
+                }
+            cpu.setWatches(addresses, watchValues);
+        }
+    }
+
     /**
      * Sets the given variable with the given value.
      * Throws VariableException if the variable name or value are not legal.
@@ -260,10 +354,38 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             cpu.initProgram();
             setAnimationMode(oldAnimationMode);
         }
+        else if (command[0].equals(COMMAND_HISTORY)) {
+            if (command.length != 2)
+                throw new CommandException("Illegal number of arguments to command", command);
+
+            // the history's memory budget in megabytes, 0 for no history
+            int budget = -1;
+            try {
+                budget = Integer.parseInt(command[1]);
+            } catch (NumberFormatException nfe) {
+            }
+            if (budget < 0)
+                throw new CommandException("Illegal history size", command);
+
+            setHistorySize(budget);
+        }
         else
             throw new CommandException("Unknown simulator command", command);
     }
 
+    public boolean isStepCommand(String[] command) {
+        return (command.length == 1 && command[0].equals(COMMAND_TICKTOCK));
+    }
+
+    public long doSteps(String[][] commands, int first, long count)
+     throws ProgramException, CommandException, VariableException {
+        // all step commands are ticktock, which executes one instruction
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlightes();
+
+        return cpu.executeInstructions(count);
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -330,6 +452,65 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
         cpu.getD().setDisplayChanges(displayChanges);
         cpu.getPC().setDisplayChanges(displayChanges);
         cpu.getALU().setDisplayChanges(displayChanges);
+
+        // nothing to display, so the cpu may skip the bus, the alu and the
+        // gui updates
+        cpu.setFastExecution(gui == null || !displayChanges);
+    }
+
+    /**
+     * Sets whether frequently executed blocks of the program are compiled
+     * into JVM classes. Only used while the cpu is on its fast path.
+     */
+    public void setCompiledExecution(boolean value) {
+        cpu.setCompiledExecution(value);
+    }
+
+    /**
+     * Sets the recorder into which the executed instructions are recorded
+     * (null for none).
+     */
+    public void setTraceRecorder(TraceRecorder trace) {
+        cpu.setTraceRecorder(trace);
+    }
+
+    /**
+     * Sets the memory budget, in megabytes, of the history of the execution
+     * that is kept for stepping back, or 0 to keep no history (the default).
+     * Compiled blocks are not run while a history is kept.
+     */
+    public void setHistorySize(int megabytes) {
+        cpu.setHistory(megabytes == 0 ? null : new ExecutionHistory((long)megabytes << 20));
+    }
+
+    public boolean hasHistory() {
+        return (cpu.getHistory() != null);
+    }
+
+    public long stepBack(long count) {
+        return cpu.stepBack(count);
+    }
+
+    public boolean runBack(int[] handles, short[] values) {
+        return cpu.runBack(handles, values);
+    }
+
+    /**
+     * Sets whether the RAM's gui displays the RAM writes while no changes are
+     * displayed. The screen's gui always displays them.
+     */
+    public void setLiveDisplay(boolean liveDisplay) {
+        if (gui == null)
+            return;
+
+        if (liveDisplay) {
+            cpu.getRAM().setWriteChannel(liveWrites);
+            liveDisplayTimer.start();
+        }
+        else {
+            liveDisplayTimer.stop();
+            cpu.getRAM().setWriteChannel(null);
+        }
     }
 
     public void setNumericFormat(int formatCode) {
@@ -460,4 +641,11 @@ public class CPUEmulator extends HackSimulator implements ComputerPartErrorEvent
             throw new VariableException(value +
                 " is an illegal value for", varName);
     }
+
+    // Displays the RAM writes of a live run in the RAM's gui
+    class LiveDisplayListener implements ActionListener {
+        public void actionPerformed(ActionEvent e) {
+            cpu.getRAM().displayChannelWrites();
+        }
+    }
 }
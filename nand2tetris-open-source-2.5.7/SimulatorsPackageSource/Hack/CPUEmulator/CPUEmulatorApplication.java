@@ -32,7 +32,29 @@ public class CPUEmulatorApplication extends HackApplication {
     public CPUEmulatorApplication(ControllerGUI controllerComponent,
                                   CPUEmulatorGUI simulatorComponent, String defaultScript,
                                   String contentsFileName, String aboutFileName) {
-        super(new CPUEmulator(simulatorComponent), controllerComponent, simulatorComponent,
-              defaultScript, contentsFileName, aboutFileName);
+        this(controllerComponent, simulatorComponent, defaultScript, contentsFileName,
+             aboutFileName, 0);
+    }
+
+    /**
+     * Constructs a new CPUEmulatorApplication with the given controller GUI
+     * component, the simulator GUI component, the default script name, the names of
+     * the help files and the size in megabytes of the execution history that is
+     * kept for stepping back (0 for none).
+     */
+    public CPUEmulatorApplication(ControllerGUI controllerComponent,
+                                  CPUEmulatorGUI simulatorComponent, String defaultScript,
+                                  String contentsFileName, String aboutFileName,
+                                  int historySize) {
+        super(createEmulator(simulatorComponent, historySize), controllerComponent,
+              simulatorComponent, defaultScript, contentsFileName, aboutFileName);
+    }
+
+    // Creates the emulator of the given gui, which keeps a history of the given size.
+    private static CPUEmulator createEmulator(CPUEmulatorGUI simulatorComponent,
+                                              int historySize) {
+        CPUEmulator emulator = new CPUEmulator(simulatorComponent);
+        emulator.setHistorySize(historySize);
+        return emulator;
     }
 }
@@ -0,0 +1,69 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+/**
+ * A basic block of Hack machine code that was compiled into a JVM class by
+ * the BlockCompiler. Public only so that the generated classes, which are
+ * defined by their own class loaders, can extend it.
+ */
+public abstract class CompiledBlock {
+
+    /**
+     * The block ran to its end. The returned value is the next pc.
+     */
+    public static final short END = 0;
+
+    /**
+     * The block stopped before the instruction at the returned pc, which
+     * should be executed by the interpreter (it may throw an error or write
+     * to a memory area that is not directly accessible).
+     */
+    public static final short DEOPTIMIZE = 1;
+
+    /**
+     * The jump instruction at the returned pc requested a jump to an
+     * illegal address. All the effects of the instruction except for the
+     * jump itself were done.
+     */
+    public static final short ILLEGAL_JUMP = 2;
+
+    /**
+     * Indices in the registers array: A, D, the exit kind (one of the
+     * constants above), the inputs and output of the alu in the last
+     * compute instruction that was executed and that instruction's address
+     * (-1 if there was none).
+     */
+    public static final int A = 0, D = 1, EXIT = 2, ALU_INPUT0 = 3, ALU_INPUT1 = 4,
+                            ALU_OUTPUT = 5, LAST_COMPUTE = 6, REGISTERS_SIZE = 7;
+
+    // The ROM address of the first instruction of the block.
+    int start;
+
+    // The number of instructions in the block.
+    int length;
+
+    /**
+     * Executes the block on the given RAM contents. registers holds A and D
+     * on entry, and is filled as described above on return.
+     * Addresses below ramSize may be read from ram, and addresses below
+     * directSize may be written into it directly.
+     * Returns the pc at which the execution stopped.
+     */
+    public abstract int execute(short[] ram, short[] registers, int ramSize, int directSize);
+}
@@ -0,0 +1,236 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Assembler.*;
+
+/**
+ * The instructions of a ROM, decoded into words that the cpu can execute
+ * with a single array access and a switch on the instruction type.
+ * Each address is decoded the first time it is executed, and decoded again
+ * after it was invalidated.
+ *
+ * A decoded word holds the type in its low 3 bits. For an A-instruction,
+ * the value of A is in the high 16 bits. For a compute instruction, the
+ * jump, destination, alu and A/M fields of the instruction are shifted
+ * left by 3 bits, and can be tested with the constants below.
+ */
+class DecodedProgram {
+
+    /**
+     * The instruction at the address was not decoded yet.
+     */
+    static final int UNDECODED = 0;
+
+    /**
+     * An A-instruction.
+     */
+    static final int ADDRESS = 1;
+
+    /**
+     * A compute instruction.
+     */
+    static final int COMPUTE = 2;
+
+    /**
+     * The NOP instruction.
+     */
+    static final int NOP = 3;
+
+    /**
+     * An illegal instruction.
+     */
+    static final int ILLEGAL = 4;
+
+    /**
+     * The mask of the type bits.
+     */
+    static final int TYPE_MASK = 0x7;
+
+    /**
+     * Jump bits
+     */
+    static final int JUMP_POSITIVE = 0x8, JUMP_ZERO = 0x10, JUMP_NEGATIVE = 0x20;
+
+    /**
+     * Destination bits
+     */
+    static final int DEST_M = 0x40, DEST_D = 0x80, DEST_A = 0x100;
+
+    /**
+     * The shift of the 6 alu control bits (zx nx zy ny f no).
+     */
+    static final int ALU_SHIFT = 9;
+
+    /**
+     * Set if the second input of the alu is M rather than A.
+     */
+    static final int INDIRECT = 0x8000;
+
+    /**
+     * The shift of the value of an A-instruction.
+     */
+    static final int VALUE_SHIFT = 16;
+
+    /**
+     * The number of times a block entry is executed by the interpreter
+     * before the block is compiled.
+     */
+    static final int COMPILE_THRESHOLD = 1000;
+
+    // The decoded words, by address.
+    int[] words;
+
+    // The compiled blocks by their start address, and the number of times
+    // each address was entered as a block by the interpreter (-1 if no block
+    // can be compiled there). Allocated when the first block is entered.
+    private CompiledBlock[] blocks;
+    private int[] entryCounts;
+
+    // The number of compiled blocks.
+    private int blockCount;
+
+    /**
+     * Constructs a new DecodedProgram for a ROM of the given size, with all
+     * addresses undecoded.
+     */
+    DecodedProgram(int size) {
+        words = new int[size];
+    }
+
+    /**
+     * Marks the instruction at the given address as undecoded.
+     */
+    void invalidate(int address) {
+        words[address] = UNDECODED;
+
+        if (blocks != null) {
+            entryCounts[address] = 0;
+            if (blockCount > 0) {
+                // drops the compiled blocks that contain the address
+                int first = Math.max(0, address - BlockCompiler.MAX_BLOCK_LENGTH + 1);
+                for (int i = first; i <= address; i++) {
+                    CompiledBlock block = blocks[i];
+                    if (block != null && i + block.length > address) {
+                        blocks[i] = null;
+                        blockCount--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks all the instructions as undecoded.
+     */
+    void invalidateAll() {
+        for (int i = 0; i < words.length; i++)
+            words[i] = UNDECODED;
+
+        blocks = null;
+        entryCounts = null;
+        blockCount = 0;
+    }
+
+    /**
+     * Called when the interpreter enters a block at the given address of the
+     * given program. Returns the compiled block at the address, compiling it
+     * if it was entered often enough, or null if there is no such block yet.
+     */
+    CompiledBlock enterBlock(int address, short[] program) {
+        if (blocks == null) {
+            blocks = new CompiledBlock[words.length];
+            entryCounts = new int[words.length];
+        }
+
+        CompiledBlock block = blocks[address];
+        if (block == null) {
+            int count = entryCounts[address];
+            if (count >= 0) {
+                if (count < COMPILE_THRESHOLD)
+                    entryCounts[address] = count + 1;
+                else {
+                    block = BlockCompiler.compile(this, program, address);
+                    if (block != null) {
+                        blocks[address] = block;
+                        blockCount++;
+                    }
+                    else
+                        entryCounts[address] = -1;
+                }
+            }
+        }
+
+        return block;
+    }
+
+    /**
+     * Decodes the given instruction, which is stored at the given address,
+     * and returns its decoded word.
+     */
+    int decode(int address, short instruction) {
+        int word = decodeWord(instruction);
+        words[address] = word;
+        return word;
+    }
+
+    /**
+     * Returns the decoded word of the given instruction.
+     */
+    static int decodeWord(short instruction) {
+        if ((instruction & 0x8000) == 0)
+            return ADDRESS | (instruction << VALUE_SHIFT);
+        else if ((instruction & 0xe000) == 0xe000)
+            return COMPUTE | ((instruction & 0x1fff) << 3);
+        else if (instruction == HackAssemblerTranslator.NOP)
+            return NOP;
+        else
+            return ILLEGAL;
+    }
+
+    /**
+     * Returns true if the compute instruction of the given decoded word jumps
+     * when the alu output is the given value.
+     */
+    static boolean isJump(int word, short out) {
+        if (out < 0)
+            return (word & JUMP_NEGATIVE) != 0;
+        else if (out == 0)
+            return (word & JUMP_ZERO) != 0;
+        else
+            return (word & JUMP_POSITIVE) != 0;
+    }
+
+    /**
+     * Computes the alu function of the given decoded word on the given inputs:
+     * x is D and y is A or M. Each control bit is turned into a mask, so that
+     * the result is computed without branches.
+     */
+    static short computeALU(int word, short x, short y) {
+        int zx = ((word >> (ALU_SHIFT + 5)) & 1) - 1;
+        int nx = -((word >> (ALU_SHIFT + 4)) & 1);
+        int zy = ((word >> (ALU_SHIFT + 3)) & 1) - 1;
+        int ny = -((word >> (ALU_SHIFT + 2)) & 1);
+        int f = -((word >> (ALU_SHIFT + 1)) & 1);
+        int no = -((word >> ALU_SHIFT) & 1);
+
+        x = (short)((x & zx) ^ nx);
+        y = (short)((y & zy) ^ ny);
+        return (short)((((x + y) & f) | (x & y & ~f)) ^ no);
+    }
+}
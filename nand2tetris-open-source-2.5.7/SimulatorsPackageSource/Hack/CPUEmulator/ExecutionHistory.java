@@ -0,0 +1,326 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.nio.*;
+import java.util.*;
+import Hack.Utilities.*;
+
+/**
+ * Keeps the recent execution of a CPU in memory, so that the CPU can go back to
+ * earlier cycles (see CPU.stepBack() and CPU.runBack()).
+ * The execution is recorded as in a trace (see ExecutionRecorder), but each
+ * chunk starts with a snapshot whose RAM and ROM are kept in pages: a page that
+ * didn't change since the previous snapshot is shared with it, so a snapshot
+ * only costs the pages that the program wrote. The oldest snapshots are evicted
+ * when the history exceeds its memory budget.
+ * Cycles are counted from the beginning of the history: cycle n is the state
+ * after n instructions were executed. Going back truncates the history, so the
+ * current cycle is always the last one.
+ */
+public class ExecutionHistory extends ExecutionRecorder {
+
+    /**
+     * The default memory budget, in bytes.
+     */
+    public static final int DEFAULT_BUDGET = 32 << 20;
+
+    /**
+     * The maximal number of cycles between snapshots.
+     */
+    public static final int SNAPSHOT_INTERVAL = 1 << 16;
+
+    /**
+     * The number of words in a page.
+     */
+    public static final int PAGE_SIZE = 256;
+
+    // The size of the records buffer of a snapshot
+    private static final int LOG_SIZE = 1 << 14;
+
+    // A snapshot: the first cycle, its time and registers, the RAM and ROM pages
+    // and the records of the cycles after it (null while they are recorded
+    // into the buffer)
+    private static class Snapshot {
+        long cycle, time;
+        int pc;
+        short a, d;
+        short[][] ramPages, romPages;
+        int ramSize, romSize;
+        byte[] log;
+        int cycles;
+    }
+
+    // The memory budget and the memory used by the snapshots, in bytes
+    private long budget, size;
+
+    // The snapshots, from the oldest
+    private Vector snapshots = new Vector();
+
+    // The last snapshot, while its cycles are recorded (null otherwise)
+    private Snapshot current;
+
+    /**
+     * Constructs a new ExecutionHistory with the default memory budget.
+     */
+    public ExecutionHistory() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Constructs a new ExecutionHistory with the given memory budget, in bytes.
+     * At least the last snapshot is kept, whatever its size.
+     */
+    public ExecutionHistory(long budget) {
+        super(LOG_SIZE, SNAPSHOT_INTERVAL);
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the first cycle that can be restored.
+     */
+    public long getFirstCycle() {
+        if (snapshots.isEmpty())
+            return startCycle + cycles;
+        return ((Snapshot)snapshots.firstElement()).cycle;
+    }
+
+    /**
+     * Returns the current (last) cycle.
+     */
+    public long getCycle() {
+        return startCycle + cycles;
+    }
+
+    /**
+     * Returns the number of snapshots in the history.
+     */
+    int getSnapshotCount() {
+        return snapshots.size();
+    }
+
+    /**
+     * Returns the first cycle of the snapshot at the given index.
+     */
+    long getSnapshotCycle(int index) {
+        return ((Snapshot)snapshots.elementAt(index)).cycle;
+    }
+
+    /**
+     * Returns a replayer at the first cycle of the snapshot at the given index.
+     */
+    Replayer replaySnapshot(int index) {
+        Snapshot snapshot = (Snapshot)snapshots.elementAt(index);
+        Replayer replayer = new Replayer();
+        replayer.ram = joinPages(snapshot.ramPages, snapshot.ramSize);
+        replayer.rom = joinPages(snapshot.romPages, snapshot.romSize);
+        if (snapshot == current)
+            replayer.start(snapshot.cycle, snapshot.time, snapshot.pc, snapshot.a, snapshot.d,
+                           ByteBuffer.wrap(buffer), 0, length);
+        else
+            replayer.start(snapshot.cycle, snapshot.time, snapshot.pc, snapshot.a, snapshot.d,
+                           ByteBuffer.wrap(snapshot.log), 0, snapshot.log.length);
+        return replayer;
+    }
+
+    /**
+     * Returns a replayer at the given cycle, which is between the first and
+     * the current cycles.
+     */
+    Replayer replay(long cycle) {
+        Replayer replayer = replaySnapshot(getSnapshotIndex(cycle));
+        while (replayer.cycle < cycle)
+            replayer.step();
+        return replayer;
+    }
+
+    /**
+     * Drops the cycles after the given replayer's cycle, which becomes the
+     * current cycle. The next chunk starts with a new snapshot.
+     */
+    void truncate(Replayer replayer) {
+        int index = getSnapshotIndex(replayer.cycle);
+        while (snapshots.size() > index + 1)
+            removeLastSnapshot();
+
+        Snapshot snapshot = (Snapshot)snapshots.lastElement();
+        if (snapshot.cycle == replayer.cycle)
+            removeLastSnapshot();
+        else {
+            byte[] log = new byte[replayer.getRecordPosition()];
+            if (snapshot == current)
+                System.arraycopy(buffer, 0, log, 0, log.length);
+            else {
+                System.arraycopy(snapshot.log, 0, log, 0, log.length);
+                size -= snapshot.log.length;
+            }
+            snapshot.log = log;
+            snapshot.cycles = (int)(replayer.cycle - snapshot.cycle);
+            size += log.length;
+        }
+
+        current = null;
+        length = 0;
+        dropChunk(replayer.cycle);
+    }
+
+    /**
+     * Drops all the cycles. The next chunk starts at cycle 0.
+     */
+    void clear() {
+        snapshots.removeAllElements();
+        size = 0;
+        current = null;
+        length = 0;
+        dropChunk(0);
+    }
+
+    void endChunk() {
+        if (current != null) {
+            current.log = new byte[length];
+            System.arraycopy(buffer, 0, current.log, 0, length);
+            current.cycles = cycles;
+            size += length;
+            current = null;
+        }
+    }
+
+    void startChunk(int pc, short a, short d, long time) {
+        Snapshot previous = (snapshots.isEmpty() ? null : (Snapshot)snapshots.lastElement());
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.cycle = startCycle;
+        snapshot.time = time;
+        snapshot.pc = pc;
+        snapshot.a = a;
+        snapshot.d = d;
+        short[] contents = ram.getContents();
+        snapshot.ramSize = contents.length;
+        snapshot.ramPages = splitPages(contents, previous != null ? previous.ramPages : null);
+        setKeyboard(snapshot.ramPages, previous != null ? previous.ramPages : null);
+        contents = rom.getContents();
+        snapshot.romSize = contents.length;
+        snapshot.romPages = splitPages(contents, previous != null ? previous.romPages : null);
+
+        snapshots.addElement(snapshot);
+        current = snapshot;
+
+        // evict the oldest snapshots, whose pages that aren't shared with the
+        // next snapshot are freed
+        while (size > budget && snapshots.size() > 1) {
+            Snapshot oldest = (Snapshot)snapshots.firstElement();
+            Snapshot next = (Snapshot)snapshots.elementAt(1);
+            size -= getOwnSize(oldest.ramPages, next.ramPages) +
+                    getOwnSize(oldest.romPages, next.romPages) + oldest.log.length;
+            snapshots.removeElementAt(0);
+        }
+    }
+
+    void flushChunk() {
+        if (current != null)
+            current.cycles = cycles;
+    }
+
+    // Returns the index of the snapshot from which the given cycle is replayed.
+    // A cycle at which a snapshot starts is replayed from the previous one, so
+    // it's the state right after the cycle's instruction, before the changes
+    // that were made outside of the program.
+    private int getSnapshotIndex(long cycle) {
+        int index = snapshots.size() - 1;
+        while (index > 0 && ((Snapshot)snapshots.elementAt(index)).cycle >= cycle)
+            index--;
+        return index;
+    }
+
+    // Removes the last snapshot, and frees its pages that aren't shared with
+    // the previous snapshot.
+    private void removeLastSnapshot() {
+        Snapshot last = (Snapshot)snapshots.lastElement();
+        snapshots.removeElementAt(snapshots.size() - 1);
+        Snapshot previous = (snapshots.isEmpty() ? null : (Snapshot)snapshots.lastElement());
+        size -= getOwnSize(last.ramPages, previous != null ? previous.ramPages : null) +
+                getOwnSize(last.romPages, previous != null ? previous.romPages : null);
+        if (last.log != null)
+            size -= last.log.length;
+        if (last == current)
+            current = null;
+    }
+
+    // Returns the size in bytes of the given pages that aren't in the given
+    // other pages (which may be null).
+    private static long getOwnSize(short[][] pages, short[][] otherPages) {
+        long size = 0;
+        for (int i = 0; i < pages.length; i++)
+            if (otherPages == null || i >= otherPages.length || pages[i] != otherPages[i])
+                size += pages[i].length * 2;
+        return size;
+    }
+
+    // Splits the given memory into pages. Pages that equal the pages at the
+    // same indices in the given previous pages (which may be null) are shared.
+    private short[][] splitPages(short[] contents, short[][] previousPages) {
+        short[][] pages = new short[(contents.length + PAGE_SIZE - 1) / PAGE_SIZE][];
+        for (int i = 0; i < pages.length; i++) {
+            int start = i * PAGE_SIZE;
+            int pageSize = Math.min(PAGE_SIZE, contents.length - start);
+            if (previousPages != null && i < previousPages.length &&
+                previousPages[i].length == pageSize) {
+                short[] page = previousPages[i];
+                int j = 0;
+                while (j < pageSize && page[j] == contents[start + j])
+                    j++;
+                if (j == pageSize) {
+                    pages[i] = page;
+                    continue;
+                }
+            }
+
+            pages[i] = new short[pageSize];
+            System.arraycopy(contents, start, pages[i], 0, pageSize);
+            size += pageSize * 2;
+        }
+        return pages;
+    }
+
+    // Sets the keyboard value in the given RAM pages to the keyboard field,
+    // copying its page if it's shared with the given previous pages.
+    private void setKeyboard(short[][] pages, short[][] previousPages) {
+        int index = Definitions.KEYBOARD_ADDRESS / PAGE_SIZE;
+        int offset = Definitions.KEYBOARD_ADDRESS % PAGE_SIZE;
+        if (index >= pages.length || offset >= pages[index].length ||
+            pages[index][offset] == keyboard)
+            return;
+
+        if (previousPages != null && index < previousPages.length &&
+            pages[index] == previousPages[index]) {
+            short[] page = new short[pages[index].length];
+            System.arraycopy(pages[index], 0, page, 0, page.length);
+            pages[index] = page;
+            size += page.length * 2;
+        }
+        pages[index][offset] = keyboard;
+    }
+
+    // Returns a memory of the given size with the contents of the given pages.
+    private static short[] joinPages(short[][] pages, int memorySize) {
+        short[] contents = new short[memorySize];
+        for (int i = 0; i < pages.length; i++)
+            System.arraycopy(pages[i], 0, contents, i * PAGE_SIZE, pages[i].length);
+        return contents;
+    }
+}
@@ -0,0 +1,353 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Utilities.*;
+
+/**
+ * The base of the recorders of a CPU's execution (TraceRecorder and
+ * ExecutionHistory). The execution is recorded in chunks, each of which starts
+ * with a keyframe of the state, from which the later states are computed by
+ * executing the program again (see Replayer). So only what the program can't
+ * compute is recorded after the keyframe: the changes made outside of the
+ * program (by a script or the gui) and the keyboard values that the program
+ * read, each with the cycle before which it happened, as a delta from the
+ * previous record. Since the keyboard changes while the program runs, its
+ * changes are recorded only when the program reads them and when the cpu stops.
+ * A new chunk is started every keyframe interval, when the records fill the
+ * chunk, when the ROM or the whole RAM change, and when the time is changed.
+ * Subclasses store the keyframes and the records.
+ */
+abstract class ExecutionRecorder {
+
+    // Record types: a change of PC, A and D, or of a RAM value (an address
+    // and a value). The type is followed by the cycle delta, as a sequence
+    // of 7 bit groups, the last of which has the high bit cleared.
+    static final int SET_REGISTERS = 1, SET_RAM = 2;
+
+    // The maximal length of a record
+    static final int MAX_RECORD_LENGTH = 16;
+
+    // The recorder that records the same execution after this one, or null
+    private ExecutionRecorder next;
+
+    // The maximal number of cycles in a chunk
+    private int keyframeInterval;
+
+    // The records of the current chunk and their length
+    byte[] buffer;
+    int length;
+
+    // The first cycle of the current chunk, the time at its first cycle and the
+    // number of cycles in it
+    long startCycle, startTime;
+    int cycles;
+
+    // The cycle (from the chunk's start) of the last record
+    int recordCycle;
+
+    // The state of the cpu when it last stopped
+    private int lastPC;
+    private short lastA, lastD;
+    private long lastTime;
+
+    // The recorded RAM and ROM
+    RAM ram;
+    ROM rom;
+
+    // True if a chunk was started
+    private boolean started;
+
+    // True if the RAM or the ROM contents changed as a whole, so a new chunk
+    // should be started
+    boolean keyframeNeeded;
+
+    /**
+     * The keyboard value that the replayed program would read. The cpu records
+     * the keyboard values that it reads and that are different.
+     */
+    short keyboard;
+
+    // The address that the cpu is currently writing through the RAM, which
+    // shouldn't be recorded as an external write
+    private int cpuWriteAddress = -1;
+
+    // External writes to the RAM that weren't recorded yet, as address and value
+    // pairs. May be added by other threads (e.g. the keyboard).
+    private int[] pendingWrites = new int[64];
+    private int pendingCount;
+
+    /**
+     * Constructs a new ExecutionRecorder whose chunks hold records of the given
+     * size (in bytes) and the given number of cycles.
+     */
+    ExecutionRecorder(int chunkSize, int keyframeInterval) {
+        buffer = new byte[chunkSize];
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Sets the recorder that records the same execution after this one
+     * (null for none).
+     */
+    void setNext(ExecutionRecorder next) {
+        this.next = next;
+    }
+
+    /**
+     * Returns the recorder that records the same execution after this one.
+     */
+    ExecutionRecorder getNext() {
+        return next;
+    }
+
+    /**
+     * Starts recording the cpu with the given RAM and ROM, in the given state.
+     */
+    void start(RAM ram, ROM rom, int pc, short a, short d, long time) {
+        this.ram = ram;
+        this.rom = rom;
+        keyframe(pc, a, d, time);
+        if (next != null)
+            next.start(ram, rom, pc, a, d, time);
+    }
+
+    /**
+     * Returns the number of cycles that the cpu may execute from the given
+     * time before it should call sync() again, so that a new chunk is started.
+     */
+    long getCyclesToKeyframe(long time) {
+        long count = Math.max(startTime + keyframeInterval - time, 1);
+        if (next != null)
+            count = Math.min(count, next.getCyclesToKeyframe(time));
+        return count;
+    }
+
+    /**
+     * Called before the cpu starts executing instructions, with its current
+     * state. Records the changes that were made outside of the program since
+     * the cpu stopped.
+     */
+    void sync(int pc, short a, short d, long time) {
+        if (keyframeNeeded || time != lastTime || time - startTime >= keyframeInterval)
+            keyframe(pc, a, d, time);
+        else {
+            recordPendingWrites(time);
+            if (pc != lastPC || a != lastA || d != lastD) {
+                startRecord(SET_REGISTERS, time);
+                putShort(pc);
+                putShort(a);
+                putShort(d);
+            }
+        }
+
+        if (next != null)
+            next.sync(pc, a, d, time);
+    }
+
+    /**
+     * Called before the cpu executes the instruction at the given pc, with
+     * the given registers and time, if the instruction reads the given
+     * keyboard value which is different than the keyboard field.
+     */
+    void readKeyboard(int pc, short a, short d, long time, short value) {
+        keyboard = value;
+        if (length > buffer.length - MAX_RECORD_LENGTH)
+            keyframe(pc, a, d, time);
+        else {
+            startRecord(SET_RAM, time);
+            putShort(Definitions.KEYBOARD_ADDRESS);
+            putShort(value);
+        }
+
+        if (next != null)
+            next.readKeyboard(pc, a, d, time, value);
+    }
+
+    /**
+     * Called when the cpu stops executing instructions, with its current state.
+     * Stores the records.
+     */
+    void flush(int pc, short a, short d, long time) {
+        cycles = (int)(time - startTime);
+        lastPC = pc;
+        lastA = a;
+        lastD = d;
+        lastTime = time;
+        recordPendingWrites(time);
+        flushChunk();
+
+        if (next != null)
+            next.flush(pc, a, d, time);
+    }
+
+    /**
+     * Called before the cpu writes the given RAM address through the RAM.
+     */
+    void startCpuWrite(int address) {
+        cpuWriteAddress = address;
+        if (next != null)
+            next.startCpuWrite(address);
+    }
+
+    /**
+     * Called after the cpu wrote the given value through the RAM.
+     */
+    void endCpuWrite(short value) {
+        if (cpuWriteAddress == Definitions.KEYBOARD_ADDRESS)
+            keyboard = value;
+        cpuWriteAddress = -1;
+        if (next != null)
+            next.endCpuWrite(value);
+    }
+
+    /**
+     * Called when the given value was written into the given RAM address
+     * outside of the program.
+     */
+    void externalWrite(int address, short value) {
+        synchronized (this) {
+            if (address != cpuWriteAddress && address != Definitions.KEYBOARD_ADDRESS)
+                addPendingWrite(address, value);
+        }
+        if (next != null)
+            next.externalWrite(address, value);
+    }
+
+    /**
+     * Called when the RAM or the ROM contents changed as a whole, or when
+     * the ROM changed.
+     */
+    void contentsChanged() {
+        keyframeNeeded = true;
+        if (next != null)
+            next.contentsChanged();
+    }
+
+    /**
+     * Called when the current chunk ends, before a new one is started.
+     */
+    abstract void endChunk();
+
+    /**
+     * Called when a new chunk is started with a keyframe of the given state,
+     * with an empty buffer. The keyframe's keyboard value is the keyboard
+     * field, since the keyboard may change while the RAM is copied.
+     */
+    abstract void startChunk(int pc, short a, short d, long time);
+
+    /**
+     * Called when the records of the current chunk should be stored.
+     */
+    abstract void flushChunk();
+
+    /**
+     * Forgets the current chunk without ending it: the next chunk starts at
+     * the given cycle.
+     */
+    void dropChunk(long cycle) {
+        started = false;
+        startCycle = cycle;
+        cycles = 0;
+        keyframeNeeded = true;
+    }
+
+    // Starts a new chunk with a keyframe of the given state.
+    private void keyframe(int pc, short a, short d, long time) {
+        if (started)
+            endChunk();
+
+        started = true;
+        startCycle += cycles;
+        startTime = time;
+        cycles = 0;
+        recordCycle = 0;
+        lastPC = pc;
+        lastA = a;
+        lastD = d;
+        lastTime = time;
+        keyframeNeeded = false;
+
+        synchronized (this) {
+            pendingCount = 0;
+            short[] contents = ram.getContents();
+            keyboard = (Definitions.KEYBOARD_ADDRESS < contents.length ?
+                        contents[Definitions.KEYBOARD_ADDRESS] : 0);
+        }
+
+        length = 0;
+        startChunk(pc, a, d, time);
+        flushChunk();
+    }
+
+    // Records the pending external writes, and the keyboard if it changed.
+    private synchronized void recordPendingWrites(long time) {
+        short[] contents = ram.getContents();
+        short value = (Definitions.KEYBOARD_ADDRESS < contents.length ?
+                       contents[Definitions.KEYBOARD_ADDRESS] : 0);
+        if (value != keyboard)
+            addPendingWrite(Definitions.KEYBOARD_ADDRESS, value);
+
+        for (int i = 0; i < pendingCount; i += 2) {
+            if (length > buffer.length - MAX_RECORD_LENGTH) {
+                keyframe(lastPC, lastA, lastD, time);
+                return;
+            }
+
+            startRecord(SET_RAM, time);
+            putShort(pendingWrites[i]);
+            putShort(pendingWrites[i + 1]);
+        }
+        pendingCount = 0;
+        keyboard = value;
+    }
+
+    // Adds the given write to the pending writes.
+    private void addPendingWrite(int address, short value) {
+        if (pendingCount == pendingWrites.length) {
+            int[] newWrites = new int[pendingWrites.length * 2];
+            System.arraycopy(pendingWrites, 0, newWrites, 0, pendingCount);
+            pendingWrites = newWrites;
+        }
+        pendingWrites[pendingCount++] = address;
+        pendingWrites[pendingCount++] = value;
+    }
+
+    // Appends the type and the cycle delta of a record that happened before
+    // the cycle at the given time.
+    private void startRecord(int type, long time) {
+        int cycle = (int)(time - startTime);
+        int delta = cycle - recordCycle;
+        recordCycle = cycle;
+
+        buffer[length++] = (byte)type;
+        while (delta >= 0x80) {
+            buffer[length++] = (byte)(delta | 0x80);
+            delta >>>= 7;
+        }
+        buffer[length++] = (byte)delta;
+    }
+
+    /**
+     * Appends the given 16-bit value to the current chunk.
+     */
+    void putShort(int value) {
+        buffer[length++] = (byte)(value >> 8);
+        buffer[length++] = (byte)value;
+    }
+}
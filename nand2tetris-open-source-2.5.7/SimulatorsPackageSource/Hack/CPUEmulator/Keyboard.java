@@ -23,9 +23,10 @@ import Hack.CPUEmulator.*;
 import Hack.ComputerParts.*;
 
 /**
- * A computer keyboard.
+ * A computer keyboard, as a device which is mapped to the keyboard address of the
+ * RAM and puts the code of the current key in it.
  */
-public class Keyboard extends ComputerPart implements KeyListener {
+public class Keyboard extends ComputerPart implements KeyListener, MemoryMappedDevice {
 
     // The ram (the keyboard address is changed according to the current key)
     private RAM ram;
@@ -34,13 +35,15 @@ public class Keyboard extends ComputerPart implements KeyListener {
     private KeyboardGUI gui;
 
     /**
-     * Constructs a new keyboard with the given RAM and keyboard GUI.
+     * Constructs a new keyboard with the given RAM and keyboard GUI, and maps it
+     * to the keyboard address of the RAM.
      */
     public Keyboard(RAM ram, KeyboardGUI gui) {
         super(gui != null);
 
         this.ram = ram;
         this.gui = gui;
+        ram.addDevice(this, Definitions.KEYBOARD_ADDRESS, 1);
 
         if (hasGUI)
             gui.getKeyEventHandler().addKeyListener(this);
@@ -59,7 +62,7 @@ public class Keyboard extends ComputerPart implements KeyListener {
     public void keyPressed(KeyEvent e) {
         short key = Definitions.getInstance().getKeyCode(e);
         if (key > 0) {
-            ram.setValueAt(Definitions.KEYBOARD_ADDRESS, key, true);
+            ram.setExternalValueAt(Definitions.KEYBOARD_ADDRESS, key);
             if (hasGUI)
                 gui.setKey(Definitions.getInstance().getKeyName(e));
         }
@@ -69,8 +72,7 @@ public class Keyboard extends ComputerPart implements KeyListener {
      * Activated when a key is released.
      */
     public void keyReleased(KeyEvent e) {
-        ram.setValueAt(Definitions.KEYBOARD_ADDRESS, (short)0, true);
-        gui.clearKey();
+        ram.setExternalValueAt(Definitions.KEYBOARD_ADDRESS, (short)0);
     }
 
     /**
@@ -78,6 +80,18 @@ public class Keyboard extends ComputerPart implements KeyListener {
      */
     public void keyTyped(KeyEvent e) {}
 
+    /**
+     * Clears the displayed key when the keyboard address is cleared.
+     */
+    public void valueWritten(int address, short value) {
+        if (value == 0 && hasGUI)
+            gui.clearKey();
+    }
+
+    public void contentsChanged(short[] contents) {
+        valueWritten(Definitions.KEYBOARD_ADDRESS, contents[Definitions.KEYBOARD_ADDRESS]);
+    }
+
     public void refreshGUI() {}
 
     public void requestFocus() {
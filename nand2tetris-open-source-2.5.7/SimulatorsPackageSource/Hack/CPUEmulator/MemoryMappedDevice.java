@@ -0,0 +1,41 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+/**
+ * An interface for devices that are mapped to a range of RAM addresses (see
+ * RAM.addDevice()), such as the screen and the keyboard. The values of the range
+ * are kept in the RAM's memory, which the cpu reads directly. The device is told
+ * of every write to its range, and puts its own input (such as the pressed key)
+ * into its range by writing it through the RAM.
+ */
+public interface MemoryMappedDevice {
+
+    /**
+     * Called after the given value was written to the given address, which is in
+     * the range of the device.
+     */
+    public void valueWritten(int address, short value);
+
+    /**
+     * Called after some of the values in the range of the device were replaced at
+     * once (as on a reset of the RAM). The device should read its range from the
+     * given memory contents.
+     */
+    public void contentsChanged(short[] contents);
+}
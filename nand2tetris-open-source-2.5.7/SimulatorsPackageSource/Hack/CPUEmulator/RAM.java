@@ -17,11 +17,13 @@
 
 package Hack.CPUEmulator;
 
+import java.util.*;
 import Hack.Utilities.*;
 import Hack.ComputerParts.*;
 
 /**
- * A Random Access Memory, which is mapped to a screen, and enables a segmented view on it.
+ * A Random Access Memory, to which devices (such as a screen) may be mapped, and
+ * which enables a segmented view on it.
  */
 public class RAM extends PointedMemory
 {
@@ -30,12 +32,39 @@ public class RAM extends PointedMemory
 
     private static final short[] emptyScreen = new short[Definitions.SCREEN_SIZE_IN_WORDS];
 
-    // The gui of the screen
-    private ScreenGUI screen;
+    // The number of addresses in a page of the device table (a power of 2)
+    private static final int DEVICE_PAGE_SIZE = 256;
+    private static final int DEVICE_PAGE_SHIFT = 8;
+
+    // The device table: for each page of addresses, the device mapped to each of
+    // its addresses, or null if no device is mapped to the page
+    private MemoryMappedDevice[][] devicePages;
+
+    // The mapped devices, and the first address and the address after the last
+    // of each (as Integers)
+    private Vector devices;
+    private Vector deviceStarts;
+    private Vector deviceEnds;
+
+    // The lowest address to which a device is mapped (the size if there's none)
+    private int firstDeviceAddress;
 
     // memory segments mapping
     private MemorySegment[][] segments;
 
+    // The recorder of the cpu's execution, or null if there's none
+    private ExecutionRecorder recorder;
+
+    // The channel through which writes are displayed while no changes are
+    // displayed directly, or null if there's none
+    private MemoryWriteChannel writeChannel;
+
+    // The addresses and values taken from the write channel, and the values
+    // displayed by the main gui
+    private int[] channelAddresses;
+    private short[] channelValues;
+    private short[] displayedValues;
+
     /**
      * Constructs a new RAM with the given optional GUI components:
      * mainGUI - the main GUI of the ram.
@@ -45,24 +74,113 @@ public class RAM extends PointedMemory
      *            the memory value at the entry's location.
      *            If a memorySegment is an instance of memorySegment, its start
      *            address will be set according to the memory value at the entry's location.
-     * screenGUI - the GUI of the screen.
+     * screenGUI - the GUI of the screen, which is mapped to the screen range as
+     *             a ScreenDevice.
      */
     public RAM(PointedMemoryGUI mainGUI, MemorySegment[][] segments, ScreenGUI screenGUI) {
         super(Definitions.RAM_SIZE, mainGUI);
         this.segments = segments;
-        this.screen = screenGUI;
+
+        devicePages = new MemoryMappedDevice[(size + DEVICE_PAGE_SIZE - 1) >> DEVICE_PAGE_SHIFT][];
+        devices = new Vector();
+        deviceStarts = new Vector();
+        deviceEnds = new Vector();
+        firstDeviceAddress = size;
+
+        if (screenGUI != null)
+            addDevice(new ScreenDevice(screenGUI), Definitions.SCREEN_START_ADDRESS,
+                      Definitions.SCREEN_SIZE_IN_WORDS);
+    }
+
+    /**
+     * Maps the given device to the given number of addresses, from the given start
+     * address. The device is told of the writes to these addresses from then on.
+     * Throws IllegalArgumentException if the range is out of the RAM or if another
+     * device is mapped to any of its addresses.
+     */
+    public void addDevice(MemoryMappedDevice device, int startAddress, int length) {
+        int end = startAddress + length;
+        if (startAddress < 0 || length < 1 || end > size)
+            throw new IllegalArgumentException("Illegal device range: " + startAddress +
+                                               ".." + (end - 1));
+
+        for (int address = startAddress; address < end; address++)
+            if (getDeviceAt(address) != null)
+                throw new IllegalArgumentException("A device is already mapped to " +
+                                                   address);
+
+        for (int address = startAddress; address < end; address++) {
+            int index = address >> DEVICE_PAGE_SHIFT;
+            if (devicePages[index] == null)
+                devicePages[index] = new MemoryMappedDevice[DEVICE_PAGE_SIZE];
+            devicePages[index][address & (DEVICE_PAGE_SIZE - 1)] = device;
+        }
+
+        devices.addElement(device);
+        deviceStarts.addElement(new Integer(startAddress));
+        deviceEnds.addElement(new Integer(end));
+        firstDeviceAddress = Math.min(firstDeviceAddress, startAddress);
+    }
+
+    /**
+     * Returns the device that is mapped to the given address, or null if there's
+     * none.
+     */
+    public MemoryMappedDevice getDeviceAt(int address) {
+        MemoryMappedDevice[] page = devicePages[address >> DEVICE_PAGE_SHIFT];
+        return (page != null ? page[address & (DEVICE_PAGE_SIZE - 1)] : null);
+    }
+
+    /**
+     * Returns the lowest address that is mapped to a device, or the size of the
+     * RAM if there's none.
+     */
+    public int getFirstDeviceAddress() {
+        return firstDeviceAddress;
     }
 
     /**
      * Returns the value stored at the given address
      */
     public void setValueAt(int address, short value, boolean quiet) {
+        MemoryWriteChannel channel = writeChannel;
+        writeValueAt(address, value, quiet);
+        if (channel != null)
+            channel.write(address, value);
+    }
+
+    /**
+     * Sets the value at the given address from the gui's thread, as the
+     * keyboard does, rather than from the thread that executes the program.
+     * The write channel has a single writer, so the value is displayed here
+     * directly instead of being published into it.
+     */
+    public void setExternalValueAt(int address, short value) {
+        MemoryWriteChannel channel = writeChannel;
+        writeValueAt(address, value, true);
+        if (channel != null && displayedValues[address] != value) {
+            displayedValues[address] = value;
+            gui.setValueAt(address, value);
+        }
+    }
+
+    // Sets the value at the given address and tells the recorder, the mapped
+    // device and the memory segments of it
+    private void writeValueAt(int address, short value, boolean quiet) {
         super.setValueAt(address, value, quiet);
 
-        // if screen area changed, update its GUI
-        if (screen != null && address >= Definitions.SCREEN_START_ADDRESS
-             && address < Definitions.SCREEN_START_ADDRESS + Definitions.SCREEN_SIZE_IN_WORDS)
-            screen.setValueAt((short)(address - Definitions.SCREEN_START_ADDRESS), value);
+        if (recorder != null)
+            recorder.externalWrite(address, value);
+
+        // if the address is mapped to a device, tell the device
+        if (address >= firstDeviceAddress) {
+            MemoryMappedDevice[] page = devicePages[address >> DEVICE_PAGE_SHIFT];
+            if (page != null) {
+                MemoryMappedDevice device = page[address & (DEVICE_PAGE_SIZE - 1)];
+                if (device != null)
+                    device.valueWritten(address, value);
+            }
+        }
 
         // if a memory segment pointer changed, update its GUI
         if (segments != null && segments[address] != null) {
@@ -77,6 +195,94 @@ public class RAM extends PointedMemory
         }
     }
 
+    /**
+     * Returns the number of addresses, starting at 0, that may be written
+     * directly into the memory array (see getContents()) because no device
+     * or memory segment gui depends on them.
+     */
+    public int getDirectAccessSize() {
+        if (segments != null)
+            return 0;
+        else
+            return firstDeviceAddress;
+    }
+
+    /**
+     * Sets the recorder of the cpu's execution, which is notified of the
+     * changes to the RAM that are not made by the cpu (null for none).
+     */
+    void setRecorder(ExecutionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets the channel through which the writes to the RAM are displayed by
+     * the main gui, while no changes are displayed directly (null for none).
+     * The writes are displayed by calls to displayChannelWrites(), from the
+     * gui's thread.
+     */
+    public void setWriteChannel(MemoryWriteChannel channel) {
+        if (channel != null && hasGUI) {
+            channel.clear();
+            channelAddresses = new int[channel.getCapacity()];
+            channelValues = new short[channel.getCapacity()];
+            displayedValues = mem.clone();
+        }
+        else
+            channel = null;
+
+        writeChannel = channel;
+    }
+
+    /**
+     * Returns the write channel of the RAM, or null if there's none. The writes
+     * to the directly accessible addresses (see getDirectAccessSize()) should
+     * be published into it by the writer.
+     */
+    MemoryWriteChannel getWriteChannel() {
+        return writeChannel;
+    }
+
+    /**
+     * Displays in the main gui the writes that were published into the write
+     * channel since the last call, each changed address once.
+     */
+    public void displayChannelWrites() {
+        MemoryWriteChannel channel = writeChannel;
+        if (channel == null)
+            return;
+
+        int count = channel.drain(channelAddresses, channelValues);
+        if (count == -1) {
+            // some writes were dropped, so all values are compared
+            for (int address = 0; address < size; address++) {
+                short value = mem[address];
+                if (value != displayedValues[address]) {
+                    displayedValues[address] = value;
+                    gui.setValueAt(address, value);
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < count; i++) {
+                int address = channelAddresses[i];
+                short value = channelValues[i];
+                if (value != displayedValues[address]) {
+                    displayedValues[address] = value;
+                    gui.setValueAt(address, value);
+                }
+            }
+        }
+    }
+
+    public void setContents(short[] contents, int startAddress) {
+        super.setContents(contents, startAddress);
+        devicesChanged(startAddress, startAddress + contents.length);
+
+        if (recorder != null)
+            recorder.contentsChanged();
+    }
+
     /**
      * Sets a name for the label at the given address
      */
@@ -106,8 +312,9 @@ public class RAM extends PointedMemory
      */
     public void reset() {
         super.reset();
-        if (screen != null)
-            screen.reset();
+        devicesChanged(0, size);
+        if (recorder != null)
+            recorder.contentsChanged();
     }
 
     /**
@@ -115,9 +322,17 @@ public class RAM extends PointedMemory
      */
     public void clearScreen() {
         setContents(emptyScreen, Definitions.SCREEN_START_ADDRESS);
+    }
 
-        if (screen != null)
-            screen.reset();
+    // Tells the devices that are mapped to any address from first up to (not
+    // including) end that their values were replaced.
+    private void devicesChanged(int first, int end) {
+        for (int i = 0; i < devices.size(); i++) {
+            int start = ((Integer)deviceStarts.elementAt(i)).intValue();
+            int deviceEnd = ((Integer)deviceEnds.elementAt(i)).intValue();
+            if (start < end && first < deviceEnd)
+                ((MemoryMappedDevice)devices.elementAt(i)).contentsChanged(mem);
+        }
     }
 
     public void refreshGUI() {
@@ -53,6 +53,12 @@ public class ROM extends PointedMemory implements ProgramEventListener
     // listeners to program changes
     private Vector listeners;
 
+    // The decoded instructions, for the cpu's fast path.
+    private DecodedProgram decodedProgram;
+
+    // The recorder of the cpu's execution, or null if there's none
+    private ExecutionRecorder recorder;
+
     /**
      * Constructs a new ROM with the given ROM GUI.
      */
@@ -60,6 +66,7 @@ public class ROM extends PointedMemory implements ProgramEventListener
         super(Definitions.ROM_SIZE, gui);
         setNullValue(HackAssemblerTranslator.NOP, true);
         listeners = new Vector();
+        decodedProgram = new DecodedProgram(Definitions.ROM_SIZE);
 
         if (hasGUI) {
           gui.addProgramListener( (ProgramEventListener)this);
@@ -82,6 +89,9 @@ public class ROM extends PointedMemory implements ProgramEventListener
                                                           HackAssemblerTranslator.NOP);
 
             mem = program;
+            decodedProgram.invalidateAll();
+            if (recorder != null)
+                recorder.contentsChanged();
 
             if (displayChanges) {
                 gui.setContents(mem);
@@ -102,6 +112,44 @@ public class ROM extends PointedMemory implements ProgramEventListener
 
     }
 
+    public void doSetValueAt(int address, short value) {
+        super.doSetValueAt(address, value);
+        decodedProgram.invalidate(address);
+        if (recorder != null)
+            recorder.contentsChanged();
+    }
+
+    public void setContents(short[] contents, int startAddress) {
+        super.setContents(contents, startAddress);
+        for (int i = 0; i < contents.length; i++)
+            decodedProgram.invalidate(startAddress + i);
+        if (recorder != null)
+            recorder.contentsChanged();
+    }
+
+    public void reset() {
+        super.reset();
+        decodedProgram.invalidateAll();
+        if (recorder != null)
+            recorder.contentsChanged();
+    }
+
+    /**
+     * Returns the decoded instructions of the ROM, which are kept up to date
+     * with all changes that are made through the ROM's methods.
+     */
+    DecodedProgram getDecodedProgram() {
+        return decodedProgram;
+    }
+
+    /**
+     * Sets the recorder of the cpu's execution, which is notified when the
+     * program changes (null for none).
+     */
+    void setRecorder(ExecutionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
     /**
      * Called when the ROM's current program is changed.
      * The event contains the source object, event type and the new program's file name (if any).
@@ -0,0 +1,200 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.nio.*;
+
+/**
+ * Reconstructs the states of a recorded execution (see ExecutionRecorder) by
+ * executing the program from a keyframe, with the recorded changes.
+ * The state at cycle n is the state after n instructions were executed, and a
+ * record of cycle n is applied before the instruction of cycle n + 1.
+ */
+class Replayer {
+
+    /**
+     * The current state.
+     */
+    long cycle, time;
+    int pc;
+    short a, d;
+    short[] ram, rom;
+
+    // The decoded instructions of the ROM
+    private int[] words;
+
+    // The records, the position of the next record and the end of the records
+    private ByteBuffer records;
+    private int position, end;
+
+    // The type, the cycle and the position of the next record (type -1 if
+    // there's none)
+    private int recordType;
+    private long recordCycle;
+    private int recordPosition;
+
+    /**
+     * Starts replaying from the given state (ram and rom are set by the
+     * caller), with the records in the given buffer, from the given position
+     * to the given end.
+     */
+    void start(long cycle, long time, int pc, short a, short d,
+               ByteBuffer records, int position, int end) {
+        this.cycle = cycle;
+        this.time = time;
+        this.pc = pc;
+        this.a = a;
+        this.d = d;
+        this.records = records;
+        this.position = position;
+        this.end = end;
+
+        if (words == null || words.length != rom.length)
+            words = new int[rom.length];
+        for (int i = 0; i < rom.length; i++)
+            words[i] = DecodedProgram.decodeWord(rom[i]);
+
+        recordCycle = cycle;
+        startRecord();
+    }
+
+    /**
+     * Advances to the state after the next cycle.
+     */
+    void step() {
+        while (recordCycle == cycle)
+            readRecord();
+
+        execute();
+        cycle++;
+        time++;
+    }
+
+    /**
+     * Returns the position of the first record that wasn't applied yet.
+     */
+    int getRecordPosition() {
+        return recordPosition;
+    }
+
+    /**
+     * Returns the value of the variable with the given CPUEmulator handle.
+     */
+    short getValue(int handle) {
+        switch (handle) {
+            case CPUEmulator.HANDLE_A:
+                return a;
+            case CPUEmulator.HANDLE_D:
+                return d;
+            case CPUEmulator.HANDLE_PC:
+                return (short)pc;
+            default:
+                if (handle >= CPUEmulator.HANDLE_ROM)
+                    return rom[handle - CPUEmulator.HANDLE_ROM];
+                else
+                    return ram[handle - CPUEmulator.HANDLE_RAM];
+        }
+    }
+
+    // Reads the type and the cycle of the next record, if there is one.
+    private void startRecord() {
+        recordPosition = position;
+        if (position >= end) {
+            recordType = -1;
+            recordCycle = -1;
+            return;
+        }
+
+        recordType = getByte();
+        int delta = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = getByte();
+            delta |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        recordCycle += delta;
+    }
+
+    // Applies the current record and reads the next one.
+    private void readRecord() {
+        if (recordType == ExecutionRecorder.SET_REGISTERS) {
+            pc = getShort();
+            a = (short)getShort();
+            d = (short)getShort();
+        }
+        else if (recordType == ExecutionRecorder.SET_RAM) {
+            int address = getShort();
+            short value = (short)getShort();
+            if (address < ram.length)
+                ram[address] = value;
+        }
+        else
+            throw new IllegalStateException("Illegal record type " + recordType +
+                                            " at cycle " + cycle);
+
+        startRecord();
+    }
+
+    // Executes the instruction at pc, the way the cpu does.
+    private void execute() {
+        int word = words[pc];
+        switch (word & DecodedProgram.TYPE_MASK) {
+            case DecodedProgram.ADDRESS:
+                a = (short)(word >> DecodedProgram.VALUE_SHIFT);
+                pc++;
+                break;
+
+            case DecodedProgram.COMPUTE:
+                short input1 = ((word & DecodedProgram.INDIRECT) != 0 ? ram[a] : a);
+                short out = DecodedProgram.computeALU(word, d, input1);
+                if ((word & DecodedProgram.DEST_M) != 0)
+                    ram[a] = out;
+                if ((word & DecodedProgram.DEST_A) != 0)
+                    a = out;
+                if ((word & DecodedProgram.DEST_D) != 0)
+                    d = out;
+                if (DecodedProgram.isJump(word, out))
+                    pc = a;
+                else
+                    pc++;
+                break;
+
+            case DecodedProgram.NOP:
+                pc++;
+                break;
+
+            default:
+                throw new IllegalStateException("Illegal instruction at " + pc +
+                                                " at cycle " + cycle);
+        }
+    }
+
+    // Reads the next byte of the records.
+    private int getByte() {
+        return records.get(position++) & 0xff;
+    }
+
+    // Reads the next 16-bit value of the records.
+    private int getShort() {
+        int value = (records.get(position) & 0xff) << 8 | (records.get(position + 1) & 0xff);
+        position += 2;
+        return value;
+    }
+}
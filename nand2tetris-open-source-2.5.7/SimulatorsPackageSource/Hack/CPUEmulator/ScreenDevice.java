@@ -0,0 +1,57 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import Hack.Utilities.*;
+
+/**
+ * The screen, as a device which is mapped to the screen range of the RAM and
+ * displays it in a screen GUI.
+ */
+public class ScreenDevice implements MemoryMappedDevice {
+
+    // The gui of the screen
+    private ScreenGUI gui;
+
+    // The values of the screen, copied from the RAM when they are replaced at once
+    private short[] values;
+
+    /**
+     * Constructs a new screen device with the given screen GUI.
+     */
+    public ScreenDevice(ScreenGUI gui) {
+        this.gui = gui;
+        values = new short[Definitions.SCREEN_SIZE_IN_WORDS];
+    }
+
+    /**
+     * Returns the gui of the screen.
+     */
+    public ScreenGUI getGUI() {
+        return gui;
+    }
+
+    public void valueWritten(int address, short value) {
+        gui.setValueAt(address - Definitions.SCREEN_START_ADDRESS, value);
+    }
+
+    public void contentsChanged(short[] contents) {
+        System.arraycopy(contents, Definitions.SCREEN_START_ADDRESS, values, 0, values.length);
+        gui.setContents(values);
+    }
+}
@@ -0,0 +1,251 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import Hack.Controller.*;
+import Hack.Utilities.*;
+
+/**
+ * Reads a trace file that was recorded by TraceRecorder. The state of the
+ * CPU after any recorded cycle is reconstructed by executing the program from
+ * the nearest keyframe before it, with the recorded changes, and slices of the
+ * trace can be exported in the output table format of the scripts.
+ * Cycles are counted from the beginning of the recording: cycle n is the
+ * state after n instructions were executed.
+ */
+public class TraceReader {
+
+    // The mapped trace file
+    private MappedByteBuffer map;
+
+    // The offsets of the valid chunks in the file, ordered by their sequence
+    // numbers, and their first cycles and numbers of cycles
+    private int[] chunks;
+    private long[] startCycles;
+    private int[] cycleCounts;
+
+    // The current chunk
+    private int chunk;
+
+    // The replayer of the current chunk
+    private Replayer replayer = new Replayer();
+
+    /**
+     * Constructs a new TraceReader of the given trace file.
+     */
+    public TraceReader(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        if (map.capacity() < TraceRecorder.FILE_HEADER_SIZE ||
+            map.getInt(0) != TraceRecorder.MAGIC)
+            throw new IOException(fileName + " is not a trace file");
+        if (map.getInt(4) != TraceRecorder.VERSION)
+            throw new IOException("Unsupported trace version: " + map.getInt(4));
+
+        int chunkSize = map.getInt(8);
+        int chunkCount = map.getInt(12);
+        if ((long)chunkSize * chunkCount + TraceRecorder.FILE_HEADER_SIZE > map.capacity())
+            throw new IOException(fileName + " is truncated");
+
+        // collect the valid chunks, sorted by sequence numbers
+        long[] sequences = new long[chunkCount];
+        int[] offsets = new int[chunkCount];
+        int count = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            int offset = TraceRecorder.FILE_HEADER_SIZE + i * chunkSize;
+            long sequence = map.getLong(offset + TraceRecorder.SEQUENCE_OFFSET);
+            if (sequence > 0) {
+                int j = count++;
+                for (; j > 0 && sequences[j - 1] > sequence; j--) {
+                    sequences[j] = sequences[j - 1];
+                    offsets[j] = offsets[j - 1];
+                }
+                sequences[j] = sequence;
+                offsets[j] = offset;
+            }
+        }
+
+        if (count == 0)
+            throw new IOException(fileName + " is empty");
+
+        chunks = new int[count];
+        startCycles = new long[count];
+        cycleCounts = new int[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = offsets[i];
+            startCycles[i] = map.getLong(offsets[i] + TraceRecorder.START_CYCLE_OFFSET);
+            cycleCounts[i] = map.getInt(offsets[i] + TraceRecorder.CYCLES_OFFSET);
+        }
+
+        loadChunk(0);
+    }
+
+    /**
+     * Returns the first cycle whose state can be reconstructed.
+     */
+    public long getFirstCycle() {
+        return startCycles[0];
+    }
+
+    /**
+     * Returns the last recorded cycle.
+     */
+    public long getLastCycle() {
+        return startCycles[chunks.length - 1] + cycleCounts[chunks.length - 1];
+    }
+
+    /**
+     * Returns the current cycle.
+     */
+    public long getCycle() {
+        return replayer.cycle;
+    }
+
+    /**
+     * Reconstructs the state after the given cycle.
+     * Throws IllegalArgumentException if the cycle is not in the trace.
+     */
+    public void seek(long cycle) {
+        if (cycle < getFirstCycle() || cycle > getLastCycle())
+            throw new IllegalArgumentException("Cycle " + cycle + " is not in the trace (" +
+                                               getFirstCycle() + "-" + getLastCycle() + ")");
+
+        // the last chunk that starts at or before the cycle
+        int i = chunks.length - 1;
+        while (startCycles[i] > cycle)
+            i--;
+
+        if (i != chunk || cycle < replayer.cycle)
+            loadChunk(i);
+        while (replayer.cycle < cycle)
+            next();
+    }
+
+    /**
+     * Advances to the state after the next cycle. Returns false if there are
+     * no more recorded cycles.
+     */
+    public boolean next() {
+        if (replayer.cycle == startCycles[chunk] + cycleCounts[chunk]) {
+            if (chunk + 1 < chunks.length && startCycles[chunk + 1] == replayer.cycle)
+                loadChunk(chunk + 1);
+            else
+                return false;
+        }
+
+        replayer.step();
+        return true;
+    }
+
+    /**
+     * Returns the value of the given variable in the current state:
+     * A, D, PC, time, RAM[i] or ROM[i].
+     */
+    public String getValue(String varName) throws VariableException {
+        if (varName.equals("A"))
+            return String.valueOf(replayer.a);
+        else if (varName.equals("D"))
+            return String.valueOf(replayer.d);
+        else if (varName.equals("PC"))
+            return String.valueOf(replayer.pc);
+        else if (varName.equals("time"))
+            return String.valueOf(replayer.time);
+        else if (varName.startsWith("RAM["))
+            return String.valueOf(replayer.ram[getIndex(varName, replayer.ram.length)]);
+        else if (varName.startsWith("ROM["))
+            return String.valueOf(replayer.rom[getIndex(varName, replayer.rom.length)]);
+        else
+            throw new VariableException("Unknown variable", varName);
+    }
+
+    /**
+     * Writes the states after the cycles from the first to the last given
+     * cycles into the given writer, as an output table of the given variables.
+     */
+    public void export(long first, long last, VariableFormat[] vars, PrintWriter writer)
+     throws VariableException {
+        writer.println(VariableFormat.formatHeader(vars));
+
+        String[] values = new String[vars.length];
+        seek(first);
+        while (true) {
+            for (int i = 0; i < vars.length; i++)
+                values[i] = getValue(vars[i].varName);
+            writer.println(VariableFormat.formatLine(vars, values));
+
+            if (replayer.cycle >= last || !next())
+                break;
+        }
+
+        writer.flush();
+    }
+
+    // Returns the index of the given variable, which is smaller than the
+    // given size.
+    private int getIndex(String varName, int size) throws VariableException {
+        int index = -1;
+        if (varName.endsWith("]")) {
+            try {
+                index = Integer.parseInt(varName.substring(4, varName.length() - 1));
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        if (index < 0 || index >= size)
+            throw new VariableException("Illegal variable index", varName);
+        return index;
+    }
+
+    // Loads the keyframe of the chunk at the given index.
+    private void loadChunk(int index) {
+        chunk = index;
+        int base = chunks[index];
+        int length = map.getInt(base + TraceRecorder.LENGTH_OFFSET);
+
+        int position = base + TraceRecorder.CHUNK_HEADER_SIZE;
+        int pc = map.getShort(position) & 0xffff;
+        short a = map.getShort(position + 2);
+        short d = map.getShort(position + 4);
+        position += 8;
+        replayer.ram = getMemory(replayer.ram, position);
+        position += 4 + replayer.ram.length * 2;
+        replayer.rom = getMemory(replayer.rom, position);
+        position += 4 + replayer.rom.length * 2;
+
+        replayer.start(startCycles[index], map.getLong(base + TraceRecorder.START_TIME_OFFSET),
+                       pc, a, d, map, position, base + length);
+    }
+
+    // Reads the size and the contents of a memory at the given position of
+    // the file, into the given array if it has the right size.
+    private short[] getMemory(short[] contents, int position) {
+        int size = map.getInt(position);
+        if (contents == null || contents.length != size)
+            contents = new short[size];
+        for (int i = 0; i < size; i++)
+            contents[i] = map.getShort(position + 4 + i * 2);
+        return contents;
+    }
+}
@@ -0,0 +1,189 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.CPUEmulator;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import Hack.Utilities.*;
+
+/**
+ * Records the execution of a CPU into a trace file, which can be read with
+ * TraceReader.
+ *
+ * The file is a memory mapped ring of fixed size chunks (see
+ * ExecutionRecorder), so it always holds the most recent cycles and is
+ * readable even if the recording program dies. Each chunk starts with a
+ * keyframe of the registers, the time, the RAM and the ROM.
+ */
+public class TraceRecorder extends ExecutionRecorder {
+
+    /**
+     * The default size of a chunk, in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The default number of chunks in the ring.
+     */
+    public static final int DEFAULT_CHUNK_COUNT = 64;
+
+    /**
+     * The maximal number of cycles in a chunk.
+     */
+    public static final int KEYFRAME_INTERVAL = 1 << 22;
+
+    // The file header: magic, version, chunk size, chunk count
+    static final int MAGIC = 0x48545243;
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+
+    // The chunk header: sequence number (0 if unused), first cycle, time at
+    // the first cycle, number of cycles, length in bytes (including the
+    // headers)
+    static final int SEQUENCE_OFFSET = 0, START_CYCLE_OFFSET = 8, START_TIME_OFFSET = 16,
+                     CYCLES_OFFSET = 24, LENGTH_OFFSET = 28;
+    static final int CHUNK_HEADER_SIZE = 32;
+
+    // The keyframe: PC, A, D, a padding, the RAM size and contents, and the
+    // ROM size and contents
+    static final int KEYFRAME_HEADER_SIZE = 12;
+
+    // The trace file and its mapping
+    private RandomAccessFile file;
+    private MappedByteBuffer map;
+
+    // The size of a chunk and the number of chunks
+    private int chunkSize, chunkCount;
+
+    // The current chunk: its index in the ring, its sequence number and the
+    // length of the part that was already copied into the file
+    private int chunkIndex;
+    private long sequence;
+    private int flushedLength;
+
+    /**
+     * Constructs a new TraceRecorder that records into the given file, with
+     * the default chunk size and count.
+     */
+    public TraceRecorder(String fileName) throws IOException {
+        this(fileName, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+    }
+
+    /**
+     * Constructs a new TraceRecorder that records into the given file, which
+     * holds the given number of chunks of the given size (in bytes).
+     */
+    public TraceRecorder(String fileName, int chunkSize, int chunkCount) throws IOException {
+        super(chunkSize, KEYFRAME_INTERVAL);
+
+        int minSize = CHUNK_HEADER_SIZE + KEYFRAME_HEADER_SIZE +
+                      (Definitions.RAM_SIZE + Definitions.ROM_SIZE) * 2 + MAX_RECORD_LENGTH * 16;
+        if (chunkSize < minSize)
+            throw new IOException("Chunk size must be at least " + minSize);
+        if (chunkCount < 1 || (long)chunkSize * chunkCount > Integer.MAX_VALUE - FILE_HEADER_SIZE)
+            throw new IOException("Illegal chunk count: " + chunkCount);
+
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+
+        File f = new File(fileName);
+        f.delete();
+        file = new RandomAccessFile(f, "rw");
+        int size = FILE_HEADER_SIZE + chunkSize * chunkCount;
+        file.setLength(size);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, chunkSize);
+        map.putInt(12, chunkCount);
+
+        chunkIndex = -1;
+    }
+
+    /**
+     * Flushes the trace and closes the file.
+     */
+    public synchronized void close() throws IOException {
+        if (file != null) {
+            if (chunkIndex != -1)
+                flushChunk();
+            map.force();
+            file.close();
+            file = null;
+        }
+    }
+
+    void endChunk() {
+        flushChunk();
+    }
+
+    void startChunk(int pc, short a, short d, long time) {
+        chunkIndex = (chunkIndex + 1) % chunkCount;
+        sequence++;
+
+        length = CHUNK_HEADER_SIZE;
+        flushedLength = 0;
+        putShort(pc);
+        putShort(a);
+        putShort(d);
+        putShort(0);
+        int ramStart = length;
+        putMemory(ram.getContents());
+        putMemory(rom.getContents());
+
+        int keyboardOffset = ramStart + 4 + Definitions.KEYBOARD_ADDRESS * 2;
+        if (keyboardOffset < length) {
+            buffer[keyboardOffset] = (byte)(keyboard >> 8);
+            buffer[keyboardOffset + 1] = (byte)keyboard;
+        }
+
+        // the chunk's sequence number is written last, so a chunk that is
+        // being overwritten is never taken as a valid one
+        map.putLong(chunkOffset() + SEQUENCE_OFFSET, 0);
+    }
+
+    // Copies the records of the current chunk that weren't copied yet into the
+    // file, and updates the chunk's header.
+    void flushChunk() {
+        int offset = chunkOffset();
+        if (length > flushedLength) {
+            map.position(offset + flushedLength);
+            map.put(buffer, flushedLength, length - flushedLength);
+            flushedLength = length;
+        }
+        map.putLong(offset + START_CYCLE_OFFSET, startCycle);
+        map.putLong(offset + START_TIME_OFFSET, startTime);
+        map.putInt(offset + CYCLES_OFFSET, cycles);
+        map.putInt(offset + LENGTH_OFFSET, length);
+        map.putLong(offset + SEQUENCE_OFFSET, sequence);
+    }
+
+    // Returns the offset of the current chunk in the file.
+    private int chunkOffset() {
+        return FILE_HEADER_SIZE + chunkIndex * chunkSize;
+    }
+
+    // Appends the size and the contents of the given memory to the current chunk.
+    private void putMemory(short[] contents) {
+        putShort(contents.length >> 16);
+        putShort(contents.length);
+        for (int i = 0; i < contents.length; i++)
+            putShort(contents[i]);
+    }
+}
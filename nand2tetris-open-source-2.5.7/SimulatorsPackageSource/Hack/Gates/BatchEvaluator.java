@@ -0,0 +1,407 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+/**
+ * Evaluates the flat netlist of a combinational gate over a batch of up to 64
+ * independent input vectors at once.
+ * The values are kept bit sliced: every bit of every wire is a long, whose bit i
+ * belongs to the i'th vector (lane) of the batch. Thus a single pass over the netlist
+ * evaluates all the vectors together. Delegated BuiltIn parts are evaluated lane by lane.
+ */
+public class BatchEvaluator {
+
+    /**
+     * The amount of input vectors (lanes) in a batch.
+     */
+    public static final int BATCH_SIZE = 64;
+
+    // Batch program operation codes. All operands are plane indice (wire * 16 + bit).
+    private static final int OP_MOVE = 0;
+    private static final int OP_ZERO = 1;
+    private static final int OP_NAND = 2;
+    private static final int OP_NOT = 3;
+    private static final int OP_AND = 4;
+    private static final int OP_OR = 5;
+    private static final int OP_XOR = 6;
+    private static final int OP_MUX = 7;
+    private static final int OP_DMUX = 8;
+    private static final int OP_BUILTIN = 9;
+
+    // The netlist which this evaluator runs.
+    private GateNetlist netlist;
+
+    // The bit planes of the wires. The plane of bit b of wire w is at w * 16 + b.
+    private long[] planes;
+
+    // The batch program
+    private int[] program;
+
+    // The amount of meaningful bits of each wire
+    private byte[] widths;
+
+    // The wires of the gate's pins
+    private int[] inputWires, outputWires, internalWires;
+
+    // The delegated BuiltIn parts
+    private BuiltInGate[] builtIns;
+
+    // The wires of the delegated BuiltIn parts' pins
+    private int[][] builtInInputWires, builtInOutputWires;
+
+    /**
+     * Constructs a new BatchEvaluator for the given netlist.
+     * Throws InstantiationException if the netlist's gate is clocked.
+     */
+    public BatchEvaluator(GateNetlist netlist) throws InstantiationException {
+        if (netlist.getGateClass().isClocked() || netlist.isClockParticipating())
+            throw new InstantiationException("A clocked chip can't be evaluated in batches");
+
+        this.netlist = netlist;
+        inputWires = netlist.getInputWires();
+        outputWires = netlist.getOutputWires();
+        internalWires = netlist.getInternalWires();
+        builtInInputWires = netlist.getBuiltInInputWires();
+        builtInOutputWires = netlist.getBuiltInOutputWires();
+
+        BuiltInGateClass[] builtInClasses = netlist.getBuiltInClasses();
+        builtIns = new BuiltInGate[builtInClasses.length];
+        for (int i = 0; i < builtIns.length; i++)
+            builtIns[i] = (BuiltInGate)builtInClasses[i].newInstance();
+
+        // broadcast the constant values to all the lanes
+        short[] initialWires = netlist.getInitialWires();
+        planes = new long[initialWires.length * 16];
+        widths = new byte[initialWires.length];
+        for (int w = 0; w < initialWires.length; w++) {
+            for (int b = 0; b < 16; b++)
+                if ((initialWires[w] & (1 << b)) != 0) {
+                    planes[w * 16 + b] = -1L;
+                    widths[w] = (byte)(b + 1);
+                }
+        }
+
+        PinInfo[] inputPinsInfo = netlist.getGateClass().inputPinsInfo;
+        for (int i = 0; i < inputWires.length; i++)
+            widths[inputWires[i]] = inputPinsInfo[i].width;
+
+        program = compile(netlist.getEvalProgram(), builtInClasses);
+    }
+
+    /**
+     * Returns the netlist which this evaluator runs.
+     */
+    public GateNetlist getNetlist() {
+        return netlist;
+    }
+
+    /**
+     * Sets the value of the given input pin in the given lane.
+     */
+    public void setInput(int pinNumber, int lane, short value) {
+        setWire(inputWires[pinNumber], lane, value);
+    }
+
+    /**
+     * Returns the value of the given input pin in the given lane.
+     */
+    public short getInput(int pinNumber, int lane) {
+        return getWire(inputWires[pinNumber], lane);
+    }
+
+    /**
+     * Returns the value of the given output pin in the given lane.
+     */
+    public short getOutput(int pinNumber, int lane) {
+        return getWire(outputWires[pinNumber], lane);
+    }
+
+    /**
+     * Returns the value of the given internal pin in the given lane.
+     */
+    public short getInternal(int pinNumber, int lane) {
+        return getWire(internalWires[pinNumber], lane);
+    }
+
+    /**
+     * Evaluates the netlist in the first given amount of lanes.
+     * (The other lanes may be left with meaningless values).
+     */
+    public void eval(int lanesCount) {
+        long[] p = planes;
+        int[] code = program;
+        int pc = 0;
+
+        while (pc < code.length) {
+            switch (code[pc]) {
+                case OP_MOVE:
+                    p[code[pc + 1]] = p[code[pc + 2]];
+                    pc += 3;
+                    break;
+
+                case OP_ZERO:
+                    p[code[pc + 1]] = 0;
+                    pc += 2;
+                    break;
+
+                case OP_NAND:
+                    p[code[pc + 1]] = ~(p[code[pc + 2]] & p[code[pc + 3]]);
+                    pc += 4;
+                    break;
+
+                case OP_NOT:
+                    p[code[pc + 1]] = ~p[code[pc + 2]];
+                    pc += 3;
+                    break;
+
+                case OP_AND:
+                    p[code[pc + 1]] = p[code[pc + 2]] & p[code[pc + 3]];
+                    pc += 4;
+                    break;
+
+                case OP_OR:
+                    p[code[pc + 1]] = p[code[pc + 2]] | p[code[pc + 3]];
+                    pc += 4;
+                    break;
+
+                case OP_XOR:
+                    p[code[pc + 1]] = p[code[pc + 2]] ^ p[code[pc + 3]];
+                    pc += 4;
+                    break;
+
+                case OP_MUX: {
+                    long sel = p[code[pc + 4]];
+                    p[code[pc + 1]] = (p[code[pc + 2]] & ~sel) | (p[code[pc + 3]] & sel);
+                    pc += 5;
+                    break;
+                }
+
+                case OP_DMUX: {
+                    long in = p[code[pc + 3]];
+                    long sel = p[code[pc + 4]];
+                    p[code[pc + 1]] = in & ~sel;
+                    p[code[pc + 2]] = in & sel;
+                    pc += 5;
+                    break;
+                }
+
+                case OP_BUILTIN:
+                    evalBuiltIn(code[pc + 1], lanesCount);
+                    pc += 2;
+                    break;
+            }
+        }
+    }
+
+    // Evaluates the given delegated BuiltIn part in the first given amount of lanes,
+    // lane by lane.
+    private void evalBuiltIn(int index, int lanesCount) {
+        Node[] inputNodes = builtIns[index].inputPins;
+        Node[] outputNodes = builtIns[index].outputPins;
+        int[] inWires = builtInInputWires[index];
+        int[] outWires = builtInOutputWires[index];
+
+        for (int i = 0; i < outWires.length; i++)
+            for (int b = 0; b < 16; b++)
+                planes[outWires[i] * 16 + b] = 0;
+
+        for (int lane = 0; lane < lanesCount; lane++) {
+            for (int i = 0; i < inWires.length; i++)
+                inputNodes[i].set(getWire(inWires[i], lane));
+
+            builtIns[index].reCompute();
+
+            for (int i = 0; i < outWires.length; i++) {
+                int value = outputNodes[i].get();
+                int base = outWires[i] * 16;
+                for (int b = 0; value != 0; b++, value = (value & 0xffff) >>> 1)
+                    planes[base + b] |= (long)(value & 1) << lane;
+            }
+        }
+    }
+
+    // Sets the value of the given wire in the given lane.
+    private void setWire(int wire, int lane, short value) {
+        long bit = 1L << lane;
+        int base = wire * 16;
+        for (int b = 0; b < 16; b++)
+            if ((value & (1 << b)) != 0)
+                planes[base + b] |= bit;
+            else
+                planes[base + b] &= ~bit;
+    }
+
+    // Returns the value of the given wire in the given lane.
+    private short getWire(int wire, int lane) {
+        int value = 0;
+        int base = wire * 16;
+        for (int b = 0; b < 16; b++)
+            value |= (int)((planes[base + b] >>> lane) & 1) << b;
+
+        return (short)value;
+    }
+
+    // Translates the given netlist eval program into a batch program, which works on
+    // the bit planes of the wires. Only the meaningful bits of each wire are computed.
+    private int[] compile(int[] evalProgram, BuiltInGateClass[] builtInClasses) {
+        IntList code = new IntList(evalProgram.length * 4);
+        int[] w = evalProgram;
+        int pc = 0;
+
+        while (pc < w.length) {
+            int opCode = w[pc];
+            switch (opCode) {
+                case GateNetlist.OP_COPY: {
+                    int source = w[pc + 1], target = w[pc + 2], shiftRight = w[pc + 3];
+                    int mask = w[pc + 4], shiftLeft = w[pc + 5];
+                    int bits = Integer.bitCount(mask);
+                    int width = widths[target];
+                    for (int i = 0; i < bits && shiftLeft + i < 16; i++) {
+                        int targetPlane = target * 16 + shiftLeft + i;
+                        int sourceBit = shiftRight + i;
+                        if (sourceBit < widths[source]) {
+                            add(code, OP_MOVE, targetPlane, source * 16 + sourceBit);
+                            width = Math.max(width, shiftLeft + i + 1);
+                        }
+                        else if (shiftLeft + i < widths[target]) // may hold a non zero bit
+                            add(code, OP_ZERO, targetPlane);
+                    }
+                    widths[target] = (byte)width;
+                    break;
+                }
+
+                case GateNetlist.OP_NAND:
+                    add(code, OP_NAND, w[pc + 3] * 16, w[pc + 1] * 16, w[pc + 2] * 16);
+                    widths[w[pc + 3]] = 1;
+                    break;
+
+                case GateNetlist.OP_NOT:
+                    add(code, OP_NOT, w[pc + 2] * 16, w[pc + 1] * 16);
+                    widths[w[pc + 2]] = 1;
+                    break;
+
+                case GateNetlist.OP_NOT16:
+                    for (int b = 0; b < 16; b++)
+                        add(code, OP_NOT, w[pc + 2] * 16 + b, w[pc + 1] * 16 + b);
+                    widths[w[pc + 2]] = 16;
+                    break;
+
+                case GateNetlist.OP_AND:
+                case GateNetlist.OP_OR:
+                case GateNetlist.OP_XOR: {
+                    int a = w[pc + 1], b = w[pc + 2], out = w[pc + 3];
+                    int width = (opCode == GateNetlist.OP_AND ? Math.min(widths[a], widths[b])
+                                                              : Math.max(widths[a], widths[b]));
+                    int batchOp = (opCode == GateNetlist.OP_AND ? OP_AND :
+                                   (opCode == GateNetlist.OP_OR ? OP_OR : OP_XOR));
+                    for (int i = 0; i < width; i++)
+                        add(code, batchOp, out * 16 + i, a * 16 + i, b * 16 + i);
+                    widths[out] = (byte)width;
+                    break;
+                }
+
+                case GateNetlist.OP_MUX: {
+                    int a = w[pc + 1], b = w[pc + 2], sel = w[pc + 3], out = w[pc + 4];
+                    int width = Math.max(widths[a], widths[b]);
+                    for (int i = 0; i < width; i++)
+                        add(code, OP_MUX, out * 16 + i, a * 16 + i, b * 16 + i, sel * 16);
+                    widths[out] = (byte)width;
+                    break;
+                }
+
+                case GateNetlist.OP_DMUX: {
+                    int in = w[pc + 1], sel = w[pc + 2], a = w[pc + 3], b = w[pc + 4];
+                    for (int i = 0; i < widths[in]; i++)
+                        add(code, OP_DMUX, a * 16 + i, b * 16 + i, in * 16 + i, sel * 16);
+                    widths[a] = widths[in];
+                    widths[b] = widths[in];
+                    break;
+                }
+
+                case GateNetlist.OP_BUILTIN_EVAL: {
+                    int index = w[pc + 1];
+                    add(code, OP_BUILTIN, index);
+                    int[] outWires = builtInOutputWires[index];
+                    for (int i = 0; i < outWires.length; i++)
+                        widths[outWires[i]] = builtInClasses[index].outputPinsInfo[i].width;
+                    break;
+                }
+            }
+
+            pc += GateNetlist.getOpLength(opCode);
+        }
+
+        return code.toArray();
+    }
+
+    // Adds an op with the given operands to the given code.
+    private static void add(IntList code, int opCode, int operand) {
+        code.add(opCode);
+        code.add(operand);
+    }
+
+    // Adds an op with the given operands to the given code.
+    private static void add(IntList code, int opCode, int operand1, int operand2) {
+        add(code, opCode, operand1);
+        code.add(operand2);
+    }
+
+    // Adds an op with the given operands to the given code.
+    private static void add(IntList code, int opCode, int operand1, int operand2,
+                            int operand3) {
+        add(code, opCode, operand1, operand2);
+        code.add(operand3);
+    }
+
+    // Adds an op with the given operands to the given code.
+    private static void add(IntList code, int opCode, int operand1, int operand2,
+                            int operand3, int operand4) {
+        add(code, opCode, operand1, operand2, operand3);
+        code.add(operand4);
+    }
+
+    // A growable list of ints.
+    private static class IntList {
+
+        // the list's values
+        private int[] values;
+
+        // the amount of values in the list
+        private int size;
+
+        public IntList(int capacity) {
+            values = new int[Math.max(capacity, 16)];
+        }
+
+        public void add(int value) {
+            if (size == values.length) {
+                int[] grown = new int[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+
+            values[size++] = value;
+        }
+
+        public int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -25,6 +25,9 @@ public class BuiltInGateClass extends GateClass {
     // the java class that holds the basic gate functionality
     private Class javaGateClass;
 
+    // the name of the java class, as given in the BUILTIN declaration
+    private String builtInName;
+
     /**
      * Constructs a new BuiltInGateClass with the given gate name and the HDLTokenizer
      * input which is positioned just after the BUILTIN declaration.
@@ -40,6 +43,7 @@ public class BuiltInGateClass extends GateClass {
             input.HDLError("Missing java class name");
 
         String classFileName = input.getIdentifier();
+        builtInName = classFileName;
         String fullName = GatesManager.getInstance().getBuiltInDir() + "." + classFileName;
 
         try {
@@ -108,6 +112,26 @@ public class BuiltInGateClass extends GateClass {
                 input.HDLError("Missing '}'");
     }
 
+    // Constructs a new BuiltInGateClass with the given information, which was read
+    // from the HDL file earlier (used by the HDLCache).
+    BuiltInGateClass(String gateName, PinInfo[] inputPinsInfo, PinInfo[] outputPinsInfo,
+                     Class javaGateClass, String builtInName, boolean[] isInputClocked,
+                     boolean[] isOutputClocked, boolean isClocked) {
+        super(gateName, inputPinsInfo, outputPinsInfo);
+        this.javaGateClass = javaGateClass;
+        this.builtInName = builtInName;
+        this.isInputClocked = isInputClocked;
+        this.isOutputClocked = isOutputClocked;
+        this.isClocked = isClocked;
+    }
+
+    /**
+     * Returns the name of the java class, as given in the BUILTIN declaration.
+     */
+    public String getBuiltInName() {
+        return builtInName;
+    }
+
     /**
      * Creates and returns a new instance of BuiltInGate.
      */
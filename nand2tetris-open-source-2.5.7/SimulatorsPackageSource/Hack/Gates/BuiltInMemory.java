@@ -17,46 +17,24 @@
 
 package Hack.Gates;
 
-import java.util.*;
-
 /**
- * A set of nodes.
+ * A BuiltIn memory chip, whose output is the value of its memory at its address input.
+ * A writable memory has the input pins in, load and address (in this order), and
+ * writes in to the memory at address on the clock's rise when load is 1. A read only
+ * memory has the address input pin only.
+ * Compiled gates read and write the memory of such chips directly when the chips have
+ * no gui, so the memory array may never be replaced.
  */
-public class NodeSet extends Vector {
-
-    /**
-     * Creates a new NodeSet.
-     */
-    public NodeSet() {
-        super(1,1);
-    }
-
-    /**
-     * Adds the given node to the set.
-     */
-    public boolean add(Node node) {
-        return super.add(node);
-    }
-
-    /**
-     * Removes the given node from the set.
-     */
-    public boolean remove(Node node) {
-        return super.remove(node);
-    }
+public interface BuiltInMemory {
 
     /**
-     * Returns true if this set contains the given node.
+     * Returns the memory array of this chip.
      */
-    public boolean contains(Node node) {
-        return super.contains(node);
-    }
+    public short[] getContents();
 
     /**
-     * Returns the Node at the given index.
-     * (Assumes a legal index).
+     * Copies the given values to the beginning of the memory, and clears the rest
+     * of it. Then updates the chip's gui and output and re-evaluates its parent.
      */
-    public Node getNodeAt(int index) {
-        return (Node)elementAt(index);
-    }
+    public void setContents(short[] values);
 }
@@ -0,0 +1,303 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+/**
+ * A composite gate which is evaluated by running the programs of its GateNetlist over
+ * a flat array of wires, instead of through the Gate objects of its parts.
+ * The gate has no parts of its own. Its input, output and internal nodes are
+ * synchronized with the wires array before and after each program run.
+ */
+public class CompiledGate extends CompositeGate {
+
+    // The netlist of this gate.
+    private GateNetlist netlist;
+
+    // The values of the wires
+    private short[] wires;
+
+    // The netlist's programs
+    private int[] evalProgram, tickProgram, tockProgram;
+
+    // The wires of the gate's pins
+    private int[] inputWires, outputWires, internalWires;
+
+    // The delegated BuiltIn parts
+    private BuiltInGate[] builtIns;
+
+    // The clock node of the simulation
+    private Node clockNode;
+
+    // The wires of the delegated BuiltIn parts' pins
+    private int[][] builtInInputWires, builtInOutputWires;
+
+    // The memory arrays of the delegated BuiltIn memories without gui (null for other parts)
+    private short[][] memories;
+
+    /**
+     * Constructs a new CompiledGate which runs the given netlist.
+     */
+    public CompiledGate(GateNetlist netlist) throws InstantiationException {
+        this.netlist = netlist;
+
+        wires = netlist.getInitialWires().clone();
+        evalProgram = netlist.getEvalProgram();
+        tickProgram = netlist.getTickProgram();
+        tockProgram = netlist.getTockProgram();
+        inputWires = netlist.getInputWires();
+        outputWires = netlist.getOutputWires();
+        internalWires = netlist.getInternalWires();
+        builtInInputWires = netlist.getBuiltInInputWires();
+        builtInOutputWires = netlist.getBuiltInOutputWires();
+
+        BuiltInGateClass[] builtInClasses = netlist.getBuiltInClasses();
+        builtIns = new BuiltInGate[builtInClasses.length];
+        for (int i = 0; i < builtIns.length; i++) {
+            builtIns[i] = (BuiltInGate)builtInClasses[i].newInstance();
+            if (builtIns[i] instanceof BuiltInGateWithGUI) // save the parent of gates with gui
+                ((BuiltInGateWithGUI)builtIns[i]).setParent(this);
+        }
+
+        // BuiltIn memories without gui are read and written directly by the programs,
+        // instead of through their BuiltInGate objects.
+        memories = new short[builtIns.length][];
+        boolean memoryFound = false;
+        for (int i = 0; i < builtIns.length; i++)
+            if (builtIns[i] instanceof BuiltInMemory &&
+                !(builtIns[i] instanceof BuiltInGateWithGUI &&
+                  ((BuiltInGateWithGUI)builtIns[i]).getGUIComponent() != null)) {
+                memories[i] = ((BuiltInMemory)builtIns[i]).getContents();
+                memoryFound = true;
+            }
+
+        if (memoryFound) {
+            evalProgram = replaceMemoryOps(evalProgram);
+            tickProgram = replaceMemoryOps(tickProgram);
+            tockProgram = replaceMemoryOps(tockProgram);
+        }
+
+        GateClass gateClass = netlist.getGateClass();
+        Node[] inputNodes = new Node[inputWires.length];
+        Node[] outputNodes = new Node[outputWires.length];
+        Node[] internalNodes = new Node[internalWires.length];
+
+        for (int i = 0; i < inputNodes.length; i++)
+            inputNodes[i] = new Node();
+
+        for (int i = 0; i < outputNodes.length; i++)
+            outputNodes[i] = new Node();
+
+        for (int i = 0; i < internalNodes.length; i++)
+            internalNodes[i] = new Node();
+
+        // Add a DirtyGateAdapter as a listener to all the non-clocked inputs,
+        // so the gate will become dirty when one of its non-clocked input changes.
+        Node adapter = new DirtyGateAdapter(this);
+        for (int i = 0; i < gateClass.isInputClocked.length; i++)
+            if (!gateClass.isInputClocked[i])
+                inputNodes[i].addListener(adapter);
+
+        // If the clock special node appears in this gate, Add a dirty gate adapter
+        // such that changes in clock state will cause this gate to recompute.
+        clockNode = GatesManager.getInstance().getClockNode();
+        if (netlist.isClockParticipating())
+            clockNode.addListener(new DirtyGateAdapter(this));
+
+        init(inputNodes, outputNodes, internalNodes, new Gate[0], gateClass);
+    }
+
+    // Returns a copy of the given program, in which the BuiltIn operations of the
+    // memories are replaced with memory operations.
+    private int[] replaceMemoryOps(int[] program) {
+        int[] result = program.clone();
+
+        for (int pc = 0; pc < result.length; pc += GateNetlist.getOpLength(result[pc])) {
+            int opCode = result[pc];
+            if ((opCode == GateNetlist.OP_BUILTIN_EVAL || opCode == GateNetlist.OP_BUILTIN_UP ||
+                 opCode == GateNetlist.OP_BUILTIN_DOWN) && memories[result[pc + 1]] != null)
+                result[pc] = (opCode == GateNetlist.OP_BUILTIN_UP ? GateNetlist.OP_MEMORY_WRITE
+                                                                  : GateNetlist.OP_MEMORY_READ);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the netlist of this gate.
+     */
+    public GateNetlist getNetlist() {
+        return netlist;
+    }
+
+    protected void reCompute() {
+        for (int i = 0; i < inputWires.length; i++)
+            wires[inputWires[i]] = inputPins[i].get();
+        wires[GateNetlist.CLOCK_WIRE] = clockNode.get();
+
+        run(evalProgram);
+
+        for (int i = 0; i < outputWires.length; i++)
+            outputPins[i].set(wires[outputWires[i]]);
+        for (int i = 0; i < internalWires.length; i++)
+            internalPins[i].set(wires[internalWires[i]]);
+    }
+
+    protected void clockUp() {
+        if (gateClass.isClocked)
+            run(tickProgram);
+    }
+
+    protected void clockDown() {
+        if (gateClass.isClocked)
+            run(tockProgram);
+    }
+
+    // Runs the given program over the wires.
+    private void run(int[] program) {
+        short[] w = wires;
+        int pc = 0;
+
+        while (pc < program.length) {
+            switch (program[pc]) {
+                case GateNetlist.OP_COPY:
+                    w[program[pc + 2]] = (short)((w[program[pc + 2]] & program[pc + 6]) |
+                                                 ((((w[program[pc + 1]] & 0xffff) >>> program[pc + 3])
+                                                   & program[pc + 4]) << program[pc + 5]));
+                    pc += 7;
+                    break;
+
+                case GateNetlist.OP_NAND:
+                    w[program[pc + 3]] = (short)(0x1 - (w[program[pc + 1]] & w[program[pc + 2]]));
+                    pc += 4;
+                    break;
+
+                case GateNetlist.OP_NOT:
+                    w[program[pc + 2]] = (short)(1 - w[program[pc + 1]]);
+                    pc += 3;
+                    break;
+
+                case GateNetlist.OP_NOT16:
+                    w[program[pc + 2]] = (short)(~w[program[pc + 1]]);
+                    pc += 3;
+                    break;
+
+                case GateNetlist.OP_AND:
+                    w[program[pc + 3]] = (short)(w[program[pc + 1]] & w[program[pc + 2]]);
+                    pc += 4;
+                    break;
+
+                case GateNetlist.OP_OR:
+                    w[program[pc + 3]] = (short)(w[program[pc + 1]] | w[program[pc + 2]]);
+                    pc += 4;
+                    break;
+
+                case GateNetlist.OP_XOR:
+                    w[program[pc + 3]] = (short)(w[program[pc + 1]] ^ w[program[pc + 2]]);
+                    pc += 4;
+                    break;
+
+                case GateNetlist.OP_MUX:
+                    w[program[pc + 4]] = (w[program[pc + 3]] == 0 ? w[program[pc + 1]]
+                                                                   : w[program[pc + 2]]);
+                    pc += 5;
+                    break;
+
+                case GateNetlist.OP_DMUX: {
+                    short in = w[program[pc + 1]];
+                    boolean sel = (w[program[pc + 2]] == 0);
+                    w[program[pc + 3]] = (sel ? in : 0);
+                    w[program[pc + 4]] = (sel ? 0 : in);
+                    pc += 5;
+                    break;
+                }
+
+                case GateNetlist.OP_MOVE:
+                    w[program[pc + 2]] = w[program[pc + 1]];
+                    pc += 3;
+                    break;
+
+                case GateNetlist.OP_COND_MOVE:
+                    if (w[program[pc + 2]] == 1)
+                        w[program[pc + 3]] = w[program[pc + 1]];
+                    pc += 4;
+                    break;
+
+                case GateNetlist.OP_BUILTIN_EVAL: {
+                    int index = program[pc + 1];
+                    setBuiltInInputs(index);
+                    builtIns[index].reCompute();
+                    getBuiltInOutputs(index);
+                    pc += 2;
+                    break;
+                }
+
+                case GateNetlist.OP_BUILTIN_UP: {
+                    int index = program[pc + 1];
+                    setBuiltInInputs(index);
+                    builtIns[index].clockUp();
+                    pc += 2;
+                    break;
+                }
+
+                case GateNetlist.OP_BUILTIN_DOWN: {
+                    int index = program[pc + 1];
+                    setBuiltInInputs(index);
+                    builtIns[index].clockDown();
+                    getBuiltInOutputs(index);
+                    pc += 2;
+                    break;
+                }
+
+                // the address is the last input pin (after in and load, if writable)
+                case GateNetlist.OP_MEMORY_READ: {
+                    int index = program[pc + 1];
+                    int[] inWires = builtInInputWires[index];
+                    w[builtInOutputWires[index][0]] =
+                        memories[index][w[inWires[inWires.length - 1]] & 0xffff];
+                    pc += 2;
+                    break;
+                }
+
+                case GateNetlist.OP_MEMORY_WRITE: {
+                    int index = program[pc + 1];
+                    int[] inWires = builtInInputWires[index];
+                    if (w[inWires[1]] == 1)
+                        memories[index][w[inWires[2]] & 0xffff] = w[inWires[0]];
+                    pc += 2;
+                    break;
+                }
+            }
+        }
+    }
+
+    // Sets the input nodes of the given delegated BuiltIn part from the wires.
+    private void setBuiltInInputs(int index) {
+        Node[] nodes = builtIns[index].inputPins;
+        int[] pinWires = builtInInputWires[index];
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i].set(wires[pinWires[i]]);
+    }
+
+    // Sets the wires from the output nodes of the given delegated BuiltIn part.
+    private void getBuiltInOutputs(int index) {
+        Node[] nodes = builtIns[index].outputPins;
+        int[] pinWires = builtInOutputWires[index];
+        for (int i = 0; i < nodes.length; i++)
+            wires[pinWires[i]] = nodes[i].get();
+    }
+}
@@ -25,21 +25,21 @@ public class CompositeGate extends Gate {
     // The contained parts (Gates), sorted in topological order.
     protected Gate[] parts;
 
+    // Schedules the re-computation of the dirty parts.
+    protected PartsScheduler scheduler;
+
     protected void clockUp() {
         if (gateClass.isClocked)
-            for (int i = 0; i < parts.length; i++)
-                parts[i].tick();
+            scheduler.tickParts();
     }
 
     protected void clockDown() {
         if (gateClass.isClocked)
-            for (int i = 0; i < parts.length; i++)
-                parts[i].tock();
+            scheduler.tockParts();
     }
 
     protected void reCompute() {
-        for (int i = 0; i < parts.length; i++)
-            parts[i].eval();
+        scheduler.evalDirtyParts();
     }
 
     /**
@@ -73,6 +73,43 @@ public class CompositeGate extends Gate {
         return parts;
     }
 
+    /**
+     * Returns the amount of part evaluations performed by re-computations of this gate
+     * and of all its composite parts.
+     */
+    public long getEvaluatedPartsCount() {
+        long result = scheduler.getEvaluatedCount();
+        for (int i = 0; i < parts.length; i++)
+            if (parts[i] instanceof CompositeGate)
+                result += ((CompositeGate)parts[i]).getEvaluatedPartsCount();
+
+        return result;
+    }
+
+    /**
+     * Returns the amount of part evaluations skipped by re-computations of this gate
+     * and of all its composite parts, since the parts were not dirty.
+     */
+    public long getSkippedPartsCount() {
+        long result = scheduler.getSkippedCount();
+        for (int i = 0; i < parts.length; i++)
+            if (parts[i] instanceof CompositeGate)
+                result += ((CompositeGate)parts[i]).getSkippedPartsCount();
+
+        return result;
+    }
+
+    /**
+     * Resets the evaluated and skipped parts counters of this gate and of all its
+     * composite parts.
+     */
+    public void resetPartsCounters() {
+        scheduler.resetCounters();
+        for (int i = 0; i < parts.length; i++)
+            if (parts[i] instanceof CompositeGate)
+                ((CompositeGate)parts[i]).resetPartsCounters();
+    }
+
     /**
      * Initializes the gate
      */
@@ -83,6 +120,7 @@ public class CompositeGate extends Gate {
         this.internalPins = internalPins;
         this.parts = parts;
         this.gateClass = gateClass;
+        scheduler = new PartsScheduler(parts);
         setDirty();
     }
 
@@ -30,6 +30,11 @@ public class CompositeGateClass extends GateClass {
      */
     public static final byte INTERNAL_PIN_TYPE = 3;
 
+    // The types of the special nodes in the connections graph
+    private static final byte TRUE_NODE_TYPE = 4;
+    private static final byte FALSE_NODE_TYPE = 5;
+    private static final byte CLOCK_NODE_TYPE = 6;
+
     /**
      * The info of the "true" special node
      */
@@ -47,16 +52,19 @@ public class CompositeGateClass extends GateClass {
 
 
     // internal pins info
-    protected Vector internalPinsInfo;
+    protected final Vector internalPinsInfo;
 
     // The list of contained GateClasses (parts)
-    private Vector partsList;
+    private final Vector partsList;
 
     // Array of indice of parts (taken from the parts vector), in a topological order.
-    private int[] partsOrder;
+    private final int[] partsOrder;
 
     // The set of connections between the gate and its parts
-    private ConnectionSet connections;
+    private final ConnectionSet connections;
+
+    // The flat netlist of this gate (created on demand).
+    private GateNetlist netlist;
 
     /**
      * Constructs a new CompositeGateClass with the given gate name and the HDLTokenizer input
@@ -75,35 +83,62 @@ public class CompositeGateClass extends GateClass {
 
         readParts(input);
 
-        Graph graph = createConnectionsGraph();
+        IntGraph graph = createConnectionsGraph();
 
-        // runs the topological sort, starting from the "master parts" node,
-        // which connects to all the parts. This will also check for circles.
-        Object[] topologicalOrder = graph.topologicalSort(partsList);
+        // runs the topological sort, which will also check for circles.
+        int[] topologicalOrder = graph.topologicalSort();
 
         if (graph.hasCircle())
             throw new HDLException("This chip has a circle in its parts connections");
 
         // create the partsOrder array, by taking from the topologicalOrder
-        // only the Integer objects, which represent the parts.
+        // only the nodes which represent the parts.
         partsOrder = new int[partsList.size()];
         int counter = 0;
         for (int i = 0; i < topologicalOrder.length; i++) {
-            if (topologicalOrder[i] instanceof Integer)
-                partsOrder[counter++] = ((Integer)topologicalOrder[i]).intValue();
+            if (topologicalOrder[i] < partsOrder.length)
+                partsOrder[counter++] = topologicalOrder[i];
+        }
+
+        // find for every node the input pins from which there is a path to it.
+        int[] inputNodes = new int[inputPinsInfo.length];
+        for (int i = 0; i < inputNodes.length; i++)
+            inputNodes[i] = getGraphNode(INPUT_PIN_TYPE, i);
+        BitSet[] reachingInputs = graph.getReachingSources(inputNodes, topologicalOrder);
+
+        // an output pin is clocked if there is no path to it from any input pin.
+        // an input pin is clocked if there is no path from it to any output pin.
+        BitSet connectedInputs = new BitSet();
+        for (int i = 0; i < outputPinsInfo.length; i++) {
+            BitSet outputReachingInputs = reachingInputs[getGraphNode(OUTPUT_PIN_TYPE, i)];
+            isOutputClocked[i] = outputReachingInputs.isEmpty();
+            connectedInputs.or(outputReachingInputs);
         }
 
-        // for each input pin, check if there is a path in the graph to an output pin
-        // (actually to the "master output", which all outputs connect to).
-        // If there is, the input is not clocked. Otherwise, it is.
         for (int i = 0; i < inputPinsInfo.length; i++)
-            isInputClocked[i] = !graph.pathExists(inputPinsInfo[i], outputPinsInfo);
+            isInputClocked[i] = !connectedInputs.get(i);
+    }
+
+    // Constructs a new CompositeGateClass with the given information, which was read
+    // from the HDL file earlier (used by the HDLCache).
+    CompositeGateClass(String gateName, PinInfo[] inputPinsInfo, PinInfo[] outputPinsInfo,
+                       PinInfo[] internalPinsInfo, Vector partsList, int[] partsOrder,
+                       ConnectionSet connections, boolean[] isInputClocked,
+                       boolean[] isOutputClocked, boolean isClocked) {
+        super(gateName, inputPinsInfo, outputPinsInfo);
+
+        this.internalPinsInfo = new Vector(internalPinsInfo.length);
+        for (int i = 0; i < internalPinsInfo.length; i++) {
+            this.internalPinsInfo.addElement(internalPinsInfo[i]);
+            registerPin(internalPinsInfo[i], INTERNAL_PIN_TYPE, i);
+        }
 
-        // for each output pin, check if there is a path in the graph from any input pin
-        // (actually from the "master input", which connects to all inputs) to this output pin.
-        // If there is, the output is not clocked. Otherwise, it is.
-        for (int i = 0; i < outputPinsInfo.length; i++)
-            isOutputClocked[i] = !graph.pathExists(inputPinsInfo, outputPinsInfo[i]);
+        this.partsList = partsList;
+        this.partsOrder = partsOrder;
+        this.connections = connections;
+        this.isInputClocked = isInputClocked;
+        this.isOutputClocked = isOutputClocked;
+        this.isClocked = isClocked;
     }
 
     // Reads the parts list from the given HDL input
@@ -124,7 +159,7 @@ public class CompositeGateClass extends GateClass {
                     input.HDLError("A GateClass name is expected");
 
                 String partName = input.getIdentifier();
-                GateClass gateClass = getGateClass(partName, false);
+                GateClass gateClass = findGateClass(partName, false);
                 partsList.addElement(gateClass);
                 isClocked = isClocked || gateClass.isClocked;
                 int partNumber = partsList.size() - 1;
@@ -401,84 +436,99 @@ public class CompositeGateClass extends GateClass {
 
     /*
       Creates and returns the graph of the connections in the chip.
-      The nodes in the graph are:
-      1. Internal parts, represented with Integer objects containing the part's numbers.
-      2. Input, Output, Internal and special nodes, represented with their PinInfo objects.
-      3. One "master part" node that connects to all the inernal parts, represented with the
-         partsList vector.
-      4. One "master output" node that all output nodes connect to, represented with the
-         outputPinsInfo array.
-      5. One "master input" node that connects to all input nodes, represented with the
-         inputPinsInfo array.
+      The nodes in the graph are numbered by getGraphNode: the parts, followed by the
+      input, output and internal pins, followed by the "true", "false" and "clock"
+      special nodes.
       Edges are not created between inetrnal nodes and clocked part inputs.
     */
-    private Graph createConnectionsGraph() {
-        Graph graph = new Graph();
+    private IntGraph createConnectionsGraph() {
+        IntGraph graph = new IntGraph(getGraphNode(CLOCK_NODE_TYPE, 0) + 1);
         Iterator connectionIter = connections.iterator();
 
         while (connectionIter.hasNext()) {
             Connection connection = (Connection)connectionIter.next();
-            Integer part = new Integer(connection.getPartNumber());
+            int part = connection.getPartNumber();
             int gatePinNumber = connection.getGatePinNumber();
 
             switch (connection.getType()) {
                 case Connection.TO_INTERNAL:
                     if (isLegalFromPartEdge(connection, part))
-                        graph.addEdge(part, getPinInfo(INTERNAL_PIN_TYPE, gatePinNumber));
+                        graph.addEdge(part, getGraphNode(INTERNAL_PIN_TYPE, gatePinNumber));
                     break;
 
                 case Connection.FROM_INTERNAL:
                     if (isLegalToPartEdge(connection, part))
-                        graph.addEdge(getPinInfo(INTERNAL_PIN_TYPE, gatePinNumber), part);
+                        graph.addEdge(getGraphNode(INTERNAL_PIN_TYPE, gatePinNumber), part);
                     break;
 
                 case Connection.TO_OUTPUT:
                     if (isLegalFromPartEdge(connection, part))
-                        graph.addEdge(part, getPinInfo(OUTPUT_PIN_TYPE, gatePinNumber));
+                        graph.addEdge(part, getGraphNode(OUTPUT_PIN_TYPE, gatePinNumber));
                     break;
 
                 case Connection.FROM_INPUT:
                     if (isLegalToPartEdge(connection, part))
-                        graph.addEdge(getPinInfo(INPUT_PIN_TYPE, gatePinNumber), part);
+                        graph.addEdge(getGraphNode(INPUT_PIN_TYPE, gatePinNumber), part);
                     break;
 
                 case Connection.FROM_TRUE:
                     if (isLegalToPartEdge(connection, part))
-                        graph.addEdge(TRUE_NODE_INFO, part);
+                        graph.addEdge(getGraphNode(TRUE_NODE_TYPE, 0), part);
                     break;
 
                 case Connection.FROM_FALSE:
                     if (isLegalToPartEdge(connection, part))
-                        graph.addEdge(FALSE_NODE_INFO, part);
+                        graph.addEdge(getGraphNode(FALSE_NODE_TYPE, 0), part);
                     break;
 
                 case Connection.FROM_CLOCK:
                     if (isLegalToPartEdge(connection, part))
-                        graph.addEdge(CLOCK_NODE_INFO, part);
+                        graph.addEdge(getGraphNode(CLOCK_NODE_TYPE, 0), part);
                     break;
             }
         }
 
-        // connect the "master part" node to all the parts.
-        for (int i = 0; i < partsList.size(); i++)
-            graph.addEdge(partsList, new Integer(i));
+        return graph;
+    }
 
-        // connect all output pins to the "master output" node
-        for (int i = 0; i < outputPinsInfo.length; i++)
-            graph.addEdge(outputPinsInfo[i], outputPinsInfo);
+    // Returns the number of the node in the connections graph that represents the pin
+    // of the given type and number (the number is ignored for the special nodes).
+    private int getGraphNode(byte type, int number) {
+        int inputsStart = partsList.size();
+        int outputsStart = inputsStart + inputPinsInfo.length;
+        int internalsStart = outputsStart + outputPinsInfo.length;
+        int specialsStart = internalsStart + internalPinsInfo.size();
+        int result = 0;
 
-        // connect the "master input" node to all input pins
-        for (int i = 0; i < inputPinsInfo.length; i++)
-            graph.addEdge(inputPinsInfo, inputPinsInfo[i]);
+        switch (type) {
+            case INPUT_PIN_TYPE:
+                result = inputsStart + number;
+                break;
+            case OUTPUT_PIN_TYPE:
+                result = outputsStart + number;
+                break;
+            case INTERNAL_PIN_TYPE:
+                result = internalsStart + number;
+                break;
+            case TRUE_NODE_TYPE:
+                result = specialsStart;
+                break;
+            case FALSE_NODE_TYPE:
+                result = specialsStart + 1;
+                break;
+            case CLOCK_NODE_TYPE:
+                result = specialsStart + 2;
+                break;
+        }
 
-        return graph;
+        return result;
     }
 
     // Returns true if an edge should be connected to the given part.
     // a connection to a clocked input is not considered as a connection
     // in the graph.
-    private boolean isLegalToPartEdge(Connection connection, Integer part) {
-        GateClass partGateClass = (GateClass)partsList.elementAt(part.intValue());
+    private boolean isLegalToPartEdge(Connection connection, int part) {
+        GateClass partGateClass = (GateClass)partsList.elementAt(part);
         int partPinNumber = partGateClass.getPinNumber(connection.getPartPinName());
         return !partGateClass.isInputClocked[partPinNumber];
     }
@@ -486,8 +536,8 @@ public class CompositeGateClass extends GateClass {
     // Returns true if an edge should be connected from the given part.
     // a connection from a clocked output is not considered as a connection
     // in the graph.
-    private boolean isLegalFromPartEdge(Connection connection, Integer part) {
-        GateClass partGateClass = (GateClass)partsList.elementAt(part.intValue());
+    private boolean isLegalFromPartEdge(Connection connection, int part) {
+        GateClass partGateClass = (GateClass)partsList.elementAt(part);
         int partPinNumber = partGateClass.getPinNumber(connection.getPartPinName());
         return !partGateClass.isOutputClocked[partPinNumber];
     }
@@ -509,6 +559,76 @@ public class CompositeGateClass extends GateClass {
         return result;
     }
 
+    /**
+     * Returns true if the hdl file of this gate or of one of its parts has changed since
+     * it was read, or if a part's name now matches a different hdl file.
+     * The given set contains the GateClasses that were already found unchanged.
+     */
+    protected boolean isModified(Set unchanged) {
+        if (super.isModified(unchanged))
+            return true;
+
+        GatesManager manager = GatesManager.getInstance();
+        for (int i = 0; i < partsList.size(); i++) {
+            GateClass part = (GateClass)partsList.elementAt(i);
+            if (!unchanged.contains(part)) {
+                if (!part.fileName.equals(manager.getHDLFileName(part.name)) ||
+                    part.isModified(unchanged))
+                    return true;
+
+                unchanged.add(part);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the amount of parts of this gate.
+     */
+    public int getPartsCount() {
+        return partsList.size();
+    }
+
+    /**
+     * Returns the GateClass of the part with the given number.
+     */
+    public GateClass getPart(int partNumber) {
+        return (GateClass)partsList.elementAt(partNumber);
+    }
+
+    /**
+     * Returns the parts numbers, sorted in topological order.
+     */
+    public int[] getPartsOrder() {
+        return partsOrder;
+    }
+
+    /**
+     * Returns the set of connections between the gate and its parts.
+     */
+    public ConnectionSet getConnections() {
+        return connections;
+    }
+
+    /**
+     * Returns the flat netlist of this gate. The netlist is created on the first call.
+     */
+    public synchronized GateNetlist getNetlist() throws InstantiationException {
+        if (netlist == null)
+            netlist = new GateNetlist(this);
+
+        return netlist;
+    }
+
+    /**
+     * Creates and returns a new instance of CompiledGate, which evaluates
+     * this gate's flat netlist.
+     */
+    public Gate newCompiledInstance() throws InstantiationException {
+        return getNetlist().newInstance();
+    }
+
     /**
      * Creates and returns a new instance of CompositeGate.
      */
@@ -518,6 +638,8 @@ public class CompositeGateClass extends GateClass {
         Node[] internalNodes = new Node[internalPinsInfo.size()];
 
         CompositeGate result = new CompositeGate();
+        GatesManager manager = GatesManager.getInstance();
+        Node clockNode = manager.getClockNode();
 
         // Create instances (Gates) from all parts in the parts list (which are GateClasses).
         // The created array is sorted in the original parts order
@@ -614,7 +736,7 @@ public class CompositeGateClass extends GateClass {
                     break;
                 case Connection.FROM_TRUE:
                     SubNode subNode = new SubNode(gateSubBus[0], gateSubBus[1]);
-                    subNode.set(Gate.TRUE_NODE.get());
+                    subNode.set(manager.getTrueNode().get());
 
                     if (partSubBus == null)
                         partNode.set(subNode.get());
@@ -626,7 +748,7 @@ public class CompositeGateClass extends GateClass {
                     break;
                 case Connection.FROM_FALSE:
                     subNode = new SubNode(gateSubBus[0], gateSubBus[1]);
-                    subNode.set(Gate.FALSE_NODE.get());
+                    subNode.set(manager.getFalseNode().get());
 
                     if (partSubBus == null)
                         partNode.set(subNode.get());
@@ -637,8 +759,8 @@ public class CompositeGateClass extends GateClass {
 
                     break;
                 case Connection.FROM_CLOCK:
-                    partNode.set(Gate.CLOCK_NODE.get());
-                    Gate.CLOCK_NODE.addListener(partNode);
+                    partNode.set(clockNode.get());
+                    clockNode.addListener(partNode);
                     isClockParticipating = true;
                     break;
             }
@@ -647,7 +769,7 @@ public class CompositeGateClass extends GateClass {
         // If the clock special node appears in this gate, Add a dirty gate adapter
         // such that changes in clock state will cause this gate to recompute.
         if (isClockParticipating)
-            Gate.CLOCK_NODE.addListener(new DirtyGateAdapter(result));
+            clockNode.addListener(new DirtyGateAdapter(result));
 
         result.init(inputNodes, outputNodes, internalNodes, sortedParts, this);
 
@@ -24,21 +24,6 @@ import java.util.*;
  */
 public abstract class Gate {
 
-    /**
-     * The special "true" node.
-     */
-    public static final Node TRUE_NODE = new Node((short)-1);
-
-    /**
-     * The special "false" node.
-     */
-    public static final Node FALSE_NODE = new Node((short)0);
-
-    /**
-     * The special "clock" node.
-     */
-    public static final Node CLOCK_NODE = new Node();
-
     // the input pins
     protected Node[] inputPins;
 
@@ -54,6 +39,12 @@ public abstract class Gate {
     // A list of listeners to the isDirty property.
     private Vector dirtyGateListeners;
 
+    // The scheduler of the composite gate that contains this gate (if any).
+    private PartsScheduler scheduler;
+
+    // The rank of this gate in its scheduler.
+    private int rank;
+
     /**
      * Adds the given listener as a listener to the isDirty property.
      */
@@ -72,6 +63,15 @@ public abstract class Gate {
             dirtyGateListeners.remove(listener);
     }
 
+    /**
+     * Sets the scheduler of the composite gate that contains this gate, and the rank of
+     * this gate in it. The scheduler is notified whenever this gate gets dirty or clean.
+     */
+    void setScheduler(PartsScheduler scheduler, int rank) {
+        this.scheduler = scheduler;
+        this.rank = rank;
+    }
+
     /**
      * Re-computes the values of all output pins according to the gate's functionality.
      */
@@ -93,6 +93,8 @@ public abstract class Gate {
      */
     public void setDirty() {
         isDirty = true;
+        if (scheduler != null)
+            scheduler.mark(rank);
 
         // notify listeners
         if (dirtyGateListeners != null)
@@ -156,6 +158,8 @@ public abstract class Gate {
     private void doEval() {
         if (isDirty) {
             isDirty = false;
+            if (scheduler != null)
+                scheduler.unmark(rank);
 
             // notify listeners
             if (dirtyGateListeners != null)
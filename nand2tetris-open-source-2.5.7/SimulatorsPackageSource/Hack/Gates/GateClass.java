@@ -18,10 +18,13 @@
 package Hack.Gates;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
  * A factory and information source for gates.
+ * A GateClass doesn't change after it is created, so it may be shared between
+ * simulations that run on different threads.
  */
 public abstract class GateClass {
 
@@ -41,11 +44,11 @@ public abstract class GateClass {
     public static final byte OUTPUT_PIN_TYPE = 2;
 
     // input and output pin names
-    protected PinInfo[] inputPinsInfo;
-    protected PinInfo[] outputPinsInfo;
+    protected final PinInfo[] inputPinsInfo;
+    protected final PinInfo[] outputPinsInfo;
 
     // The name of the gate
-    protected String name;
+    protected final String name;
 
     // true if this gate is clocked
     protected boolean isClocked;
@@ -57,13 +60,19 @@ public abstract class GateClass {
     protected boolean[] isOutputClocked;
 
     // Mapping from pin names to their types (INPUT_PIN_TYPE, OUTPUT_PIN_TYPE)
-    protected Hashtable namesToTypes;
+    protected final Hashtable namesToTypes;
 
     // Mapping from pin names to their numbers (Integer objects)
-    protected Hashtable namesToNumbers;
+    protected final Hashtable namesToNumbers;
 
-    // a table that maps a gate name with its GateClass
-    protected static Hashtable GateClasses = new Hashtable();
+    // The full name of the hdl file of this gate, its modification time when read
+    // and the hash of its content
+    protected String fileName;
+    protected long lastModified;
+    protected byte[] contentHash;
+
+    // a table that maps an hdl file name with its GateClass
+    private static ConcurrentHashMap GateClasses = new ConcurrentHashMap();
 
 
     // Constructs a new GateCLass (public access through the getGateClass method)
@@ -84,9 +93,23 @@ public abstract class GateClass {
      * If containsPath is true, the gate name is assumed to contain the full
      * path of the hdl file. If doesn't contain path, looks for the hdl file
      * according to the directory hierarchy.
-     * If the GateClass doesn't exist yet, creates the GateClass by parsing the hdl file.
+     * If the GateClass doesn't exist yet, creates the GateClass from the HDL cache of the
+     * working dir, or by parsing the hdl file.
      */
     public static GateClass getGateClass(String gateName, boolean containsPath) throws HDLException {
+        GateClass result = findGateClass(gateName, containsPath);
+
+        // keep the new parsed gates for the next runs
+        HDLCache diskCache = HDLCache.getInstance(GatesManager.getInstance().getWorkingDir());
+        if (diskCache != null)
+            diskCache.save();
+
+        return result;
+    }
+
+    // Returns the GateClass associated with the given gate name, like getGateClass,
+    // without saving the HDL cache.
+    static GateClass findGateClass(String gateName, boolean containsPath) throws HDLException {
         String fileName = null;
 
         // find hdl file name according to the gate name.
@@ -108,10 +131,26 @@ public abstract class GateClass {
         // Try to find the gate in the "cache"
         GateClass result = (GateClass)GateClasses.get(fileName);
 
-        // gate wasn't found in cache
-        if (result == null) {
-            HDLTokenizer input = new HDLTokenizer(fileName);
-            result = readHDL(input, gateName);
+        // gate wasn't found in cache, or its hdl (or one of its parts' hdl) has changed.
+        // Threads that miss together may both read the file, and the last one is kept.
+        if (result == null || result.isModified(new HashSet())) {
+            long lastModified = new File(fileName).lastModified();
+            byte[] contentHash = HDLCache.getContentHash(fileName);
+
+            // the HDL cache holds the gate unless the hdl file or its parts changed
+            HDLCache diskCache = HDLCache.getInstance(GatesManager.getInstance().getWorkingDir());
+            result = (diskCache != null ? diskCache.get(fileName, contentHash) : null);
+
+            if (result == null) {
+                HDLTokenizer input = new HDLTokenizer(fileName);
+                result = readHDL(input, gateName);
+                if (diskCache != null)
+                    diskCache.put(fileName, contentHash, result);
+            }
+
+            result.fileName = fileName;
+            result.lastModified = lastModified;
+            result.contentHash = contentHash;
             GateClasses.put(fileName, result);
         }
 
@@ -130,7 +169,15 @@ public abstract class GateClass {
      */
     public static boolean gateClassExists(String gateName) {
         String fileName = GatesManager.getInstance().getHDLFileName(gateName);
-        return (GateClasses.get(fileName) != null);
+        return (fileName != null && GateClasses.get(fileName) != null);
+    }
+
+    /**
+     * Returns true if the hdl file of this gate has changed since it was read.
+     * The given set contains the GateClasses that were already found unchanged.
+     */
+    protected boolean isModified(Set unchanged) {
+        return (new File(fileName).lastModified() != lastModified);
     }
 
     // Loads the HDL from the given input, creates the appropriate GateClass and returns it.
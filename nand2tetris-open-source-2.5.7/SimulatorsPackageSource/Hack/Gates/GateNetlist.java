@@ -0,0 +1,647 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.util.*;
+
+/**
+ * A composite gate flattened into one levelized netlist.
+ * All the pins in the gate's hierarchy (down to the BuiltIn parts) are mapped into
+ * indice of a single wire array, and the gate's functionality is encoded as int
+ * programs that are executed over this array by a CompiledGate:
+ * an eval program (sorted in a topological order of the flat network), a tick program
+ * (internal state updates of clocked parts) and a tock program (clocked parts' outputs).
+ * Commonly used BuiltIn parts are encoded as primitive operations. All other BuiltIn
+ * parts are delegated to instances of their BuiltInGate classes.
+ * A GateNetlist is immutable and may be shared by any number of CompiledGates.
+ */
+public class GateNetlist {
+
+    /**
+     * The index of the "clock" wire.
+     */
+    public static final int CLOCK_WIRE = 0;
+
+    // Program operation codes
+    static final int OP_COPY = 0;
+    static final int OP_NAND = 1;
+    static final int OP_NOT = 2;
+    static final int OP_NOT16 = 3;
+    static final int OP_AND = 4;
+    static final int OP_OR = 5;
+    static final int OP_XOR = 6;
+    static final int OP_MUX = 7;
+    static final int OP_DMUX = 8;
+    static final int OP_MOVE = 9;
+    static final int OP_COND_MOVE = 10;
+    static final int OP_BUILTIN_EVAL = 11;
+    static final int OP_BUILTIN_UP = 12;
+    static final int OP_BUILTIN_DOWN = 13;
+
+    // Operation codes of BuiltIn memories without gui, which CompiledGates put instead
+    // of the BuiltIn operations of these parts
+    static final int OP_MEMORY_READ = 14;
+    static final int OP_MEMORY_WRITE = 15;
+
+    // The gate class which this netlist represents
+    private CompositeGateClass gateClass;
+
+    // The amount of wires in the netlist
+    private int wiresCount;
+
+    // The initial values of the wires (values of constant connections).
+    private short[] initialWires;
+
+    // The wires of the gate's input, output and internal pins
+    private int[] inputWires, outputWires, internalWires;
+
+    // The eval, tick and tock programs
+    private int[] evalProgram, tickProgram, tockProgram;
+
+    // The GateClasses of the delegated BuiltIn parts
+    private BuiltInGateClass[] builtInClasses;
+
+    // The input and output wires of the delegated BuiltIn parts
+    private int[][] builtInInputWires, builtInOutputWires;
+
+    // true if the clock node participates in the netlist.
+    private boolean isClockParticipating;
+
+    // The ops of the eval program (int arrays) during the construction.
+    private Vector evalOps;
+
+    // The wires read by each of the eval ops (and affect its result)
+    private Vector opReads;
+
+    // The wires written by each of the eval ops
+    private Vector opWrites;
+
+    // The ops of the tick & tock programs during the construction.
+    private Vector tickOps, tockOps;
+
+    // The delegated BuiltIn parts' info during the construction.
+    private Vector builtInClassesList, builtInInputsList, builtInOutputsList;
+
+    /**
+     * Constructs a new GateNetlist from the given composite gate class.
+     * Throws InstantiationException if the flat network contains a circle.
+     */
+    public GateNetlist(CompositeGateClass gateClass) throws InstantiationException {
+        this.gateClass = gateClass;
+
+        evalOps = new Vector();
+        opReads = new Vector();
+        opWrites = new Vector();
+        tickOps = new Vector();
+        tockOps = new Vector();
+        builtInClassesList = new Vector();
+        builtInInputsList = new Vector();
+        builtInOutputsList = new Vector();
+
+        wiresCount = CLOCK_WIRE + 1;
+        initialWires = new short[64];
+
+        inputWires = allocateWires(gateClass.inputPinsInfo.length);
+        outputWires = allocateWires(gateClass.outputPinsInfo.length);
+        internalWires = flatten(gateClass, inputWires, outputWires);
+
+        short[] values = new short[wiresCount];
+        System.arraycopy(initialWires, 0, values, 0, wiresCount);
+        initialWires = values;
+
+        evalProgram = toProgram(levelize());
+        tickProgram = toProgram(tickOps);
+        tockProgram = toProgram(tockOps);
+
+        builtInClasses = new BuiltInGateClass[builtInClassesList.size()];
+        builtInClassesList.toArray(builtInClasses);
+        builtInInputWires = new int[builtInInputsList.size()][];
+        builtInInputsList.toArray(builtInInputWires);
+        builtInOutputWires = new int[builtInOutputsList.size()][];
+        builtInOutputsList.toArray(builtInOutputWires);
+
+        evalOps = opReads = opWrites = tickOps = tockOps = null;
+        builtInClassesList = builtInInputsList = builtInOutputsList = null;
+    }
+
+    /**
+     * Creates and returns a new CompiledGate that runs this netlist.
+     */
+    public CompiledGate newInstance() throws InstantiationException {
+        return new CompiledGate(this);
+    }
+
+    /**
+     * Returns the gate class which this netlist represents.
+     */
+    public CompositeGateClass getGateClass() {
+        return gateClass;
+    }
+
+    /**
+     * Returns the amount of wires in the netlist.
+     */
+    public int getWiresCount() {
+        return wiresCount;
+    }
+
+    /**
+     * Returns the amount of operations in the eval program.
+     */
+    public int getEvalOpsCount() {
+        return countOps(evalProgram);
+    }
+
+    /**
+     * Returns the amount of BuiltIn parts that are delegated to BuiltInGate instances.
+     */
+    public int getBuiltInPartsCount() {
+        return builtInClasses.length;
+    }
+
+    short[] getInitialWires() {
+        return initialWires;
+    }
+
+    int[] getInputWires() {
+        return inputWires;
+    }
+
+    int[] getOutputWires() {
+        return outputWires;
+    }
+
+    int[] getInternalWires() {
+        return internalWires;
+    }
+
+    int[] getEvalProgram() {
+        return evalProgram;
+    }
+
+    int[] getTickProgram() {
+        return tickProgram;
+    }
+
+    int[] getTockProgram() {
+        return tockProgram;
+    }
+
+    BuiltInGateClass[] getBuiltInClasses() {
+        return builtInClasses;
+    }
+
+    int[][] getBuiltInInputWires() {
+        return builtInInputWires;
+    }
+
+    int[][] getBuiltInOutputWires() {
+        return builtInOutputWires;
+    }
+
+    boolean isClockParticipating() {
+        return isClockParticipating;
+    }
+
+    // Returns the length of the given op code (including the op code itself).
+    static int getOpLength(int opCode) {
+        int result = 0;
+
+        switch (opCode) {
+            case OP_COPY: result = 7; break;
+            case OP_NOT:
+            case OP_NOT16:
+            case OP_MOVE: result = 3; break;
+            case OP_NAND:
+            case OP_AND:
+            case OP_OR:
+            case OP_XOR:
+            case OP_COND_MOVE: result = 4; break;
+            case OP_MUX:
+            case OP_DMUX: result = 5; break;
+            case OP_BUILTIN_EVAL:
+            case OP_BUILTIN_UP:
+            case OP_BUILTIN_DOWN:
+            case OP_MEMORY_READ:
+            case OP_MEMORY_WRITE: result = 2; break;
+        }
+
+        return result;
+    }
+
+    // Returns the amount of ops in the given program
+    private static int countOps(int[] program) {
+        int count = 0;
+        for (int pc = 0; pc < program.length; pc += getOpLength(program[pc]))
+            count++;
+
+        return count;
+    }
+
+    // Allocates the given amount of new wires and returns their indice.
+    private int[] allocateWires(int count) {
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++)
+            result[i] = wiresCount++;
+
+        if (wiresCount > initialWires.length) {
+            short[] newWires = new short[Math.max(wiresCount, initialWires.length * 2)];
+            System.arraycopy(initialWires, 0, newWires, 0, initialWires.length);
+            initialWires = newWires;
+        }
+
+        return result;
+    }
+
+    // Adds the pins of the given composite gate class (whose input and output pins
+    // are mapped to the given wires) and of all its parts to the netlist.
+    // Returns the wires of the gate's internal pins.
+    private int[] flatten(CompositeGateClass gateClass, int[] inWires, int[] outWires)
+     throws InstantiationException {
+        int[] internal = allocateWires(gateClass.internalPinsInfo.size());
+
+        int partsCount = gateClass.getPartsCount();
+        int[][] partInputs = new int[partsCount][];
+        int[][] partOutputs = new int[partsCount][];
+        for (int i = 0; i < partsCount; i++) {
+            GateClass partClass = gateClass.getPart(i);
+            partInputs[i] = allocateWires(partClass.inputPinsInfo.length);
+            partOutputs[i] = allocateWires(partClass.outputPinsInfo.length);
+        }
+
+        // connect the parts' pins to the gate's pins
+        Iterator connectionIter = gateClass.getConnections().iterator();
+        while (connectionIter.hasNext()) {
+            Connection connection = (Connection)connectionIter.next();
+            int part = connection.getPartNumber();
+            GateClass partClass = gateClass.getPart(part);
+            int partPin = partClass.getPinNumber(connection.getPartPinName());
+            int gatePin = connection.getGatePinNumber();
+            byte[] gateSubBus = connection.getGateSubBus();
+            byte[] partSubBus = connection.getPartSubBus();
+
+            switch (connection.getType()) {
+                case Connection.FROM_INPUT:
+                    addCopy(inWires[gatePin], gateSubBus, partInputs[part][partPin], partSubBus);
+                    break;
+                case Connection.TO_OUTPUT:
+                    addCopy(partOutputs[part][partPin], partSubBus, outWires[gatePin], gateSubBus);
+                    break;
+                case Connection.TO_INTERNAL:
+                    addCopy(partOutputs[part][partPin], partSubBus, internal[gatePin], null);
+                    break;
+                case Connection.FROM_INTERNAL:
+                    addCopy(internal[gatePin], null, partInputs[part][partPin], partSubBus);
+                    break;
+                case Connection.FROM_TRUE:
+                    setConstant(partInputs[part][partPin], partSubBus,
+                                (short)((1 << (gateSubBus[1] - gateSubBus[0] + 1)) - 1));
+                    break;
+                case Connection.FROM_FALSE:
+                    setConstant(partInputs[part][partPin], partSubBus, (short)0);
+                    break;
+                case Connection.FROM_CLOCK:
+                    addCopy(CLOCK_WIRE, null, partInputs[part][partPin], partSubBus);
+                    isClockParticipating = true;
+                    break;
+            }
+        }
+
+        // add the parts in their topological order
+        int[] partsOrder = gateClass.getPartsOrder();
+        for (int i = 0; i < partsOrder.length; i++) {
+            int part = partsOrder[i];
+            GateClass partClass = gateClass.getPart(part);
+            if (partClass instanceof CompositeGateClass)
+                flatten((CompositeGateClass)partClass, partInputs[part], partOutputs[part]);
+            else
+                addBuiltIn((BuiltInGateClass)partClass, partInputs[part], partOutputs[part]);
+        }
+
+        return internal;
+    }
+
+    // Adds a copy from the given source wire to the given target wire.
+    // The sub busses are optional.
+    private void addCopy(int source, byte[] sourceSubBus, int target, byte[] targetSubBus) {
+        int shiftRight = 0;
+        int shiftLeft = 0;
+        int mask = 0xffff;
+        int keepMask = 0;
+
+        if (sourceSubBus != null) {
+            shiftRight = sourceSubBus[0];
+            mask = (1 << (sourceSubBus[1] - sourceSubBus[0] + 1)) - 1;
+        }
+
+        if (targetSubBus != null) {
+            shiftLeft = targetSubBus[0];
+            mask = (1 << (targetSubBus[1] - targetSubBus[0] + 1)) - 1;
+            keepMask = ~(mask << shiftLeft) & 0xffff;
+        }
+
+        addEvalOp(new int[]{OP_COPY, source, target, shiftRight, mask, shiftLeft, keepMask},
+                  new int[]{source}, new int[]{target});
+    }
+
+    // Sets the initial value of the given target wire (optionally a sub bus of it)
+    // with the given constant value.
+    private void setConstant(int target, byte[] targetSubBus, short value) {
+        if (targetSubBus == null)
+            initialWires[target] = value;
+        else {
+            int mask = (1 << (targetSubBus[1] - targetSubBus[0] + 1)) - 1;
+            int keepMask = ~(mask << targetSubBus[0]);
+            initialWires[target] = (short)((initialWires[target] & keepMask) |
+                                           ((value & mask) << targetSubBus[0]));
+        }
+    }
+
+    // Adds the given BuiltIn part, whose pins are mapped to the given wires.
+    private void addBuiltIn(BuiltInGateClass partClass, int[] inWires, int[] outWires) {
+        String name = partClass.getBuiltInName();
+        boolean primitive;
+
+        if (name.equals("Nand"))
+            primitive = addPrimitive(OP_NAND, partClass, inWires, outWires,
+                                     new String[]{"a", "b"}, new String[]{"out"});
+        else if (name.equals("Not"))
+            primitive = addPrimitive(OP_NOT, partClass, inWires, outWires,
+                                     new String[]{"in"}, new String[]{"out"});
+        else if (name.equals("Not16"))
+            primitive = addPrimitive(OP_NOT16, partClass, inWires, outWires,
+                                     new String[]{"in"}, new String[]{"out"});
+        else if (name.equals("And"))
+            primitive = addPrimitive(OP_AND, partClass, inWires, outWires,
+                                     new String[]{"a", "b"}, new String[]{"out"});
+        else if (name.equals("Or"))
+            primitive = addPrimitive(OP_OR, partClass, inWires, outWires,
+                                     new String[]{"a", "b"}, new String[]{"out"});
+        else if (name.equals("Xor"))
+            primitive = addPrimitive(OP_XOR, partClass, inWires, outWires,
+                                     new String[]{"a", "b"}, new String[]{"out"});
+        else if (name.equals("Mux"))
+            primitive = addPrimitive(OP_MUX, partClass, inWires, outWires,
+                                     new String[]{"a", "b", "sel"}, new String[]{"out"});
+        else if (name.equals("DMux"))
+            primitive = addPrimitive(OP_DMUX, partClass, inWires, outWires,
+                                     new String[]{"in", "sel"}, new String[]{"a", "b"});
+        else if (name.equals("DFF") || name.equals("Bit") || name.equals("Register"))
+            primitive = addRegister(partClass, inWires, outWires, !name.equals("DFF"));
+        else
+            primitive = false;
+
+        if (!primitive) {
+            int index = builtInClassesList.size();
+            builtInClassesList.addElement(partClass);
+            builtInInputsList.addElement(inWires);
+            builtInOutputsList.addElement(outWires);
+
+            addEvalOp(new int[]{OP_BUILTIN_EVAL, index},
+                      getNonClockedWires(inWires, partClass.isInputClocked), outWires);
+
+            if (partClass.isClocked()) {
+                tickOps.addElement(new int[]{OP_BUILTIN_UP, index});
+                tockOps.addElement(new int[]{OP_BUILTIN_DOWN, index});
+            }
+        }
+    }
+
+    // Adds a primitive (combinational) op with the given op code, whose operands are the
+    // wires of the given input pin names followed by the wires of the given output pin names.
+    // Returns false if the part's pins are not the expected ones.
+    private boolean addPrimitive(int opCode, GateClass partClass, int[] inWires, int[] outWires,
+                                 String[] inputNames, String[] outputNames) {
+        for (int i = 0; i < inputNames.length; i++)
+            if (partClass.getPinType(inputNames[i]) != GateClass.INPUT_PIN_TYPE)
+                return false;
+        for (int i = 0; i < outputNames.length; i++)
+            if (partClass.getPinType(outputNames[i]) != GateClass.OUTPUT_PIN_TYPE)
+                return false;
+
+        int[] reads = new int[inputNames.length];
+        int[] writes = new int[outputNames.length];
+        int[] op = new int[1 + reads.length + writes.length];
+        op[0] = opCode;
+
+        for (int i = 0; i < reads.length; i++) {
+            reads[i] = inWires[partClass.getPinNumber(inputNames[i])];
+            op[1 + i] = reads[i];
+        }
+
+        for (int i = 0; i < writes.length; i++) {
+            writes[i] = outWires[partClass.getPinNumber(outputNames[i])];
+            op[1 + reads.length + i] = writes[i];
+        }
+
+        addEvalOp(op, reads, writes);
+
+        return true;
+    }
+
+    // Adds a DFF (or a Bit/Register if hasLoad is true) part as tick & tock ops over
+    // a new state wire. Returns false if the part's pins are not the expected ones.
+    private boolean addRegister(GateClass partClass, int[] inWires, int[] outWires,
+                                boolean hasLoad) {
+        if (partClass.getPinType("in") != GateClass.INPUT_PIN_TYPE ||
+            partClass.getPinType("out") != GateClass.OUTPUT_PIN_TYPE ||
+            (hasLoad && partClass.getPinType("load") != GateClass.INPUT_PIN_TYPE))
+            return false;
+
+        int in = partClass.getPinNumber("in");
+        int load = partClass.getPinNumber("load");
+        int out = partClass.getPinNumber("out");
+
+        int state = allocateWires(1)[0];
+
+        if (hasLoad)
+            tickOps.addElement(new int[]{OP_COND_MOVE, inWires[in], inWires[load], state});
+        else
+            tickOps.addElement(new int[]{OP_MOVE, inWires[in], state});
+
+        tockOps.addElement(new int[]{OP_MOVE, state, outWires[out]});
+
+        return true;
+    }
+
+    // Returns only the given wires whose matching pins are not clocked.
+    private static int[] getNonClockedWires(int[] wires, boolean[] isClocked) {
+        int count = 0;
+        for (int i = 0; i < wires.length; i++)
+            if (!isClocked[i])
+                count++;
+
+        int[] result = new int[count];
+        count = 0;
+        for (int i = 0; i < wires.length; i++)
+            if (!isClocked[i])
+                result[count++] = wires[i];
+
+        return result;
+    }
+
+    // Adds an op to the eval program with the wires that it reads and writes.
+    private void addEvalOp(int[] op, int[] reads, int[] writes) {
+        evalOps.addElement(op);
+        opReads.addElement(reads);
+        opWrites.addElement(writes);
+    }
+
+    // Returns the eval ops sorted in levels, such that each op appears after all the
+    // ops that write to the wires that it reads. Within a level, the original order
+    // (which follows the parts order of each gate) is kept.
+    private Vector levelize() throws InstantiationException {
+        int count = evalOps.size();
+
+        // count the writers of each wire
+        int[] writersCount = new int[wiresCount + 1];
+        for (int i = 0; i < count; i++) {
+            int[] writes = (int[])opWrites.elementAt(i);
+            for (int j = 0; j < writes.length; j++)
+                writersCount[writes[j] + 1]++;
+        }
+
+        // create the writers list of each wire (writers of wire w are at
+        // writers[writersStart[w]..writersStart[w+1]-1])
+        int[] writersStart = new int[wiresCount + 1];
+        for (int i = 0; i < wiresCount; i++)
+            writersStart[i + 1] = writersStart[i] + writersCount[i + 1];
+        int[] writers = new int[writersStart[wiresCount]];
+        int[] position = new int[wiresCount];
+        System.arraycopy(writersStart, 0, position, 0, wiresCount);
+        for (int i = 0; i < count; i++) {
+            int[] writes = (int[])opWrites.elementAt(i);
+            for (int j = 0; j < writes.length; j++)
+                writers[position[writes[j]]++] = i;
+        }
+
+        // compute the level of each op: one more than the maximal level of its writers.
+        // An op's level is computed after all its writers, or -1 if a circle is found.
+        int[] levels = new int[count];
+        byte[] state = new byte[count]; // 0 - not visited, 1 - in process, 2 - done
+        int maxLevel = 0;
+        for (int i = 0; i < count; i++) {
+            computeLevel(i, levels, state, writers, writersStart);
+            maxLevel = Math.max(maxLevel, levels[i]);
+        }
+
+        // bucket the ops by their level
+        Vector result = new Vector(count);
+        int[] levelCount = new int[maxLevel + 2];
+        for (int i = 0; i < count; i++)
+            levelCount[levels[i] + 1]++;
+        for (int i = 1; i < levelCount.length; i++)
+            levelCount[i] += levelCount[i - 1];
+        Object[] sorted = new Object[count];
+        for (int i = 0; i < count; i++)
+            sorted[levelCount[levels[i]]++] = evalOps.elementAt(i);
+        for (int i = 0; i < count; i++)
+            result.addElement(sorted[i]);
+
+        return result;
+    }
+
+    // Computes the level of the given op (and of all the ops it depends on), using an
+    // explicit stack to avoid deep recursion on large netlists.
+    private void computeLevel(int op, int[] levels, byte[] state, int[] writers,
+                              int[] writersStart) throws InstantiationException {
+        if (state[op] == 2)
+            return;
+
+        int[] stack = new int[16];
+        int[] readIndex = new int[16];
+        int top = 0;
+        stack[0] = op;
+        readIndex[0] = 0;
+        state[op] = 1;
+
+        while (top >= 0) {
+            int current = stack[top];
+            int[] reads = (int[])opReads.elementAt(current);
+            boolean pushed = false;
+
+            // flatten the (read wire, writer) pairs into a single running index
+            while (!pushed && readIndex[top] < countDependencies(reads, writersStart)) {
+                int writer = getDependency(reads, readIndex[top]++, writers, writersStart);
+                if (state[writer] == 1)
+                    throw new InstantiationException("The chip has a circle in its flat network");
+
+                if (state[writer] == 0) {
+                    if (top + 1 == stack.length) {
+                        int[] newStack = new int[stack.length * 2];
+                        System.arraycopy(stack, 0, newStack, 0, stack.length);
+                        stack = newStack;
+                        int[] newReadIndex = new int[readIndex.length * 2];
+                        System.arraycopy(readIndex, 0, newReadIndex, 0, readIndex.length);
+                        readIndex = newReadIndex;
+                    }
+                    state[writer] = 1;
+                    stack[++top] = writer;
+                    readIndex[top] = 0;
+                    pushed = true;
+                }
+                else
+                    levels[current] = Math.max(levels[current], levels[writer] + 1);
+            }
+
+            if (!pushed) {
+                state[current] = 2;
+                top--;
+                if (top >= 0)
+                    levels[stack[top]] = Math.max(levels[stack[top]], levels[current] + 1);
+            }
+        }
+    }
+
+    // Returns the amount of writers of all the given read wires.
+    private static int countDependencies(int[] reads, int[] writersStart) {
+        int count = 0;
+        for (int i = 0; i < reads.length; i++)
+            count += writersStart[reads[i] + 1] - writersStart[reads[i]];
+
+        return count;
+    }
+
+    // Returns the writer at the given running index over the writers of the given read wires.
+    private static int getDependency(int[] reads, int index, int[] writers, int[] writersStart) {
+        int i = 0;
+        while (index >= writersStart[reads[i] + 1] - writersStart[reads[i]]) {
+            index -= writersStart[reads[i] + 1] - writersStart[reads[i]];
+            i++;
+        }
+
+        return writers[writersStart[reads[i]] + index];
+    }
+
+    // Concatenates the given vector of ops into a program.
+    private static int[] toProgram(Vector ops) {
+        int length = 0;
+        for (int i = 0; i < ops.size(); i++)
+            length += ((int[])ops.elementAt(i)).length;
+
+        int[] result = new int[length];
+        int pc = 0;
+        for (int i = 0; i < ops.size(); i++) {
+            int[] op = (int[])ops.elementAt(i);
+            System.arraycopy(op, 0, result, pc, op.length);
+            pc += op.length;
+        }
+
+        return result;
+    }
+}
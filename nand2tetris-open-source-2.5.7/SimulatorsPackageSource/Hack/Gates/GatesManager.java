@@ -21,13 +21,23 @@ import java.io.*;
 import java.util.Vector;
 
 /**
- * A singleton - manager for common gates properties.
+ * A manager for common gates properties of a simulation, including its special nodes.
+ * There is a single global instance, but a thread may be bound to another instance
+ * (e.g. for running several simulations in parallel), which it will get instead.
  */
 public class GatesManager {
 
-    // The single instance.
+    // The single global instance.
     private static GatesManager singleton;
 
+    // The instances that are bound to specific threads.
+    private static ThreadLocal threadInstance = new ThreadLocal();
+
+    // The special "clock", "true" and "false" nodes of this simulation.
+    private Node clockNode;
+    private Node trueNode;
+    private Node falseNode;
+
     // The working HDL dir
     private File workingDir;
 
@@ -48,21 +58,66 @@ public class GatesManager {
     private boolean updateChipsGUI;
 
     /**
-     * Constructs a new GatesManager.
+     * Constructs a new GatesManager. The new instance is used only by threads which
+     * are bound to it using setThreadInstance().
      */
-    private GatesManager() {
+    public GatesManager() {
         chips = new Vector();
         updateChipsGUI = true;
+        clockNode = new Node();
+        trueNode = new Node((short)-1);
+        falseNode = new Node((short)0);
     }
 
     /**
-     * Returns the single instance of GatesManager.
+     * Returns the GatesManager which is bound to the current thread, or the single
+     * global instance if the current thread is not bound.
      */
     public static GatesManager getInstance() {
-        if (singleton == null)
-            singleton = new GatesManager();
+        GatesManager result = (GatesManager)threadInstance.get();
+        if (result == null) {
+            synchronized (GatesManager.class) {
+                if (singleton == null)
+                    singleton = new GatesManager();
+
+                result = singleton;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Binds the current thread to the given GatesManager, so getInstance() will return
+     * it when called from this thread. If the given instance is null, the thread is
+     * bound back to the global instance.
+     */
+    public static void setThreadInstance(GatesManager manager) {
+        if (manager == null)
+            threadInstance.remove();
+        else
+            threadInstance.set(manager);
+    }
 
-        return singleton;
+    /**
+     * Returns the special "clock" node of this simulation.
+     */
+    public Node getClockNode() {
+        return clockNode;
+    }
+
+    /**
+     * Returns the special "true" node of this simulation.
+     */
+    public Node getTrueNode() {
+        return trueNode;
+    }
+
+    /**
+     * Returns the special "false" node of this simulation.
+     */
+    public Node getFalseNode() {
+        return falseNode;
     }
 
     /**
@@ -0,0 +1,459 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * A persistent cache of parsed gates, kept in a binary file in a working directory.
+ * Every record is keyed by the full name of its hdl file and holds the content hash of
+ * that file. It refers to its parts by their hdl file names and content hashes, so a
+ * record is used only if the hdl files of the gate and of all its parts didn't change.
+ * Each record ends with a checksum of the rest of it, so that a corrupted record is
+ * dropped instead of being decoded into a wrong gate.
+ */
+public class HDLCache {
+
+    /**
+     * The name of the cache file in the working directory.
+     */
+    public static final String FILE_NAME = ".hdlcache";
+
+    // The file format identification and version
+    private static final int MAGIC = 0x48444c43;
+    private static final int VERSION = 2;
+
+    // Gate kinds
+    private static final byte BUILTIN_GATE = 1;
+    private static final byte COMPOSITE_GATE = 2;
+
+    // The caches of all the working directories (by the directory's path)
+    private static ConcurrentHashMap instances = new ConcurrentHashMap();
+
+    // When false, there are no caches
+    private static boolean enabled = true;
+
+    // The cache file
+    private File file;
+
+    // The encoded records, by the full name of their hdl files
+    private ConcurrentHashMap records;
+
+    // true if the cache file was already read
+    private boolean loaded;
+
+    // true if records were added since the cache file was read or written
+    private boolean modified;
+
+    // Constructs a new HDLCache for the given cache file (public access through getInstance)
+    private HDLCache(File file) {
+        this.file = file;
+        records = new ConcurrentHashMap();
+    }
+
+    /**
+     * Returns the cache of the given working directory, or null if the given
+     * directory is null or the caches are disabled.
+     */
+    public static HDLCache getInstance(File dir) {
+        if (dir == null || !enabled)
+            return null;
+
+        String path = dir.getAbsolutePath();
+        HDLCache result = (HDLCache)instances.get(path);
+        if (result == null) {
+            instances.putIfAbsent(path, new HDLCache(new File(dir, FILE_NAME)));
+            result = (HDLCache)instances.get(path);
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets whether gates are cached in the working directories (the default) or always
+     * parsed from their HDL files.
+     */
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Returns the content hash of the given file.
+     */
+    public static byte[] getContentHash(String fileName) throws HDLException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream input = new FileInputStream(fileName);
+            try {
+                byte[] buffer = new byte[4096];
+                int count;
+                while ((count = input.read(buffer)) > 0)
+                    digest.update(buffer, 0, count);
+            } finally {
+                input.close();
+            }
+
+            return digest.digest();
+        } catch (IOException ioe) {
+            throw new HDLException("Can't find HDL file " + fileName);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new HDLException(nsae.getMessage());
+        }
+    }
+
+    /**
+     * Returns the GateClass of the given hdl file, created from its record, or null if
+     * there is no record of the given content hash or if the record is out of date.
+     * The parts of the gate are loaded using the gate class cache.
+     */
+    public GateClass get(String fileName, byte[] contentHash) throws HDLException {
+        load();
+
+        byte[] record = (byte[])records.get(fileName);
+        if (record == null)
+            return null;
+
+        try {
+            if (!isIntact(record))
+                throw new IOException("Invalid checksum");
+
+            DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(record, 0, record.length - 4));
+            if (!Arrays.equals(readBytes(input), contentHash))
+                return null;
+
+            return readGateClass(input);
+        } catch (IOException ioe) {
+            // a corrupted record
+            records.remove(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a record of the given GateClass, read from the given hdl file with the given
+     * content hash. The parts of the gate should have been loaded using the gate class
+     * cache.
+     */
+    public void put(String fileName, byte[] contentHash, GateClass gateClass) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CRC32 checksum = new CRC32();
+            DataOutputStream output =
+                new DataOutputStream(new CheckedOutputStream(bytes, checksum));
+            writeBytes(output, contentHash);
+            writeGateClass(output, gateClass);
+            output.flush();
+            output.writeInt((int)checksum.getValue());
+            output.close();
+
+            records.put(fileName, bytes.toByteArray());
+            synchronized (this) {
+                modified = true;
+            }
+        } catch (IOException ioe) {
+            // can't happen when writing into memory
+        }
+    }
+
+    /**
+     * Writes the records into the cache file, if records were added since it was read.
+     * The cache is only an optimization, so write errors are ignored.
+     */
+    public synchronized void save() {
+        if (!modified)
+            return;
+
+        modified = false;
+
+        // write into a temporary file first, so readers never see a partial cache file
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(FILE_NAME, null, file.getParentFile());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(records.size());
+                Iterator iter = records.entrySet().iterator();
+                while (iter.hasNext()) {
+                    Map.Entry entry = (Map.Entry)iter.next();
+                    output.writeUTF((String)entry.getKey());
+                    writeBytes(output, (byte[])entry.getValue());
+                }
+            } finally {
+                output.close();
+            }
+
+            file.delete();
+            if (!tempFile.renameTo(file))
+                tempFile.delete();
+        } catch (IOException ioe) {
+            if (tempFile != null)
+                tempFile.delete();
+        }
+    }
+
+    // Reads the records from the cache file, if it wasn't read yet. Records which were
+    // already added are kept. A missing or invalid cache file is ignored.
+    private synchronized void load() {
+        if (loaded)
+            return;
+
+        loaded = true;
+        if (!file.exists())
+            return;
+
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                    return;
+
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    String fileName = input.readUTF();
+                    byte[] record = readBytes(input);
+                    records.putIfAbsent(fileName, record);
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException ioe) {
+        }
+    }
+
+    // Returns true if the given record ends with the checksum of the rest of it.
+    private static boolean isIntact(byte[] record) {
+        int length = record.length - 4;
+        if (length < 0)
+            return false;
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record, 0, length);
+        int value = ((record[length] & 0xff) << 24) | ((record[length + 1] & 0xff) << 16) |
+                    ((record[length + 2] & 0xff) << 8) | (record[length + 3] & 0xff);
+        return (value == (int)checksum.getValue());
+    }
+
+    // Writes the given GateClass to the given output.
+    private static void writeGateClass(DataOutputStream output, GateClass gateClass)
+     throws IOException {
+        output.writeByte(gateClass instanceof BuiltInGateClass ? BUILTIN_GATE : COMPOSITE_GATE);
+        output.writeUTF(gateClass.name);
+        writePins(output, gateClass.inputPinsInfo);
+        writePins(output, gateClass.outputPinsInfo);
+        writeBooleans(output, gateClass.isInputClocked);
+        writeBooleans(output, gateClass.isOutputClocked);
+        output.writeBoolean(gateClass.isClocked);
+
+        if (gateClass instanceof BuiltInGateClass)
+            output.writeUTF(((BuiltInGateClass)gateClass).getBuiltInName());
+        else {
+            CompositeGateClass compositeClass = (CompositeGateClass)gateClass;
+            PinInfo[] internalPinsInfo = new PinInfo[compositeClass.internalPinsInfo.size()];
+            compositeClass.internalPinsInfo.toArray(internalPinsInfo);
+            writePins(output, internalPinsInfo);
+
+            int partsCount = compositeClass.getPartsCount();
+            output.writeInt(partsCount);
+            for (int i = 0; i < partsCount; i++) {
+                GateClass part = compositeClass.getPart(i);
+                output.writeUTF(part.name);
+                output.writeUTF(part.fileName);
+                writeBytes(output, part.contentHash);
+            }
+
+            int[] partsOrder = compositeClass.getPartsOrder();
+            for (int i = 0; i < partsCount; i++)
+                output.writeInt(partsOrder[i]);
+
+            ConnectionSet connections = compositeClass.getConnections();
+            output.writeInt(connections.size());
+            Iterator iter = connections.iterator();
+            while (iter.hasNext()) {
+                Connection connection = (Connection)iter.next();
+                output.writeByte(connection.getType());
+                output.writeInt(connection.getGatePinNumber());
+                output.writeInt(connection.getPartNumber());
+                output.writeBoolean(connection.getPartPinName() != null);
+                if (connection.getPartPinName() != null)
+                    output.writeUTF(connection.getPartPinName());
+                writeSubBus(output, connection.getGateSubBus());
+                writeSubBus(output, connection.getPartSubBus());
+            }
+        }
+    }
+
+    // Reads a GateClass from the given input. Returns null if one of its parts changed.
+    private static GateClass readGateClass(DataInputStream input)
+     throws IOException, HDLException {
+        byte kind = input.readByte();
+        String name = input.readUTF();
+        PinInfo[] inputPinsInfo = readPins(input);
+        PinInfo[] outputPinsInfo = readPins(input);
+        boolean[] isInputClocked = readBooleans(input, inputPinsInfo.length);
+        boolean[] isOutputClocked = readBooleans(input, outputPinsInfo.length);
+        boolean isClocked = input.readBoolean();
+
+        if (kind == BUILTIN_GATE) {
+            String builtInName = input.readUTF();
+            String fullName = GatesManager.getInstance().getBuiltInDir() + "." + builtInName;
+            Class javaGateClass;
+            try {
+                javaGateClass = Class.forName(fullName);
+            } catch (ClassNotFoundException cnfe) {
+                return null;
+            }
+
+            if (!BuiltInGate.class.isAssignableFrom(javaGateClass))
+                return null;
+
+            return new BuiltInGateClass(name, inputPinsInfo, outputPinsInfo, javaGateClass,
+                                        builtInName, isInputClocked, isOutputClocked,
+                                        isClocked);
+        }
+        else if (kind != COMPOSITE_GATE)
+            throw new IOException("Unknown gate kind");
+
+        PinInfo[] internalPinsInfo = readPins(input);
+
+        int partsCount = readCount(input);
+        Vector partsList = new Vector(partsCount);
+        for (int i = 0; i < partsCount; i++) {
+            String partName = input.readUTF();
+            String partFileName = input.readUTF();
+            byte[] partContentHash = readBytes(input);
+            GateClass part = GateClass.findGateClass(partName, false);
+            if (!partFileName.equals(part.fileName) ||
+                !Arrays.equals(partContentHash, part.contentHash))
+                return null;
+            partsList.addElement(part);
+        }
+
+        int[] partsOrder = new int[partsCount];
+        for (int i = 0; i < partsCount; i++) {
+            partsOrder[i] = input.readInt();
+            if (partsOrder[i] < 0 || partsOrder[i] >= partsCount)
+                throw new IOException("Invalid part number");
+        }
+
+        int connectionsCount = readCount(input);
+        ConnectionSet connections = new ConnectionSet();
+        for (int i = 0; i < connectionsCount; i++) {
+            byte type = input.readByte();
+            int gatePinNumber = input.readInt();
+            int partNumber = input.readInt();
+            String partPinName = (input.readBoolean() ? input.readUTF() : null);
+            byte[] gateSubBus = readSubBus(input);
+            byte[] partSubBus = readSubBus(input);
+            connections.add(new Connection(type, gatePinNumber, partNumber, partPinName,
+                                           gateSubBus, partSubBus));
+        }
+
+        return new CompositeGateClass(name, inputPinsInfo, outputPinsInfo, internalPinsInfo,
+                                      partsList, partsOrder, connections, isInputClocked,
+                                      isOutputClocked, isClocked);
+    }
+
+    // Writes the names and widths of the given pins.
+    private static void writePins(DataOutputStream output, PinInfo[] pins) throws IOException {
+        output.writeInt(pins.length);
+        for (int i = 0; i < pins.length; i++) {
+            output.writeUTF(pins[i].name);
+            output.writeByte(pins[i].width);
+        }
+    }
+
+    // Reads pins which were written by writePins.
+    private static PinInfo[] readPins(DataInputStream input) throws IOException {
+        PinInfo[] result = new PinInfo[readCount(input)];
+        for (int i = 0; i < result.length; i++) {
+            String name = input.readUTF();
+            result[i] = new PinInfo(name, input.readByte());
+        }
+
+        return result;
+    }
+
+    // Writes the given booleans (their amount is known to the reader).
+    private static void writeBooleans(DataOutputStream output, boolean[] values)
+     throws IOException {
+        for (int i = 0; i < values.length; i++)
+            output.writeBoolean(values[i]);
+    }
+
+    // Reads the given amount of booleans.
+    private static boolean[] readBooleans(DataInputStream input, int count) throws IOException {
+        boolean[] result = new boolean[count];
+        for (int i = 0; i < count; i++)
+            result[i] = input.readBoolean();
+
+        return result;
+    }
+
+    // Writes the given sub bus (which may be null).
+    private static void writeSubBus(DataOutputStream output, byte[] subBus) throws IOException {
+        output.writeBoolean(subBus != null);
+        if (subBus != null) {
+            output.writeByte(subBus[0]);
+            output.writeByte(subBus[1]);
+        }
+    }
+
+    // Reads a sub bus which was written by writeSubBus.
+    private static byte[] readSubBus(DataInputStream input) throws IOException {
+        if (!input.readBoolean())
+            return null;
+
+        byte[] result = new byte[2];
+        result[0] = input.readByte();
+        result[1] = input.readByte();
+        return result;
+    }
+
+    // Writes the given bytes, preceded by their amount.
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    // Reads bytes which were written by writeBytes.
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        byte[] result = new byte[readCount(input)];
+        input.readFully(result);
+        return result;
+    }
+
+    // Reads the amount of the items that follow it, each written in at least one byte.
+    // Throws IOException if it's negative or larger than the rest of the record, so that
+    // a corrupted record can't cause a huge allocation.
+    private static int readCount(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > input.available())
+            throw new IOException("Invalid count");
+
+        return count;
+    }
+}
@@ -81,7 +81,7 @@ public class HDLTokenizer {
         Reader input;
 
         try {
-            input = new FileReader(fileName);
+            input = new BufferedReader(new FileReader(fileName));
         } catch (IOException ioe) {
             throw new HDLException("Can't find HDL file " + fileName);
         }
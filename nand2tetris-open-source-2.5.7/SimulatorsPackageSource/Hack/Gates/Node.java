@@ -25,8 +25,9 @@ public class Node {
     // the value of the node
     protected short value;
 
-    // listeners list
-    protected NodeSet listeners;
+    // listeners array. The array is never changed after it is created: adding or removing
+    // a listener replaces it with a new array, so propagation needs no synchronization.
+    protected Node[] listeners;
 
     /**
      * Constructs a new node.
@@ -46,17 +47,34 @@ public class Node {
      */
     public void addListener(Node node) {
         if (listeners == null)
-            listeners = new NodeSet();
-
-        listeners.add(node);
+            listeners = new Node[]{node};
+        else {
+            Node[] newListeners = new Node[listeners.length + 1];
+            System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+            newListeners[listeners.length] = node;
+            listeners = newListeners;
+        }
     }
 
     /**
      * Removes the given node from being a listener.
      */
     public void removeListener(Node node) {
-        if (listeners != null)
-            listeners.remove(node);
+        if (listeners != null) {
+            for (int i = 0; i < listeners.length; i++)
+                if (listeners[i] == node) {
+                    if (listeners.length == 1)
+                        listeners = null;
+                    else {
+                        Node[] newListeners = new Node[listeners.length - 1];
+                        System.arraycopy(listeners, 0, newListeners, 0, i);
+                        System.arraycopy(listeners, i + 1, newListeners, i,
+                                         newListeners.length - i);
+                        listeners = newListeners;
+                    }
+                    break;
+                }
+        }
     }
 
     /**
@@ -74,9 +92,12 @@ public class Node {
         if (this.value != value) {
             this.value = value;
 
-            if (listeners != null)
-                for (int i = 0; i < listeners.size(); i++)
-                    listeners.getNodeAt(i).set(get());
+            Node[] currentListeners = listeners;
+            if (currentListeners != null) {
+                short newValue = get();
+                for (int i = 0; i < currentListeners.length; i++)
+                    currentListeners[i].set(newValue);
+            }
         }
     }
 }
@@ -0,0 +1,166 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.Gates;
+
+/**
+ * A worklist scheduler for the parts of a composite gate.
+ * Every part notifies the scheduler when it gets dirty or clean, and the scheduler
+ * keeps the set of dirty parts, indexed by their topological rank. A re-computation
+ * evaluates only the dirty parts, in rank order, and skips all the others.
+ */
+public class PartsScheduler {
+
+    // The parts, sorted in topological order.
+    private Gate[] parts;
+
+    // The ranks of the clocked parts, in increasing order.
+    private int[] clockedRanks;
+
+    // The set of dirty parts, one bit per rank.
+    private long[] pending;
+
+    // The amount of part evaluations performed so far.
+    private long evaluatedCount;
+
+    // The amount of part evaluations skipped so far.
+    private long skippedCount;
+
+    /**
+     * Constructs a new PartsScheduler for the given parts, which are
+     * sorted in topological order.
+     */
+    public PartsScheduler(Gate[] parts) {
+        this.parts = parts;
+        pending = new long[(parts.length + 63) >> 6];
+
+        int clockedCount = 0;
+        for (int i = 0; i < parts.length; i++) {
+            parts[i].setScheduler(this, i);
+            if (parts[i].isDirty)
+                mark(i);
+            if (parts[i].getGateClass().isClocked)
+                clockedCount++;
+        }
+
+        clockedRanks = new int[clockedCount];
+        clockedCount = 0;
+        for (int i = 0; i < parts.length; i++)
+            if (parts[i].getGateClass().isClocked)
+                clockedRanks[clockedCount++] = i;
+    }
+
+    /**
+     * Evaluates the dirty parts in topological order. Parts that become dirty during
+     * the pass are evaluated in the same pass if their rank wasn't reached yet.
+     * Otherwise they are left for the next pass.
+     */
+    public void evalDirtyParts() {
+        evalDirtyParts(0, parts.length);
+        skippedCount += parts.length;
+    }
+
+    /**
+     * Ticks all the clocked parts. The other parts are evaluated only if they are dirty.
+     */
+    public void tickParts() {
+        int from = 0;
+        for (int i = 0; i < clockedRanks.length; i++) {
+            int rank = clockedRanks[i];
+            evalDirtyParts(from, rank);
+            parts[rank].tick();
+            from = rank + 1;
+        }
+
+        evalDirtyParts(from, parts.length);
+        evaluatedCount += clockedRanks.length;
+        skippedCount += parts.length - clockedRanks.length;
+    }
+
+    /**
+     * Tocks all the clocked parts. The other parts are evaluated only if they are dirty.
+     */
+    public void tockParts() {
+        int from = 0;
+        for (int i = 0; i < clockedRanks.length; i++) {
+            int rank = clockedRanks[i];
+            evalDirtyParts(from, rank);
+            parts[rank].tock();
+            from = rank + 1;
+        }
+
+        evalDirtyParts(from, parts.length);
+        evaluatedCount += clockedRanks.length;
+        skippedCount += parts.length - clockedRanks.length;
+    }
+
+    /**
+     * Returns the amount of part evaluations performed so far.
+     */
+    public long getEvaluatedCount() {
+        return evaluatedCount;
+    }
+
+    /**
+     * Returns the amount of part evaluations skipped so far.
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Resets the evaluated and skipped counters.
+     */
+    public void resetCounters() {
+        evaluatedCount = 0;
+        skippedCount = 0;
+    }
+
+    // Adds the part with the given rank to the dirty set.
+    void mark(int rank) {
+        pending[rank >> 6] |= 1L << rank;
+    }
+
+    // Removes the part with the given rank from the dirty set.
+    void unmark(int rank) {
+        pending[rank >> 6] &= ~(1L << rank);
+    }
+
+    // Evaluates the dirty parts with ranks from (inclusive) to (exclusive), in rank order.
+    // Dirty parts with a rank that was already passed are left for the next pass.
+    // Evaluated parts are moved from the skipped count to the evaluated count.
+    private void evalDirtyParts(int from, int to) {
+        int rank = from;
+        while (rank < to) {
+            int word = rank >> 6;
+            long bits = pending[word] & (-1L << rank);
+            if (bits == 0) {
+                rank = (word + 1) << 6;
+                continue;
+            }
+
+            rank = (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (rank >= to)
+                break;
+
+            parts[rank].eval();
+            evaluatedCount++;
+            skippedCount--;
+            rank++;
+        }
+    }
+}
@@ -41,7 +41,7 @@ import Hack.Events.*;
  */
 public class HardwareSimulator extends HackSimulator
  implements TextFileEventListener, GateErrorEventListener,
-            DirtyGateListener {
+            DirtyGateListener, BatchSimulator {
 
     // Variables
     private static final String VAR_TIME = "time";
@@ -85,6 +85,15 @@ public class HardwareSimulator extends HackSimulator
     // The list of recognized variables.
     private String[] vars;
 
+    // When true, composite gates are loaded as compiled gates (flat netlists).
+    private boolean compiledEval;
+
+    // Evaluates batches of script rows on the current compiled gate (created on demand).
+    private BatchEvaluator batchEvaluator;
+
+    // true if the current gate was already checked for batch evaluation.
+    private boolean batchChecked;
+
     /**
      * Constructs a new Hardware Simulator with no gui.
      */
@@ -132,7 +141,7 @@ public class HardwareSimulator extends HackSimulator
 
     // Initializes the hardware simulator
     private void init() {
-        Gate.CLOCK_NODE.set((short)1);
+        GatesManager.getInstance().getClockNode().set((short)1);
         clockUp = false;
         time = 0;
         GatesManager.getInstance().setErrorHandler(this);
@@ -239,16 +248,7 @@ public class HardwareSimulator extends HackSimulator
         if (gate == null)
             throw new VariableException("cannot get var's value since no gate is currently loaded", varName);
 
-        short numValue;
-
-        try {
-            value = Conversions.toDecimalForm(value);
-            numValue = Short.parseShort(value);
-        } catch (NumberFormatException nfe) {
-            throw new VariableException("'" + value + "' is not a legal value for variable",
-                                        varName);
-        }
-
+        short numValue = parseValue(varName, value);
         boolean readOnly = false;
 
         if (varName.equals(VAR_TIME))
@@ -298,6 +298,18 @@ public class HardwareSimulator extends HackSimulator
 
     }
 
+    // Returns the numeric value of the given value string of the given variable.
+    // Throws VariableException if the value is not legal.
+    private static short parseValue(String varName, String value) throws VariableException {
+        try {
+            value = Conversions.toDecimalForm(value);
+            return Short.parseShort(value);
+        } catch (NumberFormatException nfe) {
+            throw new VariableException("'" + value + "' is not a legal value for variable",
+                                        varName);
+        }
+    }
+
     /*
      * Returns true if the width of the given value is less or equal to the width
      * of the given pin (name).
@@ -396,6 +408,92 @@ public class HardwareSimulator extends HackSimulator
         }
     }
 
+    /**
+     * Returns the maximal amount of rows in a batch, or 0 if the current gate can't be
+     * evaluated in batches. Only combinational compiled gates are evaluated in batches.
+     */
+    public int getBatchSize() {
+        if (!batchChecked && gate instanceof CompiledGate) {
+            batchChecked = true;
+            try {
+                batchEvaluator = new BatchEvaluator(((CompiledGate)gate).getNetlist());
+            } catch (InstantiationException ie) {
+                batchEvaluator = null;
+            }
+        }
+
+        return (batchEvaluator != null ? BatchEvaluator.BATCH_SIZE : 0);
+    }
+
+    /**
+     * Returns true if the given command sets an input pin with a legal value.
+     */
+    public boolean isBatchCommand(String[] command) {
+        if (gate == null || command.length != 3 || !command[0].equals(COMMAND_SETVAR) ||
+            gate.getGateClass().getPinType(command[1]) != GateClass.INPUT_PIN_TYPE)
+            return false;
+
+        try {
+            return isLegalWidth(command[1], parseValue(command[1], command[2]));
+        } catch (VariableException ve) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the given command is an eval command.
+     */
+    public boolean isBatchEvalCommand(String[] command) {
+        return (command.length == 1 && command[0].equals(COMMAND_EVAL));
+    }
+
+    /**
+     * Evaluates the given rows of set commands together.
+     */
+    public void evalBatch(String[][][] rows) throws CommandException, VariableException {
+        Node[] inputNodes = gate.getInputNodes();
+        short[] values = new short[inputNodes.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = inputNodes[i].get();
+
+        for (int row = 0; row < rows.length; row++) {
+            for (int i = 0; i < rows[row].length; i++) {
+                String[] command = rows[row][i];
+                int pinNumber = gate.getGateClass().getPinNumber(command[1]);
+                values[pinNumber] = parseValue(command[1], command[2]);
+            }
+
+            for (int i = 0; i < values.length; i++)
+                batchEvaluator.setInput(i, row, values[i]);
+        }
+
+        batchEvaluator.eval(rows.length);
+    }
+
+    /**
+     * Sets the gate's pins to their values after the given row of the last batch.
+     */
+    public void selectBatchRow(int row) {
+        Node[] nodes = gate.getInputNodes();
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i].set(batchEvaluator.getInput(i, row));
+
+        nodes = gate.getOutputNodes();
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i].set(batchEvaluator.getOutput(i, row));
+
+        nodes = ((CompositeGate)gate).getInternalNodes();
+        for (int i = 0; i < nodes.length; i++)
+            nodes[i].set(batchEvaluator.getInternal(i, row));
+    }
+
+    /**
+     * Ends the last batch by evaluating the gate with the inputs of the last selected row.
+     */
+    public void endBatch() {
+        performEval();
+    }
+
     public void setWorkingDir(File file) {
         super.setWorkingDir(file);
         GatesManager.getInstance().setWorkingDir(file.getParentFile());
@@ -446,7 +544,7 @@ public class HardwareSimulator extends HackSimulator
             gate.eval();
 
         time = 0;
-        Gate.CLOCK_NODE.set((short)1);
+        GatesManager.getInstance().getClockNode().set((short)1);
         clockUp = false;
     }
 
@@ -509,9 +607,33 @@ public class HardwareSimulator extends HackSimulator
         return gui;
     }
 
+    /**
+     * Returns true if composite gates are loaded as compiled gates.
+     */
+    public boolean isCompiledEval() {
+        return compiledEval;
+    }
+
+    /**
+     * Sets whether composite gates should be loaded as compiled gates, which evaluate
+     * a flat netlist of the whole chip instead of the parts' Gate objects.
+     * Takes effect on the next gate load.
+     */
+    public void setCompiledEval(boolean value) {
+        compiledEval = value;
+    }
+
+    // Loads a gate with the given name
+    // If containsPath is true, the gateName should contain the full path.
+    protected void loadGate(String gateName, boolean containsPath) throws GateException {
+        loadGate(gateName, containsPath, compiledEval);
+    }
+
     // Loads a gate with the given name
     // If containsPath is true, the gateName should contain the full path.
-    protected synchronized void loadGate(String gateName, boolean containsPath) throws GateException {
+    // If compiled is true, a composite gate is loaded as a compiled gate.
+    protected synchronized void loadGate(String gateName, boolean containsPath, boolean compiled)
+     throws GateException {
 
         GateClass gateClass = null;
 
@@ -519,15 +641,18 @@ public class HardwareSimulator extends HackSimulator
             displayMessage("Loading chip...", false);
 
         try {
-            // clears the gate cache, so all gates will be reloaded
-            GateClass.clearGateCache();
-
-            // find gate class and create gate
+            // find gate class and create gate (gates whose hdl has changed are reloaded)
             gateClass = GateClass.getGateClass(gateName, containsPath);
 
             GatesManager.getInstance().removeAllChips();
+            batchEvaluator = null;
+            batchChecked = false;
             Gate oldGate = gate; // save old gate
-            gate = gateClass.newInstance(); // create new gate instance
+            // create new gate instance
+            if (compiled && gateClass instanceof CompositeGateClass)
+                gate = ((CompositeGateClass)gateClass).newCompiledInstance();
+            else
+                gate = gateClass.newInstance();
 
             // register as dirty gate listener (and remove the old one)
             gate.addDirtyGateListener(this);
@@ -734,7 +859,7 @@ public class HardwareSimulator extends HackSimulator
 
     // Performs tick on the current gate
     private void performTick() {
-        Gate.CLOCK_NODE.set((short)0);
+        GatesManager.getInstance().getClockNode().set((short)0);
         gate.tick();
         clockUp = true;
 
@@ -749,7 +874,7 @@ public class HardwareSimulator extends HackSimulator
 
     // Performs tick on the current gate
     private void performTock() {
-        Gate.CLOCK_NODE.set((short)1);
+        GatesManager.getInstance().getClockNode().set((short)1);
         gate.tock();
         clockUp = false;
         time++;
@@ -114,17 +114,17 @@ public class PartPins extends ValueComputerPart {
             Node node;
             boolean selfFittingWidth = false;
             if (cleanGatePinName.equals(CompositeGateClass.TRUE_NODE_INFO.name)) {
-                node = Gate.TRUE_NODE;
+                node = GatesManager.getInstance().getTrueNode();
                 info.gatePinName = CompositeGateClass.TRUE_NODE_INFO.name;
                 selfFittingWidth = true;
             }
             else if (cleanGatePinName.equals(CompositeGateClass.FALSE_NODE_INFO.name)) {
-                node = Gate.FALSE_NODE;
+                node = GatesManager.getInstance().getFalseNode();
                 info.gatePinName = CompositeGateClass.FALSE_NODE_INFO.name;
                 selfFittingWidth = true;
             }
             else if (cleanGatePinName.equals(CompositeGateClass.CLOCK_NODE_INFO.name)) {
-                node = Gate.CLOCK_NODE;
+                node = GatesManager.getInstance().getClockNode();
                 info.gatePinName = CompositeGateClass.CLOCK_NODE_INFO.name;
             }
             else {
@@ -0,0 +1,171 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.HardwareSimulator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import Hack.Controller.*;
+import Hack.Gates.*;
+import Hack.Utilities.*;
+import Hack.Assembler.*;
+
+/**
+ * Runs test scripts (.tst files) concurrently on a pool of threads. Each script runs in
+ * its own headless HardwareSimulator, whose thread is bound to its own GatesManager, so
+ * the runs don't share any simulation state. The parsed gates are shared between all
+ * the runs through the gate cache, so every HDL file is parsed once (until it changes).
+ */
+public class RegressionRunner {
+
+    // The amount of threads in the pool
+    private int threadsCount;
+
+    // When true, the gates are loaded as compiled gates
+    private boolean compiledEval;
+
+    // The maximal run time of a single script, in milliseconds (0 for no limit)
+    private long timeout;
+
+    /**
+     * Constructs a new RegressionRunner with the given amount of threads, the evaluation
+     * mode and the maximal run time of a single script in milliseconds (0 for no limit).
+     * A script that runs longer is interrupted and fails.
+     */
+    public RegressionRunner(int threadsCount, boolean compiledEval, long timeout) {
+        this.threadsCount = threadsCount;
+        this.compiledEval = compiledEval;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns all the .tst files in the given directory tree, sorted by their path.
+     */
+    public static File[] findScripts(File dir) {
+        Vector scripts = new Vector();
+        addScripts(dir, scripts);
+
+        File[] result = new File[scripts.size()];
+        scripts.toArray(result);
+        Arrays.sort(result);
+        return result;
+    }
+
+    // Adds the .tst files in the given directory tree to the given vector.
+    private static void addScripts(File dir, Vector scripts) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].isDirectory())
+                    addScripts(files[i], scripts);
+                else if (files[i].getName().endsWith(".tst"))
+                    scripts.addElement(files[i]);
+            }
+    }
+
+    /**
+     * Runs the given scripts and returns their results, in the same order.
+     */
+    public ScriptResult[] run(File[] scripts) throws InterruptedException {
+        // create the shared singletons before the runs start
+        Definitions.getInstance();
+        HackAssemblerTranslator.getInstance();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadsCount);
+        final java.util.Timer watchdog = new java.util.Timer(true);
+        Future[] futures = new Future[scripts.length];
+
+        for (int i = 0; i < scripts.length; i++) {
+            final File script = scripts[i];
+            futures[i] = pool.submit(new Callable() {
+                public Object call() {
+                    return runScript(script, watchdog);
+                }
+            });
+        }
+
+        ScriptResult[] results = new ScriptResult[scripts.length];
+        try {
+            for (int i = 0; i < futures.length; i++)
+                results[i] = (ScriptResult)futures[i].get();
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause().toString());
+        } finally {
+            pool.shutdownNow();
+            watchdog.cancel();
+        }
+
+        return results;
+    }
+
+    // Runs the given script in a new simulator, on the current thread, and returns its
+    // result. The given watchdog interrupts the script when the timeout expires.
+    private ScriptResult runScript(File script, java.util.Timer watchdog) {
+        long startTime = System.currentTimeMillis();
+        Interrupter interrupter = new Interrupter(Thread.currentThread());
+        if (timeout > 0)
+            watchdog.schedule(interrupter, timeout);
+
+        GatesManager.setThreadInstance(new GatesManager());
+
+        try {
+            HardwareSimulator simulator = new HardwareSimulator();
+            simulator.setCompiledEval(compiledEval);
+            HackController controller = new HackController(simulator);
+
+            boolean passed = controller.runScript(script);
+            return new ScriptResult(script, passed, controller.getLastMessage(),
+                                    System.currentTimeMillis() - startTime);
+        } catch (RuntimeException re) {
+            return new ScriptResult(script, false, re.toString(),
+                                    System.currentTimeMillis() - startTime);
+        } finally {
+            GatesManager.setThreadInstance(null);
+            interrupter.finish();
+        }
+    }
+
+    // Interrupts a thread that runs a script, unless the script has already finished.
+    private static class Interrupter extends TimerTask {
+
+        // The thread that runs the script
+        private Thread thread;
+
+        // true if the script has finished
+        private boolean finished;
+
+        public Interrupter(Thread thread) {
+            this.thread = thread;
+        }
+
+        public synchronized void run() {
+            if (!finished)
+                thread.interrupt();
+        }
+
+        // Marks the script as finished and clears the thread's interrupted state, so the
+        // thread can run the next script.
+        public void finish() {
+            synchronized (this) {
+                finished = true;
+                cancel();
+            }
+            Thread.interrupted();
+        }
+    }
+}
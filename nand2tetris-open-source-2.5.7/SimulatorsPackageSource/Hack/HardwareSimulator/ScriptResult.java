@@ -0,0 +1,77 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.HardwareSimulator;
+
+import java.io.*;
+
+/**
+ * The result of running a test script by the RegressionRunner.
+ */
+public class ScriptResult {
+
+    // The script file
+    private File script;
+
+    // true if the script ended successfully
+    private boolean passed;
+
+    // The final message of the script
+    private String message;
+
+    // The wall time of the run, in milliseconds
+    private long time;
+
+    /**
+     * Constructs a new ScriptResult with the given script file, success flag,
+     * final message and wall time (in milliseconds).
+     */
+    public ScriptResult(File script, boolean passed, String message, long time) {
+        this.script = script;
+        this.passed = passed;
+        this.message = message;
+        this.time = time;
+    }
+
+    /**
+     * Returns the script file.
+     */
+    public File getScript() {
+        return script;
+    }
+
+    /**
+     * Returns true if the script ended successfully.
+     */
+    public boolean isPassed() {
+        return passed;
+    }
+
+    /**
+     * Returns the final message of the script.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the wall time of the run, in milliseconds.
+     */
+    public long getTime() {
+        return time;
+    }
+}
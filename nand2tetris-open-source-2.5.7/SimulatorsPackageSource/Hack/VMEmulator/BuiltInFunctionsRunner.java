@@ -18,14 +18,19 @@
 package Hack.VMEmulator;
 
 import Hack.Controller.ProgramException;
+import Hack.CPUEmulator.RAM;
 import Hack.Utilities.Definitions;
 import java.io.File;
 import java.lang.reflect.*;
+import java.util.Hashtable;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A class that runs built-in VM code as a coroutine so that
  * built-in code may pause and call VM code that the user may debug and step
  * through.
+ * Built-in functions that don't call VM code are run directly on the VM
+ * emulator thread instead (see BuiltInVMClass).
  */
 public class BuiltInFunctionsRunner implements Runnable {
 
@@ -52,8 +57,67 @@ public class BuiltInFunctionsRunner implements Runnable {
 	private BuiltInToProgramRequest builtInToProgram;
 	private ProgramToBuiltInRequest programToBuiltIn;
 
-	// The thread that runs the built-in code
+	// A built-in function found by its name
+	private class BuiltInFunction {
+		Method functionObject;
+		int numberOfParameters;
+		boolean callsVMCode; // true if it has to run as a coroutine
+	}
+
+	// The built-in functions that were called so far, by their names
+	private Hashtable functions;
+
+	// The state that built-in classes keep for this runner's program, by
+	// their classes
+	private Hashtable builtInStates;
+
+	// Thrown down a directly run built-in function when it has to run as a
+	// coroutine after all
+	private static class DirectRunAbortedError extends Error {
+		private static final long serialVersionUID = 1L;
+
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+	private static final DirectRunAbortedError DIRECT_RUN_ABORTED =
+		new DirectRunAbortedError();
+
+	// True while a built-in function is run directly on the VM emulator thread
+	private boolean runningDirectly;
+
+	// The addresses written by the directly run function, and their values
+	// before the writes
+	private int[] writtenAddresses;
+	private short[] overwrittenValues;
+	private int numberOfWrites;
+
+	// The value returned by the last directly run function
+	private short directReturnValue;
+
+	// The thread that runs the built-in code (null until it's needed), and
+	// the VM emulator thread that is waiting for it (or that it waits for)
 	private Thread thread;
+	private Thread emulatorThread;
+
+	// True while the built-in code runs, and the VM emulator thread waits
+	private volatile boolean builtInsTurn;
+
+	// Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), or null if
+	// the Java runtime has no virtual threads
+	private static Method ofVirtualMethod;
+	private static Method unstartedMethod;
+
+	static {
+		try {
+			ofVirtualMethod = Thread.class.getMethod("ofVirtual", new Class[0]);
+			unstartedMethod = Class.forName("java.lang.Thread$Builder")
+				.getMethod("unstarted", new Class[]{Runnable.class});
+		} catch (Exception e) {
+			ofVirtualMethod = null;
+			unstartedMethod = null;
+		}
+	}
 
 	// The CPU that communicates with this class
 	private CPU cpu;
@@ -66,19 +130,41 @@ public class BuiltInFunctionsRunner implements Runnable {
 	/**
 	 * Relinquises control to the other thread until it relinquishes back.
 	 * Invariant: at any given time one of the threads is waiting here.
+	 * The waiting thread is parked rather than waiting on a monitor, so that
+	 * a virtual thread doesn't hold on to its carrier thread.
 	 */
-	private synchronized void continueOtherThread() {
-		notify();
-		while (true) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-				continue;
-			}
-			return;
+	private void continueOtherThread() {
+		boolean fromBuiltIns = (Thread.currentThread() == thread);
+		Thread other;
+		if (fromBuiltIns) {
+			other = emulatorThread;
+		} else {
+			emulatorThread = Thread.currentThread();
+			other = thread;
+		}
+		builtInsTurn = !fromBuiltIns;
+		LockSupport.unpark(other);
+		while (builtInsTurn != fromBuiltIns) {
+			LockSupport.park(this);
 		}
 	}
 
+	/**
+	 * Returns the state that the given built-in class keeps for this
+	 * runner's program, or null if it has none.
+	 */
+	Object getBuiltInState(Class builtInClass) {
+		return builtInStates.get(builtInClass);
+	}
+
+	/**
+	 * Sets the state that the given built-in class keeps for this runner's
+	 * program.
+	 */
+	void setBuiltInState(Class builtInClass, Object state) {
+		builtInStates.put(builtInClass, state);
+	}
+
 	/********************** Code run by the VM Emulator	thread *****/
 
     /**
@@ -91,11 +177,38 @@ public class BuiltInFunctionsRunner implements Runnable {
 		this.builtInDir = builtInDir;
 		builtInToProgram = new BuiltInToProgramRequest();
 		programToBuiltIn = new ProgramToBuiltInRequest();
-		thread = new Thread(this);
-		synchronized (this) {
-			thread.start();
-			continueOtherThread(); // Let the built-in code runner init itself
-								   // The notify part of this call does nothing
+		functions = new Hashtable();
+		builtInStates = new Hashtable();
+		writtenAddresses = new int[64];
+		overwrittenValues = new short[64];
+    }
+
+	/**
+	 * Starts the built-in code runner thread, and waits until it inits
+	 * itself. It's a virtual thread if the Java runtime has them, so that
+	 * many VM emulators don't take as many OS threads.
+	 */
+	private void startThread() {
+		thread = null;
+		if (ofVirtualMethod != null) {
+			try {
+				Object builder = ofVirtualMethod.invoke(null, new Object[0]);
+				thread = (Thread)unstartedMethod.invoke(builder,
+														new Object[]{this});
+			} catch (Exception e) {
+				thread = null;
+			}
+		}
+		if (thread == null) {
+			thread = new Thread(this, "Built-in VM code runner");
+			thread.setDaemon(true);
+		}
+
+		emulatorThread = Thread.currentThread();
+		builtInsTurn = true;
+		thread.start();
+		while (builtInsTurn) {
+			LockSupport.park(this);
 		}
     }
 
@@ -105,6 +218,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * this was completed.
 	 */
 	public void killAllRunningBuiltInFunctions() {
+		if (thread == null) {
+			return; // no built-in function ever ran as a coroutine
+		}
 		programToBuiltIn.request = END_PROGRAM_REQUEST;
 		continueOtherThread();
 	}
@@ -123,11 +239,47 @@ public class BuiltInFunctionsRunner implements Runnable {
 	/**
 	 * Called by the VM emulator. Searches for a built-in vm function by its
 	 * name and number of parameters (the length of the params array).
-	 * If found - tells the built-in code runner thread
-	 * to call the named built-in function with the given params.
+	 * If found - runs the named built-in function with the given params
+	 * directly, or tells the built-in code runner thread to call it if it
+	 * calls VM code.
 	 * Throws a ProgramException if no built-in implementation was found.
 	 */
 	public void callBuiltInFunction(String functionName, short[] params) throws ProgramException {
+		BuiltInFunction function = (BuiltInFunction)functions.get(functionName);
+		if (function == null || function.numberOfParameters != params.length) {
+			function = new BuiltInFunction();
+			function.functionObject = findFunction(functionName, params.length);
+			function.numberOfParameters = params.length;
+			functions.put(functionName, function);
+		}
+
+		Object[] requestParams = new Object[params.length];
+		for (int i=0; i<params.length; ++i) {
+			requestParams[i] = new Short(params[i]);
+		}
+
+		if (!function.callsVMCode) {
+			if (runDirectly(function.functionObject, requestParams)) {
+				cpu.returnFromBuiltInFunction(directReturnValue);
+				return;
+			}
+			function.callsVMCode = true;
+		}
+
+		if (thread == null) {
+			startThread();
+		}
+		programToBuiltIn.request = CALL_REQUEST;
+		programToBuiltIn.params = requestParams;
+		programToBuiltIn.functionObject = function.functionObject;
+
+		sendBuiltInRequestAndWaitForAnswer();
+	}
+
+	// Returns the implementation of the given built-in function, which takes
+	// the given number of parameters. Throws a ProgramException if there's none.
+	private Method findFunction(String functionName, int numberOfParameters)
+			throws ProgramException {
         int dotLocation = functionName.indexOf(".");
         if (dotLocation == -1) {
             throw new ProgramException("Illegal function name: " + functionName);
@@ -161,11 +313,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 			throw new ProgramException("Built-in implementation for "+className+" is not a subclass of BuiltInVMClass");
 		}
 
-		// Find the implementing method & fill in the request
-		Class[] paramsClasses = new Class[params.length];
-		Object[] requestParams = new Object[params.length];
-		for (int i=0; i<params.length; ++i) {
-			requestParams[i] = new Short(params[i]);
+		// Find the implementing method
+		Class[] paramsClasses = new Class[numberOfParameters];
+		for (int i=0; i<numberOfParameters; ++i) {
 			paramsClasses[i] = short.class;
 		}
 
@@ -174,18 +324,71 @@ public class BuiltInFunctionsRunner implements Runnable {
 			functionObject =
 				implementingClass.getDeclaredMethod(methodName, paramsClasses);
 		} catch (NoSuchMethodException nsme) {
-			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+params.length+" argument"+(params.length==1?"":"s")+".");
+			throw new ProgramException("Can't find "+className+".vm or a built-in implementation for function "+methodName+" in class "+className+" taking "+numberOfParameters+" argument"+(numberOfParameters==1?"":"s")+".");
 		}
 		Class returnType = functionObject.getReturnType();
 		if (returnType != short.class && returnType != void.class &&
 			returnType != char.class && returnType != boolean.class) {
-			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+params.length+" arguments doesn't return short/char/void/boolean.");
+			throw new ProgramException("Can't find "+className+".vm and the built-in implementation for "+functionName+" taking "+numberOfParameters+" arguments doesn't return short/char/void/boolean.");
+		}
+		return functionObject;
+	}
+
+	/**
+	 * Runs the given built-in function with the given params on this thread.
+	 * If it completes, keeps its return value in directReturnValue and returns
+	 * true. If it has to run as a coroutine, undoes its memory writes and
+	 * returns false.
+	 * If an exception was thrown by the function, throws a ProgramException.
+	 */
+	private boolean runDirectly(Method functionObject, Object[] params)
+			throws ProgramException {
+		BuiltInFunctionsRunner previousRunner =
+			BuiltInVMClass.associateForThread(this);
+		runningDirectly = true;
+		numberOfWrites = 0;
+		Object returnValue;
+		try {
+			returnValue = functionObject.invoke(null, params);
+		} catch (IllegalAccessException iae) {
+			throw new ProgramException("Error trying to run the built-in implementation of "+functionObject.getName());
+		} catch (InvocationTargetException ita) {
+			if (ita.getTargetException() == DIRECT_RUN_ABORTED) {
+				undoWrites();
+				return false;
+			}
+			throw new ProgramException("The built-in implementation of "+functionObject.getName()+" caused an exception: "+ita.getTargetException().toString());
+		} finally {
+			runningDirectly = false;
+			BuiltInVMClass.associateForThread(previousRunner);
+		}
+		directReturnValue = toReturnValue(functionObject.getReturnType(),
+										  returnValue);
+		return true;
+	}
+
+	// Restores the values that the directly run function overwrote, last
+	// write first.
+	private void undoWrites() {
+		RAM ram = cpu.getRAM();
+		while (numberOfWrites > 0) {
+			--numberOfWrites;
+			ram.setValueAt(writtenAddresses[numberOfWrites],
+						   overwrittenValues[numberOfWrites], true);
+		}
+	}
+
+	// Returns the given value returned by a built-in function as a VM value
+	private short toReturnValue(Class returnType, Object returnValue) {
+		if (returnType == short.class) {
+			return ((Short)returnValue).shortValue();
+		} else if (returnType == char.class) {
+			return (short)((Character)returnValue).charValue();
+		} else if (returnType == boolean.class) {
+			return (((Boolean)returnValue).booleanValue() ? (short)-1 : 0);
+		} else { // returnType == void.class
+			return 0;
 		}
-		programToBuiltIn.request = CALL_REQUEST;
-		programToBuiltIn.params = requestParams;
-		programToBuiltIn.functionObject = functionObject;
-			
-		sendBuiltInRequestAndWaitForAnswer();
 	}
 
 	/**
@@ -224,26 +427,24 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * Runs the built-in code runner thread
 	 */
 	public void run() {
-		// Nothing on this thread should work while
-		// the main program isn't waiting
-		synchronized (this) {
-			// Make sure that callbacks / memory access for built-in code
-			// run on this thread is done by this instance of
-			// BuiltInFunctionsRunner.
-			BuiltInVMClass.associateForThread(this);
-			while (true) {
-				try {
-					// Tell the VM Emulator that we finished init
-					// by issueing a request for calling a "null function" -
-					// The emulator expects us to tell it we finished init
-					// and will ignore the actual function call request and
-					// continue as normal.
-					builtInFunctionRequestsCall(null, null);
-				} catch (TerminateVMProgramThrowable e) {
-					continue;
-				}
-				return;
+		// Nothing on this thread works while the main program isn't waiting
+		// (see continueOtherThread())
+		// Make sure that callbacks / memory access for built-in code
+		// run on this thread is done by this instance of
+		// BuiltInFunctionsRunner.
+		BuiltInVMClass.associateForThread(this);
+		while (true) {
+			try {
+				// Tell the VM Emulator that we finished init
+				// by issueing a request for calling a "null function" -
+				// The emulator expects us to tell it we finished init
+				// and will ignore the actual function call request and
+				// continue as normal.
+				builtInFunctionRequestsCall(null, null);
+			} catch (TerminateVMProgramThrowable e) {
+				continue;
 			}
+			return;
 		}
 	}
 
@@ -257,6 +458,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 * necessary cleanups, and rethrow it.
      */
 	public short builtInFunctionRequestsCall(String functionName, short[] params) throws TerminateVMProgramThrowable {
+		if (runningDirectly) {
+			throw DIRECT_RUN_ABORTED;
+		}
 		builtInToProgram.request = CALL_REQUEST;
 		builtInToProgram.details = functionName;
 		builtInToProgram.params = params;
@@ -274,19 +478,8 @@ public class BuiltInFunctionsRunner implements Runnable {
 					programToBuiltIn.functionObject.invoke(null,
 														   programToBuiltIn.params);
 				builtInToProgram.request = RETURN_REQUEST;
-				if (returnType == short.class) {
-					builtInToProgram.returnValue = ((Short)returnValue).shortValue();
-				} else if (returnType == char.class) {
-					builtInToProgram.returnValue = (short)((Character)returnValue).charValue();
-				} else if (returnType == boolean.class) {
-					if (((Boolean)returnValue).booleanValue()) {
-						builtInToProgram.returnValue = (short)-1;
-					} else {
-						builtInToProgram.returnValue = 0;
-					}
-				} else { // returnType == void.class
-					builtInToProgram.returnValue = 0;
-				}
+				builtInToProgram.returnValue = toReturnValue(returnType,
+															 returnValue);
 			} catch (IllegalAccessException iae) {
 				// Error running - abort VM program
 				builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
@@ -319,6 +512,10 @@ public class BuiltInFunctionsRunner implements Runnable {
         if (!((address >= Definitions.HEAP_START_ADDRESS && address <= Definitions.HEAP_END_ADDRESS) ||
               (address >= Definitions.SCREEN_START_ADDRESS && address <= Definitions.SCREEN_END_ADDRESS) ||
               address == 0)) {
+			if (runningDirectly) {
+				// let the coroutine report it
+				throw DIRECT_RUN_ABORTED;
+			}
 			builtInToProgram.request = THROW_PROGRAM_EXCEPTION_REQUEST;
 			builtInToProgram.details = "A built-in function tried to access memory outside the Heap or Screen range";
 			continueOtherThread();
@@ -338,6 +535,9 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 */
 	public void builtInFunctionRequestsInfiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
+		if (runningDirectly) {
+			throw DIRECT_RUN_ABORTED;
+		}
 		builtInToProgram.request = INFINITE_LOOP_REQUEST;
 		builtInToProgram.details = message;
 		continueOtherThread();
@@ -351,7 +551,21 @@ public class BuiltInFunctionsRunner implements Runnable {
 	 */
 	public void builtInFunctionRequestsMemoryWrite(short address, short value) throws TerminateVMProgramThrowable {
 		checkMemoryAddress(address);
-		cpu.getRAM().setValueAt(address, value, false);
+		RAM ram = cpu.getRAM();
+		if (runningDirectly) {
+			if (numberOfWrites == writtenAddresses.length) {
+				int[] addresses = new int[numberOfWrites * 2];
+				short[] values = new short[numberOfWrites * 2];
+				System.arraycopy(writtenAddresses, 0, addresses, 0, numberOfWrites);
+				System.arraycopy(overwrittenValues, 0, values, 0, numberOfWrites);
+				writtenAddresses = addresses;
+				overwrittenValues = values;
+			}
+			writtenAddresses[numberOfWrites] = address;
+			overwrittenValues[numberOfWrites] = ram.getValueAt(address);
+			++numberOfWrites;
+		}
+		ram.setValueAt(address, value, false);
 	}
 
 	/**
@@ -17,7 +17,6 @@
 
 package Hack.VMEmulator;
 
-import java.util.Hashtable;
 import Hack.Utilities.Definitions;
 
 /**
@@ -25,9 +24,14 @@ import Hack.Utilities.Definitions;
  * The base class for all classes which are implemented in java.
  * All methods in decendents of this class represent functions and therefore
  * should be static.
+ * A function is first run directly by the VM emulator. If it calls a VM
+ * function (or infiniteLoop), its memory writes are undone and it is run
+ * again from its start as a coroutine, which may pause and call VM code.
+ * Therefore, before calling VM code a function should not change any state
+ * except by writeMemory.
  */
 public abstract class BuiltInVMClass {
-	private static Hashtable builtInFunctionsRunnerByThread = new Hashtable();
+	private static ThreadLocal builtInFunctionsRunnerForThread = new ThreadLocal();
 
 	/* Some definitions regarding the memory. */
     public static final short SCREEN_START_ADDRESS = Definitions.SCREEN_START_ADDRESS;
@@ -50,7 +54,7 @@ public abstract class BuiltInVMClass {
 	 */
     protected static void writeMemory(int address, int value)
 			throws TerminateVMProgramThrowable {
-		((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsMemoryWrite((short)address, (short)value);
+		((BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get()).builtInFunctionRequestsMemoryWrite((short)address, (short)value);
 	}
 
 	/**
@@ -60,7 +64,7 @@ public abstract class BuiltInVMClass {
 	 */
     protected static short readMemory(int address)
 			throws TerminateVMProgramThrowable {
-		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsMemoryRead((short)address);
+		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get()).builtInFunctionRequestsMemoryRead((short)address);
 	}
 
 	/**
@@ -74,7 +78,7 @@ public abstract class BuiltInVMClass {
 	protected static short callFunction(String functionName,
 		   								short[] params)
 			throws TerminateVMProgramThrowable {
-		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsCall(functionName, params);
+		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get()).builtInFunctionRequestsCall(functionName, params);
 	}
 
 	protected static short callFunction(String functionName)
@@ -114,6 +118,25 @@ public abstract class BuiltInVMClass {
 													  (short)param4});
 	}
 
+	/**
+	 * Returns the state that the given built-in class keeps for the program
+	 * that called the running function, or null if it has none.
+	 * Built-in classes keep their state (such as a cursor) this way rather
+	 * than in static fields, so that programs which run at the same time in
+	 * different VM emulators don't share it.
+	 */
+	protected static Object getState(Class builtInClass) {
+		return ((BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get()).getBuiltInState(builtInClass);
+	}
+
+	/**
+	 * Sets the state that the given built-in class keeps for the program
+	 * that called the running function (see getState).
+	 */
+	protected static void setState(Class builtInClass, Object state) {
+		((BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get()).setBuiltInState(builtInClass, state);
+	}
+
 	/**
 	 * Should be called only by Sys.halt (or an equivalent routine in an
 	 * alternative hack operating system).
@@ -126,7 +149,7 @@ public abstract class BuiltInVMClass {
 	 */
 	protected static void infiniteLoop(String message)
 			throws TerminateVMProgramThrowable {
-		((BuiltInFunctionsRunner)builtInFunctionsRunnerByThread.get(Thread.currentThread())).builtInFunctionRequestsInfiniteLoop(message);
+		((BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get()).builtInFunctionRequestsInfiniteLoop(message);
 	}
 
 
@@ -141,9 +164,14 @@ public abstract class BuiltInVMClass {
 	 * needed with a data member of the BuiltInFunctionsRunner because
 	 * logically all implementing classes should implement only static
 	 * methods.
+	 * Returns the BuiltInFunctionsRunner that was associated with this
+	 * thread before (or null).
 	 */
-	static final void associateForThread(BuiltInFunctionsRunner bifr) {
-		builtInFunctionsRunnerByThread.put(Thread.currentThread(), bifr);
+	static final BuiltInFunctionsRunner associateForThread(BuiltInFunctionsRunner bifr) {
+		BuiltInFunctionsRunner previous =
+			(BuiltInFunctionsRunner)builtInFunctionsRunnerForThread.get();
+		builtInFunctionsRunnerForThread.set(bifr);
+		return previous;
 	}
 
 }
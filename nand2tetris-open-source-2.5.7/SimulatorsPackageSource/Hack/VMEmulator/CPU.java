@@ -62,8 +62,9 @@ public class CPU {
     // A mapping from memory segment codes to the MemorySegment objects (not including stack).
     private MemorySegment[] segments;
 
-    // A stack of method frame addresses
-    private Vector stackFrames;
+    // A stack of method frame addresses, and the number of frames in it
+    private int[] stackFrames;
+    private int stackFrameCount;
 
     // The last instruction that was executed.
     private VMEmulatorInstruction currentInstruction;
@@ -71,6 +72,12 @@ public class CPU {
 	// Runner for built-in vm code
 	private BuiltInFunctionsRunner builtInFunctionsRunner;
 
+    // The fast path, which runs the program directly on the RAM
+    private FastInterpreter fastInterpreter;
+
+    // If true, runs of instructions are executed on the fast path
+    private boolean fastExecution;
+
     /**
      * Constructs the CPU with given program, RAM, call stack, bus, stack and other
      * memory segments.
@@ -105,7 +112,12 @@ public class CPU {
         segments[HVMInstructionSet.THAT_SEGMENT_CODE] = thatSegment;
         segments[HVMInstructionSet.TEMP_SEGMENT_CODE] = tempSegment;
 
-        stackFrames = new Vector();
+        stackFrames = new int[16];
+
+        fastInterpreter = new FastInterpreter(this, program, ram, callStack, calculator,
+                                              workingStackSegment, staticSegment,
+                                              localSegment, argSegment, thisSegment,
+                                              thatSegment, tempSegment);
 
         if (program.getGUI() != null) {
             builtInFunctionsRunner =
@@ -131,7 +143,7 @@ public class CPU {
         staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
 			   						  Definitions.VAR_END_ADDRESS - 1, true);
         setSP(Definitions.STACK_START_ADDRESS);
-		stackFrames.clear();
+		stackFrameCount = 0;
         if (builtInFunctionsRunner != null) {
             builtInFunctionsRunner.killAllRunningBuiltInFunctions();
         }
@@ -200,6 +212,70 @@ public class CPU {
         return currentInstruction;
     }
 
+    /**
+     * Sets whether runs of instructions (see executeInstructions()) are executed
+     * on the fast path, which skips the bus, the calculator and all gui updates,
+     * and brings the computer parts up to date when the run ends. The fast path
+     * may be used whenever no changes are displayed.
+     */
+    public void setFastExecution(boolean fastExecution) {
+        this.fastExecution = fastExecution;
+    }
+
+    /**
+     * Returns true if runs of instructions are executed on the fast path.
+     */
+    public boolean isFastExecution() {
+        return fastExecution;
+    }
+
+    /**
+     * Executes the given number of instructions, stopping at the first
+     * ProgramException. Returns the number of executed instructions.
+     */
+    public long executeInstructions(long count) throws ProgramException {
+        if (fastExecution)
+            return fastInterpreter.run(count);
+
+        for (long i = 0; i < count; i++)
+            executeInstruction();
+        return count;
+    }
+
+    /**
+     * Returns the number of steps that the fast path took to execute its runs of
+     * instructions: one per instruction, or per superinstruction of the program
+     * (see VMProgram.setInstructionFusion()).
+     */
+    public long getDispatchCount() {
+        return fastInterpreter.getDispatchCount();
+    }
+
+    // Sets the last instruction that was executed.
+    void setCurrentInstruction(VMEmulatorInstruction instruction) {
+        currentInstruction = instruction;
+    }
+
+    // Returns the stack of method frame addresses. Only the first
+    // getStackFrameCount() entries belong to the stack.
+    int[] getStackFrames() {
+        return stackFrames;
+    }
+
+    // Returns the number of method frames.
+    int getStackFrameCount() {
+        return stackFrameCount;
+    }
+
+    // Sets the stack of method frame addresses to the given number of
+    // addresses in the given array.
+    void setStackFrames(int[] frames, int count) {
+        if (stackFrames.length < count)
+            stackFrames = new int[frames.length];
+        System.arraycopy(frames, 0, stackFrames, 0, count);
+        stackFrameCount = count;
+    }
+
     /**
      * Executes the current instruction (Program at pc).
      * Returns false if END command, true otherwise.
@@ -264,7 +340,8 @@ public class CPU {
                 break;
             case HVMInstructionSet.CALL_CODE:
                 callFunction(currentInstruction.getArg0(), currentInstruction.getArg1(),
-                           currentInstruction.getStringArg(), false);
+                             currentInstruction.getStringArg(),
+                             currentInstruction.getFunctionIndex(), false);
                 break;
         }
     }
@@ -413,13 +490,14 @@ public class CPU {
             pushValue(MAIN_STACK, (short)0);
         }
 
-        String functionName = currentInstruction.getStringArg();
+        int functionIndex = currentInstruction.getFunctionIndex();
+        String functionName = program.getFunction(functionIndex).getName();
 
         // adds the new function to the top of the call stack.
-        callStack.pushFunction(functionName);
+        callStack.pushFunction(functionName, functionIndex);
 
         // sets the static segment range
-        setStaticRange(functionName);
+        setStaticRange(functionIndex, functionName);
     }
 
 	/**
@@ -472,10 +550,9 @@ public class CPU {
         callStack.popFunction();
 
         // check whether there is a "calling frame"
-        if (stackFrames.size() > 0) {
+        if (stackFrameCount > 0) {
             // retrieve stack frame address of old function
-            int frameAddress = ((Integer)stackFrames.lastElement()).intValue();
-            stackFrames.removeElementAt(stackFrames.size() - 1);
+            int frameAddress = stackFrames[--stackFrameCount];
             workingStackSegment.setStartAddress(frameAddress);
 
             // disable non relevant range of the local segment - enable only the locals
@@ -501,8 +578,8 @@ public class CPU {
 			builtInFunctionsRunner.returnToBuiltInFunction(popValue(METHOD_STACK));
 		} else if (returnAddress >= 0 && returnAddress < program.getSize()) {
             // sets the static segment range
-			if (stackFrames.size() > 0) {
-				setStaticRange(callStack.getTopFunction());
+			if (stackFrameCount > 0) {
+				setStaticRange(callStack.getTopFunctionIndex(), callStack.getTopFunction());
 			} else {
 				staticSegment.setStartAddress(Definitions.VAR_START_ADDRESS);
 				staticSegment.setEnabledRange(Definitions.VAR_START_ADDRESS,
@@ -540,7 +617,21 @@ public class CPU {
      */
     public void callFunction(short address, short numberOfArguments, String functionName, boolean callerIsBuiltIn)
      throws ProgramException {
-        stackFrames.addElement(new Integer(workingStackSegment.getStartAddress()));
+        callFunction(address, numberOfArguments, functionName, -1, callerIsBuiltIn);
+    }
+
+    // Calls a function as callFunction(short, short, String, boolean) does.
+    // functionIndex is the index of a built-in function in the program (see
+    // VMProgram.getFunction()), or -1 if it's not known.
+    private void callFunction(short address, short numberOfArguments, String functionName,
+                              int functionIndex, boolean callerIsBuiltIn)
+     throws ProgramException {
+        if (stackFrameCount == stackFrames.length) {
+            int[] newFrames = new int[stackFrameCount * 2];
+            System.arraycopy(stackFrames, 0, newFrames, 0, stackFrameCount);
+            stackFrames = newFrames;
+        }
+        stackFrames[stackFrameCount++] = workingStackSegment.getStartAddress();
         workingStackSegment.setStartAddress(getSP() + 5);
 
 		if (callerIsBuiltIn) {
@@ -564,7 +655,11 @@ public class CPU {
 			localSegment.setEnabledRange(localSegment.getStartAddress(),
 										 localSegment.getStartAddress()-1,
 										 true); // no local variables
-			callStack.pushFunction(functionName + " (built-in)");
+			if (functionIndex != -1)
+				callStack.pushFunction(program.getFunction(functionIndex).getName(),
+									   functionIndex);
+			else
+				callStack.pushFunction(functionName + " (built-in)");
 			staticSegment.setEnabledRange(0, -1, true); // empty static segment
 			// Read parameters from the stack
 			short[] params = new short[numberOfArguments];
@@ -588,6 +683,22 @@ public class CPU {
 		}
     }
 
+    // Sets the static segment range according to the function with the given index
+    // in the program and the given name, without looking the name up unless the
+    // index isn't of that function.
+    private void setStaticRange(int functionIndex, String functionName)
+     throws ProgramException {
+        VMFunction function = program.getFunction(functionIndex, functionName);
+        int[] range = (function != null ? function.getStaticRange() : null);
+        if (range == null) {
+            setStaticRange(functionName); // looks it up, or throws the error
+            return;
+        }
+
+        staticSegment.setStartAddress(range[0]);
+        staticSegment.setEnabledRange(range[0], range[1], true);
+    }
+
     /**
      * Sets the static segment range according to the the given function (file) name.
      */
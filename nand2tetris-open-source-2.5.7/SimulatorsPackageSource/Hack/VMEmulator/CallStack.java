@@ -28,6 +28,10 @@ public class CallStack extends ComputerPart {
     // the vector of function names.
     private Vector names;
 
+    // the index of each function in the program (see VMProgram.getFunction()),
+    // or -1 if it's not known.
+    private int[] functionIndice;
+
     // the stack gui
     private CallStackGUI gui;
 
@@ -37,6 +41,7 @@ public class CallStack extends ComputerPart {
     public CallStack(CallStackGUI gui) {
         super(gui != null);
         names = new Vector();
+        functionIndice = new int[16];
         this.gui = gui;
     }
 
@@ -47,10 +52,56 @@ public class CallStack extends ComputerPart {
         return (names.size() > 0 ? (String)names.elementAt(names.size() - 1) : "");
     }
 
+    /**
+     * Returns the number of functions in the stack.
+     */
+    public int getSize() {
+        return names.size();
+    }
+
+    /**
+     * Returns the name of the function at the given index, counted from the
+     * bottom of the stack.
+     */
+    public String getFunctionAt(int index) {
+        return (String)names.elementAt(index);
+    }
+
+    /**
+     * Returns the index in the program of the function at the given index,
+     * counted from the bottom of the stack, or -1 if it's not known.
+     */
+    public int getFunctionIndexAt(int index) {
+        return functionIndice[index];
+    }
+
+    /**
+     * Returns the index in the program of the function at the top of the stack,
+     * or -1 if it's not known or the stack is empty.
+     */
+    public int getTopFunctionIndex() {
+        return (names.size() > 0 ? functionIndice[names.size() - 1] : -1);
+    }
+
     /**
      * Adds the given function name at the top of the stack.
      */
     public void pushFunction(String functionName) {
+        pushFunction(functionName, -1);
+    }
+
+    /**
+     * Adds the given function name, whose index in the program is given, at
+     * the top of the stack.
+     */
+    public void pushFunction(String functionName, int functionIndex) {
+        int size = names.size();
+        if (size == functionIndice.length) {
+            int[] newIndice = new int[size * 2];
+            System.arraycopy(functionIndice, 0, newIndice, 0, size);
+            functionIndice = newIndice;
+        }
+        functionIndice[size] = functionIndex;
         names.addElement(functionName);
         if (displayChanges)
             gui.setContents(names);
@@ -0,0 +1,1069 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+import Hack.ComputerParts.*;
+import Hack.Controller.*;
+import Hack.CPUEmulator.RAM;
+import Hack.Utilities.*;
+import Hack.VirtualMachine.*;
+
+/**
+ * The fast path of the vm emulator's CPU. Runs the program's instructions directly
+ * on the RAM array, with the stack and segment pointers and the program counters
+ * held in local variables, and writes the state back into the computer parts only
+ * when a run ends. An instruction which may fail or has effects outside the RAM
+ * (such as a call to a built-in function) is executed by the CPU's normal path,
+ * after the state was written back, so its effects and errors are the same.
+ * The superinstructions of the program (see VMProgram.getSuperinstructions())
+ * run their sequences of instructions as one step, when none of them would be
+ * executed by the normal path.
+ */
+class FastInterpreter {
+
+    // The decoded operations. Push and pop are decoded per segment.
+    private static final int NOP = 0;
+    private static final int ADD = 1;
+    private static final int SUBTRACT = 2;
+    private static final int NEGATE = 3;
+    private static final int EQUAL = 4;
+    private static final int GREATER_THAN = 5;
+    private static final int LESS_THAN = 6;
+    private static final int AND = 7;
+    private static final int OR = 8;
+    private static final int NOT = 9;
+    private static final int PUSH_CONSTANT = 10;
+    private static final int PUSH_LOCAL = 11;
+    private static final int PUSH_ARGUMENT = 12;
+    private static final int PUSH_THIS = 13;
+    private static final int PUSH_THAT = 14;
+    private static final int PUSH_TEMP = 15;
+    private static final int PUSH_STATIC = 16;
+    private static final int PUSH_THIS_POINTER = 17;
+    private static final int PUSH_THAT_POINTER = 18;
+    private static final int POP_LOCAL = 19;
+    private static final int POP_ARGUMENT = 20;
+    private static final int POP_THIS = 21;
+    private static final int POP_THAT = 22;
+    private static final int POP_TEMP = 23;
+    private static final int POP_STATIC = 24;
+    private static final int POP_THIS_POINTER = 25;
+    private static final int POP_THAT_POINTER = 26;
+    private static final int GOTO = 27;
+    private static final int IF_GOTO = 28;
+    private static final int FUNCTION = 29;
+    private static final int RETURN = 30;
+    private static final int CALL = 31;
+
+    // The addresses below this one hold the pointers, which are kept in local
+    // variables while running
+    private static final int POINTERS_END = Definitions.THAT_POINTER_ADDRESS + 1;
+
+    // The number of the saved pointers in a frame (return address, lcl, arg, this, that)
+    private static final int FRAME_SIZE = 5;
+
+    // An unknown static segment start (of a function whose name doesn't match a class)
+    private static final int UNKNOWN_STATIC = -1;
+
+    // The CPU, whose normal path executes the instructions that the fast path doesn't
+    private CPU cpu;
+
+    // The computer parts whose state is kept while running
+    private VMProgram program;
+    private RAM ram;
+    private CallStack callStack;
+    private Calculator calculator;
+    private TrimmedAbsoluteMemorySegment workingStackSegment;
+    private MemorySegment staticSegment;
+    private MemorySegment localSegment;
+    private MemorySegment argSegment;
+    private MemorySegment thisSegment;
+    private MemorySegment thatSegment;
+    private MemorySegment tempSegment;
+
+    // The decoded instructions: the operation, its arguments and the index of the
+    // next instruction which isn't a label. The first argument of a function
+    // instruction is the start of its static segment, whose end is in staticEnds.
+    private VMEmulatorInstruction[] decodedInstructions;
+    private int decodedLength;
+    private int[] operations;
+    private int[] arguments0;
+    private int[] arguments1;
+    private int[] nextIndice;
+    private int[] staticEnds;
+
+    // The decoded superinstructions of the program, and the number of instructions
+    // that the superinstruction at each index runs
+    private byte[] decodedSuperinstructions;
+    private int[] superinstructions;
+    private int[] superinstructionLengths;
+
+    // The enabled ranges of the segments, and the start addresses of the segments
+    // that don't follow a pointer
+    private int localFirst, localLast;
+    private int argFirst, argLast;
+    private int thisFirst, thisLast;
+    private int thatFirst, thatLast;
+    private int tempStart, tempFirst, tempLast;
+    private int staticStart, staticFirst, staticLast;
+    private int workingStackStart;
+
+    // The calculator's inputs and output
+    private short calculatorInput0, calculatorInput1, calculatorOutput;
+
+    // The frame addresses of the stack frames
+    private int[] frames = new int[16];
+    private int frameCount;
+
+    // The functions in the call stack with the index of each one in the program,
+    // and the number of them that are still the same as in callStack
+    private VMFunction[] functions = new VMFunction[16];
+    private int[] functionIndice = new int[16];
+    private int functionCount;
+    private int functionsKept;
+
+    // The program counters, the pointers and the index of the last executed instruction,
+    // while not running
+    private int nextPC, currentPC, previousPC;
+    private int sp, lcl, arg, thisPointer, thatPointer;
+    private int lastIndex;
+
+    // The number of instructions and superinstructions run so far
+    private long dispatchCount;
+
+    /**
+     * Constructs the fast path of the given cpu, which keeps the state of the
+     * given computer parts.
+     */
+    FastInterpreter(CPU cpu, VMProgram program, RAM ram, CallStack callStack,
+                    Calculator calculator, TrimmedAbsoluteMemorySegment workingStackSegment,
+                    MemorySegment staticSegment, MemorySegment localSegment,
+                    MemorySegment argSegment, MemorySegment thisSegment,
+                    MemorySegment thatSegment, MemorySegment tempSegment) {
+        this.cpu = cpu;
+        this.program = program;
+        this.ram = ram;
+        this.callStack = callStack;
+        this.calculator = calculator;
+        this.workingStackSegment = workingStackSegment;
+        this.staticSegment = staticSegment;
+        this.localSegment = localSegment;
+        this.argSegment = argSegment;
+        this.thisSegment = thisSegment;
+        this.thatSegment = thatSegment;
+        this.tempSegment = tempSegment;
+    }
+
+    /**
+     * Executes the given number of instructions, stopping at the first
+     * ProgramException. Returns the number of executed instructions.
+     */
+    long run(long count) throws ProgramException {
+        decode();
+        load();
+
+        short[] mem = ram.getContents();
+        int deviceStart = ram.getFirstDeviceAddress();
+        int length = decodedLength;
+        int[] operations = this.operations;
+        int[] arguments0 = this.arguments0;
+        int[] arguments1 = this.arguments1;
+        int[] nextIndice = this.nextIndice;
+        int[] superinstructions = this.superinstructions;
+        int[] superinstructionLengths = this.superinstructionLengths;
+
+        int pc = nextPC;
+        int current = currentPC;
+        int previous = previousPC;
+        int sp = this.sp;
+        int lcl = this.lcl;
+        int arg = this.arg;
+        int thisPointer = this.thisPointer;
+        int thatPointer = this.thatPointer;
+        short input0 = calculatorInput0;
+        short input1 = calculatorInput1;
+        short output = calculatorOutput;
+        int last = -1;
+        long i = 0;
+        long dispatches = 0;
+
+        // pushes and pops assume that sp is in the stack
+        boolean legalSP = isLegalSP(sp);
+
+        // true while the computer parts hold the state, and the local variables don't
+        boolean written = false;
+
+        try {
+            while (i < count) {
+                int index = pc;
+                boolean slow = (index < 0 || index >= length || !legalSP);
+
+                if (!slow && superinstructions[index] != VMProgram.NO_SUPERINSTRUCTION &&
+                    i + superinstructionLengths[index] <= count) {
+                    // the index of the last instruction of the superinstruction, and
+                    // the index to which it jumps (-1 if it doesn't)
+                    int end = index + superinstructionLengths[index] - 1;
+                    int target = -1;
+                    boolean fused = true;
+
+                    // checks the conditions of all the instructions before running them,
+                    // and otherwise leaves the first one to the normal dispatch below
+                    int loc;
+                    switch (superinstructions[index]) {
+                        case VMProgram.PUSH_CONSTANT_NOT:
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS) {
+                                fused = false;
+                                break;
+                            }
+                            input1 = (short)arguments1[index];
+                            output = (short)~input1;
+                            mem[sp++] = output;
+                            break;
+
+                        case VMProgram.NOT_IF_GOTO:
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS) {
+                                fused = false;
+                                break;
+                            }
+                            input1 = mem[sp - 1];
+                            output = (short)~input1;
+                            mem[--sp] = output;
+                            if (output != 0)
+                                target = arguments0[end];
+                            break;
+
+                        case VMProgram.COMPARE_IF_GOTO:
+                        case VMProgram.COMPARE_NOT_IF_GOTO:
+                            if (sp - 2 < Definitions.STACK_START_ADDRESS) {
+                                fused = false;
+                                break;
+                            }
+                            input1 = mem[sp - 1];
+                            input0 = mem[sp - 2];
+                            switch (operations[index]) {
+                                case EQUAL:
+                                    output = (short)(input0 == input1 ? -1 : 0); break;
+                                case GREATER_THAN:
+                                    output = (short)(input0 > input1 ? -1 : 0); break;
+                                case LESS_THAN:
+                                    output = (short)(input0 < input1 ? -1 : 0); break;
+                            }
+                            sp -= 2;
+                            if (superinstructions[index] == VMProgram.COMPARE_NOT_IF_GOTO) {
+                                // the not takes the comparison into the calculator
+                                input1 = output;
+                                output = (short)~input1;
+                            }
+                            mem[sp] = output;
+                            if (output != 0)
+                                target = arguments0[end];
+                            break;
+
+                        case VMProgram.PUSH_LOCAL_CONSTANT:
+                            loc = (short)(arguments1[index] + lcl);
+                            if (sp + 2 > Definitions.STACK_END_ADDRESS ||
+                                loc < localFirst || loc > localLast || loc < POINTERS_END) {
+                                fused = false;
+                                break;
+                            }
+                            mem[sp] = mem[loc];
+                            mem[sp + 1] = (short)arguments1[index + 1];
+                            sp += 2;
+                            break;
+
+                        case VMProgram.LOCAL_ARITHMETIC_CONSTANT: {
+                            loc = (short)(arguments1[index] + lcl);
+                            int destination = (short)(arguments1[end] + lcl);
+                            if (sp + 2 > Definitions.STACK_END_ADDRESS ||
+                                loc < localFirst || loc > localLast || loc < POINTERS_END ||
+                                destination < localFirst || destination > localLast ||
+                                destination < POINTERS_END) {
+                                fused = false;
+                                break;
+                            }
+                            input0 = mem[loc];
+                            input1 = (short)arguments1[index + 1];
+                            if (operations[index + 2] == ADD)
+                                output = (short)(input0 + input1);
+                            else
+                                output = (short)(input0 - input1);
+                            mem[sp] = output;
+                            mem[sp + 1] = input1;
+                            write(mem, destination, output, deviceStart);
+                            break;
+                        }
+
+                        case VMProgram.ARRAY_READ: {
+                            // the that pointer must be in the heap or the screen, so
+                            // the read address isn't in the stack
+                            if (sp - 2 < Definitions.STACK_START_ADDRESS) {
+                                fused = false;
+                                break;
+                            }
+                            int pointer = (short)(mem[sp - 2] + mem[sp - 1]);
+                            loc = (short)(arguments1[end] + pointer);
+                            if (!((pointer >= Definitions.HEAP_START_ADDRESS &&
+                                   pointer <= Definitions.HEAP_END_ADDRESS) ||
+                                  (pointer >= Definitions.SCREEN_START_ADDRESS &&
+                                   pointer <= Definitions.SCREEN_END_ADDRESS)) ||
+                                loc < pointer || loc > Definitions.SCREEN_END_ADDRESS) {
+                                fused = false;
+                                break;
+                            }
+                            input1 = mem[sp - 1];
+                            input0 = mem[sp - 2];
+                            output = (short)pointer;
+                            thatPointer = pointer;
+                            thatFirst = pointer;
+                            thatLast = Definitions.SCREEN_END_ADDRESS;
+                            mem[sp - 2] = mem[loc];
+                            sp--;
+                            break;
+                        }
+
+                        case VMProgram.POP_LOCAL_GOTO:
+                            loc = (short)(arguments1[index] + lcl);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < localFirst || loc > localLast || loc < POINTERS_END) {
+                                fused = false;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            target = arguments0[end];
+                            break;
+                    }
+
+                    if (fused) {
+                        // the program counters are as after the last instruction
+                        previous = end - 1;
+                        current = end;
+                        pc = nextIndice[end];
+                        if (target != -1) {
+                            previous = current;
+                            current = pc;
+                            pc = target;
+                        }
+                        last = end;
+                        i += superinstructionLengths[index];
+                        dispatches++;
+                        continue;
+                    }
+                }
+
+                if (!slow) {
+                    int savedPrevious = previous;
+                    previous = current;
+                    current = index;
+                    pc = nextIndice[index];
+
+                    int loc;
+                    switch (operations[index]) {
+                        case ADD:
+                        case SUBTRACT:
+                        case EQUAL:
+                        case GREATER_THAN:
+                        case LESS_THAN:
+                        case AND:
+                        case OR:
+                            if (sp - 2 < Definitions.STACK_START_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            input1 = mem[sp - 1];
+                            input0 = mem[sp - 2];
+                            switch (operations[index]) {
+                                case ADD:
+                                    output = (short)(input0 + input1); break;
+                                case SUBTRACT:
+                                    output = (short)(input0 - input1); break;
+                                case EQUAL:
+                                    output = (short)(input0 == input1 ? -1 : 0); break;
+                                case GREATER_THAN:
+                                    output = (short)(input0 > input1 ? -1 : 0); break;
+                                case LESS_THAN:
+                                    output = (short)(input0 < input1 ? -1 : 0); break;
+                                case AND:
+                                    output = (short)(input0 & input1); break;
+                                case OR:
+                                    output = (short)(input0 | input1); break;
+                            }
+                            mem[sp - 2] = output;
+                            sp--;
+                            break;
+
+                        case NEGATE:
+                        case NOT:
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            input1 = mem[sp - 1];
+                            output = (short)(operations[index] == NEGATE ? -input1 : ~input1);
+                            mem[sp - 1] = output;
+                            break;
+
+                        case PUSH_CONSTANT:
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = (short)arguments1[index];
+                            break;
+
+                        case PUSH_LOCAL:
+                            loc = (short)(arguments1[index] + lcl);
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS ||
+                                loc < localFirst || loc > localLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = mem[loc];
+                            break;
+
+                        case PUSH_ARGUMENT:
+                            loc = (short)(arguments1[index] + arg);
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS ||
+                                loc < argFirst || loc > argLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = mem[loc];
+                            break;
+
+                        case PUSH_THIS:
+                            loc = (short)(arguments1[index] + thisPointer);
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS ||
+                                loc < Definitions.HEAP_START_ADDRESS ||
+                                loc > Definitions.HEAP_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = mem[loc];
+                            break;
+
+                        case PUSH_THAT:
+                            loc = (short)(arguments1[index] + thatPointer);
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS ||
+                                loc < thatFirst || loc > thatLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = mem[loc];
+                            break;
+
+                        case PUSH_TEMP:
+                            loc = (short)(arguments1[index] + tempStart);
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS ||
+                                loc < tempFirst || loc > tempLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = mem[loc];
+                            break;
+
+                        case PUSH_STATIC:
+                            loc = (short)(arguments1[index] + staticStart);
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS ||
+                                loc < staticFirst || loc > staticLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = mem[loc];
+                            break;
+
+                        case PUSH_THIS_POINTER:
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = (short)thisPointer;
+                            break;
+
+                        case PUSH_THAT_POINTER:
+                            if (sp + 1 > Definitions.STACK_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            mem[sp++] = (short)thatPointer;
+                            break;
+
+                        case POP_LOCAL:
+                            loc = (short)(arguments1[index] + lcl);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < localFirst || loc > localLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            break;
+
+                        case POP_ARGUMENT:
+                            loc = (short)(arguments1[index] + arg);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < argFirst || loc > argLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            break;
+
+                        case POP_THIS:
+                            loc = (short)(arguments1[index] + thisPointer);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < Definitions.HEAP_START_ADDRESS ||
+                                loc > Definitions.HEAP_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            break;
+
+                        case POP_THAT:
+                            loc = (short)(arguments1[index] + thatPointer);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < thatFirst || loc > thatLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            break;
+
+                        case POP_TEMP:
+                            loc = (short)(arguments1[index] + tempStart);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < tempFirst || loc > tempLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            break;
+
+                        case POP_STATIC:
+                            loc = (short)(arguments1[index] + staticStart);
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                loc < staticFirst || loc > staticLast || loc < POINTERS_END) {
+                                slow = true;
+                                break;
+                            }
+                            write(mem, loc, mem[--sp], deviceStart);
+                            break;
+
+                        case POP_THIS_POINTER:
+                            loc = mem[sp - 1];
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                ((loc < Definitions.HEAP_START_ADDRESS ||
+                                  loc > Definitions.HEAP_END_ADDRESS) && loc > 0)) {
+                                slow = true;
+                                break;
+                            }
+                            thisPointer = loc;
+                            thisFirst = loc;
+                            thisLast = Definitions.HEAP_END_ADDRESS;
+                            sp--;
+                            break;
+
+                        case POP_THAT_POINTER:
+                            loc = mem[sp - 1];
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS ||
+                                !((loc >= Definitions.HEAP_START_ADDRESS &&
+                                   loc <= Definitions.HEAP_END_ADDRESS) ||
+                                  (loc >= Definitions.SCREEN_START_ADDRESS &&
+                                   loc <= Definitions.SCREEN_END_ADDRESS) ||
+                                  loc == 0)) {
+                                slow = true;
+                                break;
+                            }
+                            thatPointer = loc;
+                            thatFirst = loc;
+                            thatLast = Definitions.SCREEN_END_ADDRESS;
+                            sp--;
+                            break;
+
+                        case GOTO:
+                            previous = current;
+                            current = pc;
+                            pc = arguments0[index];
+                            break;
+
+                        case IF_GOTO:
+                            if (sp - 1 < Definitions.STACK_START_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            if (mem[--sp] != 0) {
+                                previous = current;
+                                current = pc;
+                                pc = arguments0[index];
+                            }
+                            break;
+
+                        case FUNCTION: {
+                            int numberOfLocals = arguments1[index];
+                            int newSP = (short)(sp + numberOfLocals);
+                            if (current == previous + 1 || !isLegalSP(newSP) ||
+                                arguments0[index] == UNKNOWN_STATIC) {
+                                slow = true;
+                                break;
+                            }
+
+                            workingStackStart = newSP;
+                            localFirst = sp;
+                            localLast = newSP - 1;
+                            while (sp < newSP)
+                                mem[sp++] = 0;
+
+                            int functionIndex = decodedInstructions[index].getFunctionIndex();
+                            pushFunction(program.getFunction(functionIndex), functionIndex);
+                            staticStart = arguments0[index];
+                            staticFirst = staticStart;
+                            staticLast = staticEnds[index];
+                            break;
+                        }
+
+                        case CALL: {
+                            int address = arguments0[index];
+                            if (address == VMProgram.BUILTIN_FUNCTION_ADDRESS ||
+                                sp + FRAME_SIZE > Definitions.STACK_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+
+                            if (frameCount == frames.length)
+                                frames = grow(frames);
+                            frames[frameCount++] = workingStackStart;
+                            workingStackStart = sp + FRAME_SIZE;
+
+                            mem[sp] = (short)pc;
+                            mem[sp + 1] = (short)lcl;
+                            mem[sp + 2] = (short)arg;
+                            mem[sp + 3] = (short)thisPointer;
+                            mem[sp + 4] = (short)thatPointer;
+                            sp += FRAME_SIZE;
+                            arg = (short)(sp - arguments1[index] - FRAME_SIZE);
+                            lcl = sp;
+                            argFirst = arg;
+                            argLast = arg + arguments1[index] - 1;
+
+                            previous = pc;
+                            current = address;
+                            pc = address;
+                            break;
+                        }
+
+                        case RETURN: {
+                            // the frame and the returned value must be in the stack, and
+                            // the calling function must be a vm function with known statics
+                            if (lcl == 0 ||
+                                lcl - FRAME_SIZE < Definitions.STACK_START_ADDRESS ||
+                                lcl - 1 > Definitions.STACK_END_ADDRESS ||
+                                arg < Definitions.STACK_START_ADDRESS ||
+                                arg + 1 > Definitions.STACK_END_ADDRESS) {
+                                slow = true;
+                                break;
+                            }
+                            int returnAddress = mem[lcl - FRAME_SIZE];
+                            boolean callingFrame = (frameCount > 1);
+                            if (returnAddress < 0 || returnAddress >= length ||
+                                (callingFrame && (functionCount < 2 ||
+                                 functions[functionCount - 2].getStaticRange() == null))) {
+                                slow = true;
+                                break;
+                            }
+
+                            workingStackStart = sp;
+                            int frame = lcl;
+                            mem[Definitions.R13_ADDRESS] = (short)frame;
+                            mem[Definitions.R14_ADDRESS] = (short)returnAddress;
+                            mem[arg] = mem[sp - 1];
+                            sp = arg + 1;
+                            thatPointer = mem[frame - 1];
+                            thisPointer = mem[frame - 2];
+                            arg = mem[frame - 3];
+                            lcl = mem[frame - 4];
+
+                            if (functionCount > 0) {
+                                functionCount--;
+                                if (functionsKept > functionCount)
+                                    functionsKept = functionCount;
+                            }
+
+                            if (frameCount > 0) {
+                                int frameAddress = frames[--frameCount];
+                                workingStackStart = frameAddress;
+                                localFirst = Math.max(lcl, Definitions.STACK_START_ADDRESS);
+                                localLast = frameAddress - 1;
+                                argFirst = arg;
+                                argLast = lcl - 6;
+                                thisFirst = Math.max(thisPointer, Definitions.HEAP_START_ADDRESS);
+                                thisLast = Definitions.HEAP_END_ADDRESS;
+                                thatFirst = Math.max(thatPointer, Definitions.HEAP_START_ADDRESS);
+                                thatLast = Definitions.SCREEN_END_ADDRESS;
+                            }
+
+                            if (callingFrame) {
+                                int[] range = functions[functionCount - 1].getStaticRange();
+                                staticStart = range[0];
+                                staticFirst = staticStart;
+                                staticLast = range[1];
+                            }
+                            else {
+                                staticStart = Definitions.VAR_START_ADDRESS;
+                                staticFirst = Definitions.VAR_START_ADDRESS;
+                                staticLast = Definitions.VAR_END_ADDRESS - 1;
+                            }
+
+                            previous = pc;
+                            current = returnAddress - 1;
+                            pc = returnAddress;
+                            break;
+                        }
+                    }
+
+                    if (slow) {
+                        pc = index;
+                        current = previous;
+                        previous = savedPrevious;
+                    }
+                    else
+                        last = index;
+                }
+
+                if (slow) {
+                    // the normal path executes the instruction on the written back state
+                    save(pc, current, previous, sp, lcl, arg, thisPointer, thatPointer,
+                         input0, input1, output, last);
+                    writeBack();
+                    written = true;
+                    cpu.executeInstruction();
+
+                    decode();
+                    load();
+                    length = decodedLength;
+                    operations = this.operations;
+                    arguments0 = this.arguments0;
+                    arguments1 = this.arguments1;
+                    nextIndice = this.nextIndice;
+                    superinstructions = this.superinstructions;
+                    superinstructionLengths = this.superinstructionLengths;
+                    pc = nextPC;
+                    current = currentPC;
+                    previous = previousPC;
+                    sp = this.sp;
+                    lcl = this.lcl;
+                    arg = this.arg;
+                    thisPointer = this.thisPointer;
+                    thatPointer = this.thatPointer;
+                    input0 = calculatorInput0;
+                    input1 = calculatorInput1;
+                    output = calculatorOutput;
+                    legalSP = isLegalSP(sp);
+                    last = -1;
+                    written = false;
+                }
+
+                i++;
+                dispatches++;
+            }
+        } finally {
+            dispatchCount += dispatches;
+            if (!written) {
+                save(pc, current, previous, sp, lcl, arg, thisPointer, thatPointer,
+                     input0, input1, output, last);
+                writeBack();
+            }
+        }
+
+        return i;
+    }
+
+    /**
+     * Returns the number of instructions and superinstructions that were run,
+     * each as one step, since the fast path was constructed.
+     */
+    long getDispatchCount() {
+        return dispatchCount;
+    }
+
+    // Writes the given value at the given address of the RAM: through the RAM if a
+    // device is mapped to it (and the value changed), otherwise into the array.
+    private void write(short[] mem, int address, short value, int deviceStart) {
+        if (address < deviceStart)
+            mem[address] = value;
+        else if (mem[address] != value)
+            ram.setValueAt(address, value, true);
+    }
+
+    // Returns true if the given sp is in the stack.
+    private static boolean isLegalSP(int sp) {
+        return (sp >= Definitions.STACK_START_ADDRESS && sp <= Definitions.STACK_END_ADDRESS);
+    }
+
+    // Adds the given function, with the given index in the program, at the top
+    // of the call stack.
+    private void pushFunction(VMFunction function, int functionIndex) {
+        if (functionCount == functions.length) {
+            VMFunction[] newFunctions = new VMFunction[functions.length * 2];
+            System.arraycopy(functions, 0, newFunctions, 0, functionCount);
+            functions = newFunctions;
+            functionIndice = grow(functionIndice);
+        }
+
+        functions[functionCount] = function;
+        functionIndice[functionCount] = functionIndex;
+        functionCount++;
+    }
+
+    // Returns a copy of the given array, twice as long.
+    private static int[] grow(int[] array) {
+        int[] newArray = new int[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    // Keeps the given local state in the fields.
+    private void save(int pc, int current, int previous, int sp, int lcl, int arg,
+                      int thisPointer, int thatPointer, short input0, short input1,
+                      short output, int last) {
+        nextPC = pc;
+        currentPC = current;
+        previousPC = previous;
+        this.sp = sp;
+        this.lcl = lcl;
+        this.arg = arg;
+        this.thisPointer = thisPointer;
+        this.thatPointer = thatPointer;
+        calculatorInput0 = input0;
+        calculatorInput1 = input1;
+        calculatorOutput = output;
+        lastIndex = last;
+    }
+
+    // Decodes the instructions of the program, if they were changed since the last
+    // decoding.
+    private void decode() {
+        VMEmulatorInstruction[] instructions = program.getInstructions();
+        int length = program.getSize();
+        byte[] fused = program.getSuperinstructions();
+        if (instructions == decodedInstructions && length == decodedLength &&
+            fused == decodedSuperinstructions)
+            return;
+
+        operations = new int[length];
+        arguments0 = new int[length];
+        arguments1 = new int[length];
+        nextIndice = new int[length];
+        staticEnds = new int[length];
+        superinstructions = new int[length];
+        superinstructionLengths = new int[length];
+
+        for (int index = 0; index < length; index++) {
+            superinstructions[index] = fused[index];
+            superinstructionLengths[index] = VMProgram.getSuperinstructionLength(fused[index]);
+
+            VMEmulatorInstruction instruction = instructions[index];
+            int next = index + 1;
+            while (next < length &&
+                   instructions[next].getOpCode() == HVMInstructionSet.LABEL_CODE)
+                next++;
+            nextIndice[index] = next;
+            arguments0[index] = instruction.getArg0();
+            arguments1[index] = instruction.getArg1();
+
+            switch (instruction.getOpCode()) {
+                case HVMInstructionSet.ADD_CODE:
+                    operations[index] = ADD; break;
+                case HVMInstructionSet.SUBSTRACT_CODE:
+                    operations[index] = SUBTRACT; break;
+                case HVMInstructionSet.NEGATE_CODE:
+                    operations[index] = NEGATE; break;
+                case HVMInstructionSet.EQUAL_CODE:
+                    operations[index] = EQUAL; break;
+                case HVMInstructionSet.GREATER_THAN_CODE:
+                    operations[index] = GREATER_THAN; break;
+                case HVMInstructionSet.LESS_THAN_CODE:
+                    operations[index] = LESS_THAN; break;
+                case HVMInstructionSet.AND_CODE:
+                    operations[index] = AND; break;
+                case HVMInstructionSet.OR_CODE:
+                    operations[index] = OR; break;
+                case HVMInstructionSet.NOT_CODE:
+                    operations[index] = NOT; break;
+                case HVMInstructionSet.PUSH_CODE:
+                    operations[index] = decodePush(instruction.getArg0(), instruction.getArg1());
+                    break;
+                case HVMInstructionSet.POP_CODE:
+                    operations[index] = decodePop(instruction.getArg0(), instruction.getArg1());
+                    break;
+                case HVMInstructionSet.GOTO_CODE:
+                    operations[index] = GOTO; break;
+                case HVMInstructionSet.IF_GOTO_CODE:
+                    operations[index] = IF_GOTO; break;
+                case HVMInstructionSet.FUNCTION_CODE:
+                    operations[index] = FUNCTION;
+                    int[] range = program.getFunction(instruction.getFunctionIndex()).getStaticRange();
+                    arguments0[index] = (range != null ? range[0] : UNKNOWN_STATIC);
+                    arguments1[index] = instruction.getArg0();
+                    staticEnds[index] = (range != null ? range[1] : UNKNOWN_STATIC);
+                    break;
+                case HVMInstructionSet.RETURN_CODE:
+                    operations[index] = RETURN; break;
+                case HVMInstructionSet.CALL_CODE:
+                    operations[index] = CALL; break;
+                default:
+                    operations[index] = NOP;
+            }
+        }
+
+        decodedInstructions = instructions;
+        decodedLength = length;
+        decodedSuperinstructions = fused;
+    }
+
+    // Returns the operation of a push from the given segment.
+    private static int decodePush(int segment, int index) {
+        switch (segment) {
+            case HVMInstructionSet.CONST_SEGMENT_CODE: return PUSH_CONSTANT;
+            case HVMInstructionSet.LOCAL_SEGMENT_CODE: return PUSH_LOCAL;
+            case HVMInstructionSet.ARG_SEGMENT_CODE: return PUSH_ARGUMENT;
+            case HVMInstructionSet.THIS_SEGMENT_CODE: return PUSH_THIS;
+            case HVMInstructionSet.THAT_SEGMENT_CODE: return PUSH_THAT;
+            case HVMInstructionSet.TEMP_SEGMENT_CODE: return PUSH_TEMP;
+            case HVMInstructionSet.STATIC_SEGMENT_CODE: return PUSH_STATIC;
+            case HVMInstructionSet.POINTER_SEGMENT_CODE:
+                return (index == 0 ? PUSH_THIS_POINTER : index == 1 ? PUSH_THAT_POINTER : NOP);
+        }
+        return NOP;
+    }
+
+    // Returns the operation of a pop into the given segment.
+    private static int decodePop(int segment, int index) {
+        switch (segment) {
+            case HVMInstructionSet.LOCAL_SEGMENT_CODE: return POP_LOCAL;
+            case HVMInstructionSet.ARG_SEGMENT_CODE: return POP_ARGUMENT;
+            case HVMInstructionSet.THIS_SEGMENT_CODE: return POP_THIS;
+            case HVMInstructionSet.THAT_SEGMENT_CODE: return POP_THAT;
+            case HVMInstructionSet.TEMP_SEGMENT_CODE: return POP_TEMP;
+            case HVMInstructionSet.STATIC_SEGMENT_CODE: return POP_STATIC;
+            case HVMInstructionSet.POINTER_SEGMENT_CODE:
+                return (index == 0 ? POP_THIS_POINTER : index == 1 ? POP_THAT_POINTER : NOP);
+        }
+        return NOP;
+    }
+
+    // Reads the state of the computer parts into the fields.
+    private void load() {
+        short[] mem = ram.getContents();
+        nextPC = program.getPC();
+        currentPC = program.getCurrentPC();
+        previousPC = program.getPreviousPC();
+        sp = mem[Definitions.SP_ADDRESS];
+        lcl = mem[Definitions.LOCAL_POINTER_ADDRESS];
+        arg = mem[Definitions.ARG_POINTER_ADDRESS];
+        thisPointer = mem[Definitions.THIS_POINTER_ADDRESS];
+        thatPointer = mem[Definitions.THAT_POINTER_ADDRESS];
+
+        int[] range = localSegment.getEnabledRange();
+        localFirst = range[0];
+        localLast = range[1];
+        range = argSegment.getEnabledRange();
+        argFirst = range[0];
+        argLast = range[1];
+        range = thisSegment.getEnabledRange();
+        thisFirst = range[0];
+        thisLast = range[1];
+        range = thatSegment.getEnabledRange();
+        thatFirst = range[0];
+        thatLast = range[1];
+        range = tempSegment.getEnabledRange();
+        tempStart = tempSegment.getStartAddress();
+        tempFirst = range[0];
+        tempLast = range[1];
+        range = staticSegment.getEnabledRange();
+        staticStart = staticSegment.getStartAddress();
+        staticFirst = range[0];
+        staticLast = range[1];
+        workingStackStart = workingStackSegment.getStartAddress();
+
+        calculatorInput0 = calculator.getValueAt(0);
+        calculatorInput1 = calculator.getValueAt(1);
+        calculatorOutput = calculator.getValueAt(2);
+
+        frameCount = cpu.getStackFrameCount();
+        if (frames.length < frameCount)
+            frames = new int[cpu.getStackFrames().length];
+        System.arraycopy(cpu.getStackFrames(), 0, frames, 0, frameCount);
+
+        // a function that isn't found in the program by its index (a built-in
+        // function called by name, or a function of a program that was loaded
+        // before) has no known static segment, so returning to it is left to
+        // the cpu
+        int size = callStack.getSize();
+        functionCount = 0;
+        for (int i = 0; i < size; i++) {
+            String name = callStack.getFunctionAt(i);
+            int functionIndex = callStack.getFunctionIndexAt(i);
+            VMFunction function = program.getFunction(functionIndex, name);
+            VMFunction kept = (i < functions.length ? functions[i] : null);
+            if (function == null) {
+                if (kept != null && kept.getStaticRange() == null &&
+                    kept.getName().equals(name))
+                    function = kept;
+                else
+                    function = new VMFunction(name, null);
+            }
+
+            if (kept == function && functionIndice[i] == functionIndex)
+                functionCount++;
+            else
+                pushFunction(function, functionIndex);
+        }
+        functionsKept = functionCount;
+    }
+
+    // Writes the state in the fields back into the computer parts.
+    private void writeBack() {
+        ram.setValueAt(Definitions.SP_ADDRESS, (short)sp, true);
+        ram.setValueAt(Definitions.LOCAL_POINTER_ADDRESS, (short)lcl, true);
+        ram.setValueAt(Definitions.ARG_POINTER_ADDRESS, (short)arg, true);
+        ram.setValueAt(Definitions.THIS_POINTER_ADDRESS, (short)thisPointer, true);
+        ram.setValueAt(Definitions.THAT_POINTER_ADDRESS, (short)thatPointer, true);
+        program.setPC((short)nextPC, (short)currentPC, (short)previousPC);
+        if (lastIndex != -1)
+            cpu.setCurrentInstruction(decodedInstructions[lastIndex]);
+
+        localSegment.setEnabledRange(localFirst, localLast, true);
+        argSegment.setEnabledRange(argFirst, argLast, true);
+        thisSegment.setEnabledRange(thisFirst, thisLast, true);
+        thatSegment.setEnabledRange(thatFirst, thatLast, true);
+        staticSegment.setStartAddress(staticStart);
+        staticSegment.setEnabledRange(staticFirst, staticLast, true);
+        workingStackSegment.setStartAddress(workingStackStart);
+
+        calculator.setValueAt(0, calculatorInput0, true);
+        calculator.setValueAt(1, calculatorInput1, true);
+        calculator.setValueAt(2, calculatorOutput, true);
+
+        cpu.setStackFrames(frames, frameCount);
+
+        while (callStack.getSize() > functionsKept)
+            callStack.popFunction();
+        for (int i = functionsKept; i < functionCount; i++)
+            callStack.pushFunction(functions[i].getName(), functionIndice[i]);
+        functionsKept = functionCount;
+    }
+}
@@ -45,7 +45,7 @@ import Hack.VirtualMachine.*;
  * line - <function name>.<index in function> (String) - READ ONLY
  */
 public class VMEmulator extends HackSimulator
- implements ComputerPartErrorEventListener {
+ implements ComputerPartErrorEventListener, StepSimulator {
 
 	private static final File INITIAL_BUILTIN_DIR = new File("builtInVMCode");
     // variables
@@ -64,6 +64,12 @@ public class VMEmulator extends HackSimulator
     private static final String COMMAND_ROMLOAD = "load";
     private static final String COMMAND_SETVAR = "set";
 
+    // The maximal number of steps in a bulk run of steps. A step that calls a
+    // built-in function may take as long as thousands of others, so longer runs
+    // are returned to the controller (which resumes them) in slices of this size,
+    // between which a stop takes effect.
+    private static final long STEPS_SLICE = 100000;
+
     // The CPU
     private CPU cpu;
 
@@ -161,6 +167,7 @@ public class VMEmulator extends HackSimulator
 					  workingStackSegment, staticSegment, localSegment,
 					  argSegment, thisSegment, thatSegment, tempSegment,
 					  INITIAL_BUILTIN_DIR);
+        cpu.setFastExecution(true);
 
         cpu.boot();
 
@@ -473,6 +480,19 @@ public class VMEmulator extends HackSimulator
             throw new CommandException("Unknown simulator command", command);
     }
 
+    public boolean isStepCommand(String[] command) {
+        return (command.length == 1 && command[0].equals(COMMAND_VMSTEP));
+    }
+
+    public long doSteps(String[][] commands, int first, long count)
+     throws ProgramException, CommandException, VariableException {
+        // all step commands are vmstep, which executes one instruction
+        if (animationMode != HackController.NO_DISPLAY_CHANGES)
+            hideHighlightes();
+
+        return cpu.executeInstructions(Math.min(count, STEPS_SLICE));
+    }
+
     // Hides all highlights in GUIs.
     private void hideHighlightes() {
         cpu.getRAM().hideHighlight();
@@ -570,6 +590,10 @@ public class VMEmulator extends HackSimulator
             segments[i].setDisplayChanges(displayChanges);
             segments[i].setAnimate(animate);
         }
+
+        // nothing to display, so runs of instructions may skip the bus, the
+        // calculator and the gui updates
+        cpu.setFastExecution(gui == null || !displayChanges);
     }
 
     public int getInitialAnimationMode() {
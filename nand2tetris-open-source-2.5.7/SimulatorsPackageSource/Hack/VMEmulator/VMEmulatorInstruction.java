@@ -27,6 +27,10 @@ public class VMEmulatorInstruction extends HVMInstruction {
     // The index of the instruction in its containing function.
     private short indexInFunction;
 
+    // The index of the function that a function or call instruction refers to
+    // (see VMProgram.getFunction()), or -1 if there's none.
+    private short functionIndex = -1;
+
     /**
      * Constructs a new instruction with two arguments and the index in function.
      */
@@ -58,4 +62,20 @@ public class VMEmulatorInstruction extends HVMInstruction {
     public short getIndexInFunction() {
         return indexInFunction;
     }
+
+    /**
+     * Returns the index of the function that this function or call instruction
+     * refers to, or -1 if there's none.
+     */
+    public short getFunctionIndex() {
+        return functionIndex;
+    }
+
+    /**
+     * Sets the index of the function that this function or call instruction
+     * refers to.
+     */
+    public void setFunctionIndex(short functionIndex) {
+        this.functionIndex = functionIndex;
+    }
 }
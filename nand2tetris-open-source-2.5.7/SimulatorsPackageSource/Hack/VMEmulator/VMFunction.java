@@ -0,0 +1,58 @@
+/********************************************************************************
+ * The contents of this file are subject to the GNU General Public License      *
+ * (GPL) Version 2 or later (the "License"); you may not use this file except   *
+ * in compliance with the License. You may obtain a copy of the License at      *
+ * http://www.gnu.org/copyleft/gpl.html                                         *
+ *                                                                              *
+ * Software distributed under the License is distributed on an "AS IS" basis,   *
+ * without warranty of any kind, either expressed or implied. See the License   *
+ * for the specific language governing rights and limitations under the         *
+ * License.                                                                     *
+ *                                                                              *
+ * This file was originally developed as part of the software suite that        *
+ * supports the book "The Elements of Computing Systems" by Nisan and Schocken, *
+ * MIT Press 2005. If you modify the contents of this file, please document and *
+ * mark your changes clearly, for the benefit of others.                        *
+ ********************************************************************************/
+
+package Hack.VMEmulator;
+
+/**
+ * A function of a VM program, resolved when the program is loaded: its name and
+ * the static segment range of its class. The functions of a program are kept
+ * by index (see VMProgram.getFunction()).
+ */
+public class VMFunction {
+
+    // The name of the function, as shown in the call stack
+    private String name;
+
+    // The start and end addresses of the static segment, or null if the
+    // function has no static segment
+    private int[] staticRange;
+
+    /**
+     * Constructs a new function with the given name and static segment range
+     * (a 2-elements array {startAddress, endAddress}, or null for none).
+     */
+    public VMFunction(String name, int[] staticRange) {
+        this.name = name;
+        this.staticRange = staticRange;
+    }
+
+    /**
+     * Returns the name of the function.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the static segment range of the function's class, in the form of
+     * a 2-elements array {startAddress, endAddress}, or null if the function's
+     * name doesn't match a class.
+     */
+    public int[] getStaticRange() {
+        return staticRange;
+    }
+}
@@ -35,6 +35,23 @@ public class VMProgram extends InteractiveComputerPart
 	// pseudo address for returning to built-in functions
 	public static final short BUILTIN_FUNCTION_ADDRESS = -1;
 
+    // The superinstructions, each of which runs a sequence of instructions (see
+    // getSuperinstructions()). A comparison is eq, gt or lt, and an arithmetic
+    // instruction is add or sub.
+    static final byte NO_SUPERINSTRUCTION = 0;
+    static final byte PUSH_CONSTANT_NOT = 1;         // push constant c, not
+    static final byte NOT_IF_GOTO = 2;               // not, if-goto l
+    static final byte COMPARE_IF_GOTO = 3;           // comparison, if-goto l
+    static final byte COMPARE_NOT_IF_GOTO = 4;       // comparison, not, if-goto l
+    static final byte PUSH_LOCAL_CONSTANT = 5;       // push local i, push constant c
+    static final byte LOCAL_ARITHMETIC_CONSTANT = 6; // push local i, push constant c,
+                                                     // arithmetic, pop local j
+    static final byte ARRAY_READ = 7;                // add, pop pointer 1, push that i
+    static final byte POP_LOCAL_GOTO = 8;            // pop local i, goto l
+
+    // The number of instructions that each superinstruction runs
+    private static final int[] SUPERINSTRUCTION_LENGTHS = {1, 2, 2, 2, 3, 2, 4, 3, 2};
+
 	// Possible values for the current status - has the user allowed
 	// access to built-in vm functions?
 	private static final int BUILTIN_ACCESS_UNDECIDED = 0;
@@ -66,7 +83,16 @@ public class VMProgram extends InteractiveComputerPart
 
 	// Addresses of functions by name
 	private Hashtable functions;
+
+	// The functions that the function and call instructions refer to, by index
+	private VMFunction[] functionTable;
 	private short infiniteLoopForBuiltInsAddress;
+
+    // If true, the instructions are fused into superinstructions when loaded
+    private boolean instructionFusion;
+
+    // The superinstruction that starts at each instruction
+    private byte[] superinstructions;
 	
     // The current index of the static variables
     private int currentStaticIndex;
@@ -89,6 +115,7 @@ public class VMProgram extends InteractiveComputerPart
         listeners = new Vector();
         staticRange = new Hashtable();
 		functions = new Hashtable();
+        instructionFusion = true;
 
         if (hasGUI) {
             gui.addProgramListener(this);
@@ -245,6 +272,9 @@ public class VMProgram extends InteractiveComputerPart
         if (displayChanges)
             gui.hideMessage();
 
+		resolveFunctions();
+        fuseInstructions();
+
 		nextPC = startAddress;
         setGUIContents();
 
@@ -528,6 +558,160 @@ public class VMProgram extends InteractiveComputerPart
         return result;
     }
 
+    // Creates the functions that the function instructions and the calls to
+    // built-in functions refer to, and sets their indice in the instructions.
+    private void resolveFunctions() {
+        Vector table = new Vector();
+        Hashtable builtInIndice = new Hashtable();
+        for (int i = 0; i < instructionsLength; i++) {
+            VMEmulatorInstruction instruction = instructions[i];
+            if (instruction.getOpCode() == HVMInstructionSet.FUNCTION_CODE) {
+                String name = instruction.getStringArg();
+                int dotLocation = name.indexOf(".");
+                int[] range = null;
+                if (dotLocation != -1)
+                    range = getStaticRange(name.substring(0, dotLocation));
+
+                instruction.setFunctionIndex((short)table.size());
+                table.addElement(new VMFunction(name, range));
+            }
+            else if (instruction.getOpCode() == HVMInstructionSet.CALL_CODE &&
+                     instruction.getArg0() == BUILTIN_FUNCTION_ADDRESS) {
+                String name = instruction.getStringArg();
+                Short index = (Short)builtInIndice.get(name);
+                if (index == null) {
+                    index = new Short((short)table.size());
+                    builtInIndice.put(name, index);
+                    table.addElement(new VMFunction(name + " (built-in)", null));
+                }
+                instruction.setFunctionIndex(index.shortValue());
+            }
+        }
+
+        functionTable = new VMFunction[table.size()];
+        table.copyInto(functionTable);
+    }
+
+    /**
+     * Returns the function with the given index, which function and call
+     * instructions refer to (see VMEmulatorInstruction.getFunctionIndex()).
+     */
+    public VMFunction getFunction(int index) {
+        return functionTable[index];
+    }
+
+    /**
+     * Returns the function with the given index if its name is the given name,
+     * otherwise (for instance if the index is of a function of a program that
+     * was loaded before) returns null.
+     */
+    public VMFunction getFunction(int index, String name) {
+        if (index < 0 || index >= functionTable.length)
+            return null;
+
+        VMFunction function = functionTable[index];
+        return (function.getName().equals(name) ? function : null);
+    }
+
+    /**
+     * Sets whether the instructions of the program are fused into superinstructions
+     * (see getSuperinstructions()), which the cpu's fast path runs as one step each.
+     * Fusion is on by default.
+     */
+    public void setInstructionFusion(boolean instructionFusion) {
+        this.instructionFusion = instructionFusion;
+        fuseInstructions();
+    }
+
+    /**
+     * Returns true if the instructions of the program are fused into
+     * superinstructions.
+     */
+    public boolean isInstructionFusion() {
+        return instructionFusion;
+    }
+
+    // Finds the superinstruction that starts at each instruction: the longest
+    // one whose sequence of instructions follows it. A label is an instruction
+    // of its own (with LABEL_CODE), so no sequence matches across one, and a
+    // jump to a label never lands inside a sequence. Sequences may overlap,
+    // since a jump may lead to any instruction after a label.
+    private void fuseInstructions() {
+        superinstructions = new byte[instructionsLength];
+        if (!instructionFusion)
+            return;
+
+        for (int i = 0; i < instructionsLength; i++) {
+            if (isPush(i, HVMInstructionSet.LOCAL_SEGMENT_CODE) &&
+                isPush(i + 1, HVMInstructionSet.CONST_SEGMENT_CODE)) {
+                if ((isInstruction(i + 2, HVMInstructionSet.ADD_CODE) ||
+                     isInstruction(i + 2, HVMInstructionSet.SUBSTRACT_CODE)) &&
+                    isPop(i + 3, HVMInstructionSet.LOCAL_SEGMENT_CODE))
+                    superinstructions[i] = LOCAL_ARITHMETIC_CONSTANT;
+                else
+                    superinstructions[i] = PUSH_LOCAL_CONSTANT;
+            }
+            else if (isPush(i, HVMInstructionSet.CONST_SEGMENT_CODE) &&
+                     isInstruction(i + 1, HVMInstructionSet.NOT_CODE))
+                superinstructions[i] = PUSH_CONSTANT_NOT;
+            else if (isInstruction(i, HVMInstructionSet.NOT_CODE) &&
+                     isInstruction(i + 1, HVMInstructionSet.IF_GOTO_CODE))
+                superinstructions[i] = NOT_IF_GOTO;
+            else if (isInstruction(i, HVMInstructionSet.EQUAL_CODE) ||
+                     isInstruction(i, HVMInstructionSet.GREATER_THAN_CODE) ||
+                     isInstruction(i, HVMInstructionSet.LESS_THAN_CODE)) {
+                if (isInstruction(i + 1, HVMInstructionSet.NOT_CODE) &&
+                    isInstruction(i + 2, HVMInstructionSet.IF_GOTO_CODE))
+                    superinstructions[i] = COMPARE_NOT_IF_GOTO;
+                else if (isInstruction(i + 1, HVMInstructionSet.IF_GOTO_CODE))
+                    superinstructions[i] = COMPARE_IF_GOTO;
+            }
+            else if (isInstruction(i, HVMInstructionSet.ADD_CODE) &&
+                     isPop(i + 1, HVMInstructionSet.POINTER_SEGMENT_CODE) &&
+                     instructions[i + 1].getArg1() == 1 &&
+                     isPush(i + 2, HVMInstructionSet.THAT_SEGMENT_CODE))
+                superinstructions[i] = ARRAY_READ;
+            else if (isPop(i, HVMInstructionSet.LOCAL_SEGMENT_CODE) &&
+                     isInstruction(i + 1, HVMInstructionSet.GOTO_CODE))
+                superinstructions[i] = POP_LOCAL_GOTO;
+        }
+    }
+
+    // Returns true if the instruction at the given index has the given op code.
+    private boolean isInstruction(int index, byte opCode) {
+        return (index < instructionsLength && instructions[index].getOpCode() == opCode);
+    }
+
+    // Returns true if the instruction at the given index is a push from the given segment.
+    private boolean isPush(int index, byte segment) {
+        return (isInstruction(index, HVMInstructionSet.PUSH_CODE) &&
+                instructions[index].getArg0() == segment);
+    }
+
+    // Returns true if the instruction at the given index is a pop into the given segment.
+    private boolean isPop(int index, byte segment) {
+        return (isInstruction(index, HVMInstructionSet.POP_CODE) &&
+                instructions[index].getArg0() == segment);
+    }
+
+    /**
+     * Returns the superinstruction that starts at each instruction, or
+     * NO_SUPERINSTRUCTION. A superinstruction at index i runs the instructions
+     * from i to i + getSuperinstructionLength() - 1, so the program counters
+     * after it refer to the original instructions. The array is replaced when
+     * the program or the fusion setting changes.
+     */
+    byte[] getSuperinstructions() {
+        return superinstructions;
+    }
+
+    /**
+     * Returns the number of instructions that the given superinstruction runs.
+     */
+    static int getSuperinstructionLength(byte superinstruction) {
+        return SUPERINSTRUCTION_LENGTHS[superinstruction];
+    }
+
     /**
      * Returns the static variable address range of the given class name, in the
      * form of a 2-elements array {startAddress, endAddress}.
@@ -609,6 +793,25 @@ public class VMProgram extends InteractiveComputerPart
         setGUIPC();
     }
 
+    /**
+     * Sets the next, current and previous program counters with the given
+     * addresses.
+     */
+    void setPC(short nextAddress, short currentAddress, short previousAddress) {
+        prevPC = previousAddress;
+        currentPC = currentAddress;
+        nextPC = nextAddress;
+        setGUIPC();
+    }
+
+    /**
+     * Returns the instructions of the program. Only the first getSize()
+     * instructions belong to the program.
+     */
+    VMEmulatorInstruction[] getInstructions() {
+        return instructions;
+    }
+
     /**
      * Sets the program counter to a specially created infinite loop in the
 	 * end of the programs for access by built-in functions, de-facto halting
@@ -664,7 +867,9 @@ public class VMProgram extends InteractiveComputerPart
      */
     public void reset() {
         instructions = new VMEmulatorInstruction[0];
+        functionTable = new VMFunction[0];
 		visibleInstructionsLength = instructionsLength = 0;
+        superinstructions = new byte[0];
         currentPC = -999;
         prevPC = -999;
         nextPC = -1;